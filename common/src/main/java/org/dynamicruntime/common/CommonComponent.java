@@ -2,6 +2,7 @@ package org.dynamicruntime.common;
 
 import org.dynamicruntime.common.mail.DnMailEndpoints;
 import org.dynamicruntime.common.mail.DnMailSchemaDefData;
+import org.dynamicruntime.common.node.DnNodeEndpoints;
 import org.dynamicruntime.common.node.DnNodeSchemaDefData;
 import org.dynamicruntime.common.node.DnNodeService;
 import org.dynamicruntime.common.user.UserEndpoints;
@@ -44,6 +45,7 @@ public class CommonComponent implements ComponentDefinition {
     public void addSchema(DnCxt cxt, DnRawSchemaStore schemaStore) {
         schemaStore.addPackage(UserSchemaDefData.getPackage());
         schemaStore.addPackage(DnNodeSchemaDefData.getPackage());
+        schemaStore.addFunctions(DnNodeEndpoints.getFunctions());
         schemaStore.addFunctions(AuthUserEndpoints.getFunctions());
         schemaStore.addFunctions(UserEndpoints.getFunctions());
         schemaStore.addPackage(DnMailSchemaDefData.getPackage());
@@ -13,6 +13,22 @@ public class DnMailConstants {
     public static final String MC_TEXT = "text";
     public static final String MC_HTML = "html";
 
+    // Outbound mail queue table and its fields.
+    public static final String MQ_MAIL_QUEUE_TABLE = "DnMailQueue";
+    public static final String MQ_MAIL_ID = "mailId";
+    public static final String MQ_MAIL_DATA = "mailData";
+    public static final String MQ_STATUS = "mailStatus";
+    public static final String MQ_ATTEMPTS = "attempts";
+    public static final String MQ_NEXT_ATTEMPT = "nextAttemptDate";
+    public static final String MQ_LAST_ERROR = "lastError";
+    public static final String MQ_SERVER_ID = "mailServerId";
+    public static final String MQ_CLAIM_ID = "claimId";
+    // Values for *mailStatus*.
+    public static final String MQS_QUEUED = "queued";
+    public static final String MQS_SENDING = "sending";
+    public static final String MQS_SENT = "sent";
+    public static final String MQS_FAILED = "failed";
+
     // Endpoint functions.
     public static final String ADMIN_EMAIL_TEST = "adminEmailTest";
 
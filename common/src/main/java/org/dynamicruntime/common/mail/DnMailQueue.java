@@ -0,0 +1,327 @@
+package org.dynamicruntime.common.mail;
+
+import org.dynamicruntime.context.DnConfigUtil;
+import org.dynamicruntime.context.DnCxt;
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.schemadef.DnTable;
+import org.dynamicruntime.sql.DnSqlStatement;
+import org.dynamicruntime.sql.SqlCxt;
+import org.dynamicruntime.sql.SqlDatabase;
+import org.dynamicruntime.sql.SqlStmtUtil;
+import org.dynamicruntime.sql.SqlTableUtil;
+import org.dynamicruntime.sql.topic.SqlTopicUtil;
+import org.dynamicruntime.util.StrUtil;
+import org.dynamicruntime.util.SystemUtil;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.dynamicruntime.common.mail.DnMailConstants.*;
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*;
+import static org.dynamicruntime.util.ConvertUtil.*;
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Durable queue of outbound emails, stored in the *DnMailQueue* table of the *mail* topic. Requests that send
+ * email insert a row and return, so their latency no longer includes the mail server, and a mail server outage
+ * delays emails rather than failing the requests.
+ *
+ * A background thread on every node polls for rows that are due. It claims a batch of them with a single
+ * batched update that moves them from *queued* to *sending* and stamps them with an id unique to the poll. Only
+ * the rows it actually moved are sent, so two nodes never claim the same email. Drivers that rewrite batches
+ * report *SUCCESS_NO_INFO* rather than a count for each row, in which case the rows carrying the poll's id are
+ * read back to find the ones that were claimed. Claimed rows are handed to a small pool of workers, which limits how
+ * many sends are in progress at once. The poller only claims as many rows as the workers have room
+ * for, the rest wait in the table. A failed send is retried with exponential backoff (with some jitter) until
+ * *maxAttempts* is reached. Errors that will not go away by retrying, such as a rejected address, fail the
+ * email right away.
+ *
+ * Rows left in *sending* by a node that died are put back in the queue after *sendingTimeoutMillis*. Sent rows
+ * are deleted after *retentionMillis*.
+ *
+ * Delivery is at least once, not exactly once. If a node stops after the mail server accepted an email but before
+ * the row was marked as *sent*, the email is sent again once it is recovered.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnMailQueue implements Runnable {
+    public final DnCxt bgCxt;
+    public final DnMailService mailService;
+    public final SqlDatabase sqlDb;
+    public final long pollMillis;
+    public final int batchSize;
+    public final int numWorkers;
+    public final int maxAttempts;
+    public final long initialBackoffMillis;
+    public final long maxBackoffMillis;
+    public final long sendingTimeoutMillis;
+    public final long retentionMillis;
+
+    public DnTable mailQueue;
+    public DnSqlStatement iMailQueue;
+    public DnSqlStatement qReadyMail;
+    public DnSqlStatement uClaimMail;
+    public DnSqlStatement qClaimedMail;
+    public DnSqlStatement uMailResult;
+    public DnSqlStatement uRecoverMail;
+    public DnSqlStatement dSentMail;
+
+    public ExecutorService workers;
+    /** Claimed emails that have not finished sending. */
+    public final AtomicInteger inFlight = new AtomicInteger();
+    public volatile boolean isActive = false;
+    boolean wakeRequested = false;
+    long lastMaintenanceTime = 0;
+
+    // Statistics.
+    public final LongAdder enqueued = new LongAdder();
+    public final LongAdder sent = new LongAdder();
+    public final LongAdder retried = new LongAdder();
+    public final LongAdder failed = new LongAdder();
+
+    public DnMailQueue(DnCxt cxt, DnMailService mailService, SqlDatabase sqlDb) throws DnException {
+        this.bgCxt = cxt.mkSubContext("mailQueue");
+        this.mailService = mailService;
+        this.sqlDb = sqlDb;
+        this.pollMillis = DnConfigUtil.getConfigLong(cxt, "mail.queue.pollMillis", 1000,
+                "Milliseconds between polls for queued emails.");
+        this.batchSize = (int)DnConfigUtil.getConfigLong(cxt, "mail.queue.batchSize", 50,
+                "Maximum number of queued emails claimed by one poll.");
+        this.numWorkers = (int)DnConfigUtil.getConfigLong(cxt, "mail.queue.workers", 2,
+                "Number of emails this node sends at the same time.");
+        this.maxAttempts = (int)DnConfigUtil.getConfigLong(cxt, "mail.queue.maxAttempts", 8,
+                "Number of times sending an email is attempted before it is marked as failed.");
+        this.initialBackoffMillis = DnConfigUtil.getConfigLong(cxt, "mail.queue.initialBackoffMillis", 5000,
+                "Milliseconds to wait before the first retry of a failed email. Doubles with each attempt.");
+        this.maxBackoffMillis = DnConfigUtil.getConfigLong(cxt, "mail.queue.maxBackoffMillis", 30 * 60 * 1000,
+                "Maximum milliseconds to wait between attempts to send an email.");
+        this.sendingTimeoutMillis = DnConfigUtil.getConfigLong(cxt, "mail.queue.sendingTimeoutMillis",
+                5 * 60 * 1000,
+                "Milliseconds after which an email claimed by a node that did not finish sending it is queued again.");
+        this.retentionMillis = DnConfigUtil.getConfigLong(cxt, "mail.queue.retentionMillis",
+                7 * 24 * 3600 * 1000L, "Milliseconds to keep sent emails before they are deleted.");
+    }
+
+    public void initTablesAndQueries(SqlCxt sqlCxt) throws DnException {
+        DnCxt cxt = sqlCxt.cxt;
+        mailQueue = cxt.getSchema().getTableMustExist(MQ_MAIL_QUEUE_TABLE);
+        SqlTableUtil.checkCreateTable(sqlCxt, mailQueue);
+        String tbName = mailQueue.tableName;
+        var columns = mailQueue.columns;
+        iMailQueue = SqlTopicUtil.mkTableInsertStmt(sqlCxt, mailQueue);
+        qReadyMail = SqlStmtUtil.prepareSql(sqlCxt, "qReady" + tbName, columns,
+                String.format("SELECT * FROM t:%s WHERE c:%s = :%s AND c:%s <= :%s ORDER BY c:%s LIMIT %d",
+                        tbName, MQ_STATUS, MQ_STATUS, MQ_NEXT_ATTEMPT, MQ_NEXT_ATTEMPT, MQ_MAIL_ID, batchSize));
+        uClaimMail = SqlStmtUtil.prepareSql(sqlCxt, "uClaim" + tbName, columns,
+                String.format("UPDATE t:%s SET c:%s = '%s', c:%s = :%s, c:%s = :%s WHERE c:%s = :%s AND " +
+                        "c:%s = '%s'", tbName, MQ_STATUS, MQS_SENDING, MQ_CLAIM_ID, MQ_CLAIM_ID, MODIFIED_DATE,
+                        MODIFIED_DATE, MQ_MAIL_ID, MQ_MAIL_ID, MQ_STATUS, MQS_QUEUED));
+        qClaimedMail = SqlStmtUtil.prepareSql(sqlCxt, "qClaimed" + tbName, columns,
+                String.format("SELECT c:%s FROM t:%s WHERE c:%s = :%s AND c:%s = '%s'", MQ_MAIL_ID, tbName,
+                        MQ_CLAIM_ID, MQ_CLAIM_ID, MQ_STATUS, MQS_SENDING));
+        uMailResult = SqlStmtUtil.prepareSql(sqlCxt, "uResult" + tbName, columns,
+                String.format("UPDATE t:%s SET c:%s = :%s, c:%s = :%s, c:%s = :%s, c:%s = :%s, c:%s = :%s, " +
+                        "c:%s = :%s WHERE c:%s = :%s", tbName, MQ_STATUS, MQ_STATUS, MQ_ATTEMPTS, MQ_ATTEMPTS,
+                        MQ_NEXT_ATTEMPT, MQ_NEXT_ATTEMPT, MQ_LAST_ERROR, MQ_LAST_ERROR, MQ_SERVER_ID,
+                        MQ_SERVER_ID, MODIFIED_DATE, MODIFIED_DATE, MQ_MAIL_ID, MQ_MAIL_ID));
+        uRecoverMail = SqlStmtUtil.prepareSql(sqlCxt, "uRecover" + tbName, columns,
+                String.format("UPDATE t:%s SET c:%s = '%s' WHERE c:%s = '%s' AND c:%s < :%s", tbName,
+                        MQ_STATUS, MQS_QUEUED, MQ_STATUS, MQS_SENDING, MODIFIED_DATE, MODIFIED_DATE));
+        dSentMail = SqlStmtUtil.prepareSql(sqlCxt, "dSent" + tbName, columns,
+                String.format("DELETE FROM t:%s WHERE c:%s = '%s' AND c:%s < :%s", tbName, MQ_STATUS, MQS_SENT,
+                        MODIFIED_DATE, MODIFIED_DATE));
+    }
+
+    /** Puts the email in the queue. Uses its own session, so the email is queued even if the caller's
+     * transaction is rolled back. */
+    public void enqueue(DnCxt cxt, Map<String,Object> mailData) throws DnException {
+        DnCxt queueCxt = cxt.mkSubContext("queueMail");
+        Map<String,Object> row = mMap(MQ_MAIL_DATA, mailData, MQ_STATUS, MQS_QUEUED, MQ_ATTEMPTS, 0,
+                MQ_NEXT_ATTEMPT, queueCxt.now());
+        SqlTopicUtil.prepForStdExecute(queueCxt, row);
+        sqlDb.withSession(queueCxt, () -> sqlDb.executeDnStatement(queueCxt, iMailQueue, row));
+        enqueued.increment();
+        LogMail.log.debug(cxt, "Queued email " + DnMailService.rpt(mailData) + ".");
+        wake();
+    }
+
+    public void start() {
+        isActive = true;
+        var threadCount = new AtomicInteger();
+        var pool = new ThreadPoolExecutor(numWorkers, numWorkers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    var t = new Thread(r, SystemUtil.createThreadName(bgCxt,
+                            "MailSender" + threadCount.incrementAndGet()));
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        workers = pool;
+        var bgThread = new Thread(this, SystemUtil.createThreadName(bgCxt, "MailQueue"));
+        bgThread.setDaemon(true);
+        bgThread.start();
+    }
+
+    public void stop() {
+        isActive = false;
+        wake();
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    /** Has the poller look for work now rather than waiting out its poll interval. */
+    public void wake() {
+        synchronized (this) {
+            wakeRequested = true;
+            this.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!wakeRequested) {
+                        this.wait(pollMillis);
+                    }
+                } catch (Exception ignore) {
+                }
+                wakeRequested = false;
+                if (!isActive) {
+                    return;
+                }
+            }
+            try {
+                sqlDb.withSession(bgCxt, () -> {
+                    checkMaintenance();
+                    claimAndDispatch();
+                });
+            } catch (Throwable t) {
+                LogMail.log.error(bgCxt, t, "Failed to poll for queued emails.");
+            }
+        }
+    }
+
+    public void claimAndDispatch() throws DnException {
+        // Do not claim more than the workers can start on soon. Unclaimed rows can be sent by other nodes.
+        int capacity = 2 * numWorkers - inFlight.get();
+        if (capacity <= 0) {
+            return;
+        }
+        Date now = bgCxt.now();
+        var rows = sqlDb.queryDnStatement(bgCxt, qReadyMail, mMap(MQ_STATUS, MQS_QUEUED, MQ_NEXT_ATTEMPT, now));
+        if (rows.isEmpty()) {
+            return;
+        }
+        if (rows.size() > capacity) {
+            rows = rows.subList(0, capacity);
+        }
+        String claimId = UUID.randomUUID().toString();
+        List<Map<String,Object>> claims = new ArrayList<>(rows.size());
+        for (var row : rows) {
+            claims.add(mMap(MQ_MAIL_ID, row.get(MQ_MAIL_ID), MQ_CLAIM_ID, claimId, MODIFIED_DATE, now));
+        }
+        int[] counts = sqlDb.executeDnStatementBatch(bgCxt, uClaimMail, claims);
+        Set<Long> claimedIds = null;
+        for (int count : counts) {
+            if (count == Statement.SUCCESS_NO_INFO) {
+                claimedIds = new HashSet<>();
+                for (var claimed : sqlDb.queryDnStatement(bgCxt, qClaimedMail, mMap(MQ_CLAIM_ID, claimId))) {
+                    claimedIds.add(getReqLong(claimed, MQ_MAIL_ID));
+                }
+                break;
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            // Zero means another node got to the row first.
+            boolean isClaimed = (claimedIds != null) ? claimedIds.contains(getReqLong(rows.get(i), MQ_MAIL_ID)) :
+                    counts[i] > 0;
+            if (isClaimed) {
+                var row = rows.get(i);
+                inFlight.incrementAndGet();
+                workers.execute(() -> sendQueuedMail(row));
+            }
+        }
+    }
+
+    public void sendQueuedMail(Map<String,Object> row) {
+        DnCxt cxt = bgCxt.mkSubContext("sendMail");
+        try {
+            long mailId = getReqLong(row, MQ_MAIL_ID);
+            Map<String,Object> mailData = getMapDefaultEmpty(row, MQ_MAIL_DATA);
+            int attempt = (int)getLongWithDefault(row, MQ_ATTEMPTS, 0) + 1;
+            Map<String,Object> result = mMap(MQ_MAIL_ID, mailId, MQ_ATTEMPTS, attempt, MQ_LAST_ERROR, null,
+                    MQ_SERVER_ID, null);
+            try {
+                var resp = mailService.sendEmail(cxt, mailData);
+                result.put(MQ_STATUS, MQS_SENT);
+                result.put(MQ_SERVER_ID, resp.id);
+                result.put(MQ_NEXT_ATTEMPT, cxt.now());
+                sent.increment();
+            } catch (DnException e) {
+                // Mail server rejected the email itself, trying again will not help.
+                boolean isPermanent = e.code == DnException.BAD_INPUT || e.code == DnException.NOT_FOUND;
+                boolean retry = !isPermanent && attempt < maxAttempts;
+                long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+                backoff += ThreadLocalRandom.current().nextLong(backoff/4 + 1);
+                result.put(MQ_STATUS, retry ? MQS_QUEUED : MQS_FAILED);
+                result.put(MQ_NEXT_ATTEMPT, new Date(cxt.now().getTime() + backoff));
+                result.put(MQ_LAST_ERROR, StrUtil.limitStringSize(e.getFullMessage(), 2000));
+                if (retry) {
+                    retried.increment();
+                    LogMail.log.info(cxt, String.format("Attempt %d to send email %s failed, trying again in " +
+                            "%d ms. %s", attempt, DnMailService.rpt(mailData), backoff, e.getFullMessage()));
+                } else {
+                    failed.increment();
+                    LogMail.log.error(cxt, e, String.format("Giving up on email %s after %d attempts.",
+                            DnMailService.rpt(mailData), attempt));
+                }
+            }
+            result.put(MODIFIED_DATE, cxt.now());
+            sqlDb.withSession(cxt, () -> sqlDb.executeDnStatement(cxt, uMailResult, result));
+        } catch (Throwable t) {
+            // The row stays in *sending* and is queued again once *sendingTimeoutMillis* has passed.
+            LogMail.log.error(cxt, t, "Failed to record result of sending queued email.");
+        } finally {
+            inFlight.decrementAndGet();
+            wake();
+        }
+    }
+
+    /** Requeues emails abandoned by nodes that stopped while sending and deletes old sent emails. Every node
+     * does this, but not often, and doing it twice is harmless. */
+    public void checkMaintenance() throws DnException {
+        long curTime = System.currentTimeMillis();
+        if (curTime - lastMaintenanceTime < sendingTimeoutMillis/2) {
+            return;
+        }
+        lastMaintenanceTime = curTime;
+        // Compare against dates in the rows, which are set using the context's clock.
+        long now = bgCxt.now().getTime();
+        int recovered = sqlDb.executeDnStatement(bgCxt, uRecoverMail,
+                mMap(MODIFIED_DATE, new Date(now - sendingTimeoutMillis)));
+        if (recovered > 0) {
+            LogMail.log.info(bgCxt, String.format("Queued %d abandoned emails again.", recovered));
+        }
+        sqlDb.executeDnStatement(bgCxt, dSentMail, mMap(MODIFIED_DATE, new Date(now - retentionMillis)));
+    }
+
+    public Map<String,Object> getStats() {
+        return mMap("workers", numWorkers, "inFlight", inFlight.get(), "enqueued", enqueued.sum(),
+                "sent", sent.sum(), "retried", retried.sum(), "failed", failed.sum());
+    }
+}
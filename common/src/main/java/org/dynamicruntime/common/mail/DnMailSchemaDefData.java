@@ -3,6 +3,7 @@ package org.dynamicruntime.common.mail;
 import org.dynamicruntime.schemadef.DnRawEndpoint;
 import org.dynamicruntime.schemadef.DnRawField;
 import org.dynamicruntime.schemadef.DnRawSchemaPackage;
+import org.dynamicruntime.schemadef.DnRawTable;
 import org.dynamicruntime.schemadef.DnRawType;
 
 import static org.dynamicruntime.util.DnCollectionUtil.*;
@@ -12,6 +13,7 @@ import static org.dynamicruntime.common.mail.DnMailConstants.*;
 import static org.dynamicruntime.schemadef.DnRawField.*;
 import static org.dynamicruntime.schemadef.DnRawType.*;
 import static org.dynamicruntime.schemadef.DnRawEndpoint.*;
+import static org.dynamicruntime.schemadef.DnRawTable.*;
 
 @SuppressWarnings("WeakerAccess")
 public class DnMailSchemaDefData {
@@ -43,9 +45,37 @@ public class DnMailSchemaDefData {
             "Allows testing of mailgun api.",
             adminMailRequest.name, adminMailResponse.name);
 
+    //
+    // MailQueue - Outbound emails waiting to be sent. Rows are claimed by setting their status to *sending*,
+    // so any node can drain the queue. Sent rows are deleted after a while, failed rows are kept for
+    // trouble shooting.
+    //
+    static public DnRawField mailId = mkReqField(MQ_MAIL_ID, "Mail ID",
+            "Counter that orders the queued emails.").setTypeRef(DNT_COUNT);
+    static public DnRawField mailData = mkReqField(MQ_MAIL_DATA, "Mail Data",
+            "The email to send, in the form accepted by the mail service.").setTypeRef(DNT_MAP);
+    static public DnRawField mailStatus = mkReqField(MQ_STATUS, "Mail Status",
+            "One of *queued*, *sending*, *sent*, or *failed*.");
+    static public DnRawField attempts = mkReqField(MQ_ATTEMPTS, "Attempts",
+            "Number of times sending has been attempted.").setTypeRef(DNT_INTEGER);
+    static public DnRawField nextAttemptDate = mkReqField(MQ_NEXT_ATTEMPT, "Next Attempt Date",
+            "Queued emails are not sent before this date. Pushed out after each failed attempt.")
+            .setTypeRef(DNT_DATE);
+    static public DnRawField lastError = mkField(MQ_LAST_ERROR, "Last Error",
+            "Error from the last failed attempt.").setAttribute(DN_IS_LARGE_STRING, true);
+    static public DnRawField mailServerId = mkField(MQ_SERVER_ID, "Mail Server ID",
+            "The tracking identifier given to the email by the mail server once it was sent.");
+    static public DnRawField claimId = mkField(MQ_CLAIM_ID, "Claim ID",
+            "Identifies the poll that claimed the email for sending.");
+    static public DnRawTable mailQueueTable = mkStdTable(MQ_MAIL_QUEUE_TABLE,
+            "Outbound emails waiting to be sent", mList(mailId, mailData, mailStatus, attempts, nextAttemptDate,
+                    lastError, mailServerId, claimId), null)
+            .setCounterField(MQ_MAIL_ID)
+            .setSimpleIndexes(mList(mList(MQ_STATUS, MQ_NEXT_ATTEMPT)));
+
     static public DnRawSchemaPackage getPackage() {
         return DnRawSchemaPackage.mkPackage("DnMail", MAIL_NAMESPACE,
-                mList(adminMailRequest, adminMailResponse, adminMailTestEndpoint));
+                mList(adminMailRequest, adminMailResponse, adminMailTestEndpoint, mailQueueTable));
     }
 
 
@@ -5,11 +5,20 @@ import org.dynamicruntime.context.DnCxt;
 import org.dynamicruntime.exception.DnException;
 import org.dynamicruntime.httpclient.DnHttpClient;
 import org.dynamicruntime.httpclient.DnHttpRequest;
+import org.dynamicruntime.node.DnCoreNodeService;
+import org.dynamicruntime.sql.SqlCxt;
+import org.dynamicruntime.sql.topic.SqlTopic;
+import org.dynamicruntime.sql.topic.SqlTopicConstants;
+import org.dynamicruntime.sql.topic.SqlTopicInfo;
+import org.dynamicruntime.sql.topic.SqlTopicService;
 import org.dynamicruntime.startup.ServiceInitializer;
-import org.dynamicruntime.util.CacheMap;
+import org.dynamicruntime.util.DnCache;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.dynamicruntime.util.ConvertUtil.*;
@@ -34,9 +43,12 @@ public class DnMailService implements ServiceInitializer {
     public String mailgunUri;
     private String apiKey;
     public DnHttpClient httpClient;
+    /** Null when emails are simulated or the queue is disabled, in which case emails are sent inline. */
+    public DnMailQueue mailQueue;
+    public boolean isInit = false;
 
     // Caching of recent emails for testing and trouble shooting.
-    protected final CacheMap<String,DnMailResponse> sentEmails = mBoundedMap(200);
+    protected final DnCache<String,DnMailResponse> sentEmails = new DnCache<>("sentEmails", 200);
 
     public static DnMailService get(DnCxt cxt) {
         var obj = cxt.instanceConfig.get(MAIL_SERVICE);
@@ -62,8 +74,29 @@ public class DnMailService implements ServiceInitializer {
     }
 
     @Override
-    public void checkInit(DnCxt cxt) {
-
+    public void checkInit(DnCxt cxt) throws DnException {
+        if (isInit) {
+            return;
+        }
+        boolean useQueue = DnConfigUtil.getConfigBool(cxt, "mail.queue.enabled", true,
+                "Whether application emails are put in a durable queue and sent by background workers.");
+        // Simulated emails are sent inline, so they can be inspected as soon as the request that sent them is done.
+        if (apiKey != null && useQueue) {
+            SqlTopicService topicService = SqlTopicService.get(cxt);
+            // Like the node topic, the mail topic does not do standard transactions.
+            SqlTopicInfo mailTopic = new SqlTopicInfo(null, null, false, null);
+            Objects.requireNonNull(topicService).registerTopicContainer(SqlTopicConstants.MAIL_TOPIC, mailTopic);
+            SqlTopic topic = topicService.getOrCreateTopic(cxt, SqlTopicConstants.MAIL_TOPIC);
+            var queue = new DnMailQueue(cxt, this, topic.sqlDb);
+            topic.sqlDb.withSession(cxt, () -> queue.initTablesAndQueries(new SqlCxt(cxt, topic)));
+            queue.start();
+            mailQueue = queue;
+            var coreNode = DnCoreNodeService.get(cxt);
+            if (coreNode != null) {
+                coreNode.addStatsSource("mail.queue", queue::getStats);
+            }
+        }
+        isInit = true;
     }
 
     public Map<String,Object> createMailData(String to, String from, String subject, String text,
@@ -80,48 +113,93 @@ public class DnMailService implements ServiceInitializer {
     public DnMailResponse sendEmail(DnCxt cxt, Map<String,Object> mailData) throws DnException {
         DnMailResponse resp;
         if (apiKey != null) {
-            var request = new DnHttpRequest(cxt, EPM_POST, mailgunUri);
-            request.auth("api", apiKey).useFormEncoded(true).values(mailData);
+            var request = createMailRequest(cxt, mailData);
             httpClient.execute(request);
-            int code = request.respCode;
-            if (code != 200) {
-                int exceptionCode = (code == 400 || code == 404 || code == 500) ? code :
-                        DnException.INTERNAL_ERROR;
-                String msg = (code == 401) ? "Mail request could not authenticate" :
-                        String.format("Could not send email %s.", rpt(mailData));
-                throw new DnException(msg, null, exceptionCode, DnException.NETWORK, DnException.IO);
-            }
-            Map<String,Object> respData = request.responseData;
-            if (respData == null) {
-                throw new DnException(String.format("No response from mailgun for email %s", rpt(mailData)));
-            }
-            resp = DnMailResponse.extract(respData);
-            if (resp.id == null) {
-                String msg = resp.message != null ?
-                        String.format("Mail gun reports the following on email %s. %s", rpt(mailData), resp.message) :
-                        String.format("No mailgun id generated for email %s.", rpt(mailData));
-                throw new DnException(msg);
-            }
-            LogMail.log.debug(cxt, String.format("Sent email %s and was identified as %s.",
-                    rpt(mailData), resp.id));
-            resp.sentToMailServer = true;
+            resp = extractMailResponse(cxt, mailData, request);
         } else {
-            resp = new DnMailResponse("" + mailId.getAndIncrement(), "Simulated email", mMap());
-            LogMail.log.debug(cxt, "Sent simulated email " + rpt(mailData) + ".");
+            resp = mkSimulatedResponse(cxt, mailData);
         }
-        resp.mailData = mailData;
-        synchronized (sentEmails) {
-            // Caching by id, because we may eventually do follow up calls to check on status of emails so
-            // we can report on emails that mailgun was not able to deliver immediately.
-            sentEmails.put(resp.id, resp);
+        recordSentEmail(resp, mailData);
+        return resp;
+    }
+
+    /** Puts the email in the mail queue to be sent by a background worker. Sends it immediately if there is no
+     * queue. */
+    public void queueEmail(DnCxt cxt, Map<String,Object> mailData) throws DnException {
+        if (mailQueue != null) {
+            mailQueue.enqueue(cxt, mailData);
+        } else {
+            sendEmail(cxt, mailData);
+        }
+    }
+
+    /** Sends the email without holding the calling thread while mailgun is called. */
+    public CompletableFuture<DnMailResponse> sendEmailAsync(DnCxt cxt, Map<String,Object> mailData) {
+        if (apiKey == null) {
+            var resp = mkSimulatedResponse(cxt, mailData);
+            recordSentEmail(resp, mailData);
+            return CompletableFuture.completedFuture(resp);
         }
+        var request = createMailRequest(cxt, mailData);
+        return httpClient.executeAsync(request).thenApply(req -> {
+            try {
+                var resp = extractMailResponse(cxt, mailData, req);
+                recordSentEmail(resp, mailData);
+                return resp;
+            } catch (DnException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    DnHttpRequest createMailRequest(DnCxt cxt, Map<String,Object> mailData) {
+        var request = new DnHttpRequest(cxt, EPM_POST, mailgunUri);
+        request.auth("api", apiKey).useFormEncoded(true).values(mailData);
+        return request;
+    }
+
+    DnMailResponse extractMailResponse(DnCxt cxt, Map<String,Object> mailData, DnHttpRequest request)
+            throws DnException {
+        int code = request.respCode;
+        if (code != 200) {
+            int exceptionCode = (code == 400 || code == 404 || code == 500) ? code :
+                    DnException.INTERNAL_ERROR;
+            String msg = (code == 401) ? "Mail request could not authenticate" :
+                    String.format("Could not send email %s.", rpt(mailData));
+            throw new DnException(msg, null, exceptionCode, DnException.NETWORK, DnException.IO);
+        }
+        Map<String,Object> respData = request.responseData;
+        if (respData == null) {
+            throw new DnException(String.format("No response from mailgun for email %s", rpt(mailData)));
+        }
+        var resp = DnMailResponse.extract(respData);
+        if (resp.id == null) {
+            String msg = resp.message != null ?
+                    String.format("Mail gun reports the following on email %s. %s", rpt(mailData), resp.message) :
+                    String.format("No mailgun id generated for email %s.", rpt(mailData));
+            throw new DnException(msg);
+        }
+        LogMail.log.debug(cxt, String.format("Sent email %s and was identified as %s.",
+                rpt(mailData), resp.id));
+        resp.sentToMailServer = true;
         return resp;
     }
 
+    DnMailResponse mkSimulatedResponse(DnCxt cxt, Map<String,Object> mailData) {
+        var resp = new DnMailResponse("" + mailId.getAndIncrement(), "Simulated email", mMap());
+        LogMail.log.debug(cxt, "Sent simulated email " + rpt(mailData) + ".");
+        return resp;
+    }
+
+    void recordSentEmail(DnMailResponse resp, Map<String,Object> mailData) {
+        resp.mailData = mailData;
+        // Caching by id, because we may eventually do follow up calls to check on status of emails so
+        // we can report on emails that mailgun was not able to deliver immediately.
+        sentEmails.put(resp.id, resp);
+    }
+
     public List<DnMailResponse> getRecentSentEmails() {
-        synchronized (sentEmails) {
-            return cloneList(sentEmails.values());
-        }
+        return sentEmails.values();
     }
 
     public static String rpt(Map<String,Object> mailData) {
@@ -0,0 +1,276 @@
+package org.dynamicruntime.common.node;
+
+import org.dynamicruntime.context.DnConfigUtil;
+import org.dynamicruntime.context.DnCxt;
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.function.DnRunnable;
+import org.dynamicruntime.schemadef.DnField;
+import org.dynamicruntime.schemadef.DnTable;
+import org.dynamicruntime.sql.DnSqlStatement;
+import org.dynamicruntime.sql.SqlCxt;
+import org.dynamicruntime.sql.SqlDatabase;
+import org.dynamicruntime.sql.SqlStmtUtil;
+import org.dynamicruntime.sql.SqlTableUtil;
+import org.dynamicruntime.sql.topic.SqlTopicUtil;
+import org.dynamicruntime.util.DnCache;
+import org.dynamicruntime.util.SystemUtil;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.dynamicruntime.util.ConvertUtil.*;
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*;
+import static org.dynamicruntime.schemadata.CoreConstants.*;
+
+/**
+ * Tells other nodes that entries in their in-memory caches have gone stale. When a node changes data that
+ * other nodes may have cached, it evicts its own entry and then publishes the cache name and key by
+ * inserting a row into the *DnCacheInvalidations* table. Every node runs a background thread that polls
+ * the table for rows newer than the last one it has seen and hands the keys to the listener registered for
+ * the cache. This lets caches of user data hold entries for minutes rather than seconds.
+ *
+ * The polling is a single query against a table that only holds a few minutes of rows, so it is cheap.
+ * Counters are assigned at insert time, so an insert can commit after a row with a larger counter has already
+ * been read. To catch those rows, each poll also reads again every row created within the last
+ * *lookbackMillis*, and rows that have already been handled are skipped using their counters.
+ *
+ * If polling fails for longer than the lookback, rows may have been missed. When polling recovers, the gap
+ * listeners are called so that they can drop everything they have cached.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnCacheInvalidationBus implements Runnable {
+    @FunctionalInterface
+    public interface InvalidationListener {
+        void evict(String key) throws DnException;
+    }
+
+    public final DnCxt bgCxt;
+    public final SqlDatabase sqlDb;
+    /** Identifies this node in the rows it publishes so that it can skip them when polling. */
+    public final String nodeKey;
+    public final long pollMillis;
+    public final long retentionMillis;
+    public final long lookbackMillis;
+    public final Map<String,InvalidationListener> listeners = new ConcurrentHashMap<>();
+    /** Called when invalidations may have been missed. */
+    public final List<Runnable> gapListeners = new CopyOnWriteArrayList<>();
+    /** Called on the polling thread after each poll. */
+    public final List<DnRunnable> pollListeners = new CopyOnWriteArrayList<>();
+
+    public DnTable cacheInvalidations;
+    public DnSqlStatement iCacheInvalidation;
+    public DnSqlStatement qCacheInvalidationsAfter;
+    public DnSqlStatement qLastCacheInvalidation;
+    public DnSqlStatement dOldCacheInvalidations;
+
+    public long lastInvalidationId = 0;
+    /** Counters of rows handled within the lookback, mapped to their created time. Only used by the polling
+     * thread. */
+    final Map<Long,Long> seenIds = new HashMap<>();
+    public long lastPollTime = 0;
+    public long lastPruneTime = 0;
+    public volatile boolean isActive = false;
+
+    public DnCacheInvalidationBus(DnCxt cxt, SqlDatabase sqlDb, String nodeKey) throws DnException {
+        this.bgCxt = cxt.mkSubContext("cacheInvalidation");
+        this.sqlDb = sqlDb;
+        this.nodeKey = nodeKey + ":" + UUID.randomUUID().toString().substring(0, 8);
+        this.pollMillis = DnConfigUtil.getConfigLong(cxt, "node.cacheInvalidation.pollMillis", 1000,
+                "Milliseconds between polls for cache invalidations published by other nodes.");
+        this.retentionMillis = DnConfigUtil.getConfigLong(cxt, "node.cacheInvalidation.retentionMillis",
+                10 * 60 * 1000,
+                "Milliseconds to keep published cache invalidations before they are deleted.");
+        this.lookbackMillis = DnConfigUtil.getConfigLong(cxt, "node.cacheInvalidation.lookbackMillis", 10000,
+                "Milliseconds of recently created invalidations that are read again on each poll, to catch rows " +
+                        "that committed after rows with larger counters. Should exceed the longest " +
+                        "transaction plus the clock difference between nodes.");
+    }
+
+    public void initTablesAndQueries(SqlCxt sqlCxt) throws DnException {
+        DnCxt cxt = sqlCxt.cxt;
+        cacheInvalidations = cxt.getSchema().getTableMustExist(DnNodeTableConstants.NT_CACHE_INVALIDATIONS);
+        SqlTableUtil.checkCreateTable(sqlCxt, cacheInvalidations);
+        String tbName = cacheInvalidations.tableName;
+        iCacheInvalidation = SqlTopicUtil.mkTableInsertStmt(sqlCxt, cacheInvalidations);
+        List<DnField> afterFields = new ArrayList<>(cacheInvalidations.columns);
+        afterFields.add(DnField.mkSimple(ND_PAGE_AFTER_ID, DNT_INTEGER));
+        qCacheInvalidationsAfter = SqlStmtUtil.prepareSql(sqlCxt, "qAfter" + tbName, afterFields,
+                String.format("SELECT * FROM t:%s WHERE c:%s > :%s AND (c:%s > :%s OR c:%s >= :%s) " +
+                                "ORDER BY c:%s LIMIT 500", tbName, ND_INVALIDATION_ID, ND_PAGE_AFTER_ID,
+                        ND_INVALIDATION_ID, ND_INVALIDATION_ID, CREATED_DATE, CREATED_DATE, ND_INVALIDATION_ID));
+        qLastCacheInvalidation = SqlStmtUtil.prepareSql(sqlCxt, "qLast" + tbName, cacheInvalidations.columns,
+                String.format("SELECT * FROM t:%s ORDER BY c:%s DESC LIMIT 1", tbName, ND_INVALIDATION_ID));
+        dOldCacheInvalidations = SqlStmtUtil.prepareSql(sqlCxt, "dOld" + tbName, cacheInvalidations.columns,
+                String.format("DELETE FROM t:%s WHERE c:%s < :%s", tbName, CREATED_DATE, CREATED_DATE));
+
+        // Only invalidations published after this node started are of interest.
+        var lastRow = sqlDb.queryOneDnStatement(cxt, qLastCacheInvalidation, mMap());
+        if (lastRow != null) {
+            lastInvalidationId = getReqLong(lastRow, ND_INVALIDATION_ID);
+        }
+    }
+
+    /** Registers the function that evicts entries from the named cache when another node publishes
+     * an invalidation for it. */
+    public void registerListener(String cacheName, InvalidationListener listener) {
+        listeners.put(cacheName, listener);
+    }
+
+    /** Registers a function that drops everything a cache holds when invalidations may have been missed. */
+    public void registerGapListener(Runnable listener) {
+        gapListeners.add(listener);
+    }
+
+    /** Registers a function to call after each poll, for checks that other nodes' changes have been picked up
+     * that are cheap when there is nothing to do. */
+    public void registerPollListener(DnRunnable listener) {
+        pollListeners.add(listener);
+    }
+
+    /** Convenience for caches keyed by user ID (or any other long value). */
+    public void registerLongKeyCache(DnCache<Long,?> cache) {
+        registerListener(cache.name, key -> {
+            Long id = toOptLong(key);
+            if (id != null) {
+                cache.remove(id);
+            }
+        });
+        registerGapListener(cache::clearCache);
+    }
+
+    /** Evicts the entry locally and tells other nodes to do the same. Should be called after the change has
+     * been committed, otherwise another node may reload the old data before the change is visible.
+     * Failures are logged and not thrown. The change has already been made and the cache timeouts
+     * limit how long other nodes can hold on to the stale entry. */
+    public void publish(DnCxt cxt, String cacheName, Object key) {
+        String keyStr = fmtObject(key);
+        // Use our own context so we get our own session. The caller may be holding a session to a
+        // different database.
+        DnCxt pubCxt = cxt.mkSubContext("publishInvalidation");
+        try {
+            var listener = listeners.get(cacheName);
+            if (listener != null) {
+                listener.evict(keyStr);
+            }
+            Map<String,Object> row = mMap(ND_CACHE_NAME, cacheName, ND_CACHE_KEY, keyStr,
+                    ND_SOURCE_NODE, nodeKey);
+            SqlTopicUtil.prepForStdExecute(pubCxt, row);
+            sqlDb.withSession(pubCxt, () -> sqlDb.executeDnStatement(pubCxt, iCacheInvalidation, row));
+        } catch (DnException e) {
+            LogNode.log.error(cxt, e, String.format("Failed to publish invalidation of %s in cache %s.",
+                    keyStr, cacheName));
+        }
+    }
+
+    public void start() {
+        isActive = true;
+        String threadName = SystemUtil.createThreadName(bgCxt, "CacheInvalidation");
+        var bgThread = new Thread(this, threadName);
+        bgThread.setDaemon(true);
+        bgThread.start();
+    }
+
+    public void stop() {
+        isActive = false;
+        synchronized (this) {
+            this.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    this.wait(pollMillis);
+                } catch (Exception ignore) {
+                }
+                if (!isActive) {
+                    return;
+                }
+            }
+            try {
+                long pollTime = System.currentTimeMillis();
+                sqlDb.withSession(bgCxt, () -> {
+                    pollInvalidations();
+                    checkPrune();
+                });
+                if (lastPollTime > 0 && pollTime - lastPollTime > lookbackMillis) {
+                    reportGap(pollTime - lastPollTime);
+                }
+                lastPollTime = pollTime;
+                for (var listener : pollListeners) {
+                    listener.run();
+                }
+            } catch (Throwable t) {
+                LogNode.log.error(bgCxt, t, "Failed to poll for cache invalidations.");
+            }
+        }
+    }
+
+    /** Reads the rows after the last counter seen, along with the rows created within the lookback, and
+     * evicts the entries of the rows not handled before. */
+    public void pollInvalidations() throws DnException {
+        long since = System.currentTimeMillis() - lookbackMillis;
+        seenIds.values().removeIf(createdTime -> createdTime < since);
+        long pageAfterId = 0;
+        boolean hasMore = true;
+        while (hasMore) {
+            var rows = sqlDb.queryDnStatement(bgCxt, qCacheInvalidationsAfter,
+                    mMap(ND_PAGE_AFTER_ID, pageAfterId, ND_INVALIDATION_ID, lastInvalidationId,
+                            CREATED_DATE, new Date(since)));
+            for (var row : rows) {
+                long id = getReqLong(row, ND_INVALIDATION_ID);
+                pageAfterId = id;
+                Date createdDate = getOptDate(row, CREATED_DATE);
+                long createdTime = (createdDate != null) ? createdDate.getTime() : System.currentTimeMillis();
+                if (seenIds.containsKey(id) || (id <= lastInvalidationId && createdTime < since)) {
+                    continue;
+                }
+                if (createdTime >= since) {
+                    seenIds.put(id, createdTime);
+                }
+                lastInvalidationId = Math.max(lastInvalidationId, id);
+                if (nodeKey.equals(getOptStr(row, ND_SOURCE_NODE))) {
+                    continue;
+                }
+                var listener = listeners.get(getReqStr(row, ND_CACHE_NAME));
+                if (listener != null) {
+                    listener.evict(getReqStr(row, ND_CACHE_KEY));
+                }
+            }
+            hasMore = rows.size() >= 500;
+        }
+    }
+
+    /** Polling was not done for longer than the lookback, so invalidations may have been missed. */
+    public void reportGap(long gapMillis) {
+        LogNode.log.info(bgCxt, String.format("Cache invalidations were not polled for %d ms, dropping " +
+                "cached entries that may be stale.", gapMillis));
+        for (var listener : gapListeners) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                LogNode.log.error(bgCxt, t, "Failed to drop cached entries after a gap in cache invalidations.");
+            }
+        }
+    }
+
+    public void checkPrune() throws DnException {
+        long now = System.currentTimeMillis();
+        // Every node prunes, but not often, and deleting rows that are already gone is harmless.
+        if (now - lastPruneTime < retentionMillis/4) {
+            return;
+        }
+        lastPruneTime = now;
+        sqlDb.executeDnStatement(bgCxt, dOldCacheInvalidations,
+                mMap(CREATED_DATE, new Date(now - retentionMillis)));
+    }
+}
@@ -0,0 +1,40 @@
+package org.dynamicruntime.common.node;
+
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.request.DnRequestCxt;
+import org.dynamicruntime.schemadef.DnEndpointFunction;
+
+import static org.dynamicruntime.schemadata.CoreConstants.*;
+import static org.dynamicruntime.schemadef.DnEndpointFunction.*;
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+import static org.dynamicruntime.util.ConvertUtil.*;
+
+import java.util.List;
+import java.util.Objects;
+
+@SuppressWarnings("WeakerAccess")
+public class DnNodeEndpoints {
+    static void getAuthKeys(DnRequestCxt requestCxt) {
+        var nodeService = Objects.requireNonNull(DnNodeService.get(requestCxt.cxt));
+        requestCxt.mapResponse.putAll(nodeService.coreNodeService.nodeData.keyRing.getInfo(requestCxt.cxt));
+    }
+
+    static void rotateAuthKey(DnRequestCxt requestCxt) throws DnException {
+        var cxt = requestCxt.cxt;
+        var nodeService = Objects.requireNonNull(DnNodeService.get(cxt));
+        var data = requestCxt.requestData;
+        String keyId = getOptStr(data, ND_KEY_ID);
+        if (keyId == null) {
+            // Short, since it is put in front of every encrypted cookie.
+            keyId = "k" + Long.toString(cxt.now().getTime()/1000, 36);
+        }
+        int delaySecs = (int)getLongWithDefault(data, ND_ACTIVATE_DELAY_SECS, nodeService.activateDelaySecs);
+        nodeService.rotateAuthKey(cxt, keyId, delaySecs);
+        requestCxt.mapResponse.putAll(nodeService.coreNodeService.nodeData.keyRing.getInfo(cxt));
+    }
+
+    public static List<DnEndpointFunction> getFunctions() {
+        return mList(mkEndpoint(ND_GET_AUTH_KEYS_FUNCTION, DnNodeEndpoints::getAuthKeys),
+                mkEndpoint(ND_ROTATE_AUTH_KEY_FUNCTION, DnNodeEndpoints::rotateAuthKey));
+    }
+}
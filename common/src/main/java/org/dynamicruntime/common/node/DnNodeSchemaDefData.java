@@ -1,14 +1,18 @@
 package org.dynamicruntime.common.node;
 
+import org.dynamicruntime.schemadef.DnRawEndpoint;
 import org.dynamicruntime.schemadef.DnRawField;
 import org.dynamicruntime.schemadef.DnRawSchemaPackage;
 import org.dynamicruntime.schemadef.DnRawTable;
+import org.dynamicruntime.schemadef.DnRawType;
 
 import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*;
 import static org.dynamicruntime.schemadata.CoreConstants.*;
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 
 import static org.dynamicruntime.schemadef.DnRawField.*;
+import static org.dynamicruntime.schemadef.DnRawType.*;
+import static org.dynamicruntime.schemadef.DnRawEndpoint.*;
 import static org.dynamicruntime.schemadef.DnRawTable.*;
 
 @SuppressWarnings("WeakerAccess")
@@ -33,8 +37,53 @@ public class DnNodeSchemaDefData {
             "Stores private instance data", mList(instanceName, configType, configName, configData),
             mList(ND_INSTANCE_NAME, ND_CONFIG_NAME));
 
+    //
+    // CacheInvalidations - A short lived log of cache entries that have been made stale by a write on one
+    // node. Other nodes poll this table and evict the entries from their own caches. Rows are only
+    // of interest for a few minutes and are periodically deleted.
+    //
+
+    static public DnRawField invalidationId = mkReqField(ND_INVALIDATION_ID, "Invalidation ID",
+            "Counter that orders the invalidations.").setTypeRef(DNT_COUNT);
+    static public DnRawField cacheName = mkReqField(ND_CACHE_NAME, "Cache Name",
+            "The name of the cache holding the stale entry.");
+    static public DnRawField cacheKey = mkReqField(ND_CACHE_KEY, "Cache Key",
+            "The key of the stale entry, as a string.");
+    static public DnRawField sourceNode = mkReqField(ND_SOURCE_NODE, "Source Node",
+            "The node that made the change. That node has already evicted its own entry.");
+    static public DnRawTable cacheInvalidationsTable = mkStdTable(DnNodeTableConstants.NT_CACHE_INVALIDATIONS,
+            "Cache entries that other nodes need to evict", mList(invalidationId, cacheName, cacheKey, sourceNode),
+            null)
+            .setCounterField(ND_INVALIDATION_ID);
+
+    //
+    // Encryption keys - Reporting and rotating the keys in the key ring. The keys themselves are never returned.
+    //
+
+    static public DnRawField keyId = mkField(ND_KEY_ID, "Key ID",
+            "Identifier of the new encryption key. It is put in front of data encrypted with the key, so it " +
+                    "should be short. Generated if not supplied.");
+    static public DnRawField activateDelaySecs = mkIntField(ND_ACTIVATE_DELAY_SECS, "Activate Delay Seconds",
+            "Seconds before the new key is used to encrypt data. Defaults to the node configuration.");
+    static public DnRawField activeKeyId = mkReqField(ND_ACTIVE_KEY_ID, "Active Key ID",
+            "Identifier of the key used to encrypt new data.");
+    static public DnRawField keys = mkReqField("keys", "Keys",
+            "Identifier and activation date of each key held by the node.")
+            .setTypeRef(DNT_MAP).setAttribute(DN_IS_LIST, true);
+    static public DnRawType authKeysInfo = mkType("NodeAuthKeysInfo", mList(activeKeyId, keys));
+    static public DnRawEndpoint authKeysEndpoint = mkEndpoint(EPM_GET, "/node/authKeys/info",
+            ND_GET_AUTH_KEYS_FUNCTION, "Reports the encryption keys held by the node.",
+            DNT_NONE, authKeysInfo.name);
+    static public DnRawType rotateAuthKeyRequest = mkType("NodeRotateAuthKeyRequest",
+            mList(keyId, activateDelaySecs));
+    static public DnRawEndpoint rotateAuthKeyEndpoint = mkEndpoint(EPM_POST, "/node/authKeys/rotate",
+            ND_ROTATE_AUTH_KEY_FUNCTION, "Adds a new encryption key, which all nodes load and start using " +
+                    "after a delay.", rotateAuthKeyRequest.name, authKeysInfo.name);
+
     static public DnRawSchemaPackage getPackage() {
-        return DnRawSchemaPackage.mkPackage("NodeSchema", ND_NAMESPACE, mList(instanceConfigTable));
+        return DnRawSchemaPackage.mkPackage("NodeSchema", ND_NAMESPACE, mList(instanceConfigTable,
+                cacheInvalidationsTable, authKeysInfo, authKeysEndpoint, rotateAuthKeyRequest,
+                rotateAuthKeyEndpoint));
     }
 
 }
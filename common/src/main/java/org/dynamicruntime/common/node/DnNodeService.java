@@ -1,5 +1,6 @@
 package org.dynamicruntime.common.node;
 
+import org.dynamicruntime.context.DnConfigUtil;
 import org.dynamicruntime.context.DnCxt;
 import org.dynamicruntime.exception.DnException;
 import org.dynamicruntime.node.DnAuthConfig;
@@ -16,9 +17,12 @@ import org.dynamicruntime.startup.LogStartup;
 import org.dynamicruntime.startup.ServiceInitializer;
 import org.dynamicruntime.util.EncodeUtil;
 
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 import static org.dynamicruntime.util.ConvertUtil.*;
@@ -44,6 +48,8 @@ public class DnNodeService implements ServiceInitializer {
     public DnSqlStatement iInstanceConfig;
     public DnSqlStatement qInstanceConfig;
     public DnSqlStatement qInstanceConfigByName;
+    public DnCacheInvalidationBus invalidationBus;
+    public int activateDelaySecs = 60;
 
     //
     // Loaded data.
@@ -82,11 +88,34 @@ public class DnNodeService implements ServiceInitializer {
         Objects.requireNonNull(topicService).registerTopicContainer(SqlTopicConstants.NODE_TOPIC, nodeTopic);
         SqlTopic topic = topicService.getOrCreateTopic(cxt, SqlTopicConstants.NODE_TOPIC);
         sqlDb = topic.sqlDb;
+        invalidationBus = new DnCacheInvalidationBus(cxt, sqlDb, nodeId.hostname + ":" + nodeId.port);
         sqlDb.withSession(cxt, (()-> {
             SqlCxt sqlCxt = new SqlCxt(cxt, topic);
             initTablesAndQueries(sqlCxt);
             initAndLoadTables(sqlCxt);
         }));
+        activateDelaySecs = (int)DnConfigUtil.getConfigLong(cxt, "node.authKeys.activateDelaySecs",
+                activateDelaySecs, "Seconds after a new encryption key is added before it is used to " +
+                        "encrypt data, so that all nodes have loaded it first.");
+        var keyRing = coreNodeService.nodeData.keyRing;
+        keyRing.reloadMillis = DnConfigUtil.getConfigLong(cxt, "node.authKeys.reloadMillis", keyRing.reloadMillis,
+                "Milliseconds between reloads of the encryption keys, in case this node missed being told " +
+                        "about a new key.");
+        keyRing.minReloadMillis = DnConfigUtil.getConfigLong(cxt, "node.authKeys.minReloadMillis",
+                keyRing.minReloadMillis, "Minimum milliseconds between reloads of the encryption keys done " +
+                        "because data was encrypted with a key this node does not have.");
+        DnCxt reloadCxt = cxt.mkSubContext("authKeys");
+        // Reloads asked for by decrypting are done in a request, which may be holding a session to another
+        // database, so the reload gets its own context.
+        keyRing.keyLoader = loadCxt -> reloadAuthKeys(loadCxt.mkSubContext("reloadAuthKeys"));
+        invalidationBus.registerListener(ND_AUTH_KEYS_CACHE, key -> reloadAuthKeys(reloadCxt));
+        invalidationBus.registerGapListener(keyRing::requestReload);
+        invalidationBus.registerPollListener(() -> keyRing.checkReload(reloadCxt));
+        boolean pollInvalidations = DnConfigUtil.getConfigBool(cxt, "node.cacheInvalidation.enabled", true,
+                "Whether this node polls for cache invalidations published by other nodes.");
+        if (pollInvalidations) {
+            invalidationBus.start();
+        }
         isInit = true;
     }
 
@@ -98,12 +127,29 @@ public class DnNodeService implements ServiceInitializer {
         qInstanceConfig = SqlTopicUtil.mkTableSelectStmt(sqlCxt, instanceConfig);
         qInstanceConfigByName = SqlTopicUtil.mkNamedTableSelectStmt(sqlCxt,
                 "qByName" + instanceConfig.tableName, instanceConfig, mList(ND_INSTANCE_NAME));
+        invalidationBus.initTablesAndQueries(sqlCxt);
     }
 
     public void initAndLoadTables(SqlCxt sqlCxt) throws DnException {
         DnCxt cxt = sqlCxt.cxt;
         List<Map<String,Object>> rows = sqlDb.queryDnStatement(cxt, qInstanceConfigByName, mMap(ND_INSTANCE_NAME,
                 cxt.instanceConfig.instanceName));
+        loadConfigRows(rows);
+        String authLookupKey = coreNodeService.instanceAuthConfigKey;
+        if (coreNodeService.nodeData.getAuthConfig(authLookupKey) == null) {
+            if (instanceConfigData.containsKey(authLookupKey)) {
+                throw new DnException("Encryption key information is not stored with the type " +
+                        NDC_AUTH_CONFIG + ".");
+            }
+            insertAuthRow(cxt);
+        }
+    }
+
+    /** Loads the enabled rows, putting the keys from auth config rows into the key ring. Keys whose rows
+     * are gone or disabled are taken out of the key ring, except for the default key. */
+    public synchronized void loadConfigRows(List<Map<String,Object>> rows) throws DnException {
+        var keyRing = coreNodeService.nodeData.keyRing;
+        Set<String> keyIds = new HashSet<>();
         for (var row : rows) {
             boolean isEnabled = getBoolWithDefault(row, DnSchemaDefConstants.ENABLED, false);
             if (isEnabled) {
@@ -114,18 +160,60 @@ public class DnNodeService implements ServiceInitializer {
                 if (configType.equals(NDC_AUTH_CONFIG)) {
                     // A type of config data that we recognize.
                     DnAuthConfig authConfig = DnAuthConfig.extract(configData);
-                    coreNodeService.nodeData.putAuthConfig(configName, authConfig);
+                    keyIds.add(configName);
+                    if (!authConfig.isSameKey(keyRing.getKey(configName))) {
+                        keyRing.putKey(configName, authConfig);
+                    }
                 }
             }
         }
-        String authLookupKey = coreNodeService.instanceAuthConfigKey;
-        if (coreNodeService.nodeData.getAuthConfig(authLookupKey) == null) {
-            if (instanceConfigData.containsKey(authLookupKey)) {
-                throw new DnException("Encryption key information is not stored with the type " +
-                        NDC_AUTH_CONFIG + ".");
+        for (String keyId : keyRing.getKeyIds()) {
+            if (!keyIds.contains(keyId) && !keyId.equals(keyRing.defaultKeyId)) {
+                keyRing.removeKey(keyId);
             }
-            insertAuthRow(cxt);
         }
+        keyRing.markLoaded();
+    }
+
+    /** Reloads the instance configuration, picking up encryption keys added by other nodes. */
+    public void reloadAuthKeys(DnCxt cxt) throws DnException {
+        sqlDb.withSession(cxt, () -> {
+            var rows = sqlDb.queryDnStatement(cxt, qInstanceConfigByName, mMap(ND_INSTANCE_NAME,
+                    cxt.instanceConfig.instanceName));
+            long oldVersion = coreNodeService.nodeData.keyRing.version;
+            loadConfigRows(rows);
+            if (coreNodeService.nodeData.keyRing.version != oldVersion) {
+                LogNode.log.info(cxt, "Reloaded encryption keys, active key is now " +
+                        coreNodeService.nodeData.keyRing.getActiveKeyId(cxt) + ".");
+            }
+        });
+    }
+
+    /**
+     * Adds a new encryption key and tells the other nodes to load it. The key starts being used after
+     * *delaySecs*, existing data encrypted with older keys can still be decrypted. Auth cookies encrypted
+     * with an older key are encrypted again with the new key the next time the browser sends them.
+     */
+    public void rotateAuthKey(DnCxt cxt, String keyId, int delaySecs) throws DnException {
+        if (keyId.isEmpty() || keyId.indexOf('|') >= 0) {
+            throw DnException.mkInput(String.format("Key ID '%s' is not valid.", keyId));
+        }
+        if (coreNodeService.nodeData.getAuthConfig(keyId) != null) {
+            throw DnException.mkInput(String.format("Encryption key %s already exists.", keyId));
+        }
+        Date activeDate = new Date(cxt.now().getTime() + delaySecs * 1000L);
+        Map<String,Object> authRow = mMap(ND_INSTANCE_NAME, cxt.instanceConfig.instanceName,
+                ND_CONFIG_TYPE, NDC_AUTH_CONFIG, ND_CONFIG_NAME, keyId,
+                ND_CONFIG_DATA, DnAuthConfig.mkAuthData(EncodeUtil.mkEncryptionKey(), activeDate));
+        DnCxt rotateCxt = cxt.mkSubContext("rotateAuthKey");
+        sqlDb.withSession(rotateCxt, () -> {
+            SqlTopicUtil.prepForStdExecute(rotateCxt, authRow);
+            sqlDb.executeDnStatement(rotateCxt, iInstanceConfig, authRow);
+        });
+        LogNode.log.info(cxt, String.format("Added encryption key %s, to be active at %s.", keyId,
+                fmtObject(activeDate)));
+        reloadAuthKeys(rotateCxt);
+        invalidationBus.publish(cxt, ND_AUTH_KEYS_CACHE, keyId);
     }
 
     public void insertAuthRow(DnCxt cxt) throws DnException {
@@ -3,4 +3,5 @@ package org.dynamicruntime.common.node;
 @SuppressWarnings("WeakerAccess")
 public class DnNodeTableConstants {
     public static final String NT_INSTANCE_CONFIG = "DnInstanceConfig";
+    public static final String NT_CACHE_INVALIDATIONS = "DnCacheInvalidations";
 }
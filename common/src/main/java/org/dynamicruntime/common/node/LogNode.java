@@ -0,0 +1,8 @@
+package org.dynamicruntime.common.node;
+
+import org.dynamicruntime.logging.AppLogger;
+
+@SuppressWarnings("WeakerAccess")
+public class LogNode {
+    public static final AppLogger log = new AppLogger(LogNode.class);
+}
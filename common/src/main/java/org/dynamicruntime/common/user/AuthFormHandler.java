@@ -11,6 +11,7 @@ import org.dynamicruntime.schemadata.CoreConstants;
 import org.dynamicruntime.sql.topic.SqlTopicConstants;
 import org.dynamicruntime.sql.topic.SqlTopicService;
 import org.dynamicruntime.sql.topic.SqlTopicUtil;
+import org.dynamicruntime.user.DnPasswordHashService;
 import org.dynamicruntime.user.LogUser;
 import org.dynamicruntime.user.UserAuthData;
 import org.dynamicruntime.user.UserContact;
@@ -57,6 +58,8 @@ public class AuthFormHandler {
         public final String password;
         /** Whether this is a password check. If this is false then we are using the *verifyCode*. */
         public boolean checkPassword;
+        /** Hash of the *password* being set. Hashing is slow, so it is done before taking a database session. */
+        public String encodedPassword;
 
         public VerifyLoginParams(String formAuthToken, String verifyCode, String username, String password) {
             this.formAuthToken = formAuthToken;
@@ -65,24 +68,6 @@ public class AuthFormHandler {
             this.password = password;
         }
     }
-    public static class CountTracker {
-        public final int maxCount;
-        public final CacheMap<String,Integer> trackCache = new CacheMap<>(10000, true);
-
-        public CountTracker(int maxCount) {
-            this.maxCount = maxCount;
-        }
-
-        public boolean checkExceedMaxCount(String key) {
-            Integer iVal = trackCache.get(key);
-            int newVal = (iVal != null) ? iVal + 1 : 1;
-            trackCache.put(key, newVal);
-            return newVal >= maxCount;
-        }
-        public void clear() {
-            trackCache.clear();
-        }
-    }
 
     public final int TOKEN_TIMEOUT_MILLIS = 15 * 60 * 1000; // Fifteen minutes
     public final UserService userService;
@@ -96,12 +81,14 @@ public class AuthFormHandler {
     public int maxFormCodeCount = 10;
     public int maxIpAddressCount = 100;
 
-    // Tracker fields.
-    public int curNumberOfExecs = 0;
-    public int curHourScope = 0;
+    // Tracker fields. These are shared by all request threads and are updated without locking.
+    public final AtomicInteger curNumberOfExecs = new AtomicInteger(0);
+    public final AtomicInteger curHourScope = new AtomicInteger(0);
     public final AtomicInteger activeRequests = new AtomicInteger(0);
-    public CountTracker formTokenTracker;
-    public CountTracker ipAddressTracker;
+    /** Each token gets *maxFormCodeCount* uses, refilled over an hour. */
+    public DnRateLimiter formTokenTracker;
+    /** Each IP address gets *maxIpAddressCount* requests, refilled over an hour. */
+    public DnRateLimiter ipAddressTracker;
 
     public AuthFormHandler(UserService userService) {
         this.userService = userService;
@@ -114,8 +101,9 @@ public class AuthFormHandler {
         maxActiveRequests = (int)toOptLongWithDefault(config.get("auth.maxActiveRequests"), maxActiveRequests);
         maxFormCodeCount = (int)toOptLongWithDefault(config.get("auth.maxFormCodeCount"), maxFormCodeCount);
         maxIpAddressCount = (int)toOptLongWithDefault(config.get("auth.maxIpAddressCount"), maxIpAddressCount);
-        formTokenTracker = new CountTracker(maxFormCodeCount);
-        ipAddressTracker = new CountTracker(maxIpAddressCount);
+        formTokenTracker = new DnRateLimiter("authFormToken", maxFormCodeCount/3600.0, maxFormCodeCount, 10000);
+        ipAddressTracker = new DnRateLimiter("authIpAddress", maxIpAddressCount/3600.0, maxIpAddressCount,
+                10000);
 
         coreNodeService = DnCoreNodeService.get(cxt);
         contentService = DnContentService.get(cxt);
@@ -140,7 +128,7 @@ public class AuthFormHandler {
 
         // Encrypting also provides randomness for free.
         DnCoreNodeService nodeService = Objects.requireNonNull(coreNodeService);
-        String formToken = nodeService.encryptString(tokenValue);
+        String formToken = nodeService.encryptString(cxt, tokenValue);
 
         return mMap(FM_FORM_AUTH_TYPE, formAuthType, FM_FORM_AUTH_TOKEN, formToken,
                 FM_CAPTCHA_DATA, mMap(FM_FORM_AUTH_CODE, formCode,
@@ -152,7 +140,7 @@ public class AuthFormHandler {
 
     public FormTokenComponents getTokenComponents(DnCxt cxt, String formAuthToken) throws DnException {
         DnCoreNodeService nodeService = Objects.requireNonNull(coreNodeService);
-        String tokenValue = nodeService.decryptString(formAuthToken);
+        String tokenValue = nodeService.decryptString(cxt, formAuthToken);
         List<String> beginAndEnd = StrUtil.splitString(tokenValue, "@", 2);
         if (beginAndEnd.size() < 2) {
             throw new DnException("Form auth token is not valid.");
@@ -216,7 +204,7 @@ public class AuthFormHandler {
         String text = Objects.requireNonNull(contentData).strContent;
         var mailData = mailService.createMailData(contactAddress, mailService.fromAddressForApp,
                 "Your verification code", text, null);
-        mailService.sendEmail(cxt, mailData);
+        mailService.queueEmail(cxt, mailData);
     }
 
     public AuthUserRow createInitialUser(DnCxt cxt, UserContact contact, String formAuthToken, String verifyCode)
@@ -240,6 +228,7 @@ public class AuthFormHandler {
         var sqlCxt = SqlTopicService.mkSqlCxt(cxt, SqlTopicConstants.AUTH_TOPIC);
         AuthQueryHolder aqh = AuthQueryHolder.get(sqlCxt);
         var rowPtr = new DnPointer<AuthUserRow>();
+        var replacedRow = new DnPointer<Boolean>(false);
         aqh.sqlDb.withSession(cxt, () -> {
             // First query.
             var curRow = aqh.queryByPrimaryId(cxt, contactAddress);
@@ -274,12 +263,17 @@ public class AuthFormHandler {
                     throw new DnException("Unexpected failure to update user row.");
                 }
                 rowPtr.value = curRow;
+                replacedRow.value = true;
             } else {
                 long userId = aqh.insertAuthUser(cxt, data);
                 data.put(USER_ID, userId);
                 rowPtr.value = AuthUserRow.extract(data);
             }
         });
+        if (replacedRow.value) {
+            // Other nodes may have the replaced row cached.
+            userService.publishInvalidation(cxt, userService.userCache.authCache.name, rowPtr.value.userId);
+        }
 
         return rowPtr.value;
     }
@@ -355,12 +349,15 @@ public class AuthFormHandler {
         var sqlCxt = SqlTopicService.mkSqlCxt(cxt, SqlTopicConstants.AUTH_TOPIC);
         AuthQueryHolder aqh = AuthQueryHolder.get(sqlCxt);
 
-        aqh.sqlDb.withSession(cxt, () -> {
-            boolean doTran = true;
-            long userId = allData.userId;
-            if (username != null) {
-                AuthUserRow usernameRow = aqh.queryByUsername(cxt, username);
-                allData.authRow = usernameRow;
+        var storedHash = new DnPointer<String>();
+        var familiarSourceId = new DnPointer<UserSourceId>();
+        if (username != null || !loginParams.checkPassword) {
+            aqh.sqlDb.withSession(cxt, () -> {
+                long userId = allData.userId;
+                AuthUserRow usernameRow = (username != null) ? aqh.queryByUsername(cxt, username) : null;
+                if (username != null) {
+                    allData.authRow = usernameRow;
+                }
                 if (userId <= 0) {
                     // Filling in userId.
                     if (usernameRow != null) {
@@ -399,30 +396,55 @@ public class AuthFormHandler {
                                 "this unfamiliar browser or device.", null, DnException.NOT_AUTHORIZED,
                                 DnException.SYSTEM, DnException.AUTH);
                     }
-
-                    // Check password. Note that we are *not* trying to disguise whether the error
-                    // is a missing username or an invalid password. Any logged in user can figure out
-                    // which usernames exist in the system simply by trying to change their username
-                    // and seeing if they succeed. If they don't then the username already exists.
-                    // A more laborious version of this check can be done during initial registration as well.
-                    if (!EncodeUtil.checkPassword(loginParams.password, usernameRow.encodedPassword)) {
-                        throw DnException.mkInput("Password did not match.");
-                    }
-                    if (!curSourceId.isModified) {
-                        // Nothing interesting happening, we can skip the auth tran (but we will still
-                        // do the profile tran, but profile data, unlike auth data, is assumed to be sharded in heavy
-                        // use environments).
-                        doTran = false;
-                    } else {
-                        allData.sourceId = curSourceId;
+                    storedHash.value = usernameRow.encodedPassword;
+                    familiarSourceId.value = curSourceId;
+                } else {
+                    // Check the verify code before hashing a new password, so that requests with a bad code do
+                    // not tie up the password hashing threads. It is checked again in the transaction.
+                    AuthUserRow userRow = (usernameRow != null) ? usernameRow : aqh.queryByUserId(cxt, userId);
+                    if (userRow == null ||
+                            checkInvalidVerifyCode(cxt, formAuthToken, userRow.primaryId, verifyCode)) {
+                        throw DnException.mkInput("Supplied verification code is invalid.");
                     }
                 }
+            });
+        }
+
+        // Password hashing is deliberately slow, so it is done without holding a database session.
+        if (!loginParams.checkPassword && loginParams.password != null) {
+            loginParams.encodedPassword = DnPasswordHashService.hashPassword(cxt, loginParams.password);
+        }
+
+        boolean doTran = true;
+        if (loginParams.checkPassword) {
+            // Check password. Note that we are *not* trying to disguise whether the error
+            // is a missing username or an invalid password. Any logged in user can figure out
+            // which usernames exist in the system simply by trying to change their username
+            // and seeing if they succeed. If they don't then the username already exists.
+            // A more laborious version of this check can be done during initial registration as well.
+            if (!DnPasswordHashService.checkPassword(cxt, loginParams.password, storedHash.value)) {
+                throw DnException.mkInput("Password did not match.");
             }
+            if (!familiarSourceId.value.isModified) {
+                // Nothing interesting happening, we can skip the auth tran (but we will still
+                // do the profile tran, but profile data, unlike auth data, is assumed to be sharded in heavy
+                // use environments).
+                doTran = false;
+            } else {
+                allData.sourceId = familiarSourceId.value;
+            }
+        }
 
-            if (doTran) {
-                aqh.executeUserTran(sqlCxt, userId, tranName, () -> {
+        if (doTran) {
+            aqh.sqlDb.withSession(cxt, () -> {
+                aqh.executeUserTran(sqlCxt, allData.userId, tranName, () -> {
                     allData.authRow = AuthUserRow.extract(sqlCxt.tranData);
-                    if (!loginParams.checkPassword) {
+                    if (loginParams.checkPassword) {
+                        // The password was checked outside the transaction, make sure it is still current.
+                        if (!Objects.equals(allData.authRow.encodedPassword, storedHash.value)) {
+                            throw new DnException("Password was changed while logging in.", DnException.CONFLICT);
+                        }
+                    } else {
                         // Verify code. Note that we are assuming primaryId is the email address
                         // we used to send the verification code.
                         if (checkInvalidVerifyCode(cxt, formAuthToken, allData.authRow.primaryId, verifyCode)) {
@@ -440,9 +462,8 @@ public class AuthFormHandler {
                     // Carry results back into database row.
                     sqlCxt.tranData.putAll(allData.authRow.toMap());
                 });
-            }
-
-        });
+            });
+        }
 
         // Create/load profile and set up for setting cookie.
         AuthUserUtil.setLoginProfileData(allData);
@@ -502,11 +523,10 @@ public class AuthFormHandler {
         return tSourceId;
     }
 
-    public static void mergeIntoRowForTran(AuthAllUserData allData, VerifyLoginParams loginParams) throws DnException {
+    public static void mergeIntoRowForTran(AuthAllUserData allData, VerifyLoginParams loginParams)
+            throws DnException {
         AuthUserRow userRow = allData.authRow;
-        String username = loginParams.username;
-        String password = loginParams.password;
-        AuthUserUtil.updateUsernameAndPassword(userRow, username, password);
+        AuthUserUtil.updateUsernameAndPassword(userRow, loginParams.username, loginParams.encodedPassword);
     }
 
     public static void applyFormComponentsToAuth(UserAuthData authData, FormTokenComponents comps) throws DnException {
@@ -563,35 +583,30 @@ public class AuthFormHandler {
                 throw new DnException("There are more than three active authentication requests occurring " +
                         "simultaneously on this node.");
             }
-            synchronized (this) {
-                int curHour = (int)(System.currentTimeMillis() / (3600 * 1000L));
-                if (curHour != curHourScope) {
-                    curHourScope = curHour;
-                    curNumberOfExecs = 0;
-                    formTokenTracker.clear();
-                    ipAddressTracker.clear();
-                } else {
-                    if (formAuthToken != null && formTokenTracker.checkExceedMaxCount(formAuthToken)) {
-                        throw DnException.mkInput("The *formAuthToken* has been used too many times.");
-                    }
-                    if (!coreNodeService.checkIsInternalAddress(cxt.forwardedFor)) {
-                        if (ipAddressTracker.checkExceedMaxCount(cxt.forwardedFor)) {
-                            throw DnException.mkInput(String.format(
-                                    "The forwarded for IP %s address has made too many login related requests.",
-                                    cxt.forwardedFor));
-                        }
-                    }
-                    if (curNumberOfExecs++ > maxExecsPerHour) {
-                        throw new DnException(
-                                "Too many authentication related requests have occurred in the last hour.");
-                    }
-                    if (curNumberOfExecs > maxExecsPerHour/4) {
-                        // Slow things down.
-                        LogUser.log.info(cxt,
-                                "Too many auth related requests coming during this hour.");
-                        SystemUtil.sleep(5000);
-                    }
-                }
+            if (formAuthToken != null && !formTokenTracker.tryAcquire(formAuthToken)) {
+                throw DnException.mkInput("The *formAuthToken* has been used too many times.");
+            }
+            if (!coreNodeService.checkIsInternalAddress(cxt.forwardedFor) &&
+                    !ipAddressTracker.tryAcquire(cxt.forwardedFor)) {
+                throw DnException.mkInput(String.format(
+                        "The forwarded for IP %s address has made too many login related requests.",
+                        cxt.forwardedFor));
+            }
+            int curHour = (int)(System.currentTimeMillis() / (3600 * 1000L));
+            int hourScope = curHourScope.get();
+            if (curHour != hourScope && curHourScope.compareAndSet(hourScope, curHour)) {
+                curNumberOfExecs.set(0);
+            }
+            int numExecs = curNumberOfExecs.incrementAndGet();
+            if (numExecs > maxExecsPerHour) {
+                throw new DnException(
+                        "Too many authentication related requests have occurred in the last hour.");
+            }
+            if (numExecs > maxExecsPerHour/4) {
+                // Slow things down.
+                LogUser.log.info(cxt,
+                        "Too many auth related requests coming during this hour.");
+                SystemUtil.sleep(5000);
             }
         } finally {
             activeRequests.decrementAndGet();
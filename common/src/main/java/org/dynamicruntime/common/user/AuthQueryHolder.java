@@ -1,5 +1,6 @@
 package org.dynamicruntime.common.user;
 
+import org.dynamicruntime.common.node.DnNodeService;
 import org.dynamicruntime.context.DnConfigUtil;
 import org.dynamicruntime.context.DnCxt;
 import org.dynamicruntime.context.DnCxtConstants;
@@ -49,12 +50,14 @@ public class AuthQueryHolder extends SqlQueryHolderBase {
     /** AuthUsers, additional queries. */
     public DnSqlStatement qUsername;
     public DnSqlStatement qPrimaryId;
+    public DnSqlStatement qUsersAfter;
 
     /** AuthTokens */
     public DnTable authTokens;
     public DnSqlStatement iAuthToken;
     public DnSqlStatement uAuthToken;
     public DnSqlStatement qAuthToken;
+    public DnSqlStatement qAuthTokenIds;
 
     /* Contacts
     public DnTable contacts;
@@ -123,6 +126,9 @@ public class AuthQueryHolder extends SqlQueryHolderBase {
         iAuthToken = SqlTopicUtil.mkTableInsertStmt(sqlCxt, authTokens);
         uAuthToken = SqlTopicUtil.mkTableUpdateStmt(sqlCxt, authTokens);
         qAuthToken = SqlTopicUtil.mkTableSelectStmt(sqlCxt, authTokens);
+        qAuthToken.compactRows = true;
+        qAuthTokenIds = SqlStmtUtil.prepareSql(sqlCxt, "qIds" + authTokens.tableName, authTokens.columns,
+                String.format("SELECT c:%s FROM t:%s", AUTH_ID, authTokens.tableName));
         return firstTime;
     }
 
@@ -135,11 +141,13 @@ public class AuthQueryHolder extends SqlQueryHolderBase {
 
         iSource = SqlTopicUtil.mkTableInsertStmt(sqlCxt, sources);
         qSource = SqlTopicUtil.mkTableSelectStmt(sqlCxt, sources);
+        qSource.compactRows = true;
 
         String recentSourcesStmt = SqlStmtUtil.mkSelectQuery(sources.tableName,  mList(USER_ID)) +
                 String.format(" ORDER BY c:%s DESC LIMIT 8", MODIFIED_DATE);
         qRecentSources = SqlStmtUtil.prepareSql(sqlCxt, "qRecentForUser" + sources.tableName,
                 sources.columns, recentSourcesStmt);
+        qRecentSources.compactRows = true;
         uSource = SqlTopicUtil.mkTableUpdateStmt(sqlCxt, sources);
     }
 
@@ -149,6 +157,13 @@ public class AuthQueryHolder extends SqlQueryHolderBase {
                 authTable, mList(AUTH_USERNAME));
         qPrimaryId = SqlTopicUtil.mkNamedTableSelectStmt(sqlCxt, "qPrimaryId" + authTable.tableName,
                 authTable, mList(AUTH_USER_PRIMARY_ID));
+        // Looked up on logins and the rows are held in the user caches.
+        qUsername.compactRows = true;
+        qPrimaryId.compactRows = true;
+        // No LIMIT, callers stop reading rows when they have enough.
+        qUsersAfter = SqlStmtUtil.prepareSql(sqlCxt, "qAfter" + authTable.tableName, authTable.columns,
+                String.format("SELECT * FROM t:%s WHERE c:%s > :%s ORDER BY c:%s", authTable.tableName,
+                        USER_ID, USER_ID, USER_ID));
     }
 
     public void addInitialRows(SqlCxt sqlCxt) throws DnException {
@@ -170,6 +185,13 @@ public class AuthQueryHolder extends SqlQueryHolderBase {
                 byUsernameRow.put(AUTH_USER_PRIMARY_ID, sysadminEmail);
                 SqlTopicUtil.prepForStdExecute(cxt, byUsernameRow);
                 sqlDb.executeDnStatement(cxt, sqlTopic.uTranLockQuery, byUsernameRow);
+                // Other nodes may be holding the row with the old email.
+                var nodeService = DnNodeService.get(cxt);
+                if (nodeService != null && nodeService.invalidationBus != null) {
+                    long userId = getReqLong(byUsernameRow, USER_ID);
+                    nodeService.invalidationBus.publish(cxt, UserCache.AUTH_CACHE, userId);
+                    nodeService.invalidationBus.publish(cxt, UserCache.PROFILE_CACHE, userId);
+                }
             }
         } else {
             // Use the initial data to do a query for the user.
@@ -231,6 +253,17 @@ public class AuthQueryHolder extends SqlQueryHolderBase {
         return (row != null) ? AuthUserRow.extract(row) : null;
     }
 
+    /** Reads the auth ID of every admin token, streaming them from the database. */
+    public void scanAuthTokenIds(DnCxt cxt, SqlRowHandler handler) throws DnException {
+        sqlDb.queryDnStatementForEach(cxt, qAuthTokenIds, mMap(), handler);
+    }
+
+    /** Reads users in order of user ID, streaming them from the database so that scanning every user
+     * does not need memory for every user. */
+    public void scanUsersAfter(DnCxt cxt, long afterUserId, SqlRowHandler handler) throws DnException {
+        sqlDb.queryDnStatementForEach(cxt, qUsersAfter, mMap(USER_ID, afterUserId), handler);
+    }
+
     //
     // Login Sources queries.
     //
@@ -5,8 +5,8 @@ import org.dynamicruntime.exception.DnException;
 import org.dynamicruntime.request.DnRequestCxt;
 import org.dynamicruntime.request.DnServletHandler;
 import org.dynamicruntime.schemadata.CoreConstants;
+import org.dynamicruntime.user.DnPasswordHashService;
 import org.dynamicruntime.user.UserAuthData;
-import org.dynamicruntime.util.EncodeUtil;
 import org.dynamicruntime.util.StrUtil;
 
 import static org.dynamicruntime.user.UserConstants.*;
@@ -48,7 +48,9 @@ public class AuthUserUtil {
         return allData;
     }
 
-    public static void updateUsernameAndPassword(AuthUserRow userRow, String username, String password)
+    /** Sets the username and password of the row. The password must already be hashed with
+     * {@link DnPasswordHashService#hashPassword}, which should not be done while holding a database session. */
+    public static void updateUsernameAndPassword(AuthUserRow userRow, String username, String encodedPassword)
             throws DnException {
         if (username != null) {
             checkValidUsername(username);
@@ -63,9 +65,9 @@ public class AuthUserUtil {
         if (username != null) {
             userRow.username = username;
         }
-        if (password != null) {
+        if (encodedPassword != null) {
             userRow.passwordEncodingRule = AUTH_DN_HASH;
-            userRow.encodedPassword = EncodeUtil.hashPassword(password);
+            userRow.encodedPassword = encodedPassword;
         }
     }
 
@@ -2,43 +2,91 @@ package org.dynamicruntime.common.user;
 
 import org.dynamicruntime.exception.DnException;
 import org.dynamicruntime.function.DnFunction;
-import org.dynamicruntime.util.CacheMap;
-import org.dynamicruntime.util.DatedCacheMap;
+import org.dynamicruntime.util.DnBloomFilter;
+import org.dynamicruntime.util.DnCache;
 
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 
-import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 @SuppressWarnings("WeakerAccess")
 public class UserCache {
+    /** Name of the invalidations published when an admin token is added or changed. */
+    public static final String ADMIN_TOKENS = "adminTokens";
+    public static final String AUTH_CACHE = "auth";
+    public static final String PROFILE_CACHE = "profile";
 
-    public final DatedCacheMap<Long,AuthUserRow> authCache = new DatedCacheMap<>(500);
-    public final DatedCacheMap<Long,Map<String,Object>> profileCache = new DatedCacheMap<>(500);
-    public final DatedCacheMap<String,AuthUserRow> tokenCache = new DatedCacheMap<>(20);
+    /** The auth IDs of the admin tokens in one shard. A filter is only consulted once all the auth IDs have
+     * been loaded into it. */
+    public static class TokenIdFilter {
+        public final DnBloomFilter filter;
+        /** When the auth IDs started being read, filters are rebuilt after a while in case an added admin
+         * token was not heard about. */
+        public final long loadTime;
+
+        public TokenIdFilter(DnBloomFilter filter, long loadTime) {
+            this.filter = filter;
+            this.loadTime = loadTime;
+        }
+    }
+
+    public final DnCache<Long,AuthUserRow> authCache = new DnCache<>(AUTH_CACHE, 500);
+    public final DnCache<Long,Map<String,Object>> profileCache = new DnCache<>(PROFILE_CACHE, 500);
+    /** Replaced at startup with caches sized by configuration, see {@link #initTokenCaches}. */
+    public DnCache<String,AuthUserRow> tokenCache = new DnCache<>("token", 100);
+    public DnCache<String,Boolean> failedTokenCache = new DnCache<>("failedToken", 10000);
+    /** Filters in use, by shard. */
+    public final Map<String,TokenIdFilter> tokenIdFilters = new ConcurrentHashMap<>();
+    /** Filters being loaded to take the place of the ones in use, by shard. */
+    public final Map<String,TokenIdFilter> loadingTokenIdFilters = new ConcurrentHashMap<>();
+    /** Tokens turned away because their auth ID is not in the filter. */
+    public final LongAdder filteredTokens = new LongAdder();
+
+    public void initTokenCaches(int maxTokens, int maxFailedTokens) {
+        tokenCache = new DnCache<>("token", maxTokens);
+        failedTokenCache = new DnCache<>("failedToken", maxFailedTokens);
+    }
 
     public AuthUserRow getAuthUserRow(long id, int timeoutSeconds,
-            DnFunction<DatedCacheMap.DatedItem<AuthUserRow>,AuthUserRow> createItem)
+            DnFunction<DnCache.CacheEntry<AuthUserRow>,AuthUserRow> createItem)
             throws DnException {
         return authCache.getItem(id, timeoutSeconds, true, createItem);
     }
 
     public Map<String,Object> getProfileData(long id, int timeoutSeconds,
-            DnFunction<DatedCacheMap.DatedItem<Map<String,Object>>,Map<String,Object>> createItem) throws DnException {
+            DnFunction<DnCache.CacheEntry<Map<String,Object>>,Map<String,Object>> createItem) throws DnException {
         return profileCache.getItem(id, timeoutSeconds, true, createItem);
     }
 
     /** For a particular token (authId + tokenData), caches successful results only. */
     public AuthUserRow getAuthDataByToken(String tokenKey, int timeoutSeconds,
-            DnFunction<DatedCacheMap.DatedItem<AuthUserRow>,AuthUserRow> createItem) throws DnException {
+            DnFunction<DnCache.CacheEntry<AuthUserRow>,AuthUserRow> createItem) throws DnException {
         return tokenCache.getItem(tokenKey, timeoutSeconds, false, createItem);
     }
 
-    /** Used for testing to allow modification to user data and get immediate results. */
-    public <U,V>void clearCache(CacheMap<U,V> cache) {
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (cache) {
-            cache.clear();
+    /** Removes a user from the *auth* or *profile* cache. */
+    public void remove(String cacheName, long userId) {
+        if (authCache.name.equals(cacheName)) {
+            authCache.remove(userId);
+        } else if (profileCache.name.equals(cacheName)) {
+            profileCache.remove(userId);
         }
     }
+
+    /** Used for testing to allow modification to user data and get immediate results. */
+    public void clearCaches() {
+        authCache.clearCache();
+        profileCache.clearCache();
+        tokenCache.clearCache();
+        failedTokenCache.clearCache();
+    }
+
+    public List<Map<String,Object>> getStats() {
+        return mList(authCache.getStats(), profileCache.getStats(), tokenCache.getStats(),
+                failedTokenCache.getStats(), mMap("name", "tokenIdFilter", "shards", tokenIdFilters.size(),
+                        "filtered", filteredTokens.sum()));
+    }
 }
@@ -49,6 +49,27 @@ public class UserEndpoints {
         requestCxt.listResponse = mList(result);
     }
 
+    public static void adminListUsers(DnRequestCxt requestCxt) throws DnException {
+        var cxt = requestCxt.cxt;
+        var data = requestCxt.requestData;
+        long afterUserId = getLongWithDefault(data, AUTH_AFTER_USER_ID, 0);
+        int limit = (int)getLongWithDefault(data, EPF_LIMIT, 100);
+
+        var userService = Objects.requireNonNull(UserService.get(cxt));
+        List<Map<String,Object>> result = mList();
+        // Rows are streamed, so stop reading as soon as we know whether there is another page.
+        userService.scanUsers(cxt, afterUserId, row -> {
+            if (result.size() >= limit) {
+                requestCxt.hasMore = true;
+                return false;
+            }
+            // The row map is reused for the next row, so take a copy. Extracting strips the password.
+            result.add(AuthUserRow.extract(cloneMap(row)).data);
+            return true;
+        });
+        requestCxt.listResponse = result;
+    }
+
     public static void selfQueryInfo(DnRequestCxt requestCxt) throws DnException {
         var cxt = requestCxt.cxt;
         if (cxt.userProfile == null) {
@@ -77,6 +98,7 @@ public class UserEndpoints {
     public static List<DnEndpointFunction> getFunctions() {
         return mList(
                 mkEndpoint(ADMIN_USER_INFO, UserEndpoints::adminQueryInfo),
+                mkEndpoint(ADMIN_USER_LIST, UserEndpoints::adminListUsers),
                 mkEndpoint(SELF_USER_INFO, UserEndpoints::selfQueryInfo),
                 mkEndpoint(SELF_SET_DATA, UserEndpoints::selfSetData));
     }
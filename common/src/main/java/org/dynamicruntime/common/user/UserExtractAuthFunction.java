@@ -20,8 +20,9 @@ import static org.dynamicruntime.user.UserConstants.*;
 /** Applied to {@link org.dynamicruntime.user.UserAuthHook#extractAuth}. */
 @SuppressWarnings("WeakerAccess")
 public class UserExtractAuthFunction implements DnHookFunction<DnRequestService, DnRequestHandler> {
-    // Using short cache since it is easier to test during development.
-    public static final int AUTH_CACHE_TIMEOUT_SECS = 10;
+    /** Changes to auth rows are published to all nodes through the cache invalidation bus, so the timeout
+     * only bounds the staleness of a missed invalidation. */
+    public static final int AUTH_CACHE_TIMEOUT_SECS = 300;
 
     public final UserService userService;
 
@@ -66,9 +67,8 @@ public class UserExtractAuthFunction implements DnHookFunction<DnRequestService,
             Date expireDate = authCookie.expireDate;
             Date now = cxt.now();
             if (now.before(expireDate)) {
-                // Query for auth data from database. Eventually we may do some type of caching
-                // with notifications sent by other nodes to the proxy nodes to notify when
-                // the cache is invalidated. Also, certain types of high volume requests also may
+                // Query for auth data from the cache. Nodes that change auth rows publish an invalidation
+                // so that other nodes evict their copy. Also, certain types of high volume requests also may
                 // be able to live with what is encoded in the cookie as being good enough. An example
                 // may be requests for semi-static resources or client based logging.
                 long userId = authCookie.userId;
@@ -183,6 +183,18 @@ public class UserSchemaDefData {
             "Retrieves user information using one of three different options for " +
                     "identifying the user.", adminUserInfoRequest.name, adminUserInfoResponse.name);
 
+    static public DnRawField afterUserIdParam = mkField(AUTH_AFTER_USER_ID, "After User ID",
+            "Only users with a larger user ID are returned. To get the next page, pass the user ID of the " +
+                    "last user returned.").setTypeRef(DNT_COUNT);
+    static public DnRawType adminUserListRequest = mkType("AdminUserListRequest", mList(afterUserIdParam));
+    static public DnRawType adminUserListResponse = mkType("AdminUserListResponse", mList())
+            .setReferencedTypesWithFields(mList(mkTbTypeName(UT_TB_AUTH_USERS)));
+    static public DnRawEndpoint adminUserListEndpoint = mkListEndpoint("/admin/user/list",
+            ADMIN_USER_LIST,
+            "Lists users in order of user ID, a page at a time.",
+            adminUserListRequest.name, adminUserListResponse.name)
+            .setAttribute(EP_HAS_MORE_PAGING, true);
+
     /*
     USER_ID, userId, AUTH_ID, authId, USER_ACCOUNT, account, USER_GROUP, userGroup,
                 AUTH_ROLES, roles, UP_PUBLIC_NAME, publicName, UP_USER_LOCALE, locale,
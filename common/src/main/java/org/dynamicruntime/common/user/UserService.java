@@ -2,6 +2,8 @@ package org.dynamicruntime.common.user;
 
 import org.apache.commons.lang3.LocaleUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.dynamicruntime.common.node.DnNodeService;
+import org.dynamicruntime.context.DnConfigUtil;
 import org.dynamicruntime.context.DnCxt;
 import org.dynamicruntime.context.DnCxtConstants;
 import org.dynamicruntime.context.Priority;
@@ -9,16 +11,19 @@ import org.dynamicruntime.context.UserProfile;
 import org.dynamicruntime.exception.DnException;
 import org.dynamicruntime.function.DnFunction;
 import org.dynamicruntime.function.DnPointer;
+import org.dynamicruntime.node.DnCoreNodeService;
 import org.dynamicruntime.request.DnServletHandler;
 import org.dynamicruntime.sql.DnSqlStatement;
 import org.dynamicruntime.sql.SqlCxt;
+import org.dynamicruntime.sql.SqlRowHandler;
 import org.dynamicruntime.sql.topic.*;
 import org.dynamicruntime.startup.ServiceInitializer;
+import org.dynamicruntime.user.DnPasswordHashService;
 import org.dynamicruntime.user.LogUser;
 import org.dynamicruntime.user.UserAuthData;
 import org.dynamicruntime.user.UserAuthHook;
 import org.dynamicruntime.user.UserSourceId;
-import org.dynamicruntime.util.EncodeUtil;
+import org.dynamicruntime.util.DnBloomFilter;
 
 import static org.dynamicruntime.user.UserConstants.*;
 import static org.dynamicruntime.util.ConvertUtil.*;
@@ -32,13 +37,19 @@ import java.util.Objects;
 
 @SuppressWarnings("WeakerAccess")
 public class UserService implements ServiceInitializer {
-    /** Short timeout to allow testing. This is catering to scenarios when there is more than one request per second
-     * for a user in short bursts. */
-    public static final int PROFILE_CACHE_TIMEOUT_IN_SECS = 10;
+    /** Changes to profiles are published to all nodes through the cache invalidation bus, so the timeout only
+     * bounds the staleness of a missed invalidation. */
+    public static final int PROFILE_CACHE_TIMEOUT_IN_SECS = 300;
+    /** Admin token rows are not tracked by the invalidation bus, so their cache keeps a short timeout. */
+    public static final int TOKEN_CACHE_TIMEOUT_IN_SECS = 10;
     public static final String USER_SERVICE = UserService.class.getSimpleName();
     public SqlTopicService topicService;
+    public DnNodeService nodeService;
     public final AuthFormHandler formHandler = new AuthFormHandler(this);
     public final UserCache userCache = new UserCache();
+    public int failedTokenTimeoutSecs = 60;
+    public int tokenIdFilterSize = 10000;
+    public int tokenIdFilterReloadSecs = 600;
 
     public static UserService get(DnCxt cxt) {
         var obj = cxt.instanceConfig.get(USER_SERVICE);
@@ -57,6 +68,19 @@ public class UserService implements ServiceInitializer {
             throw new DnException("UserService requires SqlTopicService.");
         }
         formHandler.init(cxt);
+        int maxTokens = (int)DnConfigUtil.getConfigLong(cxt, "user.tokenCache.maxItems", 100,
+                "Maximum number of admin tokens that have been verified to cache.");
+        int maxFailedTokens = (int)DnConfigUtil.getConfigLong(cxt, "user.failedTokenCache.maxItems", 10000,
+                "Maximum number of admin tokens that failed verification to cache.");
+        userCache.initTokenCaches(maxTokens, maxFailedTokens);
+        failedTokenTimeoutSecs = (int)DnConfigUtil.getConfigLong(cxt, "user.failedTokenCache.timeoutSecs",
+                failedTokenTimeoutSecs, "Seconds an admin token that failed verification is turned away " +
+                        "without checking it again.");
+        tokenIdFilterSize = (int)DnConfigUtil.getConfigLong(cxt, "user.tokenIdFilter.expectedItems",
+                tokenIdFilterSize, "Number of admin tokens the filter of admin token auth IDs is sized for.");
+        tokenIdFilterReloadSecs = (int)DnConfigUtil.getConfigLong(cxt, "user.tokenIdFilter.reloadSecs",
+                tokenIdFilterReloadSecs, "Seconds before the filter of admin token auth IDs is rebuilt, in " +
+                        "case this node missed being told about an added admin token.");
 
         // Register the topics this service interfaces with.
         topicService.registerTopicContainer(SqlTopicConstants.AUTH_TOPIC,
@@ -102,6 +126,8 @@ public class UserService implements ServiceInitializer {
         final var ed = expireDate; // So it can be passed into closure.
         var sqlCxt = SqlTopicService.mkSqlCxt(cxt, SqlTopicConstants.AUTH_TOPIC);
         AuthQueryHolder aqh = AuthQueryHolder.get(sqlCxt);
+        // Hashing is deliberately slow, so it is done before taking a database session.
+        String hashedToken = DnPasswordHashService.hashPassword(cxt, authToken);
         aqh.sqlDb.withSession(cxt, () -> {
             AuthUserRow au = aqh.queryByUsername(cxt, username);
             if (au == null) {
@@ -112,7 +138,6 @@ public class UserService implements ServiceInitializer {
                 throw new DnException(String.format("User %s is no longer active.", username), null,
                         DnException.NOT_FOUND, DnException.SYSTEM, DnException.CODE);
             }
-            String hashedToken = EncodeUtil.hashPassword(authToken);
             Map<String,Object> tokenInfo = mMap(AUTH_ID, authId, AUTH_TOKEN, hashedToken,
                     USER_ID, au.userId, AUTH_RULES, rules, EXPIRE_DATE, ed);
 
@@ -132,6 +157,33 @@ public class UserService implements ServiceInitializer {
                 aqh.sqlDb.executeDnStatement(cxt, dnStmt, tokenRow);
             });
         });
+        // Add the auth ID to the filters and forget failures, on this node and all other nodes.
+        String key = cxt.shard + ":" + authId;
+        if (nodeService != null && nodeService.invalidationBus != null) {
+            nodeService.invalidationBus.publish(cxt, UserCache.ADMIN_TOKENS, key);
+        } else {
+            adminTokenChanged(key);
+        }
+    }
+
+    /** Called with the shard and auth ID of an admin token that has been added or changed. */
+    public void adminTokenChanged(String key) {
+        int index = key.indexOf(':');
+        if (index > 0) {
+            String shard = key.substring(0, index);
+            String authId = key.substring(index + 1);
+            // The filter being loaded is checked first, since it is put in use before it stops being loaded.
+            var loadingFilter = userCache.loadingTokenIdFilters.get(shard);
+            if (loadingFilter != null) {
+                loadingFilter.filter.add(authId);
+            }
+            var idFilter = userCache.tokenIdFilters.get(shard);
+            if (idFilter != null) {
+                idFilter.filter.add(authId);
+            }
+        }
+        // Changing tokens is rare, so there is no need to be selective.
+        userCache.failedTokenCache.clearCache();
     }
 
     /** Does a simple admin token login. Does not need all the extras of a regular user login. In particular,
@@ -145,35 +197,105 @@ public class UserService implements ServiceInitializer {
         loadProfileRecord(cxt, cxt.userProfile, false);
     }
 
+    /** Verifies an admin token. Tokens whose auth ID is not known and tokens that recently failed verification
+     * are turned away without going to the database or checking the token hash. */
     public AuthUserRow queryByAdminCacheToken(DnCxt cxt, String authId, String authToken) throws DnException {
+        if (!mightHaveAdminToken(cxt, authId)) {
+            userCache.filteredTokens.increment();
+            return null;
+        }
         String tokenKey = authId + ":" + authToken;
-        return userCache.getAuthDataByToken(tokenKey, PROFILE_CACHE_TIMEOUT_IN_SECS,
+        if (userCache.failedTokenCache.getIfFresh(tokenKey, failedTokenTimeoutSecs) != null) {
+            return null;
+        }
+        var authUser = userCache.getAuthDataByToken(tokenKey, TOKEN_CACHE_TIMEOUT_IN_SECS,
                 datedItem -> queryByAdminToken(cxt, authId, authToken));
+        if (authUser == null) {
+            userCache.failedTokenCache.put(tokenKey, Boolean.TRUE);
+        }
+        return authUser;
+    }
+
+    public boolean mightHaveAdminToken(DnCxt cxt, String authId) {
+        var idFilter = userCache.tokenIdFilters.get(cxt.shard);
+        if (idFilter == null ||
+                System.currentTimeMillis() - idFilter.loadTime > tokenIdFilterReloadSecs * 1000L) {
+            loadTokenIdFilter(cxt);
+            idFilter = userCache.tokenIdFilters.get(cxt.shard);
+        }
+        // Without a filter, every token goes to the database.
+        return idFilter == null || idFilter.filter.mightContain(authId);
+    }
+
+    /**
+     * Loads the auth IDs of the admin tokens of the shard into a new filter, which then replaces the filter in
+     * use. Admin tokens added while the auth IDs are read are added to the new filter as well, so they are not
+     * missed. Only one load of a shard runs at a time. Lookups made while it runs, including by the caller if
+     * another load is running, use the filter being replaced, or go to the database if there is none.
+     * No lock is held while reading the database.
+     */
+    public void loadTokenIdFilter(DnCxt cxt) {
+        String shard = cxt.shard;
+        var newFilter = new UserCache.TokenIdFilter(new DnBloomFilter(tokenIdFilterSize, 0.01),
+                System.currentTimeMillis());
+        if (userCache.loadingTokenIdFilters.putIfAbsent(shard, newFilter) != null) {
+            return;
+        }
+        try {
+            var sqlCxt = SqlTopicService.mkSqlCxt(cxt, SqlTopicConstants.AUTH_TOPIC);
+            AuthQueryHolder aqh = AuthQueryHolder.get(sqlCxt);
+            aqh.sqlDb.withSession(cxt, () -> aqh.scanAuthTokenIds(cxt, row -> {
+                newFilter.filter.add(getReqStr(row, AUTH_ID));
+                return true;
+            }));
+            putTokenIdFilterInUse(shard, newFilter);
+        } catch (DnException e) {
+            // Try again on the next lookup, until then the old filter is used.
+            userCache.loadingTokenIdFilters.remove(shard, newFilter);
+            LogUser.log.error(cxt, e, "Failed to load auth IDs of admin tokens.");
+        }
+    }
+
+    /** Puts a loaded filter in use, unless the filters were dropped while it was loading. */
+    synchronized void putTokenIdFilterInUse(String shard, UserCache.TokenIdFilter newFilter) {
+        if (userCache.loadingTokenIdFilters.get(shard) == newFilter) {
+            userCache.tokenIdFilters.put(shard, newFilter);
+            userCache.loadingTokenIdFilters.remove(shard, newFilter);
+        }
+    }
+
+    /** Drops the filters, including ones being loaded, when changes to admin tokens may have been missed.
+     * Until a filter is loaded again, admin tokens are checked against the database. */
+    public synchronized void dropTokenIdFilters() {
+        userCache.loadingTokenIdFilters.clear();
+        userCache.tokenIdFilters.clear();
     }
 
     public AuthUserRow queryByAdminToken(DnCxt cxt, String authId, String authToken) throws DnException {
         var sqlCxt = SqlTopicService.mkSqlCxt(cxt, SqlTopicConstants.AUTH_TOPIC);
         AuthQueryHolder aqh = AuthQueryHolder.get(sqlCxt);
 
-        AuthUserRow[] authUser = {null};
-        aqh.sqlDb.withSession(cxt, () -> {
-            var tokenRow = aqh.sqlDb.queryOneDnStatement(cxt, aqh.qAuthToken, mMap(AUTH_ID, authId));
-            if (tokenRow != null) {
-                // Validate the authToken.
-                Date expireDate = getReqDate(tokenRow, EXPIRE_DATE);
-                String hashToken = getReqStr(tokenRow, AUTH_TOKEN);
-                if (cxt.now().before(expireDate) && EncodeUtil.checkPassword(authToken, hashToken)) {
-                    long userId = getReqLong(tokenRow, USER_ID);
-                    AuthUserRow au = aqh.queryByUserId(cxt, userId);
-                    if (au != null && au.enabled) {
-                        au.authId = authId;
-                        au.authRules = getMapDefaultEmpty(tokenRow, AUTH_RULES);
-                        authUser[0] = au;
-                    }
-                }
-            }
-        });
-        return authUser[0];
+        var tokenRowPtr = new DnPointer<Map<String,Object>>();
+        aqh.sqlDb.withSession(cxt, () ->
+                tokenRowPtr.value = aqh.sqlDb.queryOneDnStatement(cxt, aqh.qAuthToken, mMap(AUTH_ID, authId)));
+        var tokenRow = tokenRowPtr.value;
+        if (tokenRow == null) {
+            return null;
+        }
+        // Validate the authToken. Hashing is deliberately slow, so it is done without holding a database session.
+        Date expireDate = getReqDate(tokenRow, EXPIRE_DATE);
+        String hashToken = getReqStr(tokenRow, AUTH_TOKEN);
+        if (!cxt.now().before(expireDate) || !DnPasswordHashService.checkPassword(cxt, authToken, hashToken)) {
+            return null;
+        }
+        long userId = getReqLong(tokenRow, USER_ID);
+        AuthUserRow au = queryUserId(cxt, userId);
+        if (au == null || !au.enabled) {
+            return null;
+        }
+        au.authId = authId;
+        au.authRules = getMapDefaultEmpty(tokenRow, AUTH_RULES);
+        return au;
     }
 
     public AuthUserRow queryCacheUserId(DnCxt cxt, long userId, int timeoutSeconds) throws DnException {
@@ -201,6 +323,14 @@ public class UserService implements ServiceInitializer {
     public AuthUserRow queryPrimaryId(DnCxt cxt, String primaryId) throws DnException {
         return queryUser(cxt, aqh -> aqh.queryByPrimaryId(cxt, primaryId));
     }
+
+    /** Hands raw auth user rows to *handler* in order of user ID. See {@link SqlRowHandler}
+     * for the rules on holding on to rows. */
+    public void scanUsers(DnCxt cxt, long afterUserId, SqlRowHandler handler) throws DnException {
+        var sqlCxt = SqlTopicService.mkSqlCxt(cxt, SqlTopicConstants.AUTH_TOPIC);
+        AuthQueryHolder aqh = AuthQueryHolder.get(sqlCxt);
+        aqh.sqlDb.withSession(cxt, () -> aqh.scanUsersAfter(cxt, afterUserId, handler));
+    }
     public void loadProfileRecord(DnCxt cxt, UserProfile profile, boolean forceRefresh) throws DnException {
         if (profile == null) {
             return;
@@ -255,6 +385,7 @@ public class UserService implements ServiceInitializer {
         var profileTopic = Objects.requireNonNull(sqlCxt.sqlTopic);
         var sqlDb = profileTopic.sqlDb;
         var profileRowPtr = new DnPointer<Map<String,Object>>();
+        var didUpdate = new DnPointer<Boolean>(false);
         sqlDb.withSession(cxt, () -> {
             var dbParams = mMap(USER_ID, userId);
             // All the queries we need are at the transaction level of the topic.
@@ -306,10 +437,14 @@ public class UserService implements ServiceInitializer {
 
                             profileRowPtr.value = sqlCxt.tranData;
                         });
+                didUpdate.value = true;
             } else {
                 profileRowPtr.value = row;
             }
         });
+        if (didUpdate.value) {
+            publishInvalidation(cxt, userCache.profileCache.name, userId);
+        }
         return profileRowPtr.value;
     }
 
@@ -372,6 +507,30 @@ public class UserService implements ServiceInitializer {
             // Updating auth data.
             var sqlCxt = SqlTopicService.mkSqlCxt(cxt, SqlTopicConstants.AUTH_TOPIC);
             AuthQueryHolder aqh = AuthQueryHolder.get(sqlCxt);
+            // Hashing is deliberately slow, so the current password is checked and the new one hashed
+            // without holding a database session. The transaction then makes sure the password has not
+            // changed in the meantime.
+            String checkedHash = null;
+            String encodedPassword = null;
+            if (password != null) {
+                String originalPassword = getOptStr(newData, FM_CURRENT_PASSWORD);
+                if (originalPassword == null) {
+                    throw DnException.mkInput("Current password must be supplied with " +
+                            "the desired changed password.");
+                }
+                AuthUserRow curRow = queryUserId(cxt, allData.userId);
+                if (curRow == null || curRow.encodedPassword == null) {
+                    throw DnException.mkInput("The username is not set up to allow password validation.");
+                }
+                if (!DnPasswordHashService.checkPassword(cxt, originalPassword, curRow.encodedPassword)) {
+                    throw DnException.mkInput("Current password did not match.");
+                }
+                checkedHash = curRow.encodedPassword;
+                encodedPassword = DnPasswordHashService.hashPassword(cxt, password);
+            }
+            // So they can be passed into closure.
+            final String fCheckedHash = checkedHash;
+            final String fEncodedPassword = encodedPassword;
             aqh.sqlDb.withSession(cxt, () -> {
                 // Do transaction to update username and password.
                 Map<String,Object> userIdParam = mMap(USER_ID, allData.userId);
@@ -379,24 +538,15 @@ public class UserService implements ServiceInitializer {
                         userIdParam, () -> {
                             allData.authRow = AuthUserRow.extract(sqlCxt.tranData);
                             var authRow = allData.authRow;
-                            // If modifying password, check to see if original password is OK.
-                            if (password != null) {
-                                String originalPassword = getOptStr(newData, FM_CURRENT_PASSWORD);
-                                if (originalPassword == null) {
-                                    throw DnException.mkInput("Current password must be supplied with " +
-                                            "the desired changed password.");
-                                }
-                                if (authRow.encodedPassword == null) {
-                                    throw DnException.mkInput("The username is not set up to allow password validation.");
-                                }
-                                if (!EncodeUtil.checkPassword(originalPassword, authRow.encodedPassword)) {
-                                    throw DnException.mkInput("Current password did not match.");
-                                }
+                            if (fCheckedHash != null && !fCheckedHash.equals(authRow.encodedPassword)) {
+                                throw new DnException("Password was changed by another request.",
+                                        DnException.CONFLICT);
                             }
-                            AuthUserUtil.updateUsernameAndPassword(allData.authRow, username, password);
+                            AuthUserUtil.updateUsernameAndPassword(authRow, username, fEncodedPassword);
                             sqlCxt.tranData.putAll(allData.authRow.toMap());
                         });
             });
+            publishInvalidation(cxt, userCache.authCache.name, allData.userId);
 
             // Recreate profile data.
             AuthUserUtil.setLoginProfileData(allData);
@@ -408,8 +558,30 @@ public class UserService implements ServiceInitializer {
     }
 
 
-    @Override
-    public void checkInit(DnCxt cxt) {
+    /** Evicts a user's entry from one of the caches in {@link UserCache} on this node and all other nodes.
+     * Should be called after the change to the user's data has been committed. */
+    public void publishInvalidation(DnCxt cxt, String cacheName, long userId) {
+        if (nodeService != null && nodeService.invalidationBus != null) {
+            nodeService.invalidationBus.publish(cxt, cacheName, userId);
+        } else {
+            userCache.remove(cacheName, userId);
+        }
+    }
 
+    @Override
+    public void checkInit(DnCxt cxt) throws DnException {
+        nodeService = DnNodeService.get(cxt);
+        if (nodeService != null) {
+            nodeService.checkInit(cxt);
+            var bus = nodeService.invalidationBus;
+            bus.registerLongKeyCache(userCache.authCache);
+            bus.registerLongKeyCache(userCache.profileCache);
+            bus.registerListener(UserCache.ADMIN_TOKENS, this::adminTokenChanged);
+            bus.registerGapListener(this::dropTokenIdFilters);
+        }
+        var coreNode = DnCoreNodeService.get(cxt);
+        if (coreNode != null) {
+            coreNode.addStatsSource("user.caches", userCache::getStats);
+        }
     }
 }
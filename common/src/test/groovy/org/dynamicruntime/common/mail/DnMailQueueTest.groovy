@@ -0,0 +1,136 @@
+package org.dynamicruntime.common.mail
+
+import org.dynamicruntime.context.DnCxt
+import org.dynamicruntime.exception.DnException
+import org.dynamicruntime.simulation.TestComponent
+import org.dynamicruntime.sql.SqlCxt
+import org.dynamicruntime.sql.SqlStmtUtil
+import org.dynamicruntime.sql.topic.SqlTopicConstants
+import org.dynamicruntime.sql.topic.SqlTopicInfo
+import org.dynamicruntime.sql.topic.SqlTopicService
+import org.dynamicruntime.startup.InstanceRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutorService
+
+import static org.dynamicruntime.common.mail.DnMailConstants.*
+
+class DnMailQueueTest extends Specification {
+    /** Records the emails it is asked to send, and fails them with *failCode* if it is set. */
+    static class StubMailService extends DnMailService {
+        List<Map<String,Object>> sends = []
+        int failCode = 0
+
+        @Override
+        DnMailResponse sendEmail(DnCxt cxt, Map<String,Object> mailData) throws DnException {
+            sends.add(mailData)
+            if (failCode > 0) {
+                throw new DnException("Mail server said no.", null, failCode, DnException.NETWORK,
+                        DnException.CONNECTION)
+            }
+            return new DnMailResponse("server" + sends.size(), "Queued", [:])
+        }
+    }
+
+    def "Mail queue should claim due emails once, back off failed sends, recover abandoned ones, and prune"() {
+        def cxt = createCxt("mailQueue")
+        def topic = SqlTopicService.get(cxt).getOrCreateTopic(cxt, SqlTopicConstants.MAIL_TOPIC)
+        def sqlDb = topic.sqlDb
+        def mailService = new StubMailService()
+        def queue = new DnMailQueue(cxt, mailService, sqlDb)
+        def sqlCxt = new SqlCxt(cxt, topic)
+        sqlDb.withSession(cxt) { queue.initTablesAndQueries(sqlCxt) }
+        // Send on the polling thread, so each poll is finished when it returns.
+        queue.workers = [execute: { Runnable r -> r.run() }] as ExecutorService
+        def qAllMail = SqlStmtUtil.prepareSql(sqlCxt, "qAllMailTest", queue.mailQueue.columns,
+                "SELECT * FROM t:${MQ_MAIL_QUEUE_TABLE} ORDER BY c:${MQ_MAIL_ID}".toString())
+        def readRows = {
+            List<Map<String,Object>> rows = []
+            sqlDb.withSession(cxt) { rows = sqlDb.queryDnStatement(cxt, qAllMail, [:]) }
+            return rows
+        }
+        def poll = {
+            sqlDb.withSession(queue.bgCxt) { queue.claimAndDispatch() }
+        }
+        def maintain = {
+            queue.lastMaintenanceTime = 0
+            sqlDb.withSession(queue.bgCxt) { queue.checkMaintenance() }
+        }
+
+        when: "Queuing two emails, one of which another node has already claimed"
+        queue.enqueue(cxt, [to: "a@example.com", subject: "First"])
+        queue.enqueue(cxt, [to: "b@example.com", subject: "Second"])
+        def otherId = readRows()[1].mailId
+        sqlDb.withSession(cxt) {
+            sqlDb.executeDnStatement(cxt, queue.uClaimMail, [mailId: otherId, claimId: "otherNode",
+                    modifiedDate: cxt.now()])
+        }
+        poll()
+        poll()
+        def rows = readRows()
+
+        then: "Only the unclaimed email is sent, and only once"
+        mailService.sends*.subject == ["First"]
+        rows*.mailStatus == [MQS_SENT, MQS_SENDING]
+        rows[0].mailServerId == "server1"
+        rows[0].attempts == 1
+        queue.inFlight.get() == 0
+
+        when: "Sending fails with an error that may go away"
+        mailService.failCode = DnException.NOT_AVAILABLE
+        queue.enqueue(cxt, [to: "c@example.com", subject: "Third"])
+        long beforeSend = System.currentTimeMillis()
+        poll()
+        poll()
+        def retryRow = readRows()[2]
+
+        then: "The email is queued again with a backoff, so the next poll does not send it"
+        mailService.sends.size() == 2
+        retryRow.mailStatus == MQS_QUEUED
+        retryRow.attempts == 1
+        (retryRow.nextAttemptDate as Date).time >= beforeSend + queue.initialBackoffMillis
+        retryRow.lastError.contains("Mail server said no.")
+        queue.retried.sum() == 1
+
+        when: "The email is due again and the mail server rejects it outright"
+        mailService.failCode = DnException.BAD_INPUT
+        queue.bgCxt.nowTimeOffsetInSeconds = 3600
+        poll()
+        retryRow = readRows()[2]
+
+        then: "It is failed without further retries"
+        mailService.sends.size() == 3
+        retryRow.mailStatus == MQS_FAILED
+        retryRow.attempts == 2
+        queue.failed.sum() == 1
+
+        when: "Maintenance runs after the other node stopped while sending"
+        mailService.failCode = 0
+        maintain()
+        poll()
+        rows = readRows()
+
+        then: "The abandoned email is queued again and sent"
+        mailService.sends*.subject == ["First", "Third", "Third", "Second"]
+        rows*.mailStatus == [MQS_SENT, MQS_SENT, MQS_FAILED]
+
+        when: "Maintenance runs after the retention period"
+        queue.bgCxt.nowTimeOffsetInSeconds = (int)(queue.retentionMillis/1000) + 3600
+        maintain()
+        rows = readRows()
+
+        then: "Sent emails are deleted and failed ones are kept"
+        rows*.mailStatus == [MQS_FAILED]
+        queue.getStats().sent == 2
+    }
+
+    static DnCxt createCxt(String cxtName) {
+        def tc = new TestComponent([DnMailSchemaDefData.getPackage()], [])
+        tc.endpointFunctions.addAll(DnMailEndpoints.getFunctions())
+        def config = InstanceRegistry.getOrCreateInstanceConfig("testMailQueue", [:], [tc])
+        def cxt = InstanceRegistry.createCxt(cxtName, config)
+        SqlTopicService.get(cxt).registerTopicContainer(SqlTopicConstants.MAIL_TOPIC,
+                new SqlTopicInfo(null, null, false, null))
+        return cxt
+    }
+}
@@ -4,6 +4,7 @@ import org.dynamicruntime.common.mail.DnMailService
 import org.dynamicruntime.common.startup.StartupCommon
 import org.dynamicruntime.context.DnCxt
 import org.dynamicruntime.servlet.DnTestServletClient
+import org.dynamicruntime.user.DnPasswordHashService
 import org.dynamicruntime.util.PageUtil
 import spock.lang.Specification
 import spock.lang.Stepwise
@@ -52,8 +53,18 @@ class AuthFormHandlerTest extends Specification {
         then: "Should get an established userId for a row that was created"
         userId != null
 
-        when: "Filling out the user with a username and password"
+        when: "Setting a username and password with the wrong verification code"
         def userData = [userId: userId, username: jason, password: jasonPassword] as Map<String,Object>
+        def hashService = DnPasswordHashService.get(cxt)
+        long hashesBefore = hashService?.hashTime?.getCount() ?: 0
+        def badCodeResponse = servletClient.sendJsonPutRequest("/auth/user/setLoginData",
+                userData + [formAuthToken: ftData.formAuthToken, verifyCode: "000000"])
+
+        then: "It is turned away before the password is hashed"
+        badCodeResponse.httpCode == 400
+        (hashService?.hashTime?.getCount() ?: 0) == hashesBefore
+
+        when: "Filling out the user with a username and password"
         def reqUserData = userData + verifyData
         def setLoginDataResponse = servletClient.sendJsonPutRequest("/auth/user/setLoginData", reqUserData)
         def profileData = servletClient.sendJsonGetRequest("/user/self/info", [:])
@@ -18,6 +18,7 @@ import org.dynamicruntime.startup.ComponentDefinition
 import org.dynamicruntime.startup.InstanceRegistry
 import org.dynamicruntime.user.UserConstants
 import org.dynamicruntime.util.ConvertUtil
+import org.dynamicruntime.util.DnBloomFilter
 import org.dynamicruntime.util.ParsingUtil
 import spock.lang.Specification
 
@@ -109,6 +110,62 @@ class UserServiceTest extends Specification {
         ua6== null
     }
 
+    def "The filter of admin token auth IDs should be rebuilt when it is old or invalidations were missed"() {
+        def sqlCxt = createSqlCxt("adminTokenFilter")
+        def cxt = sqlCxt.cxt
+        def userService = UserService.get(cxt)
+        def filters = userService.userCache.tokenIdFilters
+        userService.addAdminToken(cxt, "sysadmin", "filterTokenId", "abc", [:], null)
+        // Stands in for a filter that was loaded before the token was added, by a node that was not told.
+        def mkMissedFilter = { long loadTime -> new UserCache.TokenIdFilter(new DnBloomFilter(100, 0.01), loadTime) }
+
+        when: "The filter does not have the token's auth ID"
+        filters.put(cxt.shard, mkMissedFilter(System.currentTimeMillis()))
+        def filtered = userService.queryByAdminCacheToken(cxt, "filterTokenId", "abc")
+
+        then: "The token is turned away"
+        filtered == null
+
+        when: "The filter is older than the reload interval"
+        userService.userCache.failedTokenCache.clearCache()
+        filters.put(cxt.shard, mkMissedFilter(0))
+        def afterReload = userService.queryByAdminCacheToken(cxt, "filterTokenId", "abc")
+
+        then: "It is rebuilt and the token is accepted"
+        afterReload?.username == "sysadmin"
+        filters.get(cxt.shard).filter.mightContain("filterTokenId")
+        userService.userCache.loadingTokenIdFilters.isEmpty()
+
+        when: "Cache invalidations were missed"
+        userService.userCache.failedTokenCache.clearCache()
+        filters.put(cxt.shard, mkMissedFilter(System.currentTimeMillis()))
+        userService.dropTokenIdFilters()
+        def afterGap = userService.queryByAdminCacheToken(cxt, "filterTokenId", "abc")
+
+        then: "The filter is rebuilt"
+        afterGap?.username == "sysadmin"
+        filters.get(cxt.shard).filter.mightContain("filterTokenId")
+
+        when: "Another thread is loading the filter and there is no filter in use"
+        def otherLoad = mkMissedFilter(System.currentTimeMillis())
+        filters.clear()
+        userService.userCache.loadingTokenIdFilters.put(cxt.shard, otherLoad)
+        boolean mightHave = userService.mightHaveAdminToken(cxt, "filterTokenId")
+        userService.adminTokenChanged(cxt.shard + ":addedDuringLoad")
+
+        then: "The lookup does not wait for it, and tokens added meanwhile go into the filter being loaded"
+        mightHave
+        filters.isEmpty()
+        otherLoad.filter.mightContain("addedDuringLoad")
+
+        when: "The filters are dropped before the other load finishes"
+        userService.dropTokenIdFilters()
+        userService.putTokenIdFilterInUse(cxt.shard, otherLoad)
+
+        then: "The filter it loaded is not used"
+        filters.isEmpty()
+    }
+
     def "Validate request execution can use token header to become sysadmin"() {
         String token = "xyz"
         def sqlCxt = createSqlCxt("validateAuthTokens")
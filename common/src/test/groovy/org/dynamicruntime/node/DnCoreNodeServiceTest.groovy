@@ -15,10 +15,10 @@ class DnCoreNodeServiceTest extends Specification {
         String text = "abc"
         when: "Encoding plain text"
         // At this point a database table has been loaded with an internal encryption key.
-        def encodedText = coreNodeService.encryptString(text)
+        def encodedText = coreNodeService.encryptString(cxt, text)
 
         then: "Decoding should produce original text"
-        coreNodeService.decryptString(encodedText) == text
+        coreNodeService.decryptString(cxt, encodedText) == text
     }
 
     /** Full common & core initialization */
@@ -0,0 +1,159 @@
+package org.dynamicruntime.node
+
+import org.dynamicruntime.common.node.DnNodeService
+import org.dynamicruntime.context.DnCxt
+import org.dynamicruntime.exception.DnException
+import org.dynamicruntime.util.EncodeUtil
+import spock.lang.Specification
+
+import static org.dynamicruntime.schemadata.CoreConstants.*
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*
+
+class DnKeyRingTest extends Specification {
+    static DnAuthConfig mkKey(Date activeDate) {
+        return DnAuthConfig.extract(DnAuthConfig.mkAuthData(EncodeUtil.mkEncryptionKey(), activeDate))
+    }
+
+    static Map<String,Object> mkRow(String keyId, boolean enabled, DnAuthConfig authConfig) {
+        return [(ND_CONFIG_NAME): keyId, (ND_CONFIG_TYPE): NDC_AUTH_CONFIG, (ENABLED): enabled,
+                (ND_CONFIG_DATA): authConfig.data]
+    }
+
+    static DnCoreNodeService mkNodeService() {
+        def coreNodeService = new DnCoreNodeService()
+        coreNodeService.nodeData.keyRing.defaultKeyId = "k0"
+        coreNodeService.nodeData.putAuthConfig("k0", mkKey(null))
+        return coreNodeService
+    }
+
+    def "The active key should be the one with the latest activeDate that has been reached"() {
+        def cxt = DnCxt.mkSimpleCxt("keyRingActive")
+        def keyRing = mkNodeService().nodeData.keyRing
+        long now = cxt.now().time
+
+        when: "Only the default key is in the ring"
+        def onlyDefault = keyRing.getActiveKeyId(cxt)
+
+        then: "It is active"
+        onlyDefault == "k0"
+
+        when: "Adding one key that is active already and one that becomes active in an hour"
+        long version = keyRing.version
+        keyRing.putKey("k1", mkKey(new Date(now - 1000)))
+        keyRing.putKey("k2", mkKey(new Date(now + 3600 * 1000)))
+
+        then: "The reached key is active, and the ring version changed"
+        keyRing.getActiveKeyId(cxt) == "k1"
+        keyRing.version == version + 2
+        keyRing.getKeyIds() == ["k0", "k1", "k2"]
+
+        when: "The time is two hours later"
+        cxt.nowTimeOffsetInSeconds = 2 * 3600
+
+        then: "The later key takes over"
+        keyRing.getActiveKeyId(cxt) == "k2"
+        keyRing.getInfo(cxt).activeKeyId == "k2"
+    }
+
+    def "Data encrypted with an older key should still decrypt, and be marked to encrypt again"() {
+        def cxt = DnCxt.mkSimpleCxt("keyRingRotate")
+        def coreNodeService = mkNodeService()
+        def keyRing = coreNodeService.nodeData.keyRing
+
+        when: "Encrypting with the default key, then rotating to a new key"
+        def oldText = coreNodeService.encryptString(cxt, "secret")
+        keyRing.putKey("k1", mkKey(new Date(cxt.now().time - 1000)))
+        def newText = coreNodeService.encryptString(cxt, "secret")
+
+        then: "Both decrypt, and only the old one needs to be encrypted again"
+        oldText.startsWith("k0|")
+        newText.startsWith("k1|")
+        coreNodeService.decryptString(cxt, oldText) == "secret"
+        coreNodeService.decryptString(cxt, newText) == "secret"
+        coreNodeService.needsReencrypt(cxt, oldText)
+        !coreNodeService.needsReencrypt(cxt, newText)
+    }
+
+    def "A key that is not in the ring should be loaded, at most once per minimum reload interval"() {
+        def cxt = DnCxt.mkSimpleCxt("keyRingReload")
+        def otherNode = mkNodeService()
+        def thisNode = mkNodeService()
+        // Both nodes share the default key, as nodes of one instance do.
+        thisNode.nodeData.putAuthConfig("k0", otherNode.nodeData.getAuthConfig("k0"))
+        def keyRing = thisNode.nodeData.keyRing
+        int loads = 0
+        keyRing.keyLoader = { DnCxt loadCxt ->
+            loads++
+            otherNode.nodeData.keyRing.getKeyIds().each {
+                keyRing.putKey(it, otherNode.nodeData.getAuthConfig(it))
+            }
+            keyRing.markLoaded()
+        } as DnKeyRing.KeyLoader
+        keyRing.minReloadMillis = 60000
+        keyRing.markLoaded()
+        otherNode.nodeData.keyRing.putKey("k1", mkKey(new Date(cxt.now().time - 1000)))
+        def text = otherNode.encryptString(cxt, "secret")
+
+        when: "Another node encrypts with a key this node has not loaded, while the keys were loaded recently"
+        thisNode.decryptString(cxt, text)
+
+        then: "The keys are not reloaded, and the text cannot be decrypted"
+        thrown(DnException)
+        loads == 0
+
+        when: "The minimum interval has passed"
+        keyRing.lastLoadTime.set(System.currentTimeMillis() - 60001)
+        def decrypted = thisNode.decryptString(cxt, text)
+
+        then: "The keys are reloaded once and the text decrypts"
+        decrypted == "secret"
+        loads == 1
+
+        when: "Text arrives with a key that no node has, right after the reload"
+        thisNode.decryptString(cxt, "nokey|abcdef")
+
+        then: "It fails without reloading again"
+        thrown(DnException)
+        loads == 1
+
+        when: "The periodic check runs within the reload interval, and again after a reload is requested"
+        keyRing.reloadMillis = 60000
+        keyRing.checkReload(cxt)
+        int loadsBefore = loads
+        keyRing.requestReload()
+        keyRing.checkReload(cxt)
+
+        then: "Only the requested reload loads the keys"
+        loadsBefore == 1
+        loads == 2
+    }
+
+    def "Loading config rows should drop keys whose rows are disabled or gone, but not the default key"() {
+        def nodeService = new DnNodeService()
+        nodeService.coreNodeService = mkNodeService()
+        def keyRing = nodeService.coreNodeService.nodeData.keyRing
+        def k0 = keyRing.getKey("k0")
+        def k1 = mkKey(null)
+        def k2 = mkKey(new Date())
+
+        when: "Loading rows for the default key and two others"
+        nodeService.loadConfigRows([mkRow("k0", true, k0), mkRow("k1", true, k1), mkRow("k2", true, k2)])
+        long version = keyRing.version
+
+        then: "All are in the ring"
+        keyRing.getKeyIds() == ["k0", "k1", "k2"]
+
+        when: "Loading the same rows again"
+        nodeService.loadConfigRows([mkRow("k0", true, k0), mkRow("k1", true, k1), mkRow("k2", true, k2)])
+
+        then: "Nothing changes"
+        keyRing.version == version
+
+        when: "One row is disabled, and the rows for the default key and another key are gone"
+        nodeService.loadConfigRows([mkRow("k1", false, k1)])
+
+        then: "Only the default key is left"
+        keyRing.getKeyIds() == ["k0"]
+        keyRing.getKey("k0").is(k0)
+    }
+}
@@ -14,6 +14,7 @@ import org.dynamicruntime.schemadef.DnSchemaService;
 import org.dynamicruntime.servlet.DnRequestService;
 import org.dynamicruntime.sql.topic.SqlTopicService;
 import org.dynamicruntime.startup.ComponentDefinition;
+import org.dynamicruntime.user.DnPasswordHashService;
 
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 
@@ -61,7 +62,7 @@ public class CoreComponent implements ComponentDefinition {
     @Override
     public Collection<Class> getServiceInitializers(DnCxt cxt) {
         return mList(DnRequestService.class, DnContentService.class, DnCoreNodeService.class,
-            DnMailService.class);
+            DnMailService.class, DnPasswordHashService.class);
     }
 
     @Override
@@ -0,0 +1,278 @@
+package org.dynamicruntime.content;
+
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.util.IoUtil;
+import org.dynamicruntime.util.ParsingUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.dynamicruntime.util.ConvertUtil.*;
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * All the files of a built site packed into one file, so that a new version of a site is put in place with one
+ * download and served with one open call. Files are stored with their MIME type, entity tag, and gzip
+ * compressed form already computed. At runtime the bundle is memory mapped and each file is served as a
+ * slice of the mapping, so the content is never copied onto the heap and pages in from the operating system's
+ * file cache.
+ *
+ * The layout of a bundle is a header of magic number, format version, and the offset and length of the index,
+ * followed by the content of the files, followed by the index. The index is JSON listing, for each file, its
+ * path and the offset and length of its content and compressed content. Offsets are from the start of the
+ * bundle file. Paths are relative to the directory holding the site's yaml file, the same way site content is
+ * requested, so a bundle does not depend on where in a bucket it was published.
+ *
+ * A bundle is immutable. A new version of a site gets a new bundle file, whose name carries a hash of its
+ * content (see {@link #mkContentName}). Servers treat a bundle name as the version of the site, and keep
+ * downloaded bundles by name, so publishing changed content under an old name would never be picked up.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnAssetBundle {
+    /** The characters *DNAB*. */
+    public static final int MAGIC = 0x444E4142;
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+    public static final String BUNDLE_EXT = ".dnbundle";
+    public static final int MAX_FILES = 10000;
+    /** Names made by {@link #mkContentName}. */
+    public static final Pattern CONTENT_NAME = Pattern.compile("(^|.*/)[^/]*-[0-9a-f]{16}\\" + BUNDLE_EXT + "$");
+
+    public static class Entry {
+        public final String path;
+        public final String mimeType;
+        public final String etag;
+        public final Date lastModified;
+        public final int offset;
+        public final int length;
+        /** Zero length if the file is not worth compressing. */
+        public final int gzipOffset;
+        public final int gzipLength;
+
+        public Entry(String path, String mimeType, String etag, Date lastModified, int offset, int length,
+                int gzipOffset, int gzipLength) {
+            this.path = path;
+            this.mimeType = mimeType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.length = length;
+            this.gzipOffset = gzipOffset;
+            this.gzipLength = gzipLength;
+        }
+
+        public static Entry extract(Map<String,Object> data) throws DnException {
+            return new Entry(getReqStr(data, "path"), getReqStr(data, "mimeType"), getReqStr(data, "etag"),
+                    new Date(getReqLong(data, "lastModified")), getReqLong(data, "offset").intValue(),
+                    getReqLong(data, "length").intValue(), (int)getLongWithDefault(data, "gzipOffset", 0),
+                    (int)getLongWithDefault(data, "gzipLength", 0));
+        }
+
+        public Map<String,Object> toMap() {
+            return mMap("path", path, "mimeType", mimeType, "etag", etag, "lastModified", lastModified.getTime(),
+                    "offset", offset, "length", length, "gzipOffset", gzipOffset, "gzipLength", gzipLength);
+        }
+    }
+
+    public final File file;
+    /** Identifies the version of the site the bundle holds, such as its S3 key. */
+    public final String version;
+    final MappedByteBuffer buffer;
+    public final Map<String,Entry> entries;
+
+    DnAssetBundle(File file, String version, MappedByteBuffer buffer, Map<String,Entry> entries) {
+        this.file = file;
+        this.version = version;
+        this.buffer = buffer;
+        this.entries = entries;
+    }
+
+    /** Maps the bundle file into memory and reads its index. */
+    public static DnAssetBundle open(File file, String version) throws DnException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new DnException(String.format("Asset bundle %s has an invalid size of %d bytes.",
+                        file.getPath(), size));
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                throw new DnException(String.format("File %s is not an asset bundle of format version %d.",
+                        file.getPath(), FORMAT_VERSION));
+            }
+            long indexOffset = buffer.getLong(8);
+            int indexLength = buffer.getInt(16);
+            if (indexOffset < HEADER_SIZE || indexOffset + indexLength > size) {
+                throw new DnException(String.format("Asset bundle %s has a corrupt header.", file.getPath()));
+            }
+            byte[] indexBytes = new byte[indexLength];
+            buffer.get((int)indexOffset, indexBytes);
+            var index = ParsingUtil.toJsonMap(indexBytes, 0, indexLength);
+            Map<String,Entry> entries = mMapT();
+            for (var entryData : getOptListOfMaps(index, "entries")) {
+                var entry = Entry.extract(entryData);
+                if (entry.offset + (long)entry.length > indexOffset ||
+                        entry.gzipOffset + (long)entry.gzipLength > indexOffset) {
+                    throw new DnException(String.format("Entry %s in asset bundle %s is out of bounds.",
+                            entry.path, file.getPath()));
+                }
+                entries.put(entry.path, entry);
+            }
+            return new DnAssetBundle(file, version, buffer, entries);
+        } catch (IOException e) {
+            throw DnException.mkFileIo(String.format("Could not open asset bundle %s.", file.getPath()), e,
+                    DnException.INTERNAL_ERROR);
+        }
+    }
+
+    /** Returns the file at the path, or null if the bundle does not have it. The returned content shares
+     * the bundle's memory. */
+    public DnContentData getContent(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        var data = new DnContentData(entry.mimeType, DnContentUtil.isBinary(entry.mimeType), null, null,
+                entry.lastModified);
+        data.mappedContent = slice(entry.offset, entry.length);
+        if (entry.gzipLength > 0) {
+            data.mappedGzip = slice(entry.gzipOffset, entry.gzipLength);
+        }
+        data.etag = entry.etag;
+        return data;
+    }
+
+    ByteBuffer slice(int offset, int length) {
+        return buffer.slice(offset, length);
+    }
+
+    /** Name for a bundle file made from the hash of its content, such as *site-0123456789abcdef.dnbundle*. */
+    public static String mkContentName(String baseName, File bundleFile) throws DnException {
+        try (InputStream in = Files.newInputStream(bundleFile.toPath())) {
+            var digest = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+            String hash = HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+            return baseName + "-" + hash + BUNDLE_EXT;
+        } catch (IOException e) {
+            throw DnException.mkFileIo(String.format("Could not read asset bundle %s.", bundleFile.getPath()), e,
+                    DnException.INTERNAL_ERROR);
+        } catch (NoSuchAlgorithmException e) {
+            throw new DnException("Could not hash asset bundle " + bundleFile.getPath() + ".", e);
+        }
+    }
+
+    /** Whether the key of a bundle ends in a name made by {@link #mkContentName}, so that the key changes
+     * whenever the content does. */
+    public static boolean isContentNamed(String key) {
+        return CONTENT_NAME.matcher(key).matches();
+    }
+
+    /**
+     * Packs the files under *dir* into a bundle. Each file is keyed by *keyPrefix* followed by its path
+     * relative to *dir*. The bundle is written to a temporary file which is then moved into place, so a bundle
+     * that is being read is never partly written. Returns the number of files packed.
+     */
+    public static int writeBundle(File dir, String keyPrefix, File bundleFile) throws DnException {
+        if (!dir.isDirectory()) {
+            throw new DnException(String.format("Path %s to bundle is not a directory.", dir.getPath()));
+        }
+        File tmpFile = new File(bundleFile.getPath() + ".tmp");
+        List<Map<String,Object>> entryList = mList();
+        try (var channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            addFiles(channel, dir, keyPrefix, entryList, 0);
+            byte[] index = ParsingUtil.toJsonString(mMap("entries", entryList), true)
+                    .getBytes(StandardCharsets.UTF_8);
+            long indexOffset = channel.position();
+            writeFully(channel, ByteBuffer.wrap(index));
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(indexOffset).putInt(index.length).putInt(0);
+            header.flip();
+            channel.position(0);
+            writeFully(channel, header);
+            channel.force(true);
+        } catch (IOException e) {
+            throw DnException.mkFileIo(String.format("Could not write asset bundle %s.", tmpFile.getPath()), e,
+                    DnException.INTERNAL_ERROR);
+        }
+        try {
+            Files.move(tmpFile.toPath(), bundleFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw DnException.mkFileIo(String.format("Could not move asset bundle into place at %s.",
+                    bundleFile.getPath()), e, DnException.INTERNAL_ERROR);
+        }
+        return entryList.size();
+    }
+
+    static void addFiles(FileChannel channel, File dir, String keyPrefix, List<Map<String,Object>> entryList,
+            int nestLevel) throws DnException, IOException {
+        if (nestLevel > 10) {
+            throw new DnException("Nest level at " + dir.getPath() + " was too deep to bundle.");
+        }
+        var files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (var f : files) {
+            String name = f.getName();
+            if (name.startsWith(".") || name.endsWith(BUNDLE_EXT)) {
+                continue;
+            }
+            if (f.isDirectory()) {
+                addFiles(channel, f, keyPrefix + name + "/", entryList, nestLevel + 1);
+                continue;
+            }
+            if (entryList.size() >= MAX_FILES) {
+                throw new DnException("Too many files to bundle at " + f.getPath() + ".");
+            }
+            String path = keyPrefix + name;
+            String mimeType = DnContentUtil.determineMimeType(path);
+            byte[] bytes = IoUtil.readInBinaryFile(f);
+            byte[] gzipBytes = DnContentUtil.isCompressible(mimeType) ? DnContentUtil.gzip(bytes) : null;
+            long needed = channel.position() + bytes.length + ((gzipBytes != null) ? gzipBytes.length : 0);
+            if (needed > Integer.MAX_VALUE) {
+                throw new DnException("Files to bundle exceed 2GB at " + f.getPath() + ".");
+            }
+            int offset = (int)channel.position();
+            writeFully(channel, ByteBuffer.wrap(bytes));
+            int gzipOffset = 0;
+            int gzipLength = 0;
+            if (gzipBytes != null) {
+                gzipOffset = (int)channel.position();
+                gzipLength = gzipBytes.length;
+                writeFully(channel, ByteBuffer.wrap(gzipBytes));
+            }
+            var entry = new Entry(path, mimeType, DnContentUtil.mkContentEtag(bytes), new Date(f.lastModified()),
+                    offset, bytes.length, gzipOffset, gzipLength);
+            entryList.add(entry.toMap());
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
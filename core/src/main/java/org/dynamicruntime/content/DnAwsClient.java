@@ -6,6 +6,7 @@ import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
@@ -24,11 +25,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Date;
 import java.util.Map;
 
 @SuppressWarnings("WeakerAccess")
-public class DnAwsClient {
+public class DnAwsClient implements DnObjectStore {
     public class UploadJob {
         public final DnCxt cxt;
         public final String bucket;
@@ -102,6 +105,64 @@ public class DnAwsClient {
         return new DnContentData(mimeType, isBinary, strContent, byteContent, modified);
     }
 
+    @Override
+    public DnStoredObject getObject(String bucket, String key, String ifNoneMatch) throws DnException {
+        String rptPath = String.format("s3:%s/%s", bucket, key);
+        var request = new GetObjectRequest(bucket, key);
+        if (ifNoneMatch != null) {
+            request.withNonmatchingETagConstraint(ifNoneMatch);
+        }
+        S3Object obj;
+        try {
+            obj = s3.getObject(request);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw new DnException("Could not get object " + rptPath + ".", e, DnException.INTERNAL_ERROR,
+                    DnException.NETWORK, DnException.IO);
+        }
+        if (obj == null) {
+            // S3 answered *304 Not Modified*, the client reports that as no object.
+            return DnStoredObject.mkNotModified(bucket, key, ifNoneMatch);
+        }
+        var metadata = obj.getObjectMetadata();
+        var userMetadata = metadata.getUserMetadata();
+        Date modified = (userMetadata != null) ? toOptDate(userMetadata.get("srcLastModified")) : null;
+        String cType = metadata.getContentType();
+        String mimeType = (cType != null) ? StrUtil.getToNextIndex(cType, 0, ";") : "application/octet-stream";
+        try (var in = obj.getObjectContent()) {
+            return new DnStoredObject(bucket, key, metadata.getETag(), mimeType, modified, IOUtils.toByteArray(in),
+                    false);
+        } catch (IOException e) {
+            throw new DnException("Failed to read input stream from " + rptPath + ".", e,
+                    DnException.INTERNAL_ERROR, DnException.NETWORK, DnException.IO);
+        }
+    }
+
+    /** Downloads an object to a file. The download goes to a temporary file that is moved into place when
+     * complete, so readers never see a partial file. */
+    @Override
+    public void downloadToFile(String bucket, String s3Path, File file) throws DnException {
+        String rptPath = String.format("s3:%s/%s", bucket, s3Path);
+        File tmpFile = new File(file.getPath() + ".download");
+        try {
+            var metadata = s3.getObject(new GetObjectRequest(bucket, s3Path), tmpFile);
+            if (metadata == null) {
+                throw new DnException("Could not download " + rptPath + ".", DnException.NOT_FOUND);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AmazonServiceException e) {
+            int code = (e.getStatusCode() == 404) ? DnException.NOT_FOUND : DnException.INTERNAL_ERROR;
+            throw new DnException("Could not download " + rptPath + ".", e, code, DnException.NETWORK,
+                    DnException.IO);
+        } catch (SdkClientException | IOException e) {
+            throw new DnException("Could not download " + rptPath + " to " + file.getPath() + ".", e,
+                    DnException.INTERNAL_ERROR, DnException.NETWORK, DnException.IO);
+        }
+    }
+
     public void uploadString(DnCxt cxt, String bucket, String s3Path, String content, boolean isPublic)
             throws DnException {
         String rptPath = String.format("s3:%s/%s", bucket, s3Path);
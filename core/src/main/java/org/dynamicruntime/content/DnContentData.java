@@ -3,6 +3,8 @@ package org.dynamicruntime.content;
 import org.eclipse.jetty.http.MimeTypes;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 @SuppressWarnings("WeakerAccess")
@@ -16,6 +18,23 @@ public class DnContentData {
     /** Optional field that indicates where this resource was retrieved, if it came from the file system. This
      * sometimes can be supplied as an alternative to *binaryContent*.*/
     public File fileLocation;
+    /** True if the content is not in memory and is sent straight from *fileLocation*. */
+    public boolean sendFromFile;
+    /** Entity tag for conditional and range requests. Filled in by {@link #prepareForServing}. Can be null for
+     * content that is read for a single response. */
+    public volatile String etag;
+    /** Gzip compressed form of the content, null if not worth compressing. */
+    public byte[] gzipContent;
+    /** Content that is a slice of a memory mapped {@link DnAssetBundle}, used instead of the byte arrays. */
+    public ByteBuffer mappedContent;
+    public ByteBuffer mappedGzip;
+    /** Set by {@link #prepareForSingleUse}. */
+    public boolean isSingleUse;
+    /** Content generation of the {@link DnContentService} when loading of the content started. Cached content is
+     * not used if a file it depends on changed after this. */
+    public long generation;
+    /** *strContent* encoded as UTF-8, created on first use so that cached content is only encoded once. */
+    volatile byte[] utf8Bytes;
 
     public DnContentData(String mimeType, boolean isBinary, String strContent, byte[] binaryContent, Date timestamp) {
         this.mimeType = mimeType;
@@ -25,6 +44,83 @@ public class DnContentData {
         this.timestamp = timestamp;
     }
 
+    public byte[] getUtf8Bytes() {
+        byte[] bytes = utf8Bytes;
+        if (bytes == null && strContent != null) {
+            bytes = strContent.getBytes(StandardCharsets.UTF_8);
+            utf8Bytes = bytes;
+        }
+        return bytes;
+    }
+
+    /** The content as bytes, or null if it is sent from its file or is memory mapped. */
+    public byte[] getBytes() {
+        return isBinary ? binaryContent : getUtf8Bytes();
+    }
+
+    /** The content as a buffer of its own that starts at the content's first byte, or null if it is sent from
+     * its file. */
+    public ByteBuffer getBuffer() {
+        if (mappedContent != null) {
+            return mappedContent.duplicate();
+        }
+        byte[] bytes = getBytes();
+        return (bytes != null) ? ByteBuffer.wrap(bytes) : null;
+    }
+
+    /** The gzip compressed content, or null if there is none. */
+    public ByteBuffer getGzipBuffer() {
+        if (mappedGzip != null) {
+            return mappedGzip.duplicate();
+        }
+        return (gzipContent != null) ? ByteBuffer.wrap(gzipContent) : null;
+    }
+
+    public boolean hasGzip() {
+        return mappedGzip != null || gzipContent != null;
+    }
+
+    public long getLength() {
+        if (sendFromFile) {
+            return fileLocation.length();
+        }
+        if (mappedContent != null) {
+            return mappedContent.remaining();
+        }
+        byte[] bytes = getBytes();
+        return (bytes != null) ? bytes.length : 0;
+    }
+
+    /** Computes the entity tag and the compressed form of the content. Content that is cached has this done
+     * once, when it is loaded. */
+    public void prepareForServing() {
+        if (etag != null || isSingleUse) {
+            return;
+        }
+        if (sendFromFile) {
+            etag = DnContentUtil.mkFileEtag(fileLocation.length(), fileLocation.lastModified());
+            return;
+        }
+        byte[] bytes = getBytes();
+        if (bytes == null) {
+            bytes = new byte[0];
+        }
+        if (DnContentUtil.isCompressible(mimeType)) {
+            gzipContent = DnContentUtil.gzip(bytes);
+        }
+        etag = DnContentUtil.mkContentEtag(bytes);
+    }
+
+    /** Prepares content that is read for a single response and not cached. Hashing and compressing it would
+     * cost more than it saves, so content from a file gets an entity tag from the file's length and timestamp,
+     * and other content gets none. */
+    public void prepareForSingleUse() {
+        isSingleUse = true;
+        if (etag == null && fileLocation != null) {
+            etag = DnContentUtil.mkFileEtag(fileLocation.length(), fileLocation.lastModified());
+        }
+    }
+
     public static DnContentData mkHtml(String html) {
         return new DnContentData("text/html; charset=utf-8", false, html, null, null);
     }
@@ -8,6 +8,7 @@ import org.dynamicruntime.config.ConfigLoadUtil;
 import org.dynamicruntime.context.DnConfigUtil;
 import org.dynamicruntime.context.DnCxt;
 import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.node.DnCoreNodeService;
 import org.dynamicruntime.startup.ServiceInitializer;
 
 import org.dynamicruntime.util.*;
@@ -17,8 +18,11 @@ import static org.dynamicruntime.util.DnCollectionUtil.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings("WeakerAccess")
 public class DnContentService implements ServiceInitializer {
@@ -37,7 +41,32 @@ public class DnContentService implements ServiceInitializer {
     public DnTemplates templates;
     public String dynSrcDir;
     public String portalDir;
-    public DatedCacheMap<String,DnContentData> cachedSiteConfig = new DatedCacheMap<>(100);
+    public final DnCache<String,DnContentData> cachedSiteConfig = new DnCache<>("siteConfig", 100);
+    /** Asset bundles of sites, keyed by site id. Paths in a bundle are relative to the directory of the site's
+     * yaml file (see {@link #getSiteDir}), so sites sharing a directory each keep their own bundle. */
+    public final ConcurrentHashMap<String,DnAssetBundle> siteBundles = new ConcurrentHashMap<>();
+    /** Where asset bundles downloaded from S3 are kept. */
+    public File bundleCacheDir;
+    /** Where site content comes from when *usingAws* is true, either S3 or a local stand-in. */
+    public DnObjectStore objectStore;
+    public DnObjectCache objectCache;
+    /** Pages produced by templates, keyed by resource path and the parameters the output varies by. */
+    public DnCache<String,DnContentData> renderedPages;
+    /** Plain files, such as css and javascript, keyed by absolute path. */
+    public DnCache<String,DnContentData> fileContent;
+    public long maxCachedFileSize;
+    /** Null if files are not watched. */
+    public DnFileWatcher fileWatcher;
+    /** Whether content is kept in memory until a file watcher reports the file has changed. */
+    public boolean cacheContent;
+    /** Incremented on every file change. Cached content records the generation at which it started loading, so
+     * content read before a change is not used after the change, even if it was put in the cache after the
+     * change was handled. */
+    final AtomicLong contentGeneration = new AtomicLong();
+    /** Generation of the last change to each file that has changed, keyed by absolute path. */
+    final ConcurrentHashMap<String,Long> fileChangeGenerations = new ConcurrentHashMap<>();
+    /** Generation of the last time all files had to be treated as changed. */
+    volatile long allFilesChangeGeneration;
 
     @Override
     public String getServiceName() {
@@ -55,11 +84,15 @@ public class DnContentService implements ServiceInitializer {
         mdParser = Parser.builder().build();
         mdHtmlRenderer = HtmlRenderer.builder().build();
         templates = new DnTemplates();
+        initContentCaching(cxt);
         dfltSiteId = DnConfigUtil.getConfigString(cxt, "portal.defaultSiteId", "dnapp/current",
                 "The siteId used to serve portal content when the *siteId* is not explicitly " +
                         "provided as a parameter.");
         if (usingAws) {
-            awsClient.init();
+            initObjectStore(cxt);
+            String dfltBundleDir = new File(System.getProperty("java.io.tmpdir"), "dnBundles").getPath();
+            bundleCacheDir = new File(DnConfigUtil.getConfigString(cxt, "portal.bundleCacheDir", dfltBundleDir,
+                    "Directory where site asset bundles downloaded from S3 are kept."));
         } else {
             // Build up a default for portalDir by using a file in the classpath as a starting point.
             File resFile = getFileResource("dnCoreConfig.yaml");
@@ -77,9 +110,101 @@ public class DnContentService implements ServiceInitializer {
         }
     }
 
+    /** Sets up the store that site content is read from, and the memory and disk cache in front of it. */
+    public void initObjectStore(DnCxt cxt) throws DnException {
+        String tmpDir = System.getProperty("java.io.tmpdir");
+        String storeType = DnConfigUtil.getConfigString(cxt, "portal.objectStore", "s3",
+                "Where site content is read from, *s3* or *file* for a local directory that stands in for S3.");
+        if (storeType.equals("file")) {
+            String storeDir = DnConfigUtil.getConfigString(cxt, "portal.objectStoreDir",
+                    new File(tmpDir, "dnObjectStore").getPath(),
+                    "Directory standing in for S3, holding a directory for each bucket.");
+            objectStore = new DnFileObjectStore(new File(storeDir));
+        } else {
+            awsClient.init();
+            objectStore = awsClient;
+        }
+        String cacheDir = DnConfigUtil.getConfigString(cxt, "portal.objectCacheDir",
+                new File(tmpDir, "dnObjectCache").getPath(),
+                "Directory where copies of site content read from S3 are kept.");
+        int revalidateSeconds = (int)DnConfigUtil.getConfigLong(cxt, "portal.objectRevalidateSeconds", 5,
+                "Seconds that site content held in memory is used before checking S3 for a new version.");
+        int maxItems = (int)DnConfigUtil.getConfigLong(cxt, "portal.objectCacheMaxItems", 500,
+                "Maximum number of objects from S3 held in memory.");
+        objectCache = new DnObjectCache(objectStore, new File(cacheDir), revalidateSeconds, maxItems);
+    }
+
+    /**
+     * Content is cached in memory, both compiled templates and the pages rendered from them. A
+     * {@link DnFileWatcher} drops cached content when its file changes. If file watching is turned off, content
+     * is treated as never changing, which suits deployments that do not edit content in place. If watching
+     * was asked for but cannot be done, the timestamp of a file is checked every time it is used, as if
+     * there were no cache.
+     */
+    public void initContentCaching(DnCxt cxt) throws DnException {
+        boolean watchFiles = DnConfigUtil.getConfigBool(cxt, "content.watchFiles", true,
+                "Whether to watch content files for changes. If false, content is read once and kept in memory.");
+        int maxRendered = (int)DnConfigUtil.getConfigLong(cxt, "content.maxRenderedPages", 2000,
+                "Maximum number of rendered pages kept in memory.");
+        int maxFiles = (int)DnConfigUtil.getConfigLong(cxt, "content.maxCachedFiles", 1000,
+                "Maximum number of content files kept in memory.");
+        maxCachedFileSize = DnConfigUtil.getConfigLong(cxt, "content.maxCachedFileSize", 1024 * 1024,
+                "Largest content file in bytes that is kept in memory. Larger files are sent from disk.");
+        renderedPages = new DnCache<>("renderedPages", maxRendered);
+        fileContent = new DnCache<>("contentFiles", maxFiles);
+        cacheContent = !watchFiles;
+        if (watchFiles) {
+            try {
+                fileWatcher = new DnFileWatcher(cxt, this::onFileChanged);
+                fileWatcher.start();
+                cacheContent = true;
+            } catch (IOException e) {
+                LogContent.log.error(cxt, e, "Cannot watch content files, content will not be cached.");
+            }
+        }
+        templates.checkModified = !cacheContent;
+    }
+
+    /** Called by the file watcher. A null *file* means anything may have changed. */
+    public void onFileChanged(Path file) {
+        long generation = contentGeneration.incrementAndGet();
+        if (file != null) {
+            fileChangeGenerations.put(file.toString(), generation);
+        } else {
+            allFilesChangeGeneration = generation;
+        }
+        templates.invalidate(file);
+        // Rendered pages depend on the layout as well as their own file, so they all go.
+        renderedPages.clearCache();
+        if (file != null) {
+            fileContent.remove(file.toString());
+        } else {
+            fileContent.clearCache();
+        }
+    }
+
+    void watchFile(File f) {
+        if (fileWatcher != null) {
+            fileWatcher.watch(f);
+        }
+    }
+
+    /** Returns true if content read from the file can be kept in memory. Starts watching the file if needed. */
+    boolean canCache(File f) {
+        return cacheContent && (fileWatcher == null || fileWatcher.watch(f));
+    }
+
     @Override
     public void checkInit(DnCxt cxt) {
-
+        var coreNode = DnCoreNodeService.get(cxt);
+        if (coreNode != null) {
+            coreNode.addStatsSource("content.siteConfigCache", cachedSiteConfig::getStats);
+            coreNode.addStatsSource("content.renderedPages", renderedPages::getStats);
+            coreNode.addStatsSource("content.fileContent", fileContent::getStats);
+            if (objectCache != null) {
+                coreNode.addStatsSource("content.objectCache", objectCache::getStats);
+            }
+        }
     }
 
     public DnContentData getPortalContent(DnCxt cxt, Map<String,Object> queryParams) throws DnException {
@@ -90,7 +215,7 @@ public class DnContentService implements ServiceInitializer {
             String yamlFileName = siteId + ".yaml";
             Map<String,Object> yamlParams;
             if (usingAws) {
-                DnContentData yamlData = awsClient.getContent(SITES_BUCKET_NAME, yamlFileName, true);
+                DnContentData yamlData = objectCache.getContent(cxt, SITES_BUCKET_NAME, yamlFileName);
                 if (yamlData == null) {
                     throw DnException.mkFileIo(String.format("Cannot find site yaml fle %s in AWS bucket %s.",
                             yamlFileName, SITES_BUCKET_NAME), null, DnException.NOT_FOUND);
@@ -103,7 +228,33 @@ public class DnContentService implements ServiceInitializer {
                 try {
                     yamlParams = ConfigLoadUtil.parseYamlText(yamlData.strContent);
                     String entryPoint = getReqStr(yamlParams, "site.entryPoint");
-                    DnContentData data = awsClient.getContent(SITES_BUCKET_NAME, entryPoint, true);
+                    String bundleKey = getOptStr(yamlParams, "site.bundle");
+                    if (bundleKey != null && !DnAssetBundle.isContentNamed(bundleKey)) {
+                        // Its content could change without its key changing, and the key is all that is checked.
+                        LogContent.log.info(cxt, String.format("Ignoring bundle %s of site %s, its name does " +
+                                "not have a hash of its content.", bundleKey, siteId));
+                        bundleKey = null;
+                    }
+                    if (bundleKey != null) {
+                        // The bundle's key has a hash of its content, so S3 is only asked for it when the site
+                        // changes, and a downloaded bundle with the same key is the same bundle.
+                        var bundle = siteBundles.get(siteId);
+                        if (bundle == null || !bundle.version.equals(bundleKey)) {
+                            File bundleFile = new File(bundleCacheDir, bundleKey.replace('/', '_'));
+                            if (!bundleFile.exists()) {
+                                bundleCacheDir.mkdirs();
+                                objectStore.downloadToFile(SITES_BUCKET_NAME, bundleKey, bundleFile);
+                            }
+                            bundle = mountBundle(cxt, siteId, bundleFile, bundleKey);
+                        }
+                        // The entry point is a key in the bucket, and the bundle is keyed relative to the
+                        // directory holding the yaml file.
+                        String siteDir = getSiteDir(siteId);
+                        String bundleEntryPoint = entryPoint.startsWith(siteDir) ?
+                                entryPoint.substring(siteDir.length()) : entryPoint;
+                        return getBundleEntryPoint(bundle, bundleEntryPoint, yamlData.timestamp);
+                    }
+                    DnContentData data = objectCache.getContent(cxt, SITES_BUCKET_NAME, entryPoint);
                     if (data == null) {
                         throw new DnException(String.format("Could not retrieve data from AWS at key %s that " +
                                         "was retrieved from AWS file %s.", entryPoint, yamlFileName),
@@ -129,6 +280,21 @@ public class DnContentService implements ServiceInitializer {
                 String entryPoint = getReqStr(yamlParams, "site.entryPoint");
                 // Entry point is relative to the actual directory that holds the yaml file.
                 File parentFile = portalFile.getParentFile();
+                String bundleName = getOptStr(yamlParams, "site.bundle");
+                if (bundleName != null) {
+                    File bundleFile = new File(parentFile, bundleName);
+                    if (!bundleFile.exists()) {
+                        throw DnException.mkFileIo(String.format("Cannot find site bundle %s.",
+                                bundleFile.getAbsolutePath()), null, DnException.NOT_FOUND);
+                    }
+                    // A rebuilt bundle has a new timestamp.
+                    String version = bundleFile.getName() + ":" + bundleFile.lastModified();
+                    var bundle = siteBundles.get(siteId);
+                    if (bundle == null || !bundle.version.equals(version)) {
+                        bundle = mountBundle(cxt, siteId, bundleFile, version);
+                    }
+                    return getBundleEntryPoint(bundle, entryPoint, null);
+                }
                 File f = new File(parentFile, entryPoint);
                 if (!f.exists()) {
                     throw DnException.mkFileIo(String.format("Cannot find portal entry point %s.", f.getAbsolutePath()), null,
@@ -139,7 +305,49 @@ public class DnContentService implements ServiceInitializer {
         });
     }
 
+    /** The directory holding the yaml file of the site, relative to the portal root and ending in a slash. */
+    public static String getSiteDir(String siteId) {
+        int index = siteId.lastIndexOf('/');
+        return (index >= 0) ? siteId.substring(0, index + 1) : "";
+    }
+
+    /** Opens a new version of a site's bundle and serves the site from it. The old version is unmapped when
+     * requests using it are done and it is garbage collected. */
+    public DnAssetBundle mountBundle(DnCxt cxt, String siteId, File bundleFile, String version) throws DnException {
+        var bundle = DnAssetBundle.open(bundleFile, version);
+        siteBundles.put(siteId, bundle);
+        LogContent.log.info(cxt, String.format("Serving site %s from asset bundle %s with %d files.", siteId,
+                bundleFile.getPath(), bundle.entries.size()));
+        return bundle;
+    }
+
+    DnContentData getBundleEntryPoint(DnAssetBundle bundle, String entryPoint, Date timestamp)
+            throws DnException {
+        var data = bundle.getContent(entryPoint);
+        if (data == null) {
+            throw DnException.mkFileIo(String.format("Cannot find portal entry point %s in asset bundle %s.",
+                    entryPoint, bundle.file.getPath()), null, DnException.NOT_FOUND);
+        }
+        if (timestamp != null) {
+            // Lets the site config cache reuse this content while the yaml file is unchanged.
+            data.timestamp = timestamp;
+        }
+        return data;
+    }
+
     public DnContentData getSiteContent(DnCxt cxt, String relativePath) throws DnException {
+        for (var e : siteBundles.entrySet()) {
+            String siteDir = getSiteDir(e.getKey());
+            if (relativePath.startsWith(siteDir)) {
+                var data = e.getValue().getContent(relativePath.substring(siteDir.length()));
+                if (data != null) {
+                    if (relativePath.contains("static")) {
+                        data.immutable = true;
+                    }
+                    return data;
+                }
+            }
+        }
         File f = new File(portalDir, relativePath);
         if (!f.exists()) {
             throw DnException.mkFileIo(String.format("Cannot find site resource %s.", f.getAbsolutePath()), null,
@@ -160,18 +368,63 @@ public class DnContentService implements ServiceInitializer {
 
     public DnContentData getContentForFile(DnCxt cxt, File resource) throws DnException {
         String resourcePath = resource.getPath();
-        Date resTimestamp = new Date(resource.lastModified());
-        DnContentData templatedData = getTemplateContent(cxt, resourcePath, resource,
-                mMap());
-        if (templatedData != null) {
-            return templatedData;
+        if (isTemplatePath(resourcePath)) {
+            if (!canCache(resource)) {
+                var page = getTemplateContent(cxt, resourcePath, resource, mMap());
+                page.prepareForSingleUse();
+                return page;
+            }
+            // The output of a page only varies by the user's name shown in the layout.
+            String username = getLayoutUsername(cxt);
+            String key = resourcePath + "|" + (username != null ? username : "");
+            var page = renderedPages.get(key);
+            // Pages depend on the layout as well as their own file, so any change makes them stale.
+            if (page == null || page.generation != contentGeneration.get()) {
+                long generation = contentGeneration.get();
+                page = getTemplateContent(cxt, resourcePath, resource, mMap());
+                page.generation = generation;
+                page.prepareForServing();
+                renderedPages.put(key, page);
+            }
+            return page;
         }
+        if (!canCache(resource)) {
+            var data = readFile(resource);
+            data.prepareForSingleUse();
+            return data;
+        }
+        String key = resource.getAbsolutePath();
+        var data = fileContent.get(key);
+        if (data == null || !isCurrent(key, data)) {
+            long generation = contentGeneration.get();
+            data = readFile(resource);
+            data.generation = generation;
+            data.prepareForServing();
+            if (!data.sendFromFile) {
+                fileContent.put(key, data);
+            }
+        }
+        return data;
+    }
 
+    /** Whether content loaded from the file at *path* was loaded after the last change to the file. */
+    boolean isCurrent(String path, DnContentData data) {
+        Long changed = fileChangeGenerations.get(path);
+        return data.generation >= allFilesChangeGeneration && (changed == null || data.generation >= changed);
+    }
+
+    public DnContentData readFile(File resource) throws DnException {
+        String resourcePath = resource.getPath();
+        Date resTimestamp = new Date(resource.lastModified());
         String mimeType = DnContentUtil.determineMimeType(resourcePath);
         boolean isBinary = mimeType.startsWith("image") || mimeType.startsWith("video") ||
                 mimeType.startsWith("audio");
         DnContentData retVal;
-        if (isBinary) {
+        if (resource.length() > maxCachedFileSize) {
+            // Too large to hold in memory, the response is copied from the file.
+            retVal = new DnContentData(mimeType, true, null, null, resTimestamp);
+            retVal.sendFromFile = true;
+        } else if (isBinary) {
             var bytes = IoUtil.readInBinaryFile(resource);
             retVal = new DnContentData(mimeType, true, null, bytes, resTimestamp);
         } else {
@@ -182,11 +435,17 @@ public class DnContentService implements ServiceInitializer {
         return retVal;
     }
 
+    public static boolean isTemplatePath(String resourcePath) {
+        String ext = StrUtil.getAfterLastIndex(resourcePath, ".");
+        return "md".equals(ext) || "html".equals(ext) || "ftl".equals(ext);
+    }
+
     public DnContentData getTemplateContent(@SuppressWarnings("unused") DnCxt cxt, String resourcePath,
             File f, Map<String,Object> args) throws DnException {
         if (f == null) {
             f = getFileResource(resourcePath);
         }
+        watchFile(f);
         String ext = StrUtil.getAfterLastIndex(resourcePath, ".");
         if ("md".equals(ext)) {
             DnTemplates.DnTemplate t = templates.checkGetTemplate(resourcePath, f, (content -> {
@@ -231,20 +490,27 @@ public class DnContentService implements ServiceInitializer {
 
     public DnContentData applyHtmlLayout(DnCxt cxt, Map<String,Object> baseParams) throws DnException {
         var layoutFile = getFileResource("layout/layout.ftl");
+        watchFile(layoutFile);
         DnTemplates.DnTemplate layoutTemplate = templates.checkGetTemplate("layout/layout.ftl",
                 layoutFile, null);
         var params = cloneMap(baseParams);
-        if (cxt.userProfile != null) {
-            String name = isEmpty(cxt.userProfile.publicName) ? cxt.userProfile.authId : cxt.userProfile.publicName;
-            if (name != null) {
-                params.put("username", name);
-            }
+        String name = getLayoutUsername(cxt);
+        if (name != null) {
+            params.put("username", name);
         }
 
         var output = templates.evalTemplate(layoutTemplate, params);
         return DnContentData.mkHtml(output.output);
     }
 
+    /** The name shown in the page layout, the only input to a page's output that is not from its files. */
+    public static String getLayoutUsername(DnCxt cxt) {
+        if (cxt.userProfile == null) {
+            return null;
+        }
+        return isEmpty(cxt.userProfile.publicName) ? cxt.userProfile.authId : cxt.userProfile.publicName;
+    }
+
     public File getFileResource(String resourcePath) throws DnException {
         var resourceUrl = classLoader.getResource(resourcePath);
         if (resourceUrl == null) {
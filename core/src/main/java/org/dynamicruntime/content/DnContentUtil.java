@@ -1,11 +1,18 @@
 package org.dynamicruntime.content;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.FileNameMap;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
 
 @SuppressWarnings("WeakerAccess")
 public class DnContentUtil {
     public static final FileNameMap fileNameMap = URLConnection.getFileNameMap();
+    /** Content smaller than this is not worth compressing. */
+    public static final int MIN_COMPRESS_SIZE = 1024;
 
     public static String determineMimeType(String webPath) {
         String mimeType = fileNameMap.getContentTypeFor(webPath);
@@ -43,4 +50,46 @@ public class DnContentUtil {
                 mimeType.startsWith("audio") || mimeType.contains("octet") || mimeType.contains("zip");
     }
 
+    public static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text") || mimeType.contains("javascript") || mimeType.contains("json") ||
+                mimeType.contains("xml") || mimeType.contains("svg") || mimeType.contains("yaml");
+    }
+
+    /** Strong entity tag computed from a hash of the content. */
+    public static String mkContentEtag(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22) + "\"";
+        } catch (Exception e) {
+            throw new RuntimeException("Could not do SHA-256 hash", e);
+        }
+    }
+
+    /** Weak entity tag for content too large to hash on every load. */
+    public static String mkFileEtag(long length, long lastModified) {
+        return "W/\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /** Entity tag of the gzip encoded form of content, which has to differ from the tag of the plain form. */
+    public static String mkGzipEtag(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-gz\"";
+    }
+
+    /** Returns the gzip compressed content, or null if compressing does not make it meaningfully smaller. */
+    public static byte[] gzip(byte[] bytes) {
+        if (bytes.length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+        try {
+            var out = new ByteArrayOutputStream(bytes.length/3);
+            try (var gz = new GZIPOutputStream(out)) {
+                gz.write(bytes);
+            }
+            byte[] result = out.toByteArray();
+            return (result.length < bytes.length - bytes.length/10) ? result : null;
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            return null;
+        }
+    }
 }
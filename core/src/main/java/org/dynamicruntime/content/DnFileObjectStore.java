@@ -0,0 +1,74 @@
+package org.dynamicruntime.content;
+
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.util.IoUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+/**
+ * A {@link DnObjectStore} backed by a directory, with a subdirectory for each bucket and the object's key as
+ * the path below it. It stands in for S3 when developing or testing without network access. Entity tags are
+ * computed from the content, so they change exactly when the content does, as they do in S3.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnFileObjectStore implements DnObjectStore {
+    public final File rootDir;
+
+    public DnFileObjectStore(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    public File getFile(String bucket, String key) throws DnException {
+        File bucketDir = new File(rootDir, bucket);
+        File f = new File(bucketDir, key);
+        try {
+            // Do not let a key with *..* in it escape the bucket.
+            if (!f.getCanonicalPath().startsWith(bucketDir.getCanonicalPath() + File.separator)) {
+                throw new DnException(String.format("Key %s is not inside bucket %s.", key, bucket), null,
+                        DnException.BAD_INPUT, DnException.SYSTEM, DnException.IO);
+            }
+        } catch (IOException e) {
+            throw DnException.mkFileIo(String.format("Cannot resolve key %s in bucket %s.", key, bucket), e,
+                    DnException.INTERNAL_ERROR);
+        }
+        return f;
+    }
+
+    @Override
+    public DnStoredObject getObject(String bucket, String key, String ifNoneMatch) throws DnException {
+        File f = getFile(bucket, key);
+        if (!f.isFile()) {
+            return null;
+        }
+        byte[] content = IoUtil.readInBinaryFile(f);
+        String etag = DnContentUtil.mkContentEtag(content);
+        if (etag.equals(ifNoneMatch)) {
+            return DnStoredObject.mkNotModified(bucket, key, etag);
+        }
+        return new DnStoredObject(bucket, key, etag, DnContentUtil.determineMimeType(key),
+                new Date(f.lastModified()), content, false);
+    }
+
+    @Override
+    public void downloadToFile(String bucket, String key, File file) throws DnException {
+        File f = getFile(bucket, key);
+        if (!f.isFile()) {
+            throw DnException.mkFileIo(String.format("Cannot find %s in bucket %s.", key, bucket), null,
+                    DnException.NOT_FOUND);
+        }
+        File tmpFile = new File(file.getPath() + ".download");
+        try {
+            Files.copy(f.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw DnException.mkFileIo(String.format("Cannot copy %s to %s.", f.getPath(), file.getPath()), e,
+                    DnException.INTERNAL_ERROR);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.dynamicruntime.content;
+
+import org.dynamicruntime.context.DnCxt;
+import org.dynamicruntime.util.SystemUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Watches the directories of files that have been loaded into memory and reports changes to them, so
+ * caches of file content can be invalidated when a file changes instead of checking the file's timestamp every
+ * time the content is used. Directories are watched as files in them are first loaded, and the watching is not
+ * recursive.
+ *
+ * The listener is called on the watcher's thread with the path of the file that changed, or with null if the
+ * operating system dropped events, in which case everything should be treated as changed.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnFileWatcher implements Runnable {
+    public final DnCxt bgCxt;
+    public final WatchService watchService;
+    public final Consumer<Path> listener;
+    final ConcurrentHashMap<Path,WatchKey> watchedDirs = new ConcurrentHashMap<>();
+    public volatile boolean isActive = false;
+
+    public DnFileWatcher(DnCxt cxt, Consumer<Path> listener) throws IOException {
+        this.bgCxt = cxt.mkSubContext("fileWatcher");
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.listener = listener;
+    }
+
+    public void start() {
+        isActive = true;
+        var thread = new Thread(this, SystemUtil.createThreadName(bgCxt, "ContentFileWatcher"));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        isActive = false;
+        try {
+            watchService.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /** Starts watching the directory holding the file. Returns false if the directory cannot be watched,
+     * which happens when the file comes out of a jar. */
+    public boolean watch(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return false;
+        }
+        Path dirPath = dir.toPath();
+        if (watchedDirs.containsKey(dirPath)) {
+            return true;
+        }
+        if (!dir.isDirectory()) {
+            return false;
+        }
+        try {
+            watchedDirs.computeIfAbsent(dirPath, p -> {
+                try {
+                    return p.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            LogContent.log.error(bgCxt, e, String.format("Cannot watch directory %s for changes.", dirPath));
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (isActive) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            try {
+                Path dir = (Path)key.watchable();
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        listener.accept(null);
+                    } else {
+                        listener.accept(dir.resolve((Path)event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    // Directory is gone.
+                    watchedDirs.remove(dir, key);
+                    listener.accept(null);
+                }
+            } catch (Throwable t) {
+                LogContent.log.error(bgCxt, t, "Failed to process file change events.");
+            }
+        }
+    }
+}
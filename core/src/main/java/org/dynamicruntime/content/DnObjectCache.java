@@ -0,0 +1,177 @@
+package org.dynamicruntime.content;
+
+import org.dynamicruntime.context.DnCxt;
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.util.DnCache;
+import org.dynamicruntime.util.IoUtil;
+import org.dynamicruntime.util.ParsingUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.dynamicruntime.util.ConvertUtil.*;
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Read-through cache in front of a {@link DnObjectStore}, in three tiers. An object is looked for in memory,
+ * then in a directory on local disk, and only then in the store. An object in memory is used without
+ * asking the store for *revalidateSeconds*. After that, and for objects found on disk, the store is asked
+ * with a conditional get that only transfers the object if its entity tag has changed. Objects that have not
+ * changed cost a round trip with no content.
+ *
+ * The disk tier keeps each object as a JSON metadata file and a content file whose name includes the entity
+ * tag. The content file is written first and the metadata file, which points at it, is moved into place last,
+ * so the two always agree. The disk tier survives restarts, so a restarted server only revalidates.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnObjectCache {
+    public final DnObjectStore store;
+    /** Null if there is no disk tier. */
+    public final File diskDir;
+    public final int revalidateSeconds;
+    public final DnCache<String,DnStoredObject> memory;
+
+    // Statistics.
+    public final LongAdder diskHits = new LongAdder();
+    public final LongAdder notModified = new LongAdder();
+    public final LongAdder downloads = new LongAdder();
+    public final LongAdder diskFailures = new LongAdder();
+
+    public DnObjectCache(DnObjectStore store, File diskDir, int revalidateSeconds, int maxItems) {
+        this.store = store;
+        this.diskDir = diskDir;
+        this.revalidateSeconds = revalidateSeconds;
+        this.memory = new DnCache<>("objectCache", maxItems);
+        if (diskDir != null) {
+            diskDir.mkdirs();
+        }
+    }
+
+    /** Returns null if the store has no such object. */
+    public DnStoredObject getObject(DnCxt cxt, String bucket, String key) throws DnException {
+        return memory.getItem(bucket + "/" + key, revalidateSeconds, false,
+                existing -> load(cxt, bucket, key, (existing != null) ? existing.item : null));
+    }
+
+    public DnContentData getContent(DnCxt cxt, String bucket, String key) throws DnException {
+        var obj = getObject(cxt, bucket, key);
+        return (obj != null) ? obj.toContentData() : null;
+    }
+
+    DnStoredObject load(DnCxt cxt, String bucket, String key, DnStoredObject cached) throws DnException {
+        boolean fromDisk = false;
+        if (cached == null) {
+            cached = readFromDisk(cxt, bucket, key);
+            fromDisk = cached != null;
+        }
+        var result = store.getObject(bucket, key, (cached != null) ? cached.etag : null);
+        if (result == null) {
+            removeFromDisk(bucket, key);
+            return null;
+        }
+        if (result.notModified && cached != null) {
+            notModified.increment();
+            if (fromDisk) {
+                diskHits.increment();
+            }
+            return cached;
+        }
+        downloads.increment();
+        writeToDisk(cxt, result);
+        return result;
+    }
+
+    String getBaseName(String bucket, String key) {
+        return mkSafeName(bucket + "/" + key);
+    }
+
+    static String mkSafeName(String str) {
+        String tag = DnContentUtil.mkContentEtag(str.getBytes(StandardCharsets.UTF_8));
+        // Strip the quotes, what is left is URL safe base 64.
+        return tag.substring(1, tag.length() - 1);
+    }
+
+    DnStoredObject readFromDisk(DnCxt cxt, String bucket, String key) {
+        if (diskDir == null) {
+            return null;
+        }
+        String baseName = getBaseName(bucket, key);
+        File metaFile = new File(diskDir, baseName + ".json");
+        if (!metaFile.exists()) {
+            return null;
+        }
+        try {
+            Map<String,Object> metadata = ParsingUtil.toJsonMap(IoUtil.readInFile(metaFile));
+            File dataFile = new File(diskDir, baseName + "-" + mkSafeName(getReqStr(metadata, "etag")) + ".data");
+            if (!dataFile.exists()) {
+                return null;
+            }
+            return DnStoredObject.fromMetadata(metadata, IoUtil.readInBinaryFile(dataFile));
+        } catch (DnException e) {
+            diskFailures.increment();
+            LogContent.log.error(cxt, e, String.format("Could not read cached copy of %s/%s.", bucket, key));
+            return null;
+        }
+    }
+
+    void writeToDisk(DnCxt cxt, DnStoredObject obj) {
+        if (diskDir == null) {
+            return;
+        }
+        String baseName = getBaseName(obj.bucket, obj.key);
+        File metaFile = new File(diskDir, baseName + ".json");
+        File dataFile = new File(diskDir, baseName + "-" + mkSafeName(obj.etag) + ".data");
+        try {
+            String oldEtag = null;
+            if (metaFile.exists()) {
+                oldEtag = getOptStr(ParsingUtil.toJsonMap(IoUtil.readInFile(metaFile)), "etag");
+            }
+            writeAtomic(dataFile, obj.content);
+            writeAtomic(metaFile, ParsingUtil.toJsonString(obj.toMetadata()).getBytes(StandardCharsets.UTF_8));
+            if (oldEtag != null && !oldEtag.equals(obj.etag)) {
+                Files.deleteIfExists(new File(diskDir, baseName + "-" + mkSafeName(oldEtag) + ".data").toPath());
+            }
+        } catch (DnException | IOException e) {
+            // Disk tier is only an optimization.
+            diskFailures.increment();
+            LogContent.log.error(cxt, e, String.format("Could not cache copy of %s/%s on disk.", obj.bucket,
+                    obj.key));
+        }
+    }
+
+    void removeFromDisk(String bucket, String key) {
+        if (diskDir == null) {
+            return;
+        }
+        String baseName = getBaseName(bucket, key);
+        File metaFile = new File(diskDir, baseName + ".json");
+        try {
+            if (metaFile.exists()) {
+                String etag = getOptStr(ParsingUtil.toJsonMap(IoUtil.readInFile(metaFile)), "etag");
+                Files.deleteIfExists(metaFile.toPath());
+                if (etag != null) {
+                    Files.deleteIfExists(new File(diskDir, baseName + "-" + mkSafeName(etag) + ".data").toPath());
+                }
+            }
+        } catch (DnException | IOException e) {
+            diskFailures.increment();
+        }
+    }
+
+    static void writeAtomic(File file, byte[] bytes) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(tmpFile.toPath(), bytes);
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Map<String,Object> getStats() {
+        return mMap("memory", memory.getStats(), "diskHits", diskHits.sum(), "notModified", notModified.sum(),
+                "downloads", downloads.sum(), "diskFailures", diskFailures.sum());
+    }
+}
@@ -0,0 +1,23 @@
+package org.dynamicruntime.content;
+
+import org.dynamicruntime.exception.DnException;
+
+import java.io.File;
+
+/**
+ * Read access to a store of objects addressed by bucket and key, such as S3. Implemented by {@link DnAwsClient}
+ * for S3 and by {@link DnFileObjectStore} for a local directory that stands in for S3, so code that reads
+ * from S3 can run and be tested without it.
+ */
+public interface DnObjectStore {
+    /**
+     * Gets an object. If *ifNoneMatch* is not null and the object's entity tag still equals it, the
+     * object's content is not transferred and the result has *notModified* set. Returns null if there is no
+     * such object.
+     */
+    DnStoredObject getObject(String bucket, String key, String ifNoneMatch) throws DnException;
+
+    /** Downloads an object to a file, for objects too large to hold in memory. The file must only appear
+     * once it is complete, so implementations download to a temporary file and move it into place. */
+    void downloadToFile(String bucket, String key, File file) throws DnException;
+}
@@ -0,0 +1,64 @@
+package org.dynamicruntime.content;
+
+import org.dynamicruntime.exception.DnException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+
+import static org.dynamicruntime.util.ConvertUtil.*;
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/** An object retrieved from a {@link DnObjectStore}. */
+@SuppressWarnings("WeakerAccess")
+public class DnStoredObject {
+    public final String bucket;
+    public final String key;
+    public final String etag;
+    public final String contentType;
+    /** Last modified date of the file the object was uploaded from, if the uploader recorded it. */
+    public final Date srcLastModified;
+    /** Null if *notModified* is true. */
+    public final byte[] content;
+    public final boolean notModified;
+
+    public DnStoredObject(String bucket, String key, String etag, String contentType, Date srcLastModified,
+            byte[] content, boolean notModified) {
+        this.bucket = bucket;
+        this.key = key;
+        this.etag = etag;
+        this.contentType = contentType;
+        this.srcLastModified = srcLastModified;
+        this.content = content;
+        this.notModified = notModified;
+    }
+
+    public static DnStoredObject mkNotModified(String bucket, String key, String etag) {
+        return new DnStoredObject(bucket, key, etag, null, null, null, true);
+    }
+
+    /** Copy of an object that has been revalidated, with content it did not bring back itself. */
+    public DnStoredObject withContent(byte[] content) {
+        return new DnStoredObject(bucket, key, etag, contentType, srcLastModified, content, false);
+    }
+
+    public DnContentData toContentData() {
+        String mimeType = (contentType != null) ? contentType : "application/octet-stream";
+        boolean isBinary = DnContentUtil.isBinary(mimeType);
+        String strContent = isBinary ? null : new String(content, StandardCharsets.UTF_8);
+        return new DnContentData(mimeType, isBinary, strContent, isBinary ? content : null, srcLastModified);
+    }
+
+    /** Everything except the content, for storing next to the content in a disk cache. */
+    public Map<String,Object> toMetadata() {
+        return mMap("bucket", bucket, "key", key, "etag", etag, "contentType", contentType,
+                "srcLastModified", (srcLastModified != null) ? srcLastModified.getTime() : null);
+    }
+
+    public static DnStoredObject fromMetadata(Map<String,Object> data, byte[] content)
+            throws DnException {
+        Long lm = getOptLong(data, "srcLastModified");
+        return new DnStoredObject(getReqStr(data, "bucket"), getReqStr(data, "key"), getReqStr(data, "etag"),
+                getOptStr(data, "contentType"), (lm != null) ? new Date(lm) : null, content, false);
+    }
+}
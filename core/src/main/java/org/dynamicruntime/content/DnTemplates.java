@@ -14,21 +14,31 @@ import static org.dynamicruntime.util.DnCollectionUtil.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.file.Path;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Compiled FreeMarker templates keyed by path. Lookups of templates that are already compiled do not lock. If
+ * *checkModified* is true, a lookup compares the file's timestamp with that of the compiled template and
+ * recompiles on a mismatch. Otherwise it is up to the owner to call {@link #invalidate} when a file changes.
+ */
 @SuppressWarnings("WeakerAccess")
 public class DnTemplates {
     public static class DnTemplate {
         public final String path;
+        public final File file;
         public final String content;
         public final Template template;
         public final Map<String,Object> baseParams;
         public final Date lastModified;
 
-        public DnTemplate(String path, String content, Template template,
+        public DnTemplate(String path, File file, String content, Template template,
                 Map<String,Object> baseParams, Date lastModified) {
             this.path = path;
+            this.file = file;
             this.content = content;
             this.template = template;
             this.baseParams = baseParams;
@@ -47,7 +57,10 @@ public class DnTemplates {
     }
     public final Configuration fmConfig = new Configuration(Configuration.VERSION_2_3_28);
     public final StringTemplateLoader fmLoader = new StringTemplateLoader();
-    public final Map<String,DnTemplate> templates = mMapT();
+    public final ConcurrentHashMap<String,DnTemplate> templates = new ConcurrentHashMap<>();
+    final ReentrantLock templateLock = new ReentrantLock();
+    /** Whether every lookup checks the timestamp of the template's file. */
+    public volatile boolean checkModified = true;
 
 
     public DnTemplates() {
@@ -84,7 +97,13 @@ public class DnTemplates {
     }
 
     public DnTemplate checkGetTemplate(String path, File file, DnFunction<String, DnOutput> mkOutput) throws DnException {
-        synchronized (templates) {
+        DnTemplate existing = templates.get(path);
+        if (existing != null && (!checkModified || existing.lastModified.getTime() == file.lastModified())) {
+            return existing;
+        }
+        // Reading and compiling the template is file I/O, so use a lock that does not pin virtual threads.
+        templateLock.lock();
+        try {
             DnTemplate t = templates.get(path);
             long ts = file.lastModified();
             if (t == null || t.lastModified.getTime() != ts) {
@@ -96,8 +115,13 @@ public class DnTemplates {
                      fmLoader.putTemplate(key, contentOutput.output, ts);
                 }
                 try {
+                    if (contentOutput.output != null) {
+                        // Do not let FreeMarker hand back its own cached copy of the old version.
+                        fmConfig.removeTemplateFromCache(key);
+                    }
                     var fmTemplate = (contentOutput.output != null) ? fmConfig.getTemplate(key) : null;
-                    t = new DnTemplate(path, contentOutput.output, fmTemplate, contentOutput.outVals, new Date(ts));
+                    t = new DnTemplate(path, file, contentOutput.output, fmTemplate, contentOutput.outVals,
+                            new Date(ts));
                     templates.put(path, t);
                 } catch (IOException e) {
                     throw DnException.mkFileIo(
@@ -106,6 +130,23 @@ public class DnTemplates {
                 }
             }
             return t;
+        } finally {
+            templateLock.unlock();
+        }
+    }
+
+    /** Drops the compiled templates that were read from the file, or all of them if *file* is null. Holds the
+     * template lock so a compile that read the old content cannot put its template back afterwards. */
+    public void invalidate(Path file) {
+        templateLock.lock();
+        try {
+            if (file == null) {
+                templates.clear();
+            } else {
+                templates.values().removeIf(t -> t.file.getAbsoluteFile().toPath().equals(file));
+            }
+        } finally {
+            templateLock.unlock();
         }
     }
 }
@@ -4,13 +4,21 @@ import org.dynamicruntime.exception.DnException;
 import org.dynamicruntime.node.DnCoreNodeService;
 import org.dynamicruntime.request.DnRequestCxt;
 import org.dynamicruntime.schemadef.DnEndpointFunction;
+import org.dynamicruntime.servlet.DnRequestService;
+import org.dynamicruntime.sql.SqlDatabase;
+import org.dynamicruntime.sql.topic.SqlTopicService;
+import org.dynamicruntime.util.DnPrometheusWriter;
 
 import static org.dynamicruntime.schemadata.CoreConstants.*;
 import static org.dynamicruntime.schemadef.DnEndpointFunction.*;
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 import static org.dynamicruntime.util.ConvertUtil.*;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 @SuppressWarnings("WeakerAccess")
@@ -39,9 +47,82 @@ public class NodeEndpoints {
         requestCxt.mapResponse.putAll(nodeService.getHealth(requestCxt.cxt));
     }
 
+    /** Gets connection pool statistics, one entry for each database. */
+    static void getDbStats(DnRequestCxt requestCxt) throws DnException {
+        var topicService = Objects.requireNonNull(SqlTopicService.get(requestCxt.cxt));
+        List<Map<String,Object>> stats = mList();
+        for (var sqlDb : topicService.databases.values()) {
+            stats.add(sqlDb.getPoolStats());
+        }
+        stats.sort(Comparator.comparing(m -> toOptStr(m.get("dbName"))));
+        requestCxt.listResponse = stats;
+    }
+
+    /** Gets statistics of caches, queues, and rate limiters, one entry for each. */
+    static void getNodeStats(DnRequestCxt requestCxt) {
+        var nodeService = Objects.requireNonNull(DnCoreNodeService.get(requestCxt.cxt));
+        requestCxt.listResponse = nodeService.getStats();
+    }
+
+    /** Gets request and database metrics in the Prometheus text format, for scraping by a metrics collector. */
+    static void getMetrics(DnRequestCxt requestCxt) throws DnException {
+        var cxt = requestCxt.cxt;
+        var webRequest = requestCxt.webRequest;
+        if (webRequest == null) {
+            throw new DnException("Metrics can only be requested over HTTP.", null, DnException.NOT_SUPPORTED,
+                    DnException.SYSTEM, DnException.CODE);
+        }
+        var writer = new DnPrometheusWriter();
+        var requestService = DnRequestService.get(cxt);
+        if (requestService != null && requestService.requestMetrics != null) {
+            requestService.requestMetrics.writePrometheus(writer);
+        }
+        var topicService = SqlTopicService.get(cxt);
+        if (topicService != null) {
+            List<SqlDatabase> dbs = new ArrayList<>(topicService.databases.values());
+            dbs.sort(Comparator.comparing(db -> db.dbName));
+            writeDbMetrics(writer, dbs);
+        }
+        try {
+            webRequest.sendStringResponse(writer.toString(), DnException.OK, DnPrometheusWriter.CONTENT_TYPE);
+        } catch (IOException e) {
+            throw new DnException("Could not send metrics.", e, DnException.INTERNAL_ERROR, DnException.NETWORK,
+                    DnException.IO);
+        }
+        webRequest.setResponseHasBeenSent(true);
+        // Scrapes are frequent and would fill the log.
+        requestCxt.logRequest = false;
+    }
+
+    static void writeDbMetrics(DnPrometheusWriter writer, List<SqlDatabase> dbs) {
+        writer.startFamily("dn_db_open_connections", DnPrometheusWriter.GAUGE,
+                "Connections open to the database.");
+        for (var db : dbs) {
+            writer.sample("dn_db_open_connections", db.openConnections.get(), "db", db.dbName);
+        }
+        writer.startFamily("dn_db_in_use_sessions", DnPrometheusWriter.GAUGE,
+                "Sessions currently taken from the connection pool.");
+        for (var db : dbs) {
+            writer.sample("dn_db_in_use_sessions", db.metrics.inUseSessions.get(), "db", db.dbName);
+        }
+        writer.startFamily("dn_db_acquire_timeouts_total", DnPrometheusWriter.COUNTER,
+                "Requests that gave up waiting for a session.");
+        for (var db : dbs) {
+            writer.sample("dn_db_acquire_timeouts_total", db.metrics.acquireTimeouts.sum(), "db", db.dbName);
+        }
+        writer.startFamily("dn_db_acquire_wait_seconds", DnPrometheusWriter.HISTOGRAM,
+                "Time spent waiting to get a session from the connection pool.");
+        for (var db : dbs) {
+            writer.histogram("dn_db_acquire_wait_seconds", db.metrics.acquireWait, "db", db.dbName);
+        }
+    }
+
     /** Bind endpoint code to names so that they can be found to endpoint definitions. */
     public static List<DnEndpointFunction> getFunctions() {
         return mList(mkEndpoint(ND_GET_HEALTH_FUNCTION, NodeEndpoints::getHealth),
-                mkEndpoint(ND_SET_CLUSTER_MEMBERSHIP, NodeEndpoints::setClusterMembership));
+                mkEndpoint(ND_SET_CLUSTER_MEMBERSHIP, NodeEndpoints::setClusterMembership),
+                mkEndpoint(ND_GET_DB_STATS_FUNCTION, NodeEndpoints::getDbStats),
+                mkEndpoint(ND_GET_NODE_STATS_FUNCTION, NodeEndpoints::getNodeStats),
+                mkEndpoint(ND_GET_METRICS_FUNCTION, NodeEndpoints::getMetrics));
     }
 }
@@ -23,6 +23,8 @@ public class DnException extends Exception {
     public static int NOT_AUTHORIZED = 403;
     public static int NOT_FOUND = 404;
     public static int CONFLICT = 409;
+    // Caller has made too many requests and is being rate limited.
+    public static int TOO_MANY_REQUESTS = 429;
     // The default error code.
     public static int INTERNAL_ERROR = 500;
     // We treat 501 as a version of *400* but it is not the caller's fault.
@@ -81,6 +83,21 @@ public class DnException extends Exception {
         this.activity = activity;
     }
 
+    /** Used by {@link #mkStackless}. */
+    protected DnException(String msg, int code, String source, String activity, boolean writableStackTrace) {
+        super(msg, null, false, writableStackTrace);
+        this.code = code;
+        this.source = source;
+        this.activity = activity;
+    }
+
+    /** Creates an exception without a stack trace. Filling in the stack trace is most of the cost of an
+     * exception, so this is used for failures that can happen at a high rate and where the stack trace tells
+     * nothing, such as turning away rate limited requests. */
+    public static DnException mkStackless(String msg, int code, String source, String activity) {
+        return new DnException(msg, code, source, activity, false);
+    }
+
     /** Creates an exception that the caller has provided bad input. Typically generated by
      * schema validation failures. */
     public static DnException mkInput(String msg) {
@@ -0,0 +1,8 @@
+package org.dynamicruntime.function;
+
+import org.dynamicruntime.exception.DnException;
+
+@FunctionalInterface
+public interface DnRunnable {
+    void run() throws DnException;
+}
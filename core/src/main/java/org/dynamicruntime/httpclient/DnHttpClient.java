@@ -16,6 +16,7 @@ import org.apache.http.message.BasicNameValuePair;
 import org.dynamicruntime.context.DnConfigUtil;
 import org.dynamicruntime.context.DnCxt;
 import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.util.EncodeUtil;
 import org.dynamicruntime.util.HttpUtil;
 import org.dynamicruntime.util.ParsingUtil;
 import org.dynamicruntime.util.SystemUtil;
@@ -27,8 +28,16 @@ import static org.dynamicruntime.util.DnCollectionUtil.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A convenience wrapper for using the Apache Http Client. In two projects we have switched to this
@@ -51,6 +60,8 @@ public class DnHttpClient implements Runnable {
     public final long retryTimeout;
     // How long a request should be allowed to run until it should be proactively terminated.
     public final long totalRequestTimeout;
+    public final long connectTimeout;
+    volatile HttpClient asyncClient;
 
     public final Set<DnHttpRequest> activeRequests = new HashSet<>();
 
@@ -74,6 +85,7 @@ public class DnHttpClient implements Runnable {
         this.waitBetweenRetries = multiplier/5;
         this.retryTimeout = 10 * multiplier;
         this.totalRequestTimeout = 20 * multiplier;
+        this.connectTimeout = 2 * multiplier;
         this.isActive = true;
         // When doing development, having requests timeout can be a pain when stepping through debug, so
         // we enable timeouts only in environments that really need them.
@@ -175,13 +187,12 @@ public class DnHttpClient implements Runnable {
                 throw new DnException("Could not get status line for response to request " + request + ".");
             }
             int code = line.getStatusCode();
-            request.respCode = code;
-            boolean isSuccess = (code == 200 || code == 201);
-            if (!request.isBinary && ((code >= 200 && code < 300) || (code >= 400 && code <= 503))) {
+            String responseStr = null;
+            if (hasReadableResponse(request, code)) {
                 InputStream in = null;
                 try {
                     in = resp.getEntity().getContent();
-                    request.responseStr = IOUtils.toString(in, StandardCharsets.UTF_8);
+                    responseStr = IOUtils.toString(in, StandardCharsets.UTF_8);
                 } catch (IOException e) {
                     throw new DnException("Failed to read response from " + request + ".",
                             e, DnException.INTERNAL_ERROR, DnException.NETWORK, DnException.IO);
@@ -190,17 +201,8 @@ public class DnHttpClient implements Runnable {
                         SystemUtil.close(in);
                     }
                 }
-                if (request.hasJsonResponse) {
-                    try {
-                        request.responseData = ParsingUtil.toJsonMap(request.responseStr);
-                    } catch (DnException e) {
-                        isSuccess = false;
-                        request.responseData = mMap("httpCode", code, "msg", request.responseStr,
-                                "exception", e.getFullMessage());
-                    }
-                }
             }
-            request.isSuccess = isSuccess;
+            fillResponse(request, code, responseStr);
         } catch (AuthenticationException ae) {
             throw new DnException("Cannot execute " + request + " because of authentication issue.", ae);
         } catch (UnsupportedEncodingException ue) {
@@ -220,6 +222,131 @@ public class DnHttpClient implements Runnable {
         }
     }
 
+    static boolean hasReadableResponse(DnHttpRequest request, int code) {
+        return !request.isBinary && ((code >= 200 && code < 300) || (code >= 400 && code <= 503));
+    }
+
+    /** Fills in the response artifacts of the request. The *responseStr* is null if no response body was
+     * read. */
+    static void fillResponse(DnHttpRequest request, int code, String responseStr) {
+        request.respCode = code;
+        boolean isSuccess = (code == 200 || code == 201);
+        if (responseStr != null) {
+            request.responseStr = responseStr;
+            if (request.hasJsonResponse) {
+                try {
+                    request.responseData = ParsingUtil.toJsonMap(responseStr);
+                } catch (DnException e) {
+                    isSuccess = false;
+                    request.responseData = mMap("httpCode", code, "msg", responseStr,
+                            "exception", e.getFullMessage());
+                }
+            }
+        }
+        request.isSuccess = isSuccess;
+    }
+
+    /**
+     * Non-blocking version of {@link #execute}. No thread waits on the network while the request is in
+     * progress, so a request thread that is serving an asynchronous endpoint can be released (see
+     * *DnAsyncEndpointFunctionInterface*). The future completes with the same request object, with its response
+     * artifacts filled in, or fails with a *DnException*. It uses the JDK *HttpClient* rather than the Apache
+     * one. Binary responses are not supported. Requests are timed out by the client itself rather than by the
+     * monitor thread.
+     */
+    public CompletableFuture<DnHttpRequest> executeAsync(DnHttpRequest request) {
+        HttpRequest hReq;
+        try {
+            hReq = createAsyncHttpRequest(request);
+        } catch (DnException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(request, hReq).thenApply(resp -> {
+            int code = resp.statusCode();
+            fillResponse(request, code, hasReadableResponse(request, code) ? resp.body() : null);
+            return request;
+        });
+    }
+
+    CompletableFuture<HttpResponse<String>> sendAsync(DnHttpRequest request, HttpRequest hReq) {
+        request.numAttempts++;
+        return getAsyncClient().sendAsync(hReq, HttpResponse.BodyHandlers.ofString()).exceptionallyCompose(t -> {
+            Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+            // Same retry policy as the synchronous execute.
+            if (cause instanceof IOException && request.numAttempts < 2 &&
+                    request.duration(new Date()) < retryTimeout) {
+                var delay = CompletableFuture.delayedExecutor(waitBetweenRetries, TimeUnit.MILLISECONDS);
+                return CompletableFuture.runAsync(() -> {}, delay).thenCompose(v -> sendAsync(request, hReq));
+            }
+            return CompletableFuture.failedFuture((cause instanceof IOException) ?
+                    new DnException("Failed to execute " + request + " after " + request.numAttempts +
+                            " attempts.", cause, DnException.INTERNAL_ERROR, DnException.NETWORK,
+                            DnException.CONNECTION) : cause);
+        });
+    }
+
+    public HttpRequest createAsyncHttpRequest(DnHttpRequest request) throws DnException {
+        if (request.isBinary) {
+            throw new DnException("Binary responses are not supported for asynchronous request " + request + ".",
+                    null, DnException.NOT_SUPPORTED, DnException.SYSTEM, DnException.CODE);
+        }
+        String u = request.uri;
+        if (request.args != null && request.args.size() > 0) {
+            u = u + ((u.indexOf('?') > 0) ? "&" : "?") + HttpUtil.encodeHttpArgs(request.args);
+        }
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(URI.create(u)).timeout(Duration.ofMillis(totalRequestTimeout));
+        } catch (IllegalArgumentException e) {
+            throw new DnException("Request " + request + " has an illegal URI.", e);
+        }
+        if (request.username != null && request.authType.equals("Basic")) {
+            String auth = request.username + ":" + request.password;
+            builder.header("Authorization",
+                    "Basic " + EncodeUtil.base64Encode(auth.getBytes(StandardCharsets.UTF_8)));
+        }
+        if (request.cxt != null) {
+            builder.header(NDH_HDR_REQUEST_PATH, request.cxt.getCxtPath());
+        }
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+        var vals = request.values;
+        if (vals != null && vals.size() > 0) {
+            if (request.useFormEncoded) {
+                builder.header("Content-type", "application/x-www-form-urlencoded");
+                body = HttpRequest.BodyPublishers.ofString(HttpUtil.encodeHttpArgs(vals));
+            } else {
+                builder.header("Accept", "application/json");
+                builder.header("Content-type", "application/json");
+                body = HttpRequest.BodyPublishers.ofString(ParsingUtil.toJsonString(vals));
+            }
+        }
+        switch (request.method) {
+            case EPM_GET:
+                return builder.GET().build();
+            case EPM_POST:
+                return builder.POST(body).build();
+            case EPM_PUT:
+                return builder.PUT(body).build();
+            default:
+                throw new DnException("Request to " + u + " is using illegal method " + request.method + ".");
+        }
+    }
+
+    /** The client for asynchronous requests is created on first use, most clients never make one. */
+    public HttpClient getAsyncClient() {
+        HttpClient c = asyncClient;
+        if (c == null) {
+            synchronized (this) {
+                c = asyncClient;
+                if (c == null) {
+                    c = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(connectTimeout)).build();
+                    asyncClient = c;
+                }
+            }
+        }
+        return c;
+    }
+
     public HttpRequestBase createHttpRequest(String method, String uri, Map<String,Object> args) throws DnException {
         String u;
         if (args != null && args.size() > 0) {
@@ -250,6 +377,9 @@ public class DnHttpClient implements Runnable {
             this.notify();
         }
         SystemUtil.close(client);
+        if (asyncClient != null) {
+            asyncClient.shutdownNow();
+        }
     }
 
     /**
@@ -1,34 +1,61 @@
 package org.dynamicruntime.node;
 
 import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.util.EncodeUtil;
+
 import static org.dynamicruntime.schemadata.CoreConstants.*;
 import static org.dynamicruntime.util.ConvertUtil.*;
 import static org.dynamicruntime.util.DnCollectionUtil.mMap;
 
+import javax.crypto.SecretKey;
+import java.util.Date;
 import java.util.Map;
+import java.util.Objects;
 
 @SuppressWarnings("WeakerAccess")
 public class DnAuthConfig {
     /** If at some point, when we can have a real security model inside the Java VM we can put this key somewhere more
      * secure. */
     private final String nodeEncryptionKey;
+    /** The key decoded once, so encrypting and decrypting do not rebuild it on every call. */
+    private final SecretKey secretKey;
+    /** When the key starts being used to encrypt new data, null if it is only used when it is the default
+     * key. See {@link DnKeyRing}. */
+    public final Date activeDate;
     public final Map<String,Object> data;
 
-    public DnAuthConfig(String nodeEncryptionKey, Map<String,Object> data) {
+    public DnAuthConfig(String nodeEncryptionKey, Date activeDate, Map<String,Object> data) throws DnException {
         this.nodeEncryptionKey = nodeEncryptionKey;
+        this.secretKey = EncodeUtil.mkSecretKey(nodeEncryptionKey);
+        this.activeDate = activeDate;
         this.data = data;
     }
 
     public static DnAuthConfig extract(Map<String,Object> data) throws DnException {
         String nodeEncryptionKey = getReqStr(data, ND_ENCRYPTION_KEY);
-        return new DnAuthConfig(nodeEncryptionKey, data);
+        Date activeDate = getOptDate(data, ND_ACTIVE_DATE);
+        return new DnAuthConfig(nodeEncryptionKey, activeDate, data);
+    }
+
+    /** Whether this holds the same key as another config, activated at the same time. */
+    public boolean isSameKey(DnAuthConfig other) {
+        return other != null && nodeEncryptionKey.equals(other.nodeEncryptionKey) &&
+                Objects.equals(activeDate, other.activeDate);
     }
 
     public String getNodeEncryptionKey() {
         return nodeEncryptionKey;
     }
 
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
     public static Map<String,Object> mkAuthData(String encryptionKey) {
         return mMap(ND_ENCRYPTION_KEY, encryptionKey);
     }
+
+    public static Map<String,Object> mkAuthData(String encryptionKey, Date activeDate) {
+        return mMap(ND_ENCRYPTION_KEY, encryptionKey, ND_ACTIVE_DATE, activeDate);
+    }
 }
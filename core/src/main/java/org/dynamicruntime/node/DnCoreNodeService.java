@@ -10,9 +10,14 @@ import static org.dynamicruntime.util.DnCollectionUtil.*;
 import static org.dynamicruntime.util.ConvertUtil.*;
 import static org.dynamicruntime.schemadata.CoreConstants.*;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 /**
@@ -43,10 +48,13 @@ public class DnCoreNodeService implements ServiceInitializer {
     public Pattern internalIpAddresses;
     public volatile boolean isInCluster = true;
     public boolean loggingHealthChecks = false;
-    /** Lookup key to find current active encryption key. */
+    /** Lookup key to find the default encryption key. Keys added later can take over, see {@link DnKeyRing}. */
     public String instanceAuthConfigKey;
     /** Loaded externally by code from code outside *core* source directory during code startup. */
     public final DnNodeData nodeData = new DnNodeData();
+    /** Statistics reported by the node stats endpoint, keyed by a name such as *request.authCookieCache*.
+     * Services add the statistics of their caches, queues, and limiters here when they are initialized. */
+    public final Map<String,Supplier<Object>> statsSources = new ConcurrentHashMap<>();
 
     public static DnCoreNodeService get(DnCxt cxt) {
         Object obj = cxt.instanceConfig.get(DN_NODE_HEALTH_SERVICE);
@@ -75,6 +83,7 @@ public class DnCoreNodeService implements ServiceInitializer {
                 DEFAULT_AUTH_CONFIG_LOOKUP_KEY,
                 "Lookup key in instance configuration for encryption and auth logic configuration. " +
                         "Changing this will cause all new encrypted data to use a new key.");
+        nodeData.keyRing.defaultKeyId = instanceAuthConfigKey;
     }
 
     @Override
@@ -100,26 +109,49 @@ public class DnCoreNodeService implements ServiceInitializer {
                 ND_IS_CLUSTER_MEMBER, isInCluster, ND_VERSION, "0.2");
     }
 
-    public String encryptString(String plainText) throws DnException {
-        DnAuthConfig authConfig = nodeData.getAuthConfig(instanceAuthConfigKey);
-        String ec = Objects.requireNonNull(authConfig).getNodeEncryptionKey();
-        String encodedData = EncodeUtil.encrypt(ec, plainText);
-        return instanceAuthConfigKey + "|" + encodedData;
+    /** Adds (or replaces) a source of statistics reported by the node stats endpoint. */
+    public void addStatsSource(String name, Supplier<Object> source) {
+        statsSources.put(name, source);
     }
 
-    public String decryptString(String encryptedText) throws DnException {
+    /** Statistics from each source, ordered by name. */
+    public List<Map<String,Object>> getStats() {
+        List<Map<String,Object>> result = new ArrayList<>();
+        for (String name : new TreeSet<>(statsSources.keySet())) {
+            var source = statsSources.get(name);
+            if (source != null) {
+                result.add(mMap("name", name, "stats", source.get()));
+            }
+        }
+        return result;
+    }
+
+    public String encryptString(DnCxt cxt, String plainText) throws DnException {
+        String keyId = nodeData.keyRing.getActiveKeyId(cxt);
+        DnAuthConfig authConfig = nodeData.getAuthConfig(keyId);
+        String encodedData = EncodeUtil.encrypt(Objects.requireNonNull(authConfig).getSecretKey(), plainText);
+        return keyId + "|" + encodedData;
+    }
+
+    /** Whether the text would be encrypted with a different key if it were encrypted again. */
+    public boolean needsReencrypt(DnCxt cxt, String encryptedText) {
+        return !nodeData.keyRing.isEncryptedWithActiveKey(cxt, encryptedText);
+    }
+
+    /** Decrypts text encrypted by any node. A key added by another node that this node has not loaded yet
+     * is loaded, see {@link DnKeyRing#getKeyOrReload}. */
+    public String decryptString(DnCxt cxt, String encryptedText) throws DnException {
         int index = encryptedText.indexOf('|');
         if (index < 0) {
             throw DnException.mkInput("Encrypted text was not in correct format.");
         }
         String configKey = encryptedText.substring(0, index);
         String data = encryptedText.substring(index + 1);
-        DnAuthConfig authConfig = nodeData.getAuthConfig(configKey);
+        DnAuthConfig authConfig = nodeData.keyRing.getKeyOrReload(cxt, configKey);
         if (authConfig == null) {
             throw new DnException("System does not support encryption key named " + configKey + ".");
         }
-        String ec = authConfig.getNodeEncryptionKey();
-        return EncodeUtil.decrypt(ec, data);
+        return EncodeUtil.decrypt(authConfig.getSecretKey(), data);
     }
 
     public boolean checkIsInternalAddress(String ipAddress) {
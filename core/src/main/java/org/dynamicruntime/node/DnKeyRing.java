@@ -0,0 +1,166 @@
+package org.dynamicruntime.node;
+
+import org.dynamicruntime.context.DnCxt;
+import org.dynamicruntime.exception.DnException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.dynamicruntime.schemadata.CoreConstants.*;
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Holds the encryption keys of the node, each decoded once into its {@link DnAuthConfig}, by key ID. The key ID
+ * prefixes the encrypted data (followed by a '|'), so data encrypted with any key in the ring can be
+ * decrypted.
+ *
+ * New data is encrypted with the *active* key. Keys can be added while the node is running, and a key can carry
+ * an *activeDate*. The key with the latest *activeDate* that has been reached is the active key, and if no key
+ * has one, the default key is active. Giving a new key an *activeDate* a little in the future lets every node
+ * load the key before any node starts encrypting data with it.
+ *
+ * Reads do not lock. Changes are synchronized and bump {@link #version}, so holders of data decrypted with
+ * the keys can tell that the keys have changed.
+ *
+ * Other nodes are told about new keys, but a node can miss being told. So the keys are reloaded with the
+ * {@link #keyLoader} every *reloadMillis*, and when data arrives that was encrypted with a key the ring
+ * does not have. The second kind of reload is limited to one every *minReloadMillis*, so that data with
+ * made-up key IDs cannot send every request to the database.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnKeyRing {
+    @FunctionalInterface
+    public interface KeyLoader {
+        void loadKeys(DnCxt cxt) throws DnException;
+    }
+
+    static class Activation {
+        final String keyId;
+        final long activeTime;
+
+        Activation(String keyId, long activeTime) {
+            this.keyId = keyId;
+            this.activeTime = activeTime;
+        }
+    }
+
+    final ConcurrentHashMap<String,DnAuthConfig> keys = new ConcurrentHashMap<>();
+    /** Keys with an *activeDate*, latest first. Replaced rather than modified. */
+    volatile List<Activation> activations = List.of();
+    /** Key used for new data when no key has reached its *activeDate*. */
+    public volatile String defaultKeyId;
+    /** Incremented each time a key is added, replaced, or removed. */
+    public volatile long version = 0;
+    /** Loads the keys from where they are stored, null if the keys are only put in place directly. */
+    public volatile KeyLoader keyLoader;
+    public long reloadMillis = 5 * 60 * 1000;
+    public long minReloadMillis = 10 * 1000;
+    /** When the keys were last loaded, zero to have them reloaded on the next check. */
+    final AtomicLong lastLoadTime = new AtomicLong(0);
+
+    public DnAuthConfig getKey(String keyId) {
+        return keys.get(keyId);
+    }
+
+    /** Returns the key, first reloading the keys if the key is not in the ring and the keys have not been
+     * loaded within *minReloadMillis*. Returns null if the key is still not found. */
+    public DnAuthConfig getKeyOrReload(DnCxt cxt, String keyId) throws DnException {
+        var authConfig = keys.get(keyId);
+        if (authConfig == null && reloadIfOlder(cxt, minReloadMillis)) {
+            authConfig = keys.get(keyId);
+        }
+        return authConfig;
+    }
+
+    /** Reloads the keys if they have not been loaded within *reloadMillis*. Called periodically. */
+    public void checkReload(DnCxt cxt) throws DnException {
+        reloadIfOlder(cxt, reloadMillis);
+    }
+
+    boolean reloadIfOlder(DnCxt cxt, long ageMillis) throws DnException {
+        var loader = keyLoader;
+        long now = System.currentTimeMillis();
+        long lastLoad = lastLoadTime.get();
+        // Only one thread reloads, the others go on with the keys they have.
+        if (loader == null || now - lastLoad < ageMillis || !lastLoadTime.compareAndSet(lastLoad, now)) {
+            return false;
+        }
+        loader.loadKeys(cxt);
+        return true;
+    }
+
+    /** Called by the {@link #keyLoader} each time it has loaded the keys. */
+    public void markLoaded() {
+        lastLoadTime.set(System.currentTimeMillis());
+    }
+
+    /** Has the keys reloaded at the next {@link #checkReload}, used when changes may have been missed. */
+    public void requestReload() {
+        lastLoadTime.set(0);
+    }
+
+    public synchronized void putKey(String keyId, DnAuthConfig authConfig) {
+        keys.put(keyId, authConfig);
+        keysChanged();
+    }
+
+    public synchronized void removeKey(String keyId) {
+        if (keys.remove(keyId) != null) {
+            keysChanged();
+        }
+    }
+
+    void keysChanged() {
+        List<Activation> list = new ArrayList<>();
+        for (var entry : keys.entrySet()) {
+            Date activeDate = entry.getValue().activeDate;
+            if (activeDate != null) {
+                list.add(new Activation(entry.getKey(), activeDate.getTime()));
+            }
+        }
+        list.sort(Comparator.comparingLong((Activation a) -> a.activeTime).reversed());
+        activations = List.copyOf(list);
+        version++;
+    }
+
+    public String getActiveKeyId(DnCxt cxt) {
+        long now = cxt.now().getTime();
+        for (var activation : activations) {
+            if (activation.activeTime <= now) {
+                return activation.keyId;
+            }
+        }
+        return defaultKeyId;
+    }
+
+    /** Whether the encrypted text was encrypted with the active key. Does not create any objects, since it is
+     * called for every request that has an auth cookie. */
+    public boolean isEncryptedWithActiveKey(DnCxt cxt, String encryptedText) {
+        String keyId = getActiveKeyId(cxt);
+        return keyId != null && encryptedText.length() > keyId.length() && encryptedText.startsWith(keyId) &&
+                encryptedText.charAt(keyId.length()) == '|';
+    }
+
+    public List<String> getKeyIds() {
+        return new ArrayList<>(new TreeSet<>(keys.keySet()));
+    }
+
+    /** Describes the keys without revealing them. */
+    public Map<String,Object> getInfo(DnCxt cxt) {
+        List<Map<String,Object>> keyList = mList();
+        for (String keyId : getKeyIds()) {
+            var authConfig = keys.get(keyId);
+            if (authConfig != null) {
+                keyList.add(mMap(ND_KEY_ID, keyId, ND_ACTIVE_DATE, authConfig.activeDate));
+            }
+        }
+        return mMap(ND_ACTIVE_KEY_ID, getActiveKeyId(cxt), "defaultKeyId", defaultKeyId, "version", version,
+                "keys", keyList);
+    }
+}
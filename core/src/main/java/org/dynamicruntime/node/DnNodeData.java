@@ -1,20 +1,16 @@
 package org.dynamicruntime.node;
 
-import java.util.Map;
-
-import static org.dynamicruntime.util.DnCollectionUtil.*;
-
 @SuppressWarnings("WeakerAccess")
 public class DnNodeData {
-    /** Values are set only at initialization time, so we do not need to synchronize. */
-    protected final Map<String,DnAuthConfig> authConfigMap = mMapT();
+    /** Loaded at startup and added to while running, when keys are rotated. */
+    public final DnKeyRing keyRing = new DnKeyRing();
 
     public DnAuthConfig getAuthConfig(String key) {
-        return authConfigMap.get(key);
+        return keyRing.getKey(key);
     }
 
     public void putAuthConfig(String key, DnAuthConfig authConfig) {
-        authConfigMap.put(key, authConfig);
+        keyRing.putKey(key, authConfig);
     }
 
 }
@@ -30,4 +30,6 @@ public interface DnServletHandler {
     Map<String,String> getRequestCookies();
     void addResponseCookie(String cookieName, String cookieValue, Date expireDate);
     void sendRedirect(String redirectUrl) throws IOException;
+    // Lets endpoints that do not respond with JSON send their own response.
+    void sendStringResponse(String strResp, int code, String mimeType) throws IOException;
 }
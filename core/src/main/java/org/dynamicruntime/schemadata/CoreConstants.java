@@ -32,6 +32,20 @@ public class CoreConstants {
     /** The configuration data package. */
     public static final String ND_CONFIG_DATA = "configData";
 
+    //
+    // Cache invalidation values.
+    //
+    /** Counter assigned to each published cache invalidation. */
+    public static final String ND_INVALIDATION_ID = "invalidationId";
+    /** Name of the cache holding the item to be evicted. */
+    public static final String ND_CACHE_NAME = "cacheName";
+    /** Key of the item to be evicted. */
+    public static final String ND_CACHE_KEY = "cacheKey";
+    /** The node that published the invalidation. */
+    public static final String ND_SOURCE_NODE = "sourceNode";
+    /** Parameter for paging through invalidations, the counter after which the next page starts. */
+    public static final String ND_PAGE_AFTER_ID = "pageAfterId";
+
     //
     // Node communication constants.
     //
@@ -49,6 +63,10 @@ public class CoreConstants {
 
     /** The encryption key to create user authentication cookies. */
     public static final String ND_ENCRYPTION_KEY = "encryptionKey";
+    /** When an encryption key starts being used for new encrypted data. */
+    public static final String ND_ACTIVE_DATE = "activeDate";
+    /** Name of the invalidations published when encryption keys are added or removed. */
+    public static final String ND_AUTH_KEYS_CACHE = "authKeys";
 
     //
     // Node endpoints.
@@ -57,6 +75,22 @@ public class CoreConstants {
     public static final String ND_SET_CLUSTER_MEMBERSHIP = "node.setClusterMembership";
     /** Parameter for setting clusterMemberState *. */
     public static final String ND_IS_CLUSTER_MEMBER = "isClusterMember";
+    /** Function name for getting database connection pool statistics. */
+    public static final String ND_GET_DB_STATS_FUNCTION = "node.getDbStats";
+    /** Function name for getting the statistics of caches, queues, and limiters of the node. */
+    public static final String ND_GET_NODE_STATS_FUNCTION = "node.getNodeStats";
+    /** Function name for getting request and database metrics in the Prometheus text format. */
+    public static final String ND_GET_METRICS_FUNCTION = "node.getMetrics";
+    /** Function name for reporting the encryption keys that a node holds. */
+    public static final String ND_GET_AUTH_KEYS_FUNCTION = "node.getAuthKeys";
+    /** Function name for adding a new encryption key. */
+    public static final String ND_ROTATE_AUTH_KEY_FUNCTION = "node.rotateAuthKey";
+    /** Identifier of an encryption key, it prefixes the data encrypted with the key. */
+    public static final String ND_KEY_ID = "keyId";
+    /** Identifier of the key used for new encrypted data. */
+    public static final String ND_ACTIVE_KEY_ID = "activeKeyId";
+    /** Seconds to wait before a new encryption key is used. */
+    public static final String ND_ACTIVATE_DELAY_SECS = "activateDelaySecs";
 
     //
     // Schema for schema.
@@ -38,8 +38,25 @@ public class NodeCoreSchema {
             ND_SET_CLUSTER_MEMBERSHIP,
             "Sets the cluster membership state.", memberInfo.name, healthInfo.name);
 
+    public static DnRawEndpoint dbStatsEndpoint = mkSimpleListEndpoint("/node/db/stats",
+            ND_GET_DB_STATS_FUNCTION,
+            "Gets connection pool statistics for each database, including histograms of the time spent " +
+                    "waiting for and holding sessions and of the time taken by each statement.",
+            DNT_NONE, DNT_MAP);
+
+    public static DnRawEndpoint nodeStatsEndpoint = mkSimpleListEndpoint("/node/stats",
+            ND_GET_NODE_STATS_FUNCTION,
+            "Gets statistics of the caches, queues, and rate limiters of the node, one entry for each.",
+            DNT_NONE, DNT_MAP);
+
+    public static DnRawEndpoint metricsEndpoint = mkEndpoint(EPM_GET, "/node/metrics", ND_GET_METRICS_FUNCTION,
+            "Gets request counts, latencies, and sizes by endpoint, method, and status code, along with " +
+                    "database connection pool metrics, in the Prometheus text format.",
+            DNT_NONE, DNT_NONE);
+
     public static DnRawSchemaPackage getPackage() {
         return DnRawSchemaPackage.mkPackage("NodeCoreSchema", ND_NAMESPACE, mList(healthInfo,
-                healthEndpoint, memberInfo, membershipEndpoint));
+                healthEndpoint, memberInfo, membershipEndpoint, dbStatsEndpoint,
+                nodeStatsEndpoint, metricsEndpoint));
     }
 }
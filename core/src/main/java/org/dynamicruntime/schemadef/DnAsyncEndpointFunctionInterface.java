@@ -0,0 +1,14 @@
+package org.dynamicruntime.schemadef;
+
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.request.DnRequestCxt;
+
+import java.util.concurrent.CompletableFuture;
+
+/** An endpoint function that does not hold on to the request thread while it waits on slow work, such as a
+ * call to a third party service. It fills in the response on the *requestCxt* and then completes the returned
+ * future. The future can be completed on any thread. */
+@FunctionalInterface
+public interface DnAsyncEndpointFunctionInterface {
+    CompletableFuture<?> executeRequest(DnRequestCxt requestCxt) throws DnException;
+}
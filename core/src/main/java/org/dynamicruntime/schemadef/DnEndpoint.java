@@ -18,6 +18,8 @@ public class DnEndpoint {
     public final DnType outType;
     public final boolean isListResponse;
     public final Map<String,Object> model;
+    /** Compiled validation plan for *inType*. Set when the schema store is created. */
+    public DnValidatorPlan inTypePlan;
 
     public DnEndpoint(String method, String path, String description, DnEndpointFunction endpointFunction,
             DnType inType, DnType outType, boolean isListResponse, Map<String,Object> model) {
@@ -3,22 +3,77 @@ package org.dynamicruntime.schemadef;
 import org.dynamicruntime.exception.DnException;
 import org.dynamicruntime.request.DnRequestCxt;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
 @SuppressWarnings("WeakerAccess")
 public class DnEndpointFunction {
     public final String name;
     public final DnEndpointFunctionInterface functionInterface;
+    /** Set instead of *functionInterface* for endpoints that complete asynchronously. */
+    public final DnAsyncEndpointFunctionInterface asyncInterface;
 
     public DnEndpointFunction(String name, DnEndpointFunctionInterface functionInterface) {
         this.name = name;
         this.functionInterface = functionInterface;
+        this.asyncInterface = null;
+    }
+
+    public DnEndpointFunction(String name, DnAsyncEndpointFunctionInterface asyncInterface) {
+        this.name = name;
+        this.functionInterface = null;
+        this.asyncInterface = asyncInterface;
     }
 
+    public boolean isAsync() {
+        return asyncInterface != null;
+    }
+
+    /** Executes the request, waiting for an asynchronous endpoint to complete. */
     public void executeRequest(DnRequestCxt requestCxt) throws DnException {
+        if (asyncInterface != null) {
+            waitFor(asyncInterface.executeRequest(requestCxt));
+        } else {
+            functionInterface.executeRequest(requestCxt);
+        }
+    }
+
+    /** Starts the request. Synchronous endpoints are run to completion and return a completed future. */
+    public CompletableFuture<?> executeAsyncRequest(DnRequestCxt requestCxt) throws DnException {
+        if (asyncInterface != null) {
+            return asyncInterface.executeRequest(requestCxt);
+        }
         functionInterface.executeRequest(requestCxt);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public static <T> T waitFor(CompletableFuture<T> future) throws DnException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new DnException("Interrupted while waiting for endpoint to complete.", e,
+                    DnException.INTERNAL_ERROR, DnException.SYSTEM, DnException.INTERRUPTED);
+        } catch (ExecutionException e) {
+            throw toDnException(e.getCause());
+        }
+    }
+
+    /** Unwraps the exception that completed a future. */
+    public static DnException toDnException(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return (t instanceof DnException) ? (DnException)t : new DnException("Endpoint failed.", t);
     }
 
     /** Convenience method designed to be imported statically. */
     public static DnEndpointFunction mkEndpoint(String name, DnEndpointFunctionInterface functionInterface) {
          return new DnEndpointFunction(name, functionInterface);
     }
+
+    /** Convenience method designed to be imported statically. */
+    public static DnEndpointFunction mkAsyncEndpoint(String name, DnAsyncEndpointFunctionInterface asyncInterface) {
+        return new DnEndpointFunction(name, asyncInterface);
+    }
 }
@@ -122,6 +122,12 @@ public class DnSchemaService implements StartupServiceInitializer {
                     }
 
                 }
+                if (i == 1) {
+                    // All types are now known, so the request validation of endpoints can be compiled.
+                    for (DnEndpoint endpoint : endpoints.values()) {
+                        endpoint.inTypePlan = DnValidatorPlan.compile(endpoint.inType, dnTypes);
+                    }
+                }
                 schemaStore.set(new DnSchemaStore(dnTypes, endpoints, tables));
             }
         }
@@ -72,6 +72,61 @@ public class DnSchemaValidator {
         return output.isEmpty() ? null : output;
     }
 
+    /** Validates using a plan that was compiled when the schema store was created. Produces the same results as
+     * {@link #validateAndCoerce(DnType, Map)} without doing any type lookups. */
+    public Map<String,Object> validateAndCoerce(DnValidatorPlan plan, Map<String,Object> data) throws DnException {
+        var result = validateWithPlan(plan, data, 0);
+        return result != null ? result : mMap();
+    }
+
+    public Map<String,Object> validateWithPlan(DnValidatorPlan plan, Map<String,Object> data, int nestLevel)
+            throws DnException {
+        if (nestLevel > 10) {
+            throw DnException.mkConv("Nested data structure for supplied data is too deep.");
+        }
+        DnType type = plan.type;
+        if (type.isSimple && (type.baseType == null || !type.baseType.equals(DNT_NONE))) {
+            // Bad logic in code, not problem with data being supplied.
+            throw new DnException("Validating a Map with the simple type.");
+        }
+        Map<String,Object> output = mMap();
+        for (var slot : plan.slots) {
+            DnField field = slot.field;
+            Object obj = data.get(field.name);
+            Object newObj;
+            if (slot.isPrimitiveRef) {
+                newObj = validateAndCoercePrimitive(field, null, field.typeRef, field.isList, obj);
+            } else {
+                DnType fieldType = (slot.type != null) ? slot.type : getType(field);
+                if (fieldType.isSimple) {
+                    newObj = validateAndCoercePrimitive(field, fieldType, field.coreType, field.isList, obj);
+                } else {
+                    newObj = validateAndCoerceComplex(field, fieldType, slot.nestedPlan, obj, field.isList,
+                            nestLevel);
+                }
+            }
+            if (newObj != null) {
+                output.put(field.name, newObj);
+            }
+        }
+        if (mode.equals(REQUEST_MODE) && data.size() > 0) {
+            List<String> extraKeys = null;
+            for (String key : data.keySet()) {
+                if (!plan.fieldNames.contains(key)) {
+                    if (extraKeys == null) {
+                        extraKeys = mList();
+                    }
+                    extraKeys.add(key);
+                }
+            }
+            if (extraKeys != null) {
+                throw DnException.mkConv(String.format("Extra fields %s were supplied that are not referenced in " +
+                        "schema.", fmtObject(extraKeys)));
+            }
+        }
+        return output.isEmpty() ? null : output;
+    }
+
     public DnType getType(DnField field) throws DnException {
         DnType type = (field.anonType != null) ? field.anonType : getType(field.typeRef);
         if (type == null) {
@@ -100,6 +155,12 @@ public class DnSchemaValidator {
 
     public Object validateAndCoerceComplex(DnField field, DnType type, Object obj, boolean isList, int nestLevel)
         throws DnException {
+        return validateAndCoerceComplex(field, type, null, obj, isList, nestLevel);
+    }
+
+    /** The *plan* is optional, if it is null, the type is validated without a compiled plan. */
+    public Object validateAndCoerceComplex(DnField field, DnType type, DnValidatorPlan plan, Object obj,
+            boolean isList, int nestLevel) throws DnException {
         Object cObj = obj;
         Object newObj = null;
         if (obj instanceof CharSequence) {
@@ -125,7 +186,7 @@ public class DnSchemaValidator {
             List<?> l = (List<?>)cObj;
             List<Object> outValues = mList();
             for (Object o : l) {
-                var no = validateAndCoerceComplex(field, type, o, false, nestLevel);
+                var no = validateAndCoerceComplex(field, type, plan, o, false, nestLevel);
                 outValues.add(no);
             }
             if (field.isRequired && outValues.isEmpty()) {
@@ -140,7 +201,8 @@ public class DnSchemaValidator {
             }
             if (map != null) {
                 try {
-                    newObj = validateAndCoerceImpl(type, map, nestLevel + 1);
+                    newObj = (plan != null) ? validateWithPlan(plan, map, nestLevel + 1) :
+                            validateAndCoerceImpl(type, map, nestLevel + 1);
                 } catch (DnException e)  {
                     throw DnException.mkConv(String.format("Could not validate complex field %s.", field.name), e);
                 }
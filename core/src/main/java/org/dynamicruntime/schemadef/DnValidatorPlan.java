@@ -0,0 +1,83 @@
+package org.dynamicruntime.schemadef;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*;
+
+/**
+ * A precompiled form of a {@link DnType} used by {@link DnSchemaValidator} to validate and coerce request data.
+ * All type references are resolved and all primitive checks are done once when the schema store is created,
+ * so validating a request becomes a walk over an array of field slots with no lookups by type name. Plans
+ * for nested types are compiled as well and shared when a type is referenced more than once (including
+ * types that refer to themselves).
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnValidatorPlan {
+    /** A field together with everything resolved about how to validate it. */
+    public static class FieldSlot {
+        public final DnField field;
+        /** Field references a primitive type directly. Validated as a primitive with no *DnType*. */
+        public final boolean isPrimitiveRef;
+        /** The resolved type for non-primitive references. Null if the type could not be found, which is
+         * reported when a request actually hits the field (the same behavior as uncompiled validation). */
+        public final DnType type;
+        /** Plan for the resolved type if it is a complex (not simple) type. */
+        public DnValidatorPlan nestedPlan;
+
+        public FieldSlot(DnField field, boolean isPrimitiveRef, DnType type) {
+            this.field = field;
+            this.isPrimitiveRef = isPrimitiveRef;
+            this.type = type;
+        }
+    }
+
+    public final DnType type;
+    public FieldSlot[] slots;
+    /** Names of all fields, used to detect extra fields in request data. */
+    public final Set<String> fieldNames = new HashSet<>();
+
+    public DnValidatorPlan(DnType type) {
+        this.type = type;
+    }
+
+    /** Compiles a plan for a type, resolving type references using the supplied map of types. */
+    public static DnValidatorPlan compile(DnType type, Map<String,DnType> types) {
+        return compile(type, types, new IdentityHashMap<>());
+    }
+
+    static DnValidatorPlan compile(DnType type, Map<String,DnType> types, Map<DnType,DnValidatorPlan> compiled) {
+        DnValidatorPlan plan = compiled.get(type);
+        if (plan != null) {
+            return plan;
+        }
+        plan = new DnValidatorPlan(type);
+        // Register before compiling fields so recursive types terminate.
+        compiled.put(type, plan);
+        if (type.isSimple || type.fields == null) {
+            plan.slots = new FieldSlot[0];
+            return plan;
+        }
+        var slots = new FieldSlot[type.fields.size()];
+        int i = 0;
+        for (DnField field : type.fields) {
+            String typeRef = field.typeRef;
+            FieldSlot slot;
+            if (typeRef != null && isPrimitive(typeRef)) {
+                slot = new FieldSlot(field, true, null);
+            } else {
+                DnType fieldType = (field.anonType != null) ? field.anonType : types.get(typeRef);
+                slot = new FieldSlot(field, false, fieldType);
+                if (fieldType != null && !fieldType.isSimple) {
+                    slot.nestedPlan = compile(fieldType, types, compiled);
+                }
+            }
+            slots[i++] = slot;
+            plan.fieldNames.add(field.name);
+        }
+        plan.slots = slots;
+        return plan;
+    }
+}
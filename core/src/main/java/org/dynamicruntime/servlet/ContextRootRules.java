@@ -1,5 +1,7 @@
 package org.dynamicruntime.servlet;
 
+import org.dynamicruntime.util.DnRateLimiter;
+
 /** Placeholder class for doing proxying and specifying whether certain security needs to be applied. */
 @SuppressWarnings("WeakerAccess")
 public class ContextRootRules {
@@ -9,10 +11,21 @@ public class ContextRootRules {
      * it will be allowed to make the request if the value of *needsLogin* is false. */
     public boolean needsLogin;
     public String requiredRole;
+    /** Key for the metrics of requests under this context root that do not target an endpoint. */
+    public String metricsPath;
+    /** Whether GET requests under this context root are served as files by the content service. */
+    public boolean isWebRoot;
+    /** Limits requests per *forwardedFor* address. Checked before any request data is parsed. Null if there is
+     * no limit. */
+    public DnRateLimiter ipRateLimiter;
+    /** Limits requests per acting userId. Checked once the auth cookie has been decoded. Null if there is
+     * no limit. */
+    public DnRateLimiter userRateLimiter;
 
     public ContextRootRules(String contextRoot, boolean needsLogin, String requiredRole) {
         this.contextRoot = contextRoot;
         this.needsLogin = needsLogin;
         this.requiredRole = requiredRole;
+        this.metricsPath = "/" + contextRoot + "/*";
     }
 }
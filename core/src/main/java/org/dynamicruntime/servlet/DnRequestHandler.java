@@ -4,9 +4,14 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.dynamicruntime.content.DnContentData;
+import org.dynamicruntime.content.DnContentUtil;
 import org.dynamicruntime.context.DnCxt;
 import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.function.DnRunnable;
 import org.dynamicruntime.request.DnServletHandler;
+import org.dynamicruntime.schemadef.DnSchemaStore;
+import org.dynamicruntime.schemadef.DnType;
 import org.dynamicruntime.startup.InstanceRegistry;
 import org.dynamicruntime.user.UserAuthCookie;
 import org.dynamicruntime.user.UserAuthData;
@@ -17,18 +22,35 @@ import static org.dynamicruntime.schemadata.CoreConstants.*;
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 import static org.dynamicruntime.util.ConvertUtil.*;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Holds data for a request and provides access and convenience methods. */
 @SuppressWarnings("WeakerAccess")
 public class DnRequestHandler implements DnServletHandler {
+    /** Entity tag that used to be sent for immutable content. Browsers may still hold it. */
     public static final String ETAG_NEVER_CHANGES = "NeverChanges";
+    /** At some point we may configure this maximum. We keep this small because we
+     * are currently on a free AWS server and do not want to be abused. */
+    public static final int MAX_JSON_POST_SIZE = 16000;
+    /** Reused buffers for reading JSON post data. */
+    public static final DnObjectPool<byte[]> postDataBuffers =
+            new DnObjectPool<>(() -> new byte[MAX_JSON_POST_SIZE]);
     public static boolean enableLengthRounding = false;
     public static boolean logHttpHeaders = false;
     public String instance;
@@ -42,6 +64,8 @@ public class DnRequestHandler implements DnServletHandler {
     public String logRequestUri;
     public Map<String,Object> queryParams;
     public Map<String,Object> postData;
+    /** Values of path variables in the endpoint path, null if there are none. */
+    public Map<String,Object> pathParams;
     private Map<String,String> cookies; // Note usage of private, allows access methods to play tricks.
     public String userAgent;
     public boolean isFromLoadBalancer;
@@ -50,6 +74,9 @@ public class DnRequestHandler implements DnServletHandler {
     public boolean logSuccess = true;
     public boolean sentResponse = false;
     public DnCxt createdCxt;
+    /** Set when the response is completed asynchronously, see {@link #startAsync}. */
+    public AsyncContext asyncContext;
+    final AtomicBoolean asyncFinished = new AtomicBoolean(false);
 
     //
     // Set when the request originates as a socket connection to this node.
@@ -66,7 +93,19 @@ public class DnRequestHandler implements DnServletHandler {
     public int rptStatusCode;
     public String rptResponseMimeType;
     public Map<String,List<String>> rptResponseHeaders;
+    /** Body of the response, for in-process test requests only. Responses to live requests are streamed to the
+     * servlet output without being turned into a string, so this is null for them (except for responses sent
+     * with {@link #sendStringResponse}, which already have the string). */
     public String rptResponseData;
+    /** Length of the body of the response that was sent. */
+    public long rptResponseBytes;
+
+    /** Where the request is recorded when it completes, see {@link #recordMetrics}. Null if not recording. */
+    public DnRequestMetrics requestMetrics;
+    /** Path of the endpoint or context root that the request targets, used as the key for its metrics. */
+    public String metricsPath = DnRequestMetrics.UNMATCHED_PATH;
+    /** Seconds sent in the *Retry-After* header when the request is rate limited. */
+    public int retryAfterSecs = 1;
 
     /** Attributes filled or acted on by hooks. */
     public UserAuthData userAuthData;
@@ -74,6 +113,8 @@ public class DnRequestHandler implements DnServletHandler {
     public UserAuthCookie userAuthCookie;
     /** If this is set to true, then auth cookie will be generated and set. */
     public boolean setAuthCookie;
+    /** Set if the auth cookie was encrypted with an encryption key that is no longer the active key. */
+    public boolean authCookieNeedsReencrypt;
     /** If set, then auth cookie will be cleared. */
     public boolean isLogout;
 
@@ -213,18 +254,44 @@ public class DnRequestHandler implements DnServletHandler {
         }
         queryParams = parsed;
         if (contentType.startsWith("application/json") && postData == null) {
-            String s = readInputStream();
-            // At some point we may configure this maximum. We keep this small because we
-            // are currently on a free AWS server and do not want to be abused.
-            if (s.length() > 16000) {
-                throw new DnException("JSON data of size " + s.length() + " exceeded maximum size " +
-                        "allowed of 16000.");
-            }
-            postData = ParsingUtil.toJsonMap(s);
+            postData = readJsonPostData();
             logRequestUri = logRequestUri + encodePostDataForLogging();
         }
     }
 
+    /** Parses the JSON body directly from the request bytes, enforcing the maximum size while reading so that
+     * oversized bodies are rejected without being buffered. */
+    public Map<String,Object> readJsonPostData() throws IOException, DnException {
+        if (request != null) {
+            long contentLength = request.getContentLengthLong();
+            if (contentLength > MAX_JSON_POST_SIZE) {
+                throw mkPostDataTooLarge(contentLength);
+            }
+            byte[] buf = postDataBuffers.take();
+            try {
+                int len = IoUtil.readIntoBuffer(request.getInputStream(), buf);
+                if (len < 0) {
+                    throw mkPostDataTooLarge(-1);
+                }
+                return ParsingUtil.toJsonMap(buf, 0, len);
+            } finally {
+                postDataBuffers.give(buf);
+            }
+        }
+        byte[] bytes = (testPostData != null) ? testPostData.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (bytes.length > MAX_JSON_POST_SIZE) {
+            throw mkPostDataTooLarge(bytes.length);
+        }
+        return ParsingUtil.toJsonMap(bytes, 0, bytes.length);
+    }
+
+    DnException mkPostDataTooLarge(long size) {
+        String sizeStr = (size >= 0) ? "of size " + size + " " : "";
+        // We make this a 500 error, because this is probably a call done with hostility.
+        return new DnException("JSON data " + sizeStr + "exceeded maximum size allowed of " +
+                MAX_JSON_POST_SIZE + ".");
+    }
+
     public String encodePostDataForLogging() {
         StringBuilder sb = new StringBuilder();
         sb.append('{');
@@ -278,6 +345,79 @@ public class DnRequestHandler implements DnServletHandler {
                 code, logReqData, fmtDouble(duration)));
     }
 
+    /** Puts the request into asynchronous mode so that the request thread can be released while an endpoint
+     * waits on slow work. Returns false for in-process test requests, which have no servlet request. In that
+     * case, the caller should wait for the work to complete. */
+    public boolean startAsync(DnCxt cxt, long timeoutMillis) {
+        if (request == null || !request.isAsyncSupported()) {
+            return false;
+        }
+        asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeoutMillis);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                finishAsync(cxt, null, new DnException(String.format("Request did not complete within " +
+                        "%d milliseconds.", timeoutMillis), null, DnException.NOT_AVAILABLE, DnException.SYSTEM,
+                        DnException.GENERAL));
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                finishAsync(cxt, null, event.getThrowable());
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return true;
+    }
+
+    public boolean isAsync() {
+        return asyncContext != null;
+    }
+
+    /** Finishes an asynchronous request, either by calling *sendResponse* or by reporting *failure*. Only
+     * the first call does anything, so work that completes after the request has timed out is ignored. */
+    public void finishAsync(DnCxt cxt, DnRunnable sendResponse, Throwable failure) {
+        if (!asyncFinished.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (failure != null) {
+                handleException(cxt, failure);
+            } else {
+                sendResponse.run();
+            }
+        } catch (Throwable t) {
+            handleException(cxt, t);
+        } finally {
+            recordMetrics(cxt);
+            asyncContext.complete();
+        }
+    }
+
+    /** Length of the body of the request, zero if it is not known. */
+    public long getRequestLength() {
+        if (request != null) {
+            return Math.max(request.getContentLengthLong(), 0);
+        }
+        return (testPostData != null) ? testPostData.length() : 0;
+    }
+
+    /** Records the request in {@link #requestMetrics}. Called once the response has been sent. */
+    public void recordMetrics(DnCxt cxt) {
+        if (requestMetrics != null && cxt != null) {
+            requestMetrics.record(metricsPath, method, rptStatusCode, System.nanoTime() - cxt.nanoTime,
+                    getRequestLength(), rptResponseBytes);
+        }
+    }
+
     public String readInputStream() throws IOException {
         if (request != null) {
             InputStream in = request.getInputStream();
@@ -356,7 +496,12 @@ public class DnRequestHandler implements DnServletHandler {
                     }
                 }
 
-                if (code == DnException.BAD_INPUT) {
+                if (code == DnException.TOO_MANY_REQUESTS) {
+                    // Shed requests as cheaply as possible, the caller is probably being abusive.
+                    setResponseHeader("Retry-After", Integer.toString(retryAfterSecs));
+                    LogServlet.log.debug(cxt, String.format("%d Request %s was rate limited. %s", code,
+                            logRequestData, msg));
+                } else if (code == DnException.BAD_INPUT) {
                     LogServlet.log.debug(cxt,
                             String.format("%d User input on request %s was in error (%s ms). ", code,
                                     logRequestData, durStr) + msg);
@@ -391,9 +536,40 @@ public class DnRequestHandler implements DnServletHandler {
     }
 
     public void sendJsonResponse(Map<String,Object> data, int code) {
+        sendJsonResponse(data, null, null, code);
+    }
+
+    /** Sends the data with its fields in the order of *outType*, if it is not null. */
+    public void sendJsonResponse(Map<String,Object> data, DnType outType, DnSchemaStore schema, int code) {
         try {
-            String strResp = ParsingUtil.toJsonString(data);
-            sendStringResponse(strResp, code, "application/json");
+            if (enableLengthRounding) {
+                // Padding requires knowing the full length of the response before writing any of it.
+                var output = new ByteArrayOutputStream();
+                new JsonStreamWriter(output, false).write(data, outType, schema).finish();
+                byte[] bytes = output.toByteArray();
+                sendStringResponse(new String(bytes, StandardCharsets.UTF_8), bytes, code, "application/json");
+                return;
+            }
+            setStatusCode(code);
+            setResponseContentType("application/json");
+            if (response != null) {
+                var output = response.getOutputStream();
+                var writer = new JsonStreamWriter(output, false).write(data, outType, schema);
+                if (!writer.hasFlushed()) {
+                    // Whole response is still in the writer's buffer, so we know its length. Otherwise,
+                    // the response is being streamed and the container does chunked transfer encoding.
+                    response.setContentLength((int)writer.getLength());
+                }
+                writer.finish();
+                rptResponseBytes = writer.getLength();
+                response.flushBuffer();
+            } else {
+                // In-process test requests capture the response.
+                var output = new ByteArrayOutputStream();
+                new JsonStreamWriter(output, false).write(data, outType, schema).finish();
+                rptResponseBytes = output.size();
+                rptResponseData = output.toString(StandardCharsets.UTF_8);
+            }
        } catch (Throwable t) {
             // Not much we can do here. This is so out of the norm, we do not report it to standard logging.
             // One scenario where this happens is if the VM is in the middle of shutting down.
@@ -403,8 +579,9 @@ public class DnRequestHandler implements DnServletHandler {
     }
 
     public void sendBinaryResponse(byte[] data, int code, String mimeType) throws IOException {
-        response.setStatus(code);
-        response.setContentType(mimeType);
+        setStatusCode(code);
+        setResponseContentType(mimeType);
+        rptResponseBytes = data.length;
         if (response != null) {
             response.setContentLength(data.length);
             var output = response.getOutputStream();
@@ -415,21 +592,21 @@ public class DnRequestHandler implements DnServletHandler {
         }
     }
 
+    @Override
     public void sendStringResponse(String strResp, int code, String mimeType) throws IOException {
+        sendStringResponse(strResp, null, code, mimeType);
+    }
+
+    /** Sends a string response, using *utf8Bytes* as its encoding if it is not null. */
+    public void sendStringResponse(String strResp, byte[] utf8Bytes, int code, String mimeType)
+            throws IOException {
         setStatusCode(code);
         setResponseContentType(mimeType);
 
+        var bytes = (utf8Bytes != null) ? utf8Bytes : strResp.getBytes(StandardCharsets.UTF_8);
+        rptResponseBytes = bytes.length;
         if  (response != null) {
-            var bytes = strResp.getBytes(StandardCharsets.UTF_8);
-            if (enableLengthRounding) {
-                int roundToLen = 100 * ((bytes.length + 99)/100) - bytes.length;
-                if (roundToLen > 0) {
-                    String pad = StringUtils.repeat('z', roundToLen);
-                    // Make analysis looking at purely the length of the response difficult. (Some subtle SSL attacks
-                    // use length analysis and the time it takes to respond to extract meta information from packets).
-                    setResponseHeader("X-Padding", pad);
-                }
-            }
+            addLengthPadding(bytes.length);
             response.setContentLength(bytes.length);
             var output = response.getOutputStream();
             output.write(bytes);
@@ -438,6 +615,188 @@ public class DnRequestHandler implements DnServletHandler {
         rptResponseData = strResp;
     }
 
+    void addLengthPadding(long length) {
+        if (enableLengthRounding) {
+            long roundToLen = 100 * ((length + 99)/100) - length;
+            if (roundToLen > 0) {
+                String pad = StringUtils.repeat('z', (int)roundToLen);
+                // Make analysis looking at purely the length of the response difficult. (Some subtle SSL attacks
+                // use length analysis and the time it takes to respond to extract meta information from packets).
+                setResponseHeader("X-Padding", pad);
+            }
+        }
+    }
+
+    /**
+     * Sends file or page content. Answers conditional requests (*If-None-Match* and *If-Modified-Since*) with a
+     * 304, serves a single *Range* with a 206, and sends the precompressed gzip form of the content if the
+     * client accepts it. Content that is too large to keep in memory is copied from its file with a
+     * *FileChannel*, without reading the file onto the heap.
+     */
+    public void sendContentResponse(DnContentData content) throws IOException {
+        content.prepareForServing();
+        String etag = content.etag;
+        if (content.timestamp != null) {
+            setResponseHeader("Last-Modified", HttpUtil.formatHttpDate(content.timestamp));
+        }
+        if (content.hasGzip()) {
+            setResponseHeader("Vary", "Accept-Encoding");
+        }
+        String notModifiedEtag = getNotModifiedEtag(content);
+        if (notModifiedEtag != null) {
+            setStatusCode(304);
+            if (!notModifiedEtag.isEmpty()) {
+                setResponseHeader("ETag", notModifiedEtag);
+            }
+            if (response != null) {
+                response.flushBuffer();
+            }
+            sentResponse = true;
+            return;
+        }
+        setResponseHeader("Accept-Ranges", "bytes");
+        setResponseContentType(content.mimeType);
+        long length = content.getLength();
+        String range = getRequestHeader("Range");
+        long[] byteRange = (range != null && ifRangeMatches(content)) ? HttpUtil.parseByteRange(range, length) :
+                null;
+        if (byteRange != null && byteRange.length == 0) {
+            setStatusCode(416);
+            setResponseHeader("Content-Range", "bytes */" + length);
+            if (response != null) {
+                response.setContentLength(0);
+                response.flushBuffer();
+            }
+            sentResponse = true;
+            return;
+        }
+        ByteBuffer buffer = content.getBuffer();
+        boolean isGzip = false;
+        long start = 0;
+        long count = length;
+        if (byteRange != null) {
+            start = byteRange[0];
+            count = byteRange[1] - byteRange[0] + 1;
+            setStatusCode(206);
+            setResponseHeader("Content-Range", String.format("bytes %d-%d/%d", byteRange[0], byteRange[1], length));
+            setEtagHeader(etag);
+        } else if (content.hasGzip() && HttpUtil.acceptsEncoding(getRequestHeader("Accept-Encoding"), "gzip")) {
+            buffer = content.getGzipBuffer();
+            isGzip = true;
+            count = buffer.remaining();
+            setStatusCode(DnException.OK);
+            setResponseHeader("Content-Encoding", "gzip");
+            setEtagHeader(DnContentUtil.mkGzipEtag(etag));
+        } else {
+            setStatusCode(DnException.OK);
+            setEtagHeader(etag);
+        }
+        if (!content.isBinary) {
+            addLengthPadding(count);
+        }
+
+        if (buffer != null) {
+            buffer.position((int)start).limit((int)(start + count));
+        }
+        rptResponseBytes = count;
+        if (response != null) {
+            response.setContentLengthLong(count);
+            var output = response.getOutputStream();
+            if (buffer != null) {
+                if (buffer.hasArray()) {
+                    output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    var target = Channels.newChannel(output);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                }
+            } else {
+                try (var channel = FileChannel.open(content.fileLocation.toPath(), StandardOpenOption.READ)) {
+                    var target = Channels.newChannel(output);
+                    long pos = start;
+                    long end = start + count;
+                    while (pos < end) {
+                        long n = channel.transferTo(pos, end - pos, target);
+                        if (n <= 0) {
+                            break;
+                        }
+                        pos += n;
+                    }
+                }
+            }
+            response.flushBuffer();
+        } else {
+            // In-process test requests capture the response.
+            byte[] bytes;
+            if (buffer != null) {
+                bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+            } else {
+                bytes = Arrays.copyOfRange(Files.readAllBytes(content.fileLocation.toPath()), (int)start,
+                        (int)(start + count));
+            }
+            rptResponseData = (content.isBinary || isGzip) ? EncodeUtil.base64Encode(bytes) :
+                    new String(bytes, StandardCharsets.UTF_8);
+        }
+        sentResponse = true;
+    }
+
+    /** Returns null if the client does not have the current content. Otherwise returns the entity tag to send
+     * back with the 304 response, which is the tag of the form of the content (plain or gzip) the client has. It
+     * is empty if the content has no entity tag. */
+    String getNotModifiedEtag(DnContentData content) {
+        String etag = content.etag;
+        String ifNoneMatch = getRequestHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (etag == null) {
+                return null;
+            }
+            if (ifNoneMatch.trim().equals("*")) {
+                return getSentEtag(content);
+            }
+            if (HttpUtil.etagMatches(ifNoneMatch, etag)) {
+                return etag;
+            }
+            String gzipEtag = DnContentUtil.mkGzipEtag(etag);
+            return (content.hasGzip() && HttpUtil.etagMatches(ifNoneMatch, gzipEtag)) ? gzipEtag : null;
+        }
+        String ifModifiedSince = getRequestHeader("If-Modified-Since");
+        if (ifModifiedSince != null && content.timestamp != null) {
+            Date since = HttpUtil.parseHttpDate(ifModifiedSince);
+            // HTTP dates only have seconds.
+            if (since != null && content.timestamp.getTime()/1000 <= since.getTime()/1000) {
+                return (etag != null) ? getSentEtag(content) : "";
+            }
+        }
+        return null;
+    }
+
+    /** The entity tag of the form of the content that a full response to this request would send. */
+    String getSentEtag(DnContentData content) {
+        boolean sendsGzip = content.hasGzip() &&
+                HttpUtil.acceptsEncoding(getRequestHeader("Accept-Encoding"), "gzip");
+        return sendsGzip ? DnContentUtil.mkGzipEtag(content.etag) : content.etag;
+    }
+
+    void setEtagHeader(String etag) {
+        if (etag != null) {
+            setResponseHeader("ETag", etag);
+        }
+    }
+
+    /** A range request with an *If-Range* is only honored if the content has not changed. */
+    boolean ifRangeMatches(DnContentData content) {
+        String ifRange = getRequestHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(content.etag);
+        }
+        return content.timestamp != null && ifRange.equals(HttpUtil.formatHttpDate(content.timestamp));
+    }
+
     public void setStatusCode(int code) {
         if (response != null) {
             response.setStatus(code);
@@ -0,0 +1,177 @@
+package org.dynamicruntime.servlet;
+
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.util.DnHistogram;
+import org.dynamicruntime.util.DnPrometheusWriter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*;
+
+/**
+ * Counts requests and records their latency and the sizes of their request and response bodies, keyed by
+ * endpoint path, HTTP method, and status code. The endpoint path is the path of the endpoint definition (with
+ * its path variables unfilled), or the context root for content requests, so the number of keys is bounded by
+ * the endpoints of the node and not by the paths callers choose to send.
+ *
+ * Recording a request is done on every request. Once a key has been seen, recording does not lock or create
+ * any objects. The counters and histograms are only summed when they are reported.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnRequestMetrics {
+    /** Path used for requests that did not target an endpoint or a context root. */
+    public static final String UNMATCHED_PATH = "unmatched";
+    /** Method used for HTTP methods no endpoint can have. */
+    public static final String OTHER_METHOD = "OTHER";
+    public static final int MIN_STATUS_CODE = 100;
+    public static final int MAX_STATUS_CODE = 599;
+
+    /** Metrics of one endpoint path, method, and status code. */
+    public static class Series {
+        public final String path;
+        public final String method;
+        public final int statusCode;
+        /** Its count is the count of requests. */
+        public final DnHistogram latency;
+        public final LongAdder requestBytes = new LongAdder();
+        public final LongAdder responseBytes = new LongAdder();
+
+        public Series(String path, String method, int statusCode) {
+            this.path = path;
+            this.method = method;
+            this.statusCode = statusCode;
+            this.latency = new DnHistogram(path);
+        }
+    }
+
+    /** Series of one endpoint path and method, indexed by status code. */
+    public static class MethodSeries {
+        public final String path;
+        public final String method;
+        final AtomicReferenceArray<Series> byStatusCode =
+                new AtomicReferenceArray<>(MAX_STATUS_CODE - MIN_STATUS_CODE + 1);
+
+        public MethodSeries(String path, String method) {
+            this.path = path;
+            this.method = method;
+        }
+
+        public Series getSeries(int statusCode) {
+            int index = statusCode - MIN_STATUS_CODE;
+            Series series = byStatusCode.get(index);
+            if (series == null) {
+                byStatusCode.compareAndSet(index, null, new Series(path, method, statusCode));
+                series = byStatusCode.get(index);
+            }
+            return series;
+        }
+    }
+
+    /** Keyed by endpoint path, then by method. */
+    final ConcurrentHashMap<String,ConcurrentHashMap<String,MethodSeries>> byPath = new ConcurrentHashMap<>();
+
+    public void record(String path, String method, int statusCode, long durationNanos, long requestBytes,
+            long responseBytes) {
+        if (path == null) {
+            path = UNMATCHED_PATH;
+        }
+        if (statusCode < MIN_STATUS_CODE || statusCode > MAX_STATUS_CODE) {
+            statusCode = DnException.INTERNAL_ERROR;
+        }
+        method = normalizeMethod(method);
+        var byMethod = byPath.get(path);
+        if (byMethod == null) {
+            byMethod = byPath.computeIfAbsent(path, p -> new ConcurrentHashMap<>());
+        }
+        var methodSeries = byMethod.get(method);
+        if (methodSeries == null) {
+            String p = path;
+            methodSeries = byMethod.computeIfAbsent(method, m -> new MethodSeries(p, m));
+        }
+        var series = methodSeries.getSeries(statusCode);
+        series.latency.record(durationNanos);
+        if (requestBytes > 0) {
+            series.requestBytes.add(requestBytes);
+        }
+        if (responseBytes > 0) {
+            series.responseBytes.add(responseBytes);
+        }
+    }
+
+    /** Maps the method onto one of the method constants, so callers cannot grow the number of keys. */
+    public static String normalizeMethod(String method) {
+        if (method == null) {
+            return OTHER_METHOD;
+        }
+        switch (method) {
+            case EPM_GET:
+                return EPM_GET;
+            case EPM_POST:
+                return EPM_POST;
+            case EPM_PUT:
+                return EPM_PUT;
+            case "DELETE":
+                return "DELETE";
+            case "HEAD":
+                return "HEAD";
+            case "OPTIONS":
+                return "OPTIONS";
+            case "PATCH":
+                return "PATCH";
+            default:
+                return OTHER_METHOD;
+        }
+    }
+
+    /** All series that have recorded a request, ordered by path, method, and status code. */
+    public List<Series> getAllSeries() {
+        List<Series> result = new ArrayList<>();
+        for (var byMethod : byPath.values()) {
+            for (var methodSeries : byMethod.values()) {
+                var byStatusCode = methodSeries.byStatusCode;
+                for (int i = 0; i < byStatusCode.length(); i++) {
+                    Series series = byStatusCode.get(i);
+                    if (series != null) {
+                        result.add(series);
+                    }
+                }
+            }
+        }
+        result.sort(Comparator.comparing((Series s) -> s.path).thenComparing(s -> s.method)
+                .thenComparingInt(s -> s.statusCode));
+        return result;
+    }
+
+    public void writePrometheus(DnPrometheusWriter writer) {
+        List<Series> allSeries = getAllSeries();
+        writer.startFamily("dn_http_requests_total", DnPrometheusWriter.COUNTER,
+                "Requests completed, by endpoint path, method, and status code.");
+        for (var s : allSeries) {
+            writer.sample("dn_http_requests_total", s.latency.getCount(), labels(s));
+        }
+        writer.startFamily("dn_http_request_duration_seconds", DnPrometheusWriter.HISTOGRAM,
+                "Time from the start of the request to the sending of its response.");
+        for (var s : allSeries) {
+            writer.histogram("dn_http_request_duration_seconds", s.latency, labels(s));
+        }
+        writer.startFamily("dn_http_request_bytes_total", DnPrometheusWriter.COUNTER,
+                "Bytes in the bodies of requests.");
+        for (var s : allSeries) {
+            writer.sample("dn_http_request_bytes_total", s.requestBytes.sum(), labels(s));
+        }
+        writer.startFamily("dn_http_response_bytes_total", DnPrometheusWriter.COUNTER,
+                "Bytes in the bodies of responses.");
+        for (var s : allSeries) {
+            writer.sample("dn_http_response_bytes_total", s.responseBytes.sum(), labels(s));
+        }
+    }
+
+    static String[] labels(Series s) {
+        return new String[]{"path", s.path, "method", s.method, "code", Integer.toString(s.statusCode)};
+    }
+}
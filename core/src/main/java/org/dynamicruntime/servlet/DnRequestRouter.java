@@ -0,0 +1,247 @@
+package org.dynamicruntime.servlet;
+
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.schemadef.DnEndpoint;
+import org.dynamicruntime.schemadef.DnSchemaStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Resolves a request path to its {@link ContextRootRules} and {@link DnEndpoint} in a single walk of a trie of
+ * path segments. The first level of the trie holds the context roots, the levels below hold the segments of
+ * endpoint paths. Segments are compared in place against the request path, so no strings are created for the
+ * segments that are matched literally.
+ *
+ * An endpoint path segment can be a path variable, written as *{name}* or *{name:int}*. The matched value is put
+ * into {@link Route#pathParams}, which the request service merges into the query parameters, so the endpoint
+ * sees it the same way as any other input. An *int* variable only matches digits and is delivered as a *Long*.
+ * Literal segments take precedence over variables.
+ *
+ * Endpoints are keyed by HTTP method at the node for their path. A request is only routed to an endpoint for its
+ * own method, so a literal path with an endpoint for a different method does not hide a variable path that has
+ * one for the request's method. Paths are matched exactly, a trailing slash does not match.
+ *
+ * A router is compiled from one {@link DnSchemaStore} and is replaced when the schema store is rebuilt.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnRequestRouter {
+    public static final String VAR_TYPE_INT = "int";
+    public static final String VAR_TYPE_STRING = "string";
+
+    /** The result of routing a request path. */
+    public static class Route {
+        public final ContextRootRules contextRules;
+        public final DnEndpoint endpoint;
+        /** Null if the path had no path variables. */
+        public final Map<String,Object> pathParams;
+
+        public Route(ContextRootRules contextRules, DnEndpoint endpoint, Map<String,Object> pathParams) {
+            this.contextRules = contextRules;
+            this.endpoint = endpoint;
+            this.pathParams = pathParams;
+        }
+    }
+
+    static class Node {
+        final String segment;
+        Node[] children = new Node[0];
+        Node varChild;
+        String varName;
+        String varType;
+        ContextRootRules contextRules;
+        /** Endpoints at this path, at most one per method. */
+        DnEndpoint[] endpoints = new DnEndpoint[0];
+
+        Node(String segment) {
+            this.segment = segment;
+        }
+
+        Node findChild(String path, int start, int end) {
+            int len = end - start;
+            for (Node child : children) {
+                String seg = child.segment;
+                if (seg.length() == len && path.regionMatches(start, seg, 0, len)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        Node getOrAddChild(String seg) {
+            for (Node child : children) {
+                if (child.segment.equals(seg)) {
+                    return child;
+                }
+            }
+            Node child = new Node(seg);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            return child;
+        }
+
+        DnEndpoint getEndpoint(String method) {
+            for (DnEndpoint endpoint : endpoints) {
+                if (endpoint.method.equals(method)) {
+                    return endpoint;
+                }
+            }
+            return null;
+        }
+
+        void addEndpoint(DnEndpoint endpoint) throws DnException {
+            if (getEndpoint(endpoint.method) != null) {
+                throw DnException.mkConv(String.format("Endpoint %s %s is defined more than once.",
+                        endpoint.method, endpoint.path));
+            }
+            endpoints = Arrays.copyOf(endpoints, endpoints.length + 1);
+            endpoints[endpoints.length - 1] = endpoint;
+        }
+
+        Node getOrAddVarChild(String name, String type, String endpointPath) throws DnException {
+            if (varChild == null) {
+                varChild = new Node(null);
+                varName = name;
+                varType = type;
+            } else if (!varName.equals(name) || !varType.equals(type)) {
+                throw DnException.mkConv(String.format("Path variable {%s:%s} in endpoint %s conflicts with " +
+                        "path variable {%s:%s} of another endpoint.", name, type, endpointPath, varName, varType));
+            }
+            return varChild;
+        }
+    }
+
+    public final DnSchemaStore schemaStore;
+    final Node root = new Node("");
+
+    public DnRequestRouter(DnSchemaStore schemaStore, Collection<ContextRootRules> contextRules)
+            throws DnException {
+        this.schemaStore = schemaStore;
+        for (var rules : contextRules) {
+            root.getOrAddChild(rules.contextRoot).contextRules = rules;
+        }
+        if (schemaStore != null) {
+            for (var endpoint : schemaStore.endpoints.values()) {
+                addEndpoint(endpoint);
+            }
+        }
+    }
+
+    void addEndpoint(DnEndpoint endpoint) throws DnException {
+        String path = endpoint.path;
+        Node node = root;
+        int pos = 1;
+        while (pos <= path.length()) {
+            int end = path.indexOf('/', pos);
+            if (end < 0) {
+                end = path.length();
+            }
+            String seg = path.substring(pos, end);
+            if (seg.length() > 2 && seg.charAt(0) == '{' && seg.charAt(seg.length() - 1) == '}') {
+                String var = seg.substring(1, seg.length() - 1);
+                int index = var.indexOf(':');
+                String name = (index > 0) ? var.substring(0, index) : var;
+                String type = (index > 0) ? var.substring(index + 1) : VAR_TYPE_STRING;
+                if (!type.equals(VAR_TYPE_STRING) && !type.equals(VAR_TYPE_INT)) {
+                    throw DnException.mkConv(String.format("Path variable %s in endpoint %s has unsupported " +
+                            "type %s.", name, path, type));
+                }
+                node = node.getOrAddVarChild(name, type, path);
+            } else {
+                node = node.getOrAddChild(seg);
+            }
+            pos = end + 1;
+        }
+        node.addEndpoint(endpoint);
+    }
+
+    /** Routes a request with its HTTP method and path, which starts with a slash. The returned route has null
+     * *contextRules* if the first segment is not a known context root, and a null *endpoint* if no endpoint
+     * matched. */
+    public Route route(String method, String path) {
+        Node rootNode = null;
+        if (path.length() > 1 && path.charAt(0) == '/') {
+            int end = path.indexOf('/', 1);
+            if (end < 0) {
+                end = path.length();
+            }
+            rootNode = root.findChild(path, 1, end);
+            if (rootNode != null && end < path.length()) {
+                List<Object> vars = new ArrayList<>(0);
+                DnEndpoint endpoint = match(rootNode, method, path, end + 1, vars);
+                if (endpoint != null) {
+                    return new Route(rootNode.contextRules, endpoint, toPathParams(vars));
+                }
+            }
+        }
+        return new Route((rootNode != null) ? rootNode.contextRules : null, null, null);
+    }
+
+    /** Matches the rest of the path starting at *pos*, collecting variable names and values into *vars*.
+     * Tries literal segments first and falls back to the variable, if there is one. */
+    DnEndpoint match(Node node, String method, String path, int pos, List<Object> vars) {
+        int end = path.indexOf('/', pos);
+        boolean isLast = end < 0;
+        if (isLast) {
+            end = path.length();
+        }
+        Node child = node.findChild(path, pos, end);
+        if (child != null) {
+            DnEndpoint result = isLast ? child.getEndpoint(method) : match(child, method, path, end + 1, vars);
+            if (result != null) {
+                return result;
+            }
+        }
+        if (node.varChild != null && end > pos) {
+            Object value = extractValue(path, pos, end, node.varType);
+            if (value == null) {
+                return null;
+            }
+            int size = vars.size();
+            vars.add(node.varName);
+            vars.add(value);
+            Node varNode = node.varChild;
+            DnEndpoint result = isLast ? varNode.getEndpoint(method) : match(varNode, method, path, end + 1, vars);
+            if (result != null) {
+                return result;
+            }
+            vars.subList(size, vars.size()).clear();
+        }
+        return null;
+    }
+
+    static Object extractValue(String path, int start, int end, String type) {
+        if (type.equals(VAR_TYPE_INT)) {
+            // Parse in place, and reject anything too long to be a long.
+            if (end - start > 18) {
+                return null;
+            }
+            long val = 0;
+            for (int i = start; i < end; i++) {
+                char ch = path.charAt(i);
+                if (ch < '0' || ch > '9') {
+                    return null;
+                }
+                val = val * 10 + (ch - '0');
+            }
+            return val;
+        }
+        return path.substring(start, end);
+    }
+
+    static Map<String,Object> toPathParams(List<Object> vars) {
+        if (vars.isEmpty()) {
+            return null;
+        }
+        Map<String,Object> params = mMapT();
+        for (int i = 0; i < vars.size(); i += 2) {
+            params.put((String)vars.get(i), vars.get(i + 1));
+        }
+        return params;
+    }
+}
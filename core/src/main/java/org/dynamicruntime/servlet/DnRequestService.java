@@ -9,6 +9,7 @@ import org.dynamicruntime.node.DnCoreNodeService;
 import org.dynamicruntime.request.DnRequestCxt;
 import org.dynamicruntime.request.DnRequestInfo;
 import org.dynamicruntime.schemadef.DnEndpoint;
+import org.dynamicruntime.schemadef.DnEndpointFunction;
 import org.dynamicruntime.schemadef.DnSchemaService;
 import org.dynamicruntime.schemadef.DnSchemaValidator;
 import org.dynamicruntime.schemadef.DnType;
@@ -16,7 +17,9 @@ import org.dynamicruntime.startup.ServiceInitializer;
 import org.dynamicruntime.user.UserAuthCookie;
 import org.dynamicruntime.user.UserAuthData;
 import org.dynamicruntime.user.UserAuthHook;
+import org.dynamicruntime.util.DnCache;
 import org.dynamicruntime.util.DnDateUtil;
+import org.dynamicruntime.util.DnRateLimiter;
 import org.dynamicruntime.util.IpLocationUtil;
 
 import static org.dynamicruntime.user.UserConstants.*;
@@ -25,6 +28,7 @@ import static org.dynamicruntime.util.ConvertUtil.*;
 import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*;
 
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +54,20 @@ public class DnRequestService implements ServiceInitializer {
     public List<String> userRoots = mList(USER_ROOT);
     public List<String> adminRoots = mList("node", "admin");
     public DnCoreNodeService coreNode;
+    /** Compiled from the current schema store, see {@link #getRouter}. */
+    public volatile DnRequestRouter router;
+    /** Auth cookies already decrypted and parsed, keyed by the encrypted cookie value. A browser sends the
+     * same cookie with every request, so most requests skip the decryption. Null if turned off. */
+    public DnCache<String,UserAuthCookie> authCookieCache;
+    /** Upper bound on how long a decrypted cookie is kept, entries are also dropped when the cookie expires. */
+    public int authCookieCacheSecs = 3600;
+    /** Version of the key ring when the cookies in the cache were decrypted. */
+    public volatile long authCookieKeysVersion = -1;
+    /** How long an asynchronous endpoint has to complete before the request fails. */
+    public long asyncTimeoutMillis = 60000;
+    /** Counts, latencies, and sizes of completed requests, served by the node metrics endpoint. Null if turned
+     * off. */
+    public DnRequestMetrics requestMetrics;
     public boolean isInit = false;
 
     public static DnRequestService get(DnCxt cxt) {
@@ -85,7 +103,9 @@ public class DnRequestService implements ServiceInitializer {
         // configuration to control top-level behavior. It will also determine which node does
         // what type of functionality.
         for (var anonRoot : anonRoots) {
-            contextRulesMap.put(anonRoot, new ContextRootRules(anonRoot, false, null));
+            var rules = new ContextRootRules(anonRoot, false, null);
+            rules.isWebRoot = WEB_ROOTS.contains(anonRoot);
+            contextRulesMap.put(anonRoot, rules);
         }
         for (var userRoot : userRoots) {
             contextRulesMap.put(userRoot, new ContextRootRules(userRoot, true, ROLE_USER));
@@ -94,10 +114,97 @@ public class DnRequestService implements ServiceInitializer {
             contextRulesMap.put(adminRoot,
                     new ContextRootRules(adminRoot, false, ROLE_ADMIN));
         }
+        int maxAuthCookies = (int)DnConfigUtil.getConfigLong(cxt, "request.authCookieCache.maxItems", 10000,
+                "Maximum number of decrypted auth cookies to cache, zero turns off the cache.");
+        if (maxAuthCookies > 0) {
+            authCookieCache = new DnCache<>("authCookies", maxAuthCookies);
+            coreNode.addStatsSource("request.authCookieCache", authCookieCache::getStats);
+        }
+        authCookieCacheSecs = (int)DnConfigUtil.getConfigLong(cxt, "request.authCookieCache.timeoutSecs",
+                authCookieCacheSecs, "Maximum seconds a decrypted auth cookie is cached.");
+        asyncTimeoutMillis = DnConfigUtil.getConfigLong(cxt, "request.asyncTimeoutMillis", asyncTimeoutMillis,
+                "Milliseconds an asynchronous endpoint has to complete before its request fails.");
+        if (DnConfigUtil.getConfigBool(cxt, "request.metrics.enabled", true,
+                "Whether request counts, latencies, and sizes are recorded by endpoint.")) {
+            requestMetrics = new DnRequestMetrics();
+        }
+        // Off by default. Behind a load balancer or proxy that does not set the forwarded for header, every
+        // request appears to come from the same address.
+        if (DnConfigUtil.getConfigBool(cxt, "request.rateLimit.enabled", false,
+                "Whether requests are rate limited per IP address and per user.")) {
+            for (var contextRules : contextRulesMap.values()) {
+                configureRateLimits(cxt, contextRules);
+            }
+            coreNode.addStatsSource("request.rateLimits", this::getRateLimitStats);
+        }
         isInit = true;
     }
 
-    public void handleRequest(DnCxt cxt, DnRequestHandler handler) throws IOException, DnException {
+    /** Creates the rate limiters for a context root. Limits are configured for all context roots with keys such
+     * as *request.rateLimit.ipPerSecond* and can be overridden for a particular context root with keys such as
+     * *request.rateLimit.admin.ipPerSecond*. A rate of zero turns off the limit. */
+    public void configureRateLimits(DnCxt cxt, ContextRootRules contextRules) throws DnException {
+        String root = contextRules.contextRoot;
+        int maxKeys = (int)DnConfigUtil.getConfigLong(cxt, "request.rateLimit.maxKeys", 100000,
+                "Maximum number of IP addresses or users tracked by a rate limiter.");
+        long ipPerSecond = getRateLimitConfig(cxt, root, "ipPerSecond", 20,
+                "Sustained requests per second allowed from one IP address.");
+        long ipBurst = getRateLimitConfig(cxt, root, "ipBurst", 200,
+                "Requests allowed from one IP address in a burst.");
+        long userPerSecond = getRateLimitConfig(cxt, root, "userPerSecond", 10,
+                "Sustained requests per second allowed for one user.");
+        long userBurst = getRateLimitConfig(cxt, root, "userBurst", 100,
+                "Requests allowed for one user in a burst.");
+        contextRules.ipRateLimiter = (ipPerSecond > 0) ?
+                new DnRateLimiter(root + ".ip", ipPerSecond, (int)ipBurst, maxKeys) : null;
+        contextRules.userRateLimiter = (userPerSecond > 0) ?
+                new DnRateLimiter(root + ".user", userPerSecond, (int)userBurst, maxKeys) : null;
+    }
+
+    public List<Map<String,Object>> getRateLimitStats() {
+        List<Map<String,Object>> stats = mList();
+        for (var contextRules : contextRulesMap.values()) {
+            if (contextRules.ipRateLimiter != null) {
+                stats.add(contextRules.ipRateLimiter.getStats());
+            }
+            if (contextRules.userRateLimiter != null) {
+                stats.add(contextRules.userRateLimiter.getStats());
+            }
+        }
+        stats.sort(Comparator.comparing(m -> (String)m.get("name")));
+        return stats;
+    }
+
+    /** Throws the exception that turns away a rate limited request, with the *Retry-After* computed from
+     * the limiter. These can come in at a high rate, so the exception has no stack trace. */
+    void rejectRateLimited(DnRequestHandler handler, long waitNanos, String msg) throws DnException {
+        handler.retryAfterSecs = (int)Math.max((waitNanos + 999999999L)/1000000000L, 1);
+        throw DnException.mkStackless(msg, DnException.TOO_MANY_REQUESTS, DnException.SYSTEM, DnException.CODE);
+    }
+
+    long getRateLimitConfig(DnCxt cxt, String root, String name, long dflt, String description)
+            throws DnException {
+        long val = DnConfigUtil.getConfigLong(cxt, "request.rateLimit." + name, dflt, description);
+        return DnConfigUtil.getConfigLong(cxt, "request.rateLimit." + root + "." + name, val,
+                description + " Applies to context root *" + root + "*.");
+    }
+
+    /** Handles the request and records it in {@link #requestMetrics} once its response has been sent. Failures
+     * are sent as error responses here, so that they are recorded with the status code that was sent. */
+    public void handleRequest(DnCxt cxt, DnRequestHandler handler) {
+        handler.requestMetrics = requestMetrics;
+        try {
+            routeRequest(cxt, handler);
+        } catch (Throwable t) {
+            handler.handleException(cxt, t);
+        }
+        if (!handler.isAsync()) {
+            // Asynchronous requests are recorded when they finish.
+            handler.recordMetrics(cxt);
+        }
+    }
+
+    public void routeRequest(DnCxt cxt, DnRequestHandler handler) throws IOException, DnException {
         String target = handler.target;
         String contextRoot = handler.contextRoot;
         String subTarget = handler.subTarget;
@@ -113,12 +220,14 @@ public class DnRequestService implements ServiceInitializer {
             } else {
                 redirectUrlSuffix = "/html/endpoints.html";
             }
+            handler.metricsPath = target;
             handler.sendRedirect("/" + CONTENT_ROOT + redirectUrlSuffix);
             handler.logSuccess(cxt, handler.rptStatusCode);
             return;
         }
         if (target.equals("/favicon.ico")) {
-            contextRoot = "content";
+            target = "/content/images/favicon.ico";
+            contextRoot = CONTENT_ROOT;
             subTarget = "images/favicon.ico";
         }
         if (subTarget == null || subTarget.isEmpty()) {
@@ -129,21 +238,47 @@ public class DnRequestService implements ServiceInitializer {
                         DnException.NOT_FOUND, DnException.SYSTEM, DnException.CODE);
             }
         }
-        ContextRootRules contextRules = contextRulesMap.get(contextRoot);
+        // Resolve context root and endpoint in one walk of the routing trie.
+        DnRequestRouter.Route route = getRouter(cxt).route(method, target);
+        ContextRootRules contextRules = route.contextRules;
         if (contextRules == null) {
             throw new DnException("Path does not target one of the supported context roots.", null,
                     DnException.NOT_FOUND, DnException.SYSTEM, DnException.CODE);
 
         }
         handler.contextRules = contextRules;
+        handler.metricsPath = (route.endpoint != null) ? route.endpoint.path : contextRules.metricsPath;
+
+        // Shed abusive callers before doing any parsing work. Internal addresses are not limited.
+        String forwardedFor = cxt.forwardedFor;
+        if (contextRules.ipRateLimiter != null && !coreNode.checkIsInternalAddress(forwardedFor)) {
+            long wait = contextRules.ipRateLimiter.acquireOrGetWait(forwardedFor, System.nanoTime());
+            if (wait > 0) {
+                rejectRateLimited(handler, wait, "Too many requests from IP address " + forwardedFor + ".");
+            }
+        }
 
         // Request is legitimate enough to decode the request data in the query string parameters
         // and in the JSON request body (if one is provided).
         handler.decodeRequestData();
+        if (route.pathParams != null) {
+            // Path variables take precedence over query string parameters of the same name. They are applied
+            // again over the request body when the endpoint is executed.
+            handler.pathParams = route.pathParams;
+            handler.queryParams.putAll(route.pathParams);
+        }
 
         // Call hook to fill in initial user information.
         extractAuth(cxt, handler);
 
+        if (contextRules.userRateLimiter != null && cxt.userProfile != null) {
+            long userId = cxt.userProfile.userId;
+            long wait = contextRules.userRateLimiter.acquireOrGetWait(Long.toString(userId), System.nanoTime());
+            if (wait > 0) {
+                rejectRateLimited(handler, wait, "Too many requests for user " + userId + ".");
+            }
+        }
+
         // Apply security rules to context rules. Note that this security check is done before
         // we forward to other nodes. This means other non-proxy nodes do not have to worry about
         // basic security issues, simplifying their implementations to focus purely on their
@@ -227,7 +362,7 @@ public class DnRequestService implements ServiceInitializer {
         int code = DnException.OK;
 
         // First up, we handle the serving up of files.
-        if (method.equals("GET") && WEB_ROOTS.contains(contextRoot)) {
+        if (method.equals("GET") && contextRules.isWebRoot) {
             DnContentService contentService = DnContentService.get(cxt);
             if (contentService != null) {
                 DnContentData content;
@@ -247,22 +382,22 @@ public class DnRequestService implements ServiceInitializer {
                 if (content.immutable) {
                     handler.setResponseHeader("Cache-Control",
                             "public, immutable, max-age=3153600");
-                    handler.setResponseHeader("Etag", DnRequestHandler.ETAG_NEVER_CHANGES);
-                }
-                if (content.isBinary) {
-                    handler.sendBinaryResponse(content.binaryContent, code, content.mimeType);
-                } else {
-                    handler.sendStringResponse(content.strContent, code, content.mimeType);
                 }
+                handler.sendContentResponse(content);
+                // May be a 304 or a 206.
+                code = handler.rptStatusCode;
             }
         }
 
         // Next handle endpoints.
         if (!handler.sentResponse) {
-            var schemaStore = cxt.getSchema();
-            DnEndpoint endpoint = schemaStore.endpoints.get(target);
-            if (endpoint != null && endpoint.method.equals(method)) {
+            DnEndpoint endpoint = route.endpoint;
+            if (endpoint != null) {
                 executeEndpoint(cxt, handler, endpoint);
+                if (handler.isAsync()) {
+                    // Response and logging are done when the endpoint completes.
+                    return;
+                }
             }
         }
 
@@ -278,6 +413,18 @@ public class DnRequestService implements ServiceInitializer {
         }
     }
 
+    /** Gets the router for the current schema store, compiling a new one if the schema store has been
+     * rebuilt since the last one was compiled. */
+    public DnRequestRouter getRouter(DnCxt cxt) throws DnException {
+        var schemaStore = cxt.getSchema();
+        DnRequestRouter r = router;
+        if (r == null || r.schemaStore != schemaStore) {
+            r = new DnRequestRouter(schemaStore, contextRulesMap.values());
+            router = r;
+        }
+        return r;
+    }
+
     public void extractAuth(DnCxt cxt, DnRequestHandler handler) throws DnException {
         // Check for auth cookie.
         Map<String,String> cookies = handler.getRequestCookies();
@@ -285,8 +432,8 @@ public class DnRequestService implements ServiceInitializer {
         if (encryptedCookie != null && encryptedCookie.length() > 10) {
             // A valid auth cookie.
             try {
-                String decodedCookie = coreNode.decryptString(encryptedCookie);
-                handler.userAuthCookie = UserAuthCookie.extract(decodedCookie);
+                handler.userAuthCookie = getAuthCookie(cxt, encryptedCookie);
+                handler.authCookieNeedsReencrypt = coreNode.needsReencrypt(cxt, encryptedCookie);
             } catch (DnException e) {
                 LogServlet.log.debug(cxt, "Failed to decrypt and unpack cookie. " + e.getFullMessage());
             }
@@ -304,6 +451,29 @@ public class DnRequestService implements ServiceInitializer {
         }
     }
 
+    /** Decrypts and parses an auth cookie, using the cache of cookies already seen. The cache holds the full
+     * cookie value as its key, so a cookie is only matched by an identical value. Cookies that have expired
+     * are not kept. */
+    public UserAuthCookie getAuthCookie(DnCxt cxt, String encryptedCookie) throws DnException {
+        var cache = authCookieCache;
+        if (cache == null) {
+            return UserAuthCookie.extract(coreNode.decryptString(cxt, encryptedCookie));
+        }
+        long keysVersion = coreNode.nodeData.keyRing.version;
+        if (keysVersion != authCookieKeysVersion) {
+            // A key may have been removed, cookies encrypted with it are no longer valid.
+            cache.clearCache();
+            authCookieKeysVersion = keysVersion;
+        }
+        var authCookie = cache.getItem(encryptedCookie, authCookieCacheSecs, false,
+                existing -> UserAuthCookie.extract(coreNode.decryptString(cxt, encryptedCookie)));
+        if (!cxt.now().before(authCookie.expireDate)) {
+            cache.remove(encryptedCookie);
+        }
+        // Callers are free to change the cookie they are given.
+        return authCookie.copy();
+    }
+
     public void loadProfile(DnCxt cxt, DnRequestHandler handler) throws DnException {
         // In a mature implementation, the data for the profile will be pulled most of the time from
         // cache.
@@ -315,10 +485,15 @@ public class DnRequestService implements ServiceInitializer {
     public void checkAddAuthCookies(DnCxt cxt, DnRequestHandler handler) throws DnException {
         // The hook call may also set a AUTH_COOKIE_NAME cookie (if doing a logout for example).
         UserAuthHook.prepAuthCookies.callHook(cxt, this, handler);
+        if (handler.authCookieNeedsReencrypt && !handler.isLogout && handler.userAuthCookie != null &&
+                cxt.now().before(handler.userAuthCookie.expireDate)) {
+            // The encryption key has been rotated, send the same cookie back encrypted with the active key.
+            handler.setAuthCookie = true;
+        }
         if (handler.setAuthCookie && handler.userAuthCookie != null) {
             var authCookie = handler.userAuthCookie;
             String cookieString = authCookie.toString();
-            String cookieVal = coreNode.encryptString(cookieString);
+            String cookieVal = coreNode.encryptString(cxt, cookieString);
             // Let old cookies hang out for 400 days, even if the cookie only provides a login
             // for day or so.
             Date cookieExpireDate = DnDateUtil.addDays(authCookie.modifiedDate, 400);
@@ -341,9 +516,21 @@ public class DnRequestService implements ServiceInitializer {
         if (handler.postData != null )  {
              data.putAll(handler.postData);
         }
+        if (handler.pathParams != null) {
+            // The path identifies the resource, so the request body may not point the request at another one.
+            for (var entry : handler.pathParams.entrySet()) {
+                Object bodyVal = (handler.postData != null) ? handler.postData.get(entry.getKey()) : null;
+                if (bodyVal != null && !bodyVal.toString().equals(entry.getValue().toString())) {
+                    throw DnException.mkInput(String.format("Request body value %s for *%s* conflicts with " +
+                            "value %s in the request path.", bodyVal, entry.getKey(), entry.getValue()));
+                }
+                data.put(entry.getKey(), entry.getValue());
+            }
+        }
         Map<String,Object> requestData;
         try {
-            requestData = validator.validateAndCoerce(in, data);
+            requestData = (endpoint.inTypePlan != null) ? validator.validateAndCoerce(endpoint.inTypePlan, data) :
+                    validator.validateAndCoerce(in, data);
         } catch (DnException e) {
             if (DnException.CONVERSION.equals(e.activity)) {
                 throw DnException.mkInput("Validation failure in request data.", e);
@@ -360,13 +547,33 @@ public class DnRequestService implements ServiceInitializer {
                 handler.queryParams, handler.postData);
 
         // Execute request.
-        endpoint.endpointFunction.executeRequest(requestCxt);
+        var endpointFunction = endpoint.endpointFunction;
+        if (endpointFunction.isAsync()) {
+            var future = endpointFunction.executeAsyncRequest(requestCxt);
+            if (!future.isDone() && handler.startAsync(cxt, asyncTimeoutMillis)) {
+                // Release this thread. The response is sent by whichever thread completes the future.
+                future.whenComplete((result, t) -> handler.finishAsync(cxt, () -> {
+                    completeEndpoint(requestCxt, endpoint, handler);
+                    if (handler.logSuccess) {
+                        handler.logSuccess(cxt, DnException.OK);
+                    }
+                }, (t != null) ? DnEndpointFunction.toDnException(t) : null));
+                return;
+            }
+            DnEndpointFunction.waitFor(future);
+        } else {
+            endpointFunction.executeRequest(requestCxt);
+        }
+        completeEndpoint(requestCxt, endpoint, handler);
+    }
 
+    void completeEndpoint(DnRequestCxt requestCxt, DnEndpoint endpoint, DnRequestHandler handler)
+            throws DnException {
         if (!handler.sentResponse) {
             prepareAndSendResponse(requestCxt, endpoint.outType, handler);
-            if (!requestCxt.logRequest) {
-                handler.logSuccess = false;
-            }
+        }
+        if (!requestCxt.logRequest) {
+            handler.logSuccess = false;
         }
     }
 
@@ -409,7 +616,7 @@ public class DnRequestService implements ServiceInitializer {
         checkAddAuthCookies(requestCxt.cxt, handler);
 
         int code = requestCxt.didCreation ? DnException.OK_CREATED : DnException.OK;
-        handler.sendJsonResponse(response, code);
+        handler.sendJsonResponse(response, out, requestCxt.cxt.getSchema(), code);
         handler.sentResponse = true;
     }
 
@@ -16,6 +16,7 @@ import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -23,6 +24,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executors;
 
 import static org.dynamicruntime.util.DnCollectionUtil.mList;
 
@@ -66,10 +68,35 @@ public class DnServer extends ContextHandler {
         }
     }
 
+    /**
+     * Creates the thread pool that runs requests. Requests spend most of their time blocked. They wait for
+     * a database session, wait on JDBC round trips, wait on calls to other services, and wait on password hashing.
+     * With platform threads, the number of requests that can be in progress at once is bounded by
+     * *server.maxThreads*. In virtual thread mode, Jetty still uses the platform threads of the pool for its
+     * selectors and I/O, but hands each request to its own virtual thread. Blocking then only parks the virtual
+     * thread, and the limits that matter are the real ones, such as the number of database connections.
+     */
+    public static QueuedThreadPool createThreadPool(DnCxt cxt) throws DnException {
+        int maxThreads = (int)DnConfigUtil.getConfigLong(cxt, "server.maxThreads", 200,
+                "Maximum number of platform threads in the thread pool of the web server.");
+        boolean useVirtualThreads = DnConfigUtil.getConfigBool(cxt, "server.virtualThreads", false,
+                "Whether requests are run on virtual threads instead of threads from the thread pool.");
+        var threadPool = new QueuedThreadPool(maxThreads);
+        threadPool.setName("DnServer");
+        if (useVirtualThreads) {
+            threadPool.setVirtualThreadsExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            LogServlet.log.debug(cxt, "Web server requests are run on virtual threads.");
+        }
+        return threadPool;
+    }
+
     public static void launch(DnCxt cxt) throws DnException {
         DnNodeId nodeId = DnNodeUtil.extractNodeId(cxt);
 
-        Server server = new Server(nodeId.port);
+        Server server = new Server(createThreadPool(cxt));
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(nodeId.port);
+        server.addConnector(connector);
         new DnServer(server);
         var sslPath = DnConfigUtil.getConfigString(cxt, "ssl.keystore", null, "Location of SSL Key Store");
         var sslPassword = DnConfigUtil.getPrivateStr(cxt, "ssl.password");
@@ -26,6 +26,9 @@ public class DnSqlStatement {
     public final Map<String, DnField> fields;
     public final String[] bindFields;
     public boolean returnGeneratedKeys;
+    /** Whether query results are returned as {@link SqlRow} objects instead of *LinkedHashMap* objects. Worth
+     * setting for queries that run often or whose rows are cached. */
+    public boolean compactRows;
 
     public DnSqlStatement(String shard, String topic, String name, String originalSql, String sql,
             List<DnField> fields, List<String> bindFields) {
@@ -11,6 +11,9 @@ public class SqlBoundStatement {
     public final SqlColumnAliases aliases;
     public final Connection conn;
     public final PreparedStatement stmt;
+    /** The columns returned by the statement if it is a query. Filled in by the first execution of the query,
+     * the columns do not change after that. */
+    public SqlRowColumns rowColumns;
 
     public SqlBoundStatement(DnSqlStatement dnSql, SqlColumnAliases aliases, Connection conn,
             PreparedStatement stmt) {
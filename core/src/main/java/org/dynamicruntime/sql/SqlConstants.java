@@ -6,6 +6,13 @@ public class SqlConstants {
     public final static String HOSTNAME = "hostname";
     public final static String DATABASE = "database";
     public final static String NUM_CONNECTIONS = "numConnections";
+    public final static String MIN_CONNECTIONS = "minConnections";
+    public final static String MAX_CONNECTION_AGE_SECS = "maxConnectionAgeSecs";
+    public final static String IDLE_TIMEOUT_SECS = "idleTimeoutSecs";
+    public final static String VALIDATION_INTERVAL_SECS = "validationIntervalSecs";
+    public final static String POOL_CHECK_INTERVAL_SECS = "poolCheckIntervalSecs";
+    public final static String BATCH_SIZE = "batchSize";
+    public final static String FETCH_SIZE = "fetchSize";
     public final static String PASSWORD_KEY = "passwordKey";
     public final static String DB_TYPE = "dbType";
 
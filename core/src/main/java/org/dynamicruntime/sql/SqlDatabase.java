@@ -11,6 +11,8 @@ import java.sql.*;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*;
@@ -30,9 +32,38 @@ public class SqlDatabase {
     public final SqlDbOptions options;
     private final Map<String,SqlColumnAliases> topicAliases = mMapT();
 
+    /** Idle sessions. A session holds at most one connection which is created when the session is first
+     * used and may be closed by the {@link SqlPoolMaintainer}, so the number of open connections varies between
+     * *minConnections* and *maxConnections*. */
     public final ArrayBlockingQueue<SqlSession> connections;
+    public final int maxConnections;
     public boolean isDebug = false;
 
+    //
+    // Pool maintenance settings. Only used if the pool maintainer has been started.
+    //
+    /** Number of connections the maintainer keeps open, including at startup. */
+    public int minConnections = 0;
+    /** Connections older than this are closed when idle so that connections get spread out across
+     * database servers after a failover or load balancer change. */
+    public long maxConnectionAgeMillis = 30 * 60 * 1000L;
+    /** Connections idle longer than this are closed, as long as *minConnections* are still open. */
+    public long idleTimeoutMillis = 10 * 60 * 1000L;
+    /** Connections that have not been used or checked for this long are checked with *Connection.isValid*
+     * before being handed out. */
+    public long validationIntervalMillis = 30 * 1000L;
+    public int validationTimeout = 2; // Number of seconds to wait for *Connection.isValid*.
+    public SqlPoolMaintainer poolMaintainer;
+
+    //
+    // Pool statistics.
+    //
+    public final AtomicInteger openConnections = new AtomicInteger();
+    public final LongAdder connectionsCreated = new LongAdder();
+    public final LongAdder connectionsRetired = new LongAdder();
+    public final LongAdder connectionsFailedValidation = new LongAdder();
+    public final SqlDbMetrics metrics = new SqlDbMetrics();
+
     /** If these timeout values need to be configurable, add additional methods to this class. */
     // One minute has been a good value for a long time for query timeout. Sometimes there is a belief that the
     // timeout can be tuned to a lower value, but eventually the value gets put back to one minute.
@@ -40,6 +71,14 @@ public class SqlDatabase {
     // Poll timeout can be short because if the session pool is getting starved, you are probably in a death
     // spiral already and there is no point delaying the inevitable failures.
     public int pollWaitTime = 2; // Number of seconds to wait for a connection to be available.
+    // Large enough to remove most of the round trips, small enough that the driver does not build up
+    // huge requests.
+    public int batchSize = 100; // Maximum number of rows sent to the database in one batch.
+    // Only used by queries that stream their results. The default for most drivers is to fetch every row
+    // before returning the first one.
+    public int fetchSize = 500; // Number of rows fetched from the database at a time.
+    // Queries that collect rows into a list stop at this many rows.
+    public int maxQueryRows = 100000;
 
     public SqlDatabase(String dbName, Driver driver, String connectionUrl, Properties connectionProperties,
             Map<String,DnField> reservedFields, SqlDbOptions options, int maxConnections) {
@@ -49,6 +88,7 @@ public class SqlDatabase {
         this.connectionProperties = connectionProperties;
         this.reservedFields = reservedFields;
         this.options = options;
+        this.maxConnections = maxConnections;
         this.connections = new ArrayBlockingQueue<>(maxConnections, true);
         for (int i = 0; i < maxConnections; i++) {
             connections.add(new SqlSession(this));
@@ -126,6 +166,7 @@ public class SqlDatabase {
         var sqlSession = SqlSession.get(cxt);
         boolean assignedIt = false;
         if (sqlSession == null) {
+            long startWait = System.nanoTime();
             try {
                 sqlSession = connections.poll(pollWaitTime, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
@@ -133,17 +174,23 @@ public class SqlDatabase {
                         String.format("Interrupted while waiting for SQL connection in database %s.", dbName),
                         e, DnException.INTERNAL_ERROR, DnException.DATABASE, DnException.INTERRUPTED);
             }
+            long acquiredTime = System.nanoTime();
             if (sqlSession == null) {
+                metrics.recordAcquireTimeout(acquiredTime - startWait);
                 throw new DnException(String.format("Unable to get database connection for " +
                         "database %s after waiting %d seconds.", dbName, pollWaitTime), null,
                         DnException.INTERNAL_ERROR, DnException.DATABASE, DnException.CONNECTION);
             }
+            metrics.recordAcquire(acquiredTime - startWait);
             assignedIt = true;
             cxt.session.put(SqlSession.SQL_SESSION, sqlSession);
             sqlSession.isBeingUsed = true;
+            sqlSession.acquiredNanos = acquiredTime;
+            sqlSession.holdTopic = null;
         }
         try {
             if (assignedIt) {
+                checkValidOnBorrow(sqlSession);
                  // Make sure connection is initialized (and give it a chance to throw an error).
                 sqlSession.getSessionStartConnection();
             }
@@ -151,19 +198,60 @@ public class SqlDatabase {
         } catch (DnException e) {
             if (e.source.equals(DnException.DATABASE) && (e.activity.equals(DnException.IO) ||
                     e.activity.equals(DnException.CONNECTION))) {
-                // At some point, may want to set more than this session invalid.
                 sqlSession.setInvalid();
+                // If the database failed over, the other idle connections are probably dead as well.
+                // Have them checked now rather than letting each one fail a request.
+                if (poolMaintainer != null) {
+                    poolMaintainer.requestValidation();
+                }
             }
             throw e;
         } finally {
             if (assignedIt) {
                 cxt.session.remove(SqlSession.SQL_SESSION);
                 sqlSession.isBeingUsed = false;
+                metrics.recordRelease(sqlSession, System.nanoTime() - sqlSession.acquiredNanos);
                 connections.offer(sqlSession);
             }
         }
     }
 
+    /** A connection that has sat idle may have been dropped by the database or by a failover. Checking it
+     * costs a round trip, so it is only done if it has not been used or checked recently. */
+    public void checkValidOnBorrow(SqlSession sqlSession) {
+        if (poolMaintainer == null || sqlSession.conn == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - Math.max(sqlSession.lastAccess, sqlSession.lastValidated) > validationIntervalMillis) {
+            if (!sqlSession.checkValid(validationTimeout)) {
+                connectionsFailedValidation.increment();
+            }
+        }
+    }
+
+    /** Starts the background thread that validates, retires, and pre-warms connections. */
+    public void startPoolMaintenance(DnCxt cxt, long checkIntervalMillis) {
+        poolMaintainer = new SqlPoolMaintainer(cxt, this, checkIntervalMillis);
+        poolMaintainer.prewarm();
+        poolMaintainer.start();
+    }
+
+    public Map<String,Object> getPoolStats() {
+        int idle = connections.size();
+        var stats = mMap("dbName", dbName, "maxConnections", maxConnections, "minConnections", minConnections,
+                "openConnections", openConnections.get(), "activeSessions", metrics.inUseSessions.get(),
+                "idleSessions", idle, "connectionsCreated", connectionsCreated.sum(),
+                "connectionsRetired", connectionsRetired.sum(),
+                "connectionsFailedValidation", connectionsFailedValidation.sum(),
+                "pollWaitTime", pollWaitTime);
+        if (poolMaintainer != null) {
+            stats.put("connectionsCreatedPerMinute", poolMaintainer.creationsPerMinute);
+        }
+        stats.putAll(metrics.toMap());
+        return stats;
+    }
+
     public void withTran(DnCxt cxt, SqlFunction function) throws DnException {
         var sqlSession = SqlSession.get(cxt);
         if (sqlSession != null) {
@@ -268,10 +356,13 @@ public class SqlDatabase {
         SqlSession sqlSession = getMustExist(cxt);
         SqlBoundStatement boundStmt = sqlSession.checkAndGetStatement(stmt);
         var pStmt = getAndBindPreparedStatement(cxt, boundStmt, data);
+        long start = System.nanoTime();
         try {
             return pStmt.executeUpdate();
         } catch (SQLException e) {
             throw SqlStmtUtil.mkDnException(String.format("Could not execute query %s", stmt.name), e);
+        } finally {
+            metrics.recordStatement(sqlSession, stmt, System.nanoTime() - start);
         }
     }
 
@@ -281,6 +372,7 @@ public class SqlDatabase {
         SqlSession sqlSession = getMustExist(cxt);
         SqlBoundStatement boundStmt = sqlSession.checkAndGetStatement(stmt);
         var pStmt = getAndBindPreparedStatement(cxt, boundStmt, data);
+        long start = System.nanoTime();
         try {
             int result = pStmt.executeUpdate();
             if (result > 0 && counterValue != null) {
@@ -296,49 +388,191 @@ public class SqlDatabase {
             return result;
         } catch (SQLException e) {
             throw SqlStmtUtil.mkDnException(String.format("Could not execute query %s", stmt.name), e);
+        } finally {
+            metrics.recordStatement(sqlSession, stmt, System.nanoTime() - start);
         }
 
     }
 
-    /** General mechanism to query for rows. */
+    /** Executes an insert or update once for each row, sending the rows to the database in batches of
+     * *batchSize* rather than doing a round trip per row. The rows are executed in a transaction (or as part of
+     * the current one) so a failure leaves none of them applied. Returns the update count for each row. */
+    public int[] executeDnStatementBatch(DnCxt cxt, DnSqlStatement stmt, List<Map<String,Object>> rows)
+            throws DnException {
+        return executeDnStatementBatch(cxt, stmt, rows, null);
+    }
+
+    /** Same as {@link #executeDnStatementBatch(DnCxt, DnSqlStatement, List)} but if the statement returns
+     * generated keys, the counter generated for each row is put into *counterValues* (which should be at
+     * least as long as *rows*). */
+    public int[] executeDnStatementBatch(DnCxt cxt, DnSqlStatement stmt, List<Map<String,Object>> rows,
+            long[] counterValues) throws DnException {
+        int[] results = new int[rows.size()];
+        if (rows.isEmpty()) {
+            return results;
+        }
+        withTran(cxt, () -> {
+            SqlSession sqlSession = getMustExist(cxt);
+            SqlBoundStatement boundStmt = sqlSession.checkAndGetStatement(stmt);
+            PreparedStatement pStmt = boundStmt.stmt;
+            int chunkSize = Math.max(batchSize, 1);
+            for (int offset = 0; offset < rows.size(); offset += chunkSize) {
+                int end = Math.min(offset + chunkSize, rows.size());
+                long start = System.nanoTime();
+                try {
+                    for (int i = offset; i < end; i++) {
+                        getAndBindPreparedStatement(cxt, boundStmt, rows.get(i));
+                        pStmt.addBatch();
+                    }
+                    int[] counts = pStmt.executeBatch();
+                    System.arraycopy(counts, 0, results, offset, Math.min(counts.length, end - offset));
+                    if (stmt.returnGeneratedKeys && counterValues != null) {
+                        try (var generatedKeys = pStmt.getGeneratedKeys()) {
+                            for (int i = offset; i < end && i < counterValues.length && generatedKeys.next(); i++) {
+                                counterValues[i] = generatedKeys.getLong(1);
+                            }
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw SqlStmtUtil.mkDnException(String.format("Could not execute batch of rows %d to %d " +
+                            "for query %s", offset, end, stmt.name), e);
+                } finally {
+                    // The prepared statement is cached in the session, so it must not keep a partial batch.
+                    try {
+                        pStmt.clearBatch();
+                    } catch (SQLException ignore) {}
+                    metrics.recordStatement(sqlSession, stmt, System.nanoTime() - start);
+                }
+            }
+        });
+        return results;
+    }
+
+    /** General mechanism to query for rows. The rows are collected into a list, so no more than
+     * *maxQueryRows* rows are returned. Use {@link #queryDnStatementForEach} for queries that can return more
+     * rows than that. */
     public List<Map<String,Object>> queryDnStatement(DnCxt cxt, DnSqlStatement stmt, Map<String,Object> data)
             throws DnException {
         SqlSession sqlSession = getMustExist(cxt);
         SqlBoundStatement boundStmt = sqlSession.checkAndGetStatement(stmt);
-        SqlColumnAliases aliases = boundStmt.aliases;
 
         var pStmt = getAndBindPreparedStatement(cxt, boundStmt, data);
+        long start = System.nanoTime();
         try {
             try (ResultSet rs = pStmt.executeQuery()) {
                 List<Map<String,Object>> retVal = mList();
-                //ResultSet rs = pStmt.executeQuery();
-                ResultSetMetaData md = rs.getMetaData();
-                List<DnField> fields = mList();
-                for (int i = 0; i < md.getColumnCount(); i++) {
-                    String colName = md.getColumnName(i + 1);
-                    String fldName = aliases.getFieldName(colName);
-                    DnField fld = SqlStmtUtil.getDnField(stmt, boundStmt.aliases, fldName);
-                    fields.add(fld);
-                }
-                int count = 0;
-                while (rs.next() && count++ < 100000) {
-                    // Use linked hash map to preserve original field order of table.
-                    var row = new LinkedHashMap<String,Object>();
-                    for (int i = 0; i < fields.size(); i++) {
-                        DnField fld = fields.get(i);
-                        Object dbObj = rs.getObject(i + 1);
-                        Object obj = SqlTypeUtil.convertDbObject(cxt, fld, dbObj);
-                        if (obj != null) {
-                            row.put(fld.name, obj);
-                        }
+                SqlRowColumns columns = getRowColumns(boundStmt, rs);
+                while (rs.next()) {
+                    if (retVal.size() >= maxQueryRows) {
+                        LogSql.log.error(cxt, null, String.format("Query %s returned more than %d rows, " +
+                                "the extra rows were dropped.", stmt.name, maxQueryRows));
+                        break;
+                    }
+                    if (stmt.compactRows) {
+                        var row = new SqlRow(columns);
+                        fillCompactRow(cxt, rs, row);
+                        retVal.add(row);
+                    } else {
+                        // Use linked hash map to preserve original field order of table.
+                        var row = new LinkedHashMap<String,Object>();
+                        fillRow(cxt, columns.fields, rs, row);
+                        retVal.add(row);
                     }
-                    retVal.add(row);
                 }
                 return retVal;
             }
         } catch (SQLException e) {
             throw SqlStmtUtil.mkDnException(
                     String.format("Failure querying for result set from statement %s.", stmt.name), e);
+        } finally {
+            metrics.recordStatement(sqlSession, stmt, System.nanoTime() - start);
+        }
+    }
+
+    /** Queries for rows and hands them to *handler* one at a time as they are read from the database, fetching
+     * *fetchSize* rows at a time. Memory use does not grow with the number of rows, so this is the
+     * way to scan large tables. The same row map is reused for each row, see {@link SqlRowHandler}. The
+     * query stops when the handler returns false. Returns the number of rows handed to the handler.
+     *
+     * The query is run inside a transaction (or as part of the current one), since some drivers (PostgreSQL in
+     * particular) ignore the fetch size and read all the rows into memory when auto-commit is on. The
+     * session is held until the scan is done, so handlers that take a long time on each row hold a connection
+     * for a long time. */
+    public int queryDnStatementForEach(DnCxt cxt, DnSqlStatement stmt, Map<String,Object> data,
+            SqlRowHandler handler) throws DnException {
+        int[] count = {0};
+        withTran(cxt, () -> {
+            SqlSession sqlSession = getMustExist(cxt);
+            SqlBoundStatement boundStmt = sqlSession.checkAndGetStatement(stmt);
+            var pStmt = getAndBindPreparedStatement(cxt, boundStmt, data);
+            long start = System.nanoTime();
+            try {
+                pStmt.setFetchSize(fetchSize);
+                try (ResultSet rs = pStmt.executeQuery()) {
+                    List<DnField> fields = getRowColumns(boundStmt, rs).fields;
+                    var row = new LinkedHashMap<String,Object>();
+                    while (rs.next()) {
+                        row.clear();
+                        fillRow(cxt, fields, rs, row);
+                        count[0]++;
+                        if (!handler.handleRow(row)) {
+                            break;
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                throw SqlStmtUtil.mkDnException(
+                        String.format("Failure streaming result set from statement %s.", stmt.name), e);
+            } finally {
+                // The prepared statement is cached in the session and is also used by *queryDnStatement*.
+                try {
+                    pStmt.setFetchSize(0);
+                } catch (SQLException ignore) {}
+                metrics.recordStatement(sqlSession, stmt, System.nanoTime() - start);
+            }
+        });
+        return count[0];
+    }
+
+    public SqlRowColumns getRowColumns(SqlBoundStatement boundStmt, ResultSet rs) throws SQLException {
+        if (boundStmt.rowColumns != null) {
+            return boundStmt.rowColumns;
+        }
+        SqlColumnAliases aliases = boundStmt.aliases;
+        ResultSetMetaData md = rs.getMetaData();
+        List<DnField> fields = mList();
+        for (int i = 0; i < md.getColumnCount(); i++) {
+            String colName = md.getColumnName(i + 1);
+            String fldName = aliases.getFieldName(colName);
+            DnField fld = SqlStmtUtil.getDnField(boundStmt.dnSql, aliases, fldName);
+            fields.add(fld);
+        }
+        // Bound statements belong to a session, so only one thread sets this.
+        boundStmt.rowColumns = new SqlRowColumns(fields);
+        return boundStmt.rowColumns;
+    }
+
+    public void fillRow(DnCxt cxt, List<DnField> fields, ResultSet rs, Map<String,Object> row)
+            throws SQLException {
+        for (int i = 0; i < fields.size(); i++) {
+            DnField fld = fields.get(i);
+            Object dbObj = rs.getObject(i + 1);
+            Object obj = SqlTypeUtil.convertDbObject(cxt, fld, dbObj);
+            if (obj != null) {
+                row.put(fld.name, obj);
+            }
+        }
+    }
+
+    public void fillCompactRow(DnCxt cxt, ResultSet rs, SqlRow row) throws SQLException {
+        List<DnField> fields = row.columns.fields;
+        int[] columnIndexes = row.columns.columnIndexes;
+        for (int i = 0; i < fields.size(); i++) {
+            Object obj = SqlTypeUtil.convertDbObject(cxt, fields.get(i), rs.getObject(i + 1));
+            // Same as the other rows, null columns are left out.
+            if (obj != null) {
+                row.setColumn(columnIndexes[i], obj);
+            }
         }
     }
 
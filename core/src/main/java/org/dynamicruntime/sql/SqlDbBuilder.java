@@ -114,7 +114,33 @@ public class SqlDbBuilder {
                         dbName, cxt.shard, connStr));
         var reservedFields = getReservedFields();
         var rfMap = nMkMap(reservedFields, (f -> f.name));
-        return new SqlDatabase(dbName, driver, connStr, properties, rfMap, options, numConnections);
+        var sqlDb = new SqlDatabase(dbName, driver, connStr, properties, rfMap, options, numConnections);
+        sqlDb.batchSize = getConfigInt(BATCH_SIZE, sqlDb.batchSize,
+                String.format("Maximum number of rows sent in one batch to database %s.", dbName));
+        sqlDb.fetchSize = getConfigInt(FETCH_SIZE, sqlDb.fetchSize,
+                String.format("Number of rows fetched at a time when streaming query results from database %s.",
+                        dbName));
+        if (!isInMemory) {
+            // In memory databases go away when their last connection is closed, so they do not get
+            // their connections maintained.
+            configurePoolMaintenance(sqlDb);
+        }
+        return sqlDb;
+    }
+
+    public void configurePoolMaintenance(SqlDatabase sqlDb) throws DnException {
+        sqlDb.minConnections = Math.min(sqlDb.maxConnections, getConfigInt(MIN_CONNECTIONS, 2,
+                String.format("The number of connections kept open for database %s.", dbName)));
+        sqlDb.maxConnectionAgeMillis = 1000L * getConfigInt(MAX_CONNECTION_AGE_SECS, 1800,
+                String.format("Seconds after which an idle connection to database %s is replaced.", dbName));
+        sqlDb.idleTimeoutMillis = 1000L * getConfigInt(IDLE_TIMEOUT_SECS, 600,
+                String.format("Seconds after which an unused connection to database %s is closed.", dbName));
+        sqlDb.validationIntervalMillis = 1000L * getConfigInt(VALIDATION_INTERVAL_SECS, 30,
+                String.format("Seconds a connection to database %s can go unused before it is validated.",
+                        dbName));
+        int checkInterval = getConfigInt(POOL_CHECK_INTERVAL_SECS, 10,
+                String.format("Seconds between maintenance passes over connections to database %s.", dbName));
+        sqlDb.startPoolMaintenance(cxt, 1000L * checkInterval);
     }
 
     public String getReqConfigString(String key, String description) throws DnException {
@@ -0,0 +1,72 @@
+package org.dynamicruntime.sql;
+
+import org.dynamicruntime.util.DnHistogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Instrumentation of how a {@link SqlDatabase} uses its sessions. It records how long requests wait to get a
+ * session, how long sessions are held (grouped by the topic of the first statement run in the session), how
+ * long each statement takes (grouped by topic and statement name), how many requests gave up waiting for a
+ * session, and the most sessions that were ever in use at once. This is the evidence for sizing
+ * the number of connections of a database.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SqlDbMetrics {
+    /** Used for sessions that ran no statements. */
+    public static final String NO_TOPIC = "none";
+
+    public final DnHistogram acquireWait = new DnHistogram("acquireWait");
+    public final LongAdder acquireTimeouts = new LongAdder();
+    public final AtomicInteger inUseSessions = new AtomicInteger();
+    public final AtomicInteger inUseHighWater = new AtomicInteger();
+    public final Map<String,DnHistogram> sessionHoldByTopic = new ConcurrentHashMap<>();
+    public final Map<String,DnHistogram> statementsByName = new ConcurrentHashMap<>();
+
+    public void recordAcquire(long waitNanos) {
+        acquireWait.record(waitNanos);
+        int inUse = inUseSessions.incrementAndGet();
+        if (inUse > inUseHighWater.get()) {
+            inUseHighWater.accumulateAndGet(inUse, Math::max);
+        }
+    }
+
+    public void recordAcquireTimeout(long waitNanos) {
+        acquireWait.record(waitNanos);
+        acquireTimeouts.increment();
+    }
+
+    public void recordRelease(SqlSession sqlSession, long holdNanos) {
+        inUseSessions.decrementAndGet();
+        String topic = (sqlSession.holdTopic != null) ? sqlSession.holdTopic : NO_TOPIC;
+        sessionHoldByTopic.computeIfAbsent(topic, DnHistogram::new).record(holdNanos);
+    }
+
+    public void recordStatement(SqlSession sqlSession, DnSqlStatement stmt, long durationNanos) {
+        if (sqlSession.holdTopic == null) {
+            sqlSession.holdTopic = stmt.topic;
+        }
+        String key = stmt.topic + ":" + stmt.name;
+        statementsByName.computeIfAbsent(key, DnHistogram::new).record(durationNanos);
+    }
+
+    public Map<String,Object> toMap() {
+        Map<String,Object> holds = new TreeMap<>();
+        for (var entry : sessionHoldByTopic.entrySet()) {
+            holds.put(entry.getKey(), entry.getValue().toMap());
+        }
+        Map<String,Object> statements = new TreeMap<>();
+        for (var entry : statementsByName.entrySet()) {
+            statements.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return mMap("inUseSessions", inUseSessions.get(), "inUseHighWater", inUseHighWater.get(),
+                "acquireTimeouts", acquireTimeouts.sum(), "acquireWait", acquireWait.toMap(),
+                "sessionHoldByTopic", holds, "statements", statements);
+    }
+}
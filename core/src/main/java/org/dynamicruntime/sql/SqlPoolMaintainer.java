@@ -0,0 +1,174 @@
+package org.dynamicruntime.sql;
+
+import org.dynamicruntime.context.DnCxt;
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.util.SystemUtil;
+
+/**
+ * Background maintenance of the connections held by a {@link SqlDatabase}. Without it, a dead connection
+ * is only discovered when a request fails using it, and after a database failover every connection in the
+ * pool fails one request before the pool heals. On each pass, this class takes each idle session out of the
+ * pool in turn and
+ *
+ * * closes its connection if it is older than *maxConnectionAgeMillis*,
+ * * closes its connection if it has been idle longer than *idleTimeoutMillis* and more than *minConnections*
+ * are open,
+ * * checks its connection with *Connection.isValid* if it has not been used or checked recently (or if a request
+ * has just failed with a connection error), closing it if it is not valid.
+ *
+ * After that, it opens connections until *minConnections* are open. The same pre-warming is done at startup
+ * so the first requests do not pay for creating connections.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SqlPoolMaintainer implements Runnable {
+    public final DnCxt bgCxt;
+    public final SqlDatabase sqlDb;
+    public final long checkIntervalMillis;
+    public volatile boolean isActive = false;
+    /** Set when a request has hit a connection error, forces validation of all idle connections. */
+    public volatile boolean validateAll = false;
+
+    /** Connections created per minute, measured over the last minute or so. */
+    public volatile double creationsPerMinute = 0;
+    long lastRateTime = System.currentTimeMillis();
+    long lastRateCreated = 0;
+
+    public SqlPoolMaintainer(DnCxt cxt, SqlDatabase sqlDb, long checkIntervalMillis) {
+        this.bgCxt = cxt.mkSubContext(sqlDb.dbName + "PoolMaintainer");
+        this.sqlDb = sqlDb;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    public void start() {
+        isActive = true;
+        String threadName = SystemUtil.createThreadName(bgCxt, sqlDb.dbName + "PoolMaintainer");
+        var bgThread = new Thread(this, threadName);
+        bgThread.setDaemon(true);
+        bgThread.start();
+    }
+
+    public void stop() {
+        isActive = false;
+        synchronized (this) {
+            this.notify();
+        }
+    }
+
+    /** Wakes up the maintenance thread to validate all idle connections. */
+    public void requestValidation() {
+        if (!validateAll) {
+            validateAll = true;
+            synchronized (this) {
+                this.notify();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!validateAll) {
+                        this.wait(checkIntervalMillis);
+                    }
+                } catch (Exception ignore) {
+                }
+                if (!isActive) {
+                    return;
+                }
+            }
+            try {
+                maintain();
+            } catch (Throwable t) {
+                LogSql.log.error(bgCxt, t, "Failure maintaining connections for database " +
+                        sqlDb.dbName + ".");
+            }
+        }
+    }
+
+    public void maintain() {
+        boolean doValidateAll = validateAll;
+        validateAll = false;
+        int numInvalid = 0;
+        // Only look at each session that is idle right now once. Sessions go back to the end of the queue.
+        int numIdle = sqlDb.connections.size();
+        for (int i = 0; i < numIdle; i++) {
+            SqlSession session = sqlDb.connections.poll();
+            if (session == null) {
+                break;
+            }
+            try {
+                if (!checkSession(session, doValidateAll)) {
+                    numInvalid++;
+                }
+            } finally {
+                sqlDb.connections.offer(session);
+            }
+        }
+        if (numInvalid > 0) {
+            LogSql.log.info(bgCxt, String.format("Closed %d invalid connections to database %s.",
+                    numInvalid, sqlDb.dbName));
+        }
+        prewarm();
+        updateCreationRate();
+    }
+
+    /** Returns false if the connection failed validation. */
+    public boolean checkSession(SqlSession session, boolean doValidate) {
+        if (session.conn == null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.connCreatedTime > sqlDb.maxConnectionAgeMillis ||
+                (now - session.lastAccess > sqlDb.idleTimeoutMillis &&
+                        sqlDb.openConnections.get() > sqlDb.minConnections)) {
+            session.setInvalid();
+            sqlDb.connectionsRetired.increment();
+            return true;
+        }
+        if (doValidate || now - Math.max(session.lastAccess, session.lastValidated) >
+                sqlDb.validationIntervalMillis) {
+            if (!session.checkValid(sqlDb.validationTimeout)) {
+                sqlDb.connectionsFailedValidation.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Opens connections on idle sessions until *minConnections* are open. */
+    public void prewarm() {
+        int needed = sqlDb.minConnections - sqlDb.openConnections.get();
+        int numIdle = sqlDb.connections.size();
+        for (int i = 0; i < numIdle && needed > 0; i++) {
+            SqlSession session = sqlDb.connections.poll();
+            if (session == null) {
+                break;
+            }
+            try {
+                if (session.conn == null) {
+                    session.getSessionStartConnection();
+                    needed--;
+                }
+            } catch (DnException e) {
+                // Database is probably down, try again on the next pass.
+                LogSql.log.error(bgCxt, e, "Could not pre-warm connection to database " + sqlDb.dbName + ".");
+                return;
+            } finally {
+                sqlDb.connections.offer(session);
+            }
+        }
+    }
+
+    void updateCreationRate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastRateTime;
+        if (elapsed >= 60 * 1000) {
+            long created = sqlDb.connectionsCreated.sum();
+            creationsPerMinute = (created - lastRateCreated) * 60000.0/elapsed;
+            lastRateCreated = created;
+            lastRateTime = now;
+        }
+    }
+}
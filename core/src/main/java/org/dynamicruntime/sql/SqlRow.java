@@ -0,0 +1,224 @@
+package org.dynamicruntime.sql;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A row returned by a query, stored as an array of values that shares its column names with every other
+ * row from the same statement. A *LinkedHashMap* row carries a hash table and an entry object per column, this
+ * carries one array. That matters for rows that are held on to, such as the auth user rows kept in the user
+ * caches. Statements opt in with {@link DnSqlStatement#compactRows}.
+ *
+ * It is a full *Map*, so code that reads rows does not need to know the difference. Iteration follows the
+ * column order, just like the *LinkedHashMap* rows. Keys that are not columns of the query can also be
+ * put into the row; they are kept in a small overflow map and come after the columns when iterating.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SqlRow extends AbstractMap<String,Object> {
+    /** Marks a column that has no entry in the map. A null value is a present entry, the same as in any other
+     * map. */
+    static final Object ABSENT = new Object();
+
+    public final SqlRowColumns columns;
+    final Object[] values;
+    Map<String,Object> extra;
+    int numPresent;
+
+    public SqlRow(SqlRowColumns columns) {
+        this.columns = columns;
+        this.values = new Object[columns.size()];
+        Arrays.fill(values, ABSENT);
+    }
+
+    /** Fast path used when filling the row from a result set. */
+    public void setColumn(int index, Object value) {
+        if (values[index] == ABSENT) {
+            numPresent++;
+        }
+        values[index] = value;
+    }
+
+    @Override
+    public int size() {
+        return numPresent + ((extra != null) ? extra.size() : 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int i = columns.indexOf(key);
+        if (i >= 0) {
+            return values[i] != ABSENT;
+        }
+        return extra != null && extra.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = columns.indexOf(key);
+        if (i >= 0) {
+            Object v = values[i];
+            return (v != ABSENT) ? v : null;
+        }
+        return (extra != null) ? extra.get(key) : null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int i = columns.indexOf(key);
+        if (i >= 0) {
+            Object old = values[i];
+            setColumn(i, value);
+            return (old != ABSENT) ? old : null;
+        }
+        if (extra == null) {
+            extra = new LinkedHashMap<>();
+        }
+        return extra.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int i = columns.indexOf(key);
+        if (i >= 0) {
+            return removeColumn(i);
+        }
+        return (extra != null) ? extra.remove(key) : null;
+    }
+
+    Object removeColumn(int index) {
+        Object old = values[index];
+        if (old == ABSENT) {
+            return null;
+        }
+        values[index] = ABSENT;
+        numPresent--;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, ABSENT);
+        numPresent = 0;
+        extra = null;
+    }
+
+    @Override
+    public Set<Entry<String,Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String,Object>> iterator() {
+                return new RowIterator();
+            }
+
+            @Override
+            public int size() {
+                return SqlRow.this.size();
+            }
+        };
+    }
+
+    class RowIterator implements Iterator<Entry<String,Object>> {
+        int next = advance(0);
+        int last = -1;
+        boolean lastWasExtra = false;
+        Iterator<Entry<String,Object>> extraIter;
+
+        int advance(int from) {
+            int i = from;
+            while (i < values.length && values[i] == ABSENT) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next < values.length) {
+                return true;
+            }
+            if (extraIter == null && extra != null) {
+                extraIter = extra.entrySet().iterator();
+            }
+            return extraIter != null && extraIter.hasNext();
+        }
+
+        @Override
+        public Entry<String,Object> next() {
+            if (next < values.length) {
+                last = next;
+                next = advance(next + 1);
+                return new ColumnEntry(last);
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = -1;
+            lastWasExtra = true;
+            return extraIter.next();
+        }
+
+        @Override
+        public void remove() {
+            if (lastWasExtra) {
+                extraIter.remove();
+            } else if (last >= 0 && values[last] != ABSENT) {
+                removeColumn(last);
+                last = -1;
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    class ColumnEntry implements Entry<String,Object> {
+        final int index;
+
+        ColumnEntry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return columns.names[index];
+        }
+
+        @Override
+        public Object getValue() {
+            Object v = values[index];
+            return (v != ABSENT) ? v : null;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object old = getValue();
+            setColumn(index, value);
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            var e = (Entry<?,?>)o;
+            return getKey().equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.dynamicruntime.sql;
+
+import org.dynamicruntime.schemadef.DnField;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The columns of a query result, in the order the database returned them, along with a lookup from field name
+ * to position. Computed once per {@link SqlBoundStatement} and shared by every {@link SqlRow} the statement
+ * returns.
+ *
+ * A query can return the same field name more than once (a join selecting *id* from two tables, for example).
+ * The row gets one entry for the name, at the position of its first column. Later columns with the same name
+ * write to that entry, so the last non-null value wins, the same as putting the columns into a *LinkedHashMap*
+ * in order. */
+@SuppressWarnings("WeakerAccess")
+public class SqlRowColumns {
+    /** The fields of the result set columns, including repeated names. */
+    public final List<DnField> fields;
+    /** The distinct field names, in the order they first appear. */
+    public final String[] names;
+    /** For each result set column, the position of its name in *names*. */
+    public final int[] columnIndexes;
+    final Map<String,Integer> indexes;
+
+    public SqlRowColumns(List<DnField> fields) {
+        this.fields = fields;
+        this.columnIndexes = new int[fields.size()];
+        this.indexes = new HashMap<>(fields.size() * 2);
+        List<String> distinctNames = new ArrayList<>(fields.size());
+        for (int i = 0; i < columnIndexes.length; i++) {
+            String name = fields.get(i).name;
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = distinctNames.size();
+                indexes.put(name, index);
+                distinctNames.add(name);
+            }
+            columnIndexes[i] = index;
+        }
+        this.names = distinctNames.toArray(new String[0]);
+    }
+
+    /** Returns -1 if the field is not one of the columns. */
+    public int indexOf(Object fieldName) {
+        Integer index = indexes.get(fieldName);
+        return (index != null) ? index : -1;
+    }
+
+    public int size() {
+        return names.length;
+    }
+}
@@ -0,0 +1,14 @@
+package org.dynamicruntime.sql;
+
+import org.dynamicruntime.exception.DnException;
+
+import java.util.Map;
+
+/** Receives the rows of a query one at a time, see
+ * {@link SqlDatabase#queryDnStatementForEach(org.dynamicruntime.context.DnCxt, DnSqlStatement, Map, SqlRowHandler)}.
+ * The same map is passed for every row, so a handler that wants to hold on to a row must copy it. Returning
+ * false stops the query. */
+@FunctionalInterface
+public interface SqlRowHandler {
+    boolean handleRow(Map<String,Object> row) throws DnException;
+}
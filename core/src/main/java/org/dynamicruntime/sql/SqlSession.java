@@ -8,6 +8,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 @SuppressWarnings("WeakerAccess")
 public class SqlSession {
@@ -17,10 +18,22 @@ public class SqlSession {
     /** Set to not null when valid connection has been assigned to this object. */
     public Connection conn;
     public volatile long lastAccess;
+    /** When the current connection was created. Used to retire old connections. */
+    public volatile long connCreatedTime;
+    /** When the current connection was last checked with *Connection.isValid*. */
+    public volatile long lastValidated;
     public volatile boolean isBeingUsed;
+    /** When the session was handed out by *withSession*. */
+    public long acquiredNanos;
+    /** Topic of the first statement run since the session was handed out. Used to attribute the time
+     * the session was held. */
+    public String holdTopic;
     public boolean inTran = false;
 
     public Map<String,SqlBoundStatement> preparedStatements = new HashMap<>();
+    /** Guards the connection and its prepared statements. A lock rather than *synchronized* because the
+     * holder does database I/O and a virtual thread blocked inside *synchronized* pins its carrier thread. */
+    final ReentrantLock lock = new ReentrantLock();
 
     public SqlSession(SqlDatabase sqlDb) {
         this.sqlDb = sqlDb;
@@ -33,26 +46,50 @@ public class SqlSession {
 
     /** Should be called whenever there is a connection issue when executing a query, but only when the
      * session is being released. (For example, if an exception was thrown because a query was running too long). */
-    @SuppressWarnings("unused")
     public void setInvalid() {
-        synchronized (this) {
+        lock.lock();
+        try {
             Connection c = conn;
             if (c != null) {
                 try {
                     c.close();
                 } catch (Throwable ignore) {}
+                sqlDb.openConnections.decrementAndGet();
             }
             conn = null;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /** Checks the connection (if there is one) with a round trip to the database. If the connection is
+     * not valid, it is closed so that the next use of the session creates a new one. */
+    public boolean checkValid(int timeoutSeconds) {
+        Connection c = conn;
+        if (c == null) {
+            return true;
+        }
+        boolean isValid;
+        try {
+            isValid = c.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            isValid = false;
+        }
+        lastValidated = System.currentTimeMillis();
+        if (!isValid) {
+            setInvalid();
+        }
+        return isValid;
+    }
+
     public Connection getConnection() {
         return conn;
     }
 
     public Connection getSessionStartConnection() throws DnException {
         lastAccess = System.currentTimeMillis();
-        synchronized (this) {
+        lock.lock();
+        try {
             if (conn == null) {
                 // Not clear if this is necessary.
                 for (var stmt : preparedStatements.values()) {
@@ -62,15 +99,22 @@ public class SqlSession {
                 }
                 preparedStatements.clear();
                 conn = sqlDb.createConnection();
+                connCreatedTime = lastAccess;
+                lastValidated = lastAccess;
+                sqlDb.openConnections.incrementAndGet();
+                sqlDb.connectionsCreated.increment();
                 // Put in any transaction isolation or connection settings here.
             }
             return conn;
+        } finally {
+            lock.unlock();
         }
 
     }
 
     public SqlBoundStatement checkAndGetStatement(DnSqlStatement dnStmt) throws DnException {
-        synchronized (this) {
+        lock.lock();
+        try {
             if (conn == null) {
                 throw new DnException(
                         String.format("Getting bound statement %s when no valid connection has " +
@@ -94,6 +138,8 @@ public class SqlSession {
                 }
             }
             return retVal;
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -11,6 +11,7 @@ import org.dynamicruntime.sql.SqlTableUtil;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** The container object that holds code to create and update tables and provide queries for execution. There is
  * one instance of a topic per topic name and shard. Each topic and shard can potentially have its own
@@ -60,6 +61,9 @@ public class SqlTopic {
 
     /** Holds table definitions and queries. */
     public final Map<String,SqlQueryHolderBase> queryHolders = new ConcurrentHashMap<>();
+    /** Held while a query holder is created, which creates tables. Not *synchronized* so that virtual threads
+     * waiting on it do not pin their carrier threads. */
+    final ReentrantLock holderLock = new ReentrantLock();
 
     public SqlTopic(String name, SqlDatabase sqlDb, SqlTopicInfo topicInfo) {
         this(name, sqlDb, topicInfo, false);
@@ -91,6 +95,8 @@ public class SqlTopic {
         // Create the queries. Note how we do this without any explicit knowledge of the actual tables themselves.
         iTranLockQuery = SqlTopicUtil.mkTableInsertStmt(sqlCxt, table);
         qTranLockQuery = SqlTopicUtil.mkTableSelectStmt(sqlCxt, table);
+        // Run on every transaction and the rows often end up cached.
+        qTranLockQuery.compactRows = true;
         uTranLockQuery = SqlTopicUtil.mkTableUpdateStmt(sqlCxt, table);
         uTakeLockQuery = SqlTopicUtil.mkTableTranLockStmt(sqlCxt, table);
     }
@@ -100,7 +106,8 @@ public class SqlTopic {
             SqlQueryHolderCreator<T> creator) throws DnException {
         T queryHolder = (T)queryHolders.get(holderName);
         if (queryHolder == null) {
-            synchronized(queryHolders) {
+            holderLock.lock();
+            try {
                 queryHolder = (T)queryHolders.get(holderName);
                 if (queryHolder == null) {
                     queryHolder = creator.createQueryHolder();
@@ -108,6 +115,8 @@ public class SqlTopic {
                     sqlCxt.sqlDb.withSession(sqlCxt.cxt, () -> qt.init(sqlCxt));
                     queryHolders.put(holderName, queryHolder);
                 }
+            } finally {
+                holderLock.unlock();
             }
         }
         return queryHolder;
@@ -16,6 +16,9 @@ public class SqlTopicConstants {
      * from the standard configuration. Standard configuration should be in source code (as data files). This topic
      * tends not to be sharded. */
     public static final String CONFIG_TOPIC = "config";
+    /** Holds the queue of outbound emails waiting to be sent to the mail server. Any node can enqueue
+     * an email and any node can send it. Not sharded. */
+    public static final String MAIL_TOPIC = "mail";
 
     //
     // User interaction topics. Endpoints focus on the current acting user. There is very little background
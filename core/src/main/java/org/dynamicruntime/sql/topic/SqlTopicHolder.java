@@ -2,15 +2,15 @@ package org.dynamicruntime.sql.topic;
 
 import org.dynamicruntime.context.DnCxt;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @SuppressWarnings("WeakerAccess")
 public class SqlTopicHolder {
     public final String topicName;
     public final SqlTopicInfo topicInfo;
     public final boolean isInMemory;
-    public final Map<String,SqlTopic> topicsByShard = new HashMap<>();
+    public final Map<String,SqlTopic> topicsByShard = new ConcurrentHashMap<>();
 
     public SqlTopicHolder(String topicName, SqlTopicInfo topicInfo, boolean isInMemory) {
         this.topicName = topicName;
@@ -10,6 +10,7 @@ import org.dynamicruntime.startup.StartupServiceInitializer;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 @SuppressWarnings("WeakerAccess")
 public class SqlTopicService implements StartupServiceInitializer {
@@ -17,6 +18,8 @@ public class SqlTopicService implements StartupServiceInitializer {
 
     public final Map<String,SqlTopicHolder> topics = new ConcurrentHashMap<>();
     public final Map<String,SqlDatabase> databases = new ConcurrentHashMap<>();
+    /** Held while topics and databases are created. */
+    final ReentrantLock createLock = new ReentrantLock();
     public boolean isInMemory;
 
     public static SqlTopicService get(DnCxt cxt) {
@@ -68,8 +71,15 @@ public class SqlTopicService implements StartupServiceInitializer {
             return null;
         }
 
-        synchronized (databases) {
-            SqlTopic sqlTopic = holder.topicsByShard.get(cxt.shard);
+        // Called for every SQL context, so only lock if the topic has to be created. Creating it does database
+        // I/O, which is why this is a lock and not *synchronized* (which would pin virtual threads).
+        SqlTopic sqlTopic = holder.topicsByShard.get(cxt.shard);
+        if (sqlTopic != null) {
+            return sqlTopic;
+        }
+        createLock.lock();
+        try {
+            sqlTopic = holder.topicsByShard.get(cxt.shard);
             if (sqlTopic == null) {
                 sqlTopic = createSqlTopic(cxt, holder);
                 SqlCxt sqlCxt = new SqlCxt(cxt, sqlTopic);
@@ -77,10 +87,12 @@ public class SqlTopicService implements StartupServiceInitializer {
                 holder.topicsByShard.put(cxt.shard, sqlTopic);
             }
             return sqlTopic;
-       }
+        } finally {
+            createLock.unlock();
+        }
     }
 
-    /** Creates a topic, should only be called in synchronization of the databases. */
+    /** Creates a topic, should only be called while holding *createLock*. */
     public SqlTopic createSqlTopic(DnCxt cxt, SqlTopicHolder holder) throws DnException {
         boolean isInMemory = holder.isInMemory;
         String topic = holder.topicName;
@@ -0,0 +1,148 @@
+package org.dynamicruntime.user;
+
+import org.dynamicruntime.context.DnConfigUtil;
+import org.dynamicruntime.context.DnCxt;
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.node.DnCoreNodeService;
+import org.dynamicruntime.startup.ServiceInitializer;
+import org.dynamicruntime.util.DnHistogram;
+import org.dynamicruntime.util.EncodeUtil;
+import org.dynamicruntime.util.SystemUtil;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Runs password hashing on its own small pool of threads. Hashing is deliberately slow (see
+ * {@link EncodeUtil#hashPassword(byte[], String)}). If it were run on request threads, a burst of logins could
+ * take every request thread and starve everything else, including health checks. The pool has one thread per
+ * core, since hashing is pure CPU work, and a bounded queue. When the queue is full, or a hash has waited too
+ * long for a thread, the request fails right away with a retryable (*NOT_AVAILABLE*) exception instead of
+ * piling up.
+ *
+ * If the service is not present (for example, in some tests), hashing is done on the calling thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnPasswordHashService implements ServiceInitializer {
+    public static final String DN_PASSWORD_HASH_SERVICE = DnPasswordHashService.class.getSimpleName();
+
+    public int numThreads;
+    public int maxQueued;
+    public long maxWaitMillis;
+    public ThreadPoolExecutor executor;
+
+    // Statistics.
+    public final DnHistogram queueWait = new DnHistogram("queueWait");
+    public final DnHistogram hashTime = new DnHistogram("hashTime");
+    public final LongAdder rejected = new LongAdder();
+    public final LongAdder timedOut = new LongAdder();
+
+    public static DnPasswordHashService get(DnCxt cxt) {
+        Object obj = cxt.instanceConfig.get(DN_PASSWORD_HASH_SERVICE);
+        return (obj instanceof DnPasswordHashService) ? (DnPasswordHashService)obj : null;
+    }
+
+    @Override
+    public String getServiceName() {
+        return DN_PASSWORD_HASH_SERVICE;
+    }
+
+    @Override
+    public void onCreate(DnCxt cxt) throws DnException {
+        numThreads = (int)DnConfigUtil.getConfigLong(cxt, "auth.passwordHash.threads",
+                Runtime.getRuntime().availableProcessors(),
+                "Number of threads used to hash passwords.");
+        maxQueued = (int)DnConfigUtil.getConfigLong(cxt, "auth.passwordHash.maxQueued", numThreads * 8L,
+                "Maximum number of password hashes that can wait for a thread before requests are turned away.");
+        maxWaitMillis = DnConfigUtil.getConfigLong(cxt, "auth.passwordHash.maxWaitMillis", 5000,
+                "Maximum milliseconds a request waits for its password hash before failing.");
+        var threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueued), r -> {
+                    var t = new Thread(r, SystemUtil.createThreadName(cxt,
+                            "PasswordHash" + threadCount.incrementAndGet()));
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void checkInit(DnCxt cxt) {
+        var coreNode = DnCoreNodeService.get(cxt);
+        if (coreNode != null) {
+            coreNode.addStatsSource("auth.passwordHash", this::getStats);
+        }
+    }
+
+    /** Hashes a password for storage, see {@link EncodeUtil#hashPassword(String)}. */
+    public static String hashPassword(DnCxt cxt, String password) throws DnException {
+        var service = get(cxt);
+        return (service != null) ? service.execute(cxt, () -> EncodeUtil.hashPassword(password)) :
+                EncodeUtil.hashPassword(password);
+    }
+
+    /** Verifies a password against its stored hash, see {@link EncodeUtil#checkPassword(String, String)}. */
+    public static boolean checkPassword(DnCxt cxt, String password, String storedHash) throws DnException {
+        var service = get(cxt);
+        return (service != null) ? service.execute(cxt, () -> EncodeUtil.checkPassword(password, storedHash)) :
+                EncodeUtil.checkPassword(password, storedHash);
+    }
+
+    public <T> T execute(DnCxt cxt, Callable<T> hashFunction) throws DnException {
+        long submitted = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                long start = System.nanoTime();
+                queueWait.record(start - submitted);
+                try {
+                    return hashFunction.call();
+                } finally {
+                    hashTime.record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            LogUser.log.debug(cxt, "Password hashing queue is full, turning away request.");
+            throw new DnException("Too many password checks are in progress on this node. Try again shortly.",
+                    null, DnException.NOT_AVAILABLE, DnException.SYSTEM, DnException.AUTH);
+        }
+        try {
+            return future.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            timedOut.increment();
+            throw new DnException(String.format("Password check did not complete within %d milliseconds.",
+                    maxWaitMillis), null, DnException.NOT_AVAILABLE, DnException.SYSTEM, DnException.AUTH);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw new DnException("Interrupted while waiting for password check.", e,
+                    DnException.INTERNAL_ERROR, DnException.SYSTEM, DnException.INTERRUPTED);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DnException) {
+                throw (DnException)cause;
+            }
+            throw new DnException("Password hashing failed.", cause);
+        }
+    }
+
+    public Map<String,Object> getStats() {
+        return mMap("threads", numThreads, "maxQueued", maxQueued, "active", executor.getActiveCount(),
+                "queued", executor.getQueue().size(), "completed", executor.getCompletedTaskCount(),
+                "rejected", rejected.sum(), "timedOut", timedOut.sum(), "queueWait", queueWait.toMap(),
+                "hashTime", hashTime.toMap());
+    }
+}
@@ -67,6 +67,21 @@ public class UserAuthCookie {
         this.profileModifiedDate = profileModifiedDate;
     }
 
+    /** Copy that can be changed without affecting this cookie, used when handing out cookies that are
+     * held in a cache. */
+    public UserAuthCookie copy() {
+        var uac = new UserAuthCookie(code, version, grantingUserId, userId, sourceId, account, roles, authId,
+                creationDate, profileModifiedDate);
+        uac.publicName = publicName;
+        uac.groupName = groupName;
+        uac.shard = shard;
+        uac.authRulesAsStr = authRulesAsStr;
+        uac.renewalCount = renewalCount;
+        uac.modifiedDate = modifiedDate;
+        uac.expireDate = expireDate;
+        return uac;
+    }
+
     public static String getDateDiffAsString(Date base, Date in) {
         if (base == null || in == null) {
             return "";
@@ -170,6 +170,8 @@ public class UserConstants {
     public static final String UP_LOGIN_SOURCES = "loginSources";
     /** The public username for the user. */
     public static final String UP_PUBLIC_NAME = "publicName";
+    /** Used when paging through users. Only users with a larger user ID are returned. */
+    public static final String AUTH_AFTER_USER_ID = "afterUserId";
 
     //
     // Endpoint functions.
@@ -177,6 +179,7 @@ public class UserConstants {
     public static final String AUTH_EP_TOKEN_LOGIN = "tokenLogin";
     public static final String AUTH_EP_LOGOUT = "authLogout";
     public static final String ADMIN_USER_INFO = "adminUserInfo";
+    public static final String ADMIN_USER_LIST = "adminUserList";
     public static final String SELF_USER_INFO = "selfUserInfo";
     public static final String SELF_SET_DATA = "selfSetData";
     public static final String AUTH_CREATE_FORM_TOKEN = "authGetFormToken";
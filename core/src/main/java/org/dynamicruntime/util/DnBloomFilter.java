@@ -0,0 +1,74 @@
+package org.dynamicruntime.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of strings that answers *definitely not present* or *possibly present*, using a fixed number of bits no
+ * matter how long the strings are. It is used in front of lookups that are expensive when the answer is no, so
+ * that most misses are answered without doing the lookup.
+ *
+ * Strings can be added by many threads at once, and checks do not lock. Strings cannot be removed. The filter is
+ * sized for an expected number of strings, and adding more than that raises the rate of false positives.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnBloomFilter {
+    public final int numBits;
+    public final int numHashes;
+    final AtomicLongArray bits;
+
+    public DnBloomFilter(int expectedItems, double falsePositiveRate) {
+        int n = Math.max(expectedItems, 1);
+        double ln2 = Math.log(2);
+        long m = (long)Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+        m = Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numBits = (int)((m + 63)/64*64);
+        this.numHashes = Math.max(1, (int)Math.round((double)numBits/n * ln2));
+        this.bits = new AtomicLongArray(numBits/64);
+    }
+
+    public void add(String str) {
+        long hash = hash64(str);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = bitIndex(h1 + i * h2);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            long cur = bits.get(word);
+            while ((cur & mask) == 0 && !bits.compareAndSet(word, cur, cur | mask)) {
+                cur = bits.get(word);
+            }
+        }
+    }
+
+    public boolean mightContain(String str) {
+        long hash = hash64(str);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = bitIndex(h1 + i * h2);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int bitIndex(int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % numBits;
+    }
+
+    /** 64 bit FNV-1a of the UTF-8 bytes, with a final mix so that both halves are usable as hashes. */
+    public static long hash64(String str) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : str.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+}
@@ -0,0 +1,296 @@
+package org.dynamicruntime.util;
+
+import org.dynamicruntime.exception.DnException;
+import org.dynamicruntime.function.DnFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * A bounded cache that can be shared by many request threads. It replaces the older *DatedCacheMap*, which
+ * held a single lock around both the lookup and the loading of an item, so that one slow load stalled every
+ * other caller. In this implementation:
+ *
+ * * Reads do not lock, entries live in a *ConcurrentHashMap*.
+ * * Loads are *single-flight*. Concurrent misses on the same key wait for one load instead of each doing
+ * their own. Misses on different keys load in parallel.
+ * * Expiration is based on *System.nanoTime* so it is not affected by changes to the wall clock.
+ * * The size is bounded. When the cache grows past its maximum, one thread evicts the least recently
+ * accessed entries while other threads carry on. Which entries are least recently accessed is estimated from a
+ * sample, so eviction does not sort the whole cache.
+ * * A load that was in progress when its key was removed (or the cache was cleared) returns its result to its
+ * callers but does not cache it, since it may have read the data that the removal was invalidating. Removals
+ * bump a generation for the key's stripe, and a load only keeps its result if the generation it started with
+ * is still current once the result has been put in place.
+ * * Hits, misses, loads, load failures, load time, and evictions are counted and reported by {@link #getStats}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnCache<K,V> {
+    static final int NUM_STRIPES = 64;
+    /** Number of entries looked at to estimate which entries are the least recently accessed. */
+    static final int EVICT_SAMPLE_SIZE = 256;
+
+    public static class CacheEntry<T> {
+        public final T item;
+        public final long loadedNanos;
+        /** Used to do approximate LRU eviction. */
+        volatile long lastAccess;
+
+        public CacheEntry(T item, long loadedNanos, long lastAccess) {
+            this.item = item;
+            this.loadedNanos = loadedNanos;
+            this.lastAccess = lastAccess;
+        }
+
+        public boolean isExpired(long nowNanos, int timeoutSeconds) {
+            return timeoutSeconds <= 0 || nowNanos - loadedNanos > timeoutSeconds * 1000000000L;
+        }
+    }
+
+    public final String name;
+    public final int maxItems;
+    final ConcurrentHashMap<K,CacheEntry<V>> entries;
+    final ConcurrentHashMap<K,CompletableFuture<CacheEntry<V>>> inFlight = new ConcurrentHashMap<>();
+    final AtomicLong accessCounter = new AtomicLong();
+    final ReentrantLock evictLock = new ReentrantLock();
+    /** Bumped by removals of keys that hash to the stripe, and all of them by {@link #clearCache}. */
+    final AtomicLongArray generations = new AtomicLongArray(NUM_STRIPES);
+
+    // Statistics.
+    public final LongAdder hits = new LongAdder();
+    public final LongAdder misses = new LongAdder();
+    public final LongAdder loads = new LongAdder();
+    public final LongAdder loadFailures = new LongAdder();
+    public final LongAdder loadNanos = new LongAdder();
+    public final LongAdder evictions = new LongAdder();
+
+    public DnCache(String name, int maxItems) {
+        this.name = name;
+        this.maxItems = maxItems;
+        this.entries = new ConcurrentHashMap<>(Math.min(maxItems, 1024));
+    }
+
+    /**
+     * Gets an item, loading it with *createItem* if it is not present or is older than *timeoutSeconds*. A timeout
+     * of zero or less forces a load. In that case the caller does its own load rather than joining a load that
+     * is already in progress, since that load may have read data that the caller knows is stale. The
+     * function is given the existing (expired) entry, if there is one, so it can reuse parts of it. If
+     * *keepEmpty* is false, null results are not cached.
+     */
+    public V getItem(K key, int timeoutSeconds, boolean keepEmpty, DnFunction<CacheEntry<V>,V> createItem)
+            throws DnException {
+        long now = System.nanoTime();
+        CacheEntry<V> existing = entries.get(key);
+        if (existing != null && !existing.isExpired(now, timeoutSeconds)) {
+            existing.lastAccess = accessCounter.incrementAndGet();
+            hits.increment();
+            return existing.item;
+        }
+        misses.increment();
+        if (timeoutSeconds <= 0) {
+            return load(key, existing, keepEmpty, createItem).item;
+        }
+
+        var future = new CompletableFuture<CacheEntry<V>>();
+        var otherLoad = inFlight.putIfAbsent(key, future);
+        if (otherLoad != null) {
+            return waitForLoad(key, otherLoad).item;
+        }
+        try {
+            // Another thread may have finished a load between our lookup and registering our load.
+            CacheEntry<V> cur = entries.get(key);
+            CacheEntry<V> result = (cur != null && cur != existing && !cur.isExpired(System.nanoTime(),
+                    timeoutSeconds)) ? cur : load(key, existing, keepEmpty, createItem);
+            future.complete(result);
+            return result.item;
+        } catch (Throwable t) {
+            // Includes errors, so that waiting callers are never left waiting on a load that will not complete.
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    CacheEntry<V> load(K key, CacheEntry<V> existing, boolean keepEmpty, DnFunction<CacheEntry<V>,V> createItem)
+            throws DnException {
+        int stripe = getStripe(key);
+        long generation = generations.get(stripe);
+        long start = System.nanoTime();
+        V item;
+        try {
+            item = createItem.apply(existing);
+        } catch (Throwable t) {
+            loadFailures.increment();
+            throw t;
+        } finally {
+            loads.increment();
+            loadNanos.add(System.nanoTime() - start);
+        }
+        var entry = new CacheEntry<>(item, start, accessCounter.incrementAndGet());
+        if (item != null || keepEmpty) {
+            putEntry(key, entry);
+            // Checked after the put, so a removal either bumps the generation before this check or removes
+            // the entry after it was put.
+            if (generations.get(stripe) != generation) {
+                entries.remove(key, entry);
+            }
+        } else if (existing != null) {
+            entries.remove(key, existing);
+        }
+        return entry;
+    }
+
+    CacheEntry<V> waitForLoad(K key, CompletableFuture<CacheEntry<V>> otherLoad) throws DnException {
+        try {
+            return otherLoad.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DnException(String.format("Interrupted while waiting for load of %s in cache %s.",
+                    key, name), e, DnException.INTERNAL_ERROR, DnException.SYSTEM, DnException.INTERRUPTED);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DnException) {
+                throw (DnException)cause;
+            }
+            throw new DnException(String.format("Load of %s in cache %s failed.", key, name), cause);
+        }
+    }
+
+    /** Gets an item without loading it, returning null if it is missing or older than *timeoutSeconds*. Counts
+     * as a hit or miss. */
+    public V getIfFresh(K key, int timeoutSeconds) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null || entry.isExpired(System.nanoTime(), timeoutSeconds)) {
+            misses.increment();
+            return null;
+        }
+        entry.lastAccess = accessCounter.incrementAndGet();
+        hits.increment();
+        return entry.item;
+    }
+
+    /** Gets an item without loading it. Does not check expiration. */
+    public V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastAccess = accessCounter.incrementAndGet();
+        return entry.item;
+    }
+
+    public void put(K key, V item) {
+        putEntry(key, new CacheEntry<>(item, System.nanoTime(), accessCounter.incrementAndGet()));
+    }
+
+    void putEntry(K key, CacheEntry<V> entry) {
+        entries.put(key, entry);
+        if (entries.size() > maxItems) {
+            evict();
+        }
+    }
+
+    /** Removes the item. A load of the item that is in progress does not cache its result, and later callers
+     * do their own load rather than joining it. */
+    public void remove(K key) {
+        generations.incrementAndGet(getStripe(key));
+        inFlight.remove(key);
+        entries.remove(key);
+    }
+
+    /** Removes all items, with the same treatment of loads in progress as {@link #remove}. */
+    public void clearCache() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        inFlight.clear();
+        entries.clear();
+    }
+
+    int getStripe(K key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (NUM_STRIPES - 1);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Items ordered from least recently accessed to most recently accessed. */
+    public List<V> values() {
+        var list = new ArrayList<>(entries.values());
+        list.sort(Comparator.comparingLong(e -> e.lastAccess));
+        List<V> result = new ArrayList<>(list.size());
+        for (var entry : list) {
+            result.add(entry.item);
+        }
+        return result;
+    }
+
+    /** Removes the least recently accessed entries, taking the cache down to about 90% of its maximum so
+     * that eviction does not happen on every put. The access time below which entries are removed is estimated
+     * from an evenly spread sample of the entries. Only one thread evicts at a time, other threads
+     * do not wait for it. */
+    void evict() {
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            int size = entries.size();
+            if (size <= maxItems) {
+                return;
+            }
+            int target = Math.max(maxItems - maxItems/10, 1);
+            int toRemove = size - target;
+            long[] sample = new long[Math.min(size, EVICT_SAMPLE_SIZE)];
+            int step = Math.max(size/sample.length, 1);
+            int n = 0;
+            int i = 0;
+            for (var entry : entries.values()) {
+                if (n >= sample.length) {
+                    break;
+                }
+                if (i++ % step == 0) {
+                    sample[n++] = entry.lastAccess;
+                }
+            }
+            if (n == 0) {
+                return;
+            }
+            Arrays.sort(sample, 0, n);
+            int cutIndex = Math.min((int)((long)toRemove * n/size), n - 1);
+            long cutoff = sample[cutIndex];
+            int removed = 0;
+            for (var it = entries.entrySet().iterator(); it.hasNext() && removed < toRemove; ) {
+                var e = it.next();
+                if (e.getValue().lastAccess <= cutoff && entries.remove(e.getKey(), e.getValue())) {
+                    removed++;
+                }
+            }
+            evictions.add(removed);
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    public Map<String,Object> getStats() {
+        long numLoads = loads.sum();
+        double avgLoadMs = (numLoads > 0) ? loadNanos.sum()/(numLoads * 1000000.0) : 0;
+        return mMap("name", name, "size", entries.size(), "maxItems", maxItems, "hits", hits.sum(),
+                "misses", misses.sum(), "loads", numLoads, "loadFailures", loadFailures.sum(),
+                "avgLoadMillis", avgLoadMs, "evictions", evictions.sum());
+    }
+}
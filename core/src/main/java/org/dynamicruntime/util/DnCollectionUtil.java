@@ -10,7 +10,8 @@ import java.util.function.Function;
  * constructions). */
 @SuppressWarnings("WeakerAccess")
 public class DnCollectionUtil {
-    /** Groovy envy method for creating maps. Creates a mutable map and drops nulls. We have a version
+    /** Groovy envy method for creating maps. Creates a mutable map and drops nulls. The map keeps the order its
+     * entries were put in, which is the order they are written out as JSON. We have a version
      * specific to storing *Object* types because it is the main data class of this application and
      * it means you can declare the variable that receives the results of the call with *var*.
      * Every two arguments becomes a key-value pair. */
@@ -18,7 +19,7 @@ public class DnCollectionUtil {
         if (args.length % 2 != 0) {
             throw new RuntimeException("Number of arguments to map creation must be even.");
         }
-        var map = new HashMap<String,Object>();
+        var map = new LinkedHashMap<String,Object>();
         for (int i = 0; i < args.length; i += 2) {
             Object k = args[i];
             Object v = args[i + 1];
@@ -36,7 +37,7 @@ public class DnCollectionUtil {
         if (args.length % 2 != 0) {
             throw new RuntimeException("Number of arguments to map creation must be even.");
         }
-        var map = new HashMap<U,V>();
+        var map = new LinkedHashMap<U,V>();
         for (int i = 0; i < args.length; i += 2) {
             U k = (U)args[i]; // Dependent on the carefulness of the caller, much like it would be in Groovy.
             V v = (V)args[i + 1]; // Again, dependent on the carefulness of the caller.
@@ -68,7 +69,7 @@ public class DnCollectionUtil {
     }
 
     public static <U,V> Map<U,V> cloneMap(Map<U,V> inMap) {
-        return new HashMap<>(inMap);
+        return new LinkedHashMap<>(inMap);
     }
 
     /** Performs 'map' style call (called *collect* in Groovy) but drops nulls. The letter
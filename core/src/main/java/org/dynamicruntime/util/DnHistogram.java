@@ -0,0 +1,101 @@
+package org.dynamicruntime.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Counts durations into fixed buckets. Recording a duration is a few non-blocking additions, so it
+ * can be done on every request or every SQL statement without contention. The buckets are the same for every
+ * histogram (from a tenth of a millisecond to ten seconds) so that histograms can be compared with each other
+ * and exported without extra configuration. Percentiles are estimated as the upper bound of the bucket
+ * they fall in.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnHistogram {
+    /** Upper bounds of the buckets in milliseconds. There is one more bucket for everything larger. */
+    public static final double[] BUCKET_BOUNDS_MILLIS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500,
+            1000, 2500, 5000, 10000};
+    static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_MILLIS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = (long)(BUCKET_BOUNDS_MILLIS[i] * 1000000);
+        }
+    }
+
+    public final String name;
+    public final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length + 1];
+    public final LongAdder count = new LongAdder();
+    public final LongAdder sumNanos = new LongAdder();
+    public final AtomicLong maxNanos = new AtomicLong();
+
+    public DnHistogram(String name) {
+        this.name = name;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sumNanos.add(nanos);
+        if (nanos > maxNanos.get()) {
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Cumulative counts of each bucket, the last entry is the total count. */
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    /** Estimates the value (in milliseconds) below which the given fraction of the durations fall. The estimate
+     * is never more than the largest duration recorded. */
+    public double getPercentileMillis(double fraction) {
+        long[] counts = getCumulativeCounts();
+        long total = counts[counts.length - 1];
+        if (total == 0) {
+            return 0;
+        }
+        double maxMillis = maxNanos.get()/1000000.0;
+        long target = (long)Math.ceil(fraction * total);
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            if (counts[i] >= target) {
+                return Math.min(BUCKET_BOUNDS_MILLIS[i], maxMillis);
+            }
+        }
+        return maxMillis;
+    }
+
+    public Map<String,Object> toMap() {
+        long n = count.sum();
+        double avgMillis = (n > 0) ? sumNanos.sum()/(n * 1000000.0) : 0;
+        List<Map<String,Object>> bucketCounts = mList();
+        long[] counts = getCumulativeCounts();
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            bucketCounts.add(mMap("le", BUCKET_BOUNDS_MILLIS[i], "count", counts[i]));
+        }
+        return mMap("count", n, "avgMillis", avgMillis, "maxMillis", maxNanos.get()/1000000.0,
+                "p50Millis", getPercentileMillis(0.5), "p90Millis", getPercentileMillis(0.9),
+                "p99Millis", getPercentileMillis(0.99), "buckets", bucketCounts);
+    }
+}
@@ -0,0 +1,44 @@
+package org.dynamicruntime.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of objects that are expensive to create and can be reused, such as I/O buffers and ciphers.
+ * This replaces per-thread caching with *ThreadLocal*. When requests run on virtual threads, every request
+ * gets a new thread, so a *ThreadLocal* creates a new object for each request and never reuses it.
+ *
+ * If the pool is empty, a new object is created. Objects given back when the pool is full are dropped for
+ * the garbage collector. An object that is never given back (because of an exception, for example) is
+ * not a leak, it just does not get reused.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnObjectPool<T> {
+    /** Enough to cover the requests actively running on the CPUs without holding on to a buffer for every
+     * thread in a large platform thread pool. */
+    public static final int DEFAULT_MAX_IDLE = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+    public final ArrayBlockingQueue<T> idle;
+    public final Supplier<T> creator;
+
+    public DnObjectPool(int maxIdle, Supplier<T> creator) {
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+        this.creator = creator;
+    }
+
+    public DnObjectPool(Supplier<T> creator) {
+        this(DEFAULT_MAX_IDLE, creator);
+    }
+
+    public T take() {
+        T obj = idle.poll();
+        return (obj != null) ? obj : creator.get();
+    }
+
+    /** The caller must not use the object after giving it back. */
+    public void give(T obj) {
+        if (obj != null) {
+            idle.offer(obj);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.dynamicruntime.util;
+
+import java.math.BigDecimal;
+
+/**
+ * Writes metrics in the Prometheus text exposition format. Each metric family is started with
+ * {@link #startFamily}, which writes its *HELP* and *TYPE* lines, and is followed by all of its samples. Label
+ * names and values are given as alternating arguments.
+ *
+ * Durations are written in seconds, following the Prometheus convention, even though {@link DnHistogram}
+ * reports milliseconds.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnPrometheusWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String COUNTER = "counter";
+    public static final String GAUGE = "gauge";
+    public static final String HISTOGRAM = "histogram";
+
+    public final StringBuilder sb = new StringBuilder(4096);
+
+    public DnPrometheusWriter startFamily(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ');
+        for (int i = 0; i < help.length(); i++) {
+            char c = help.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public DnPrometheusWriter sample(String name, double value, String... labels) {
+        appendNameAndLabels(name, labels, null);
+        appendValue(value);
+        return this;
+    }
+
+    /** Writes the *_bucket*, *_sum*, and *_count* samples of the histogram with durations in seconds. */
+    public DnPrometheusWriter histogram(String name, DnHistogram histogram, String... labels) {
+        long[] counts = histogram.getCumulativeCounts();
+        String bucketName = name + "_bucket";
+        for (int i = 0; i < DnHistogram.BUCKET_BOUNDS_MILLIS.length; i++) {
+            appendNameAndLabels(bucketName, labels, fmtSeconds(DnHistogram.BUCKET_BOUNDS_MILLIS[i]));
+            appendValue(counts[i]);
+        }
+        long total = counts[counts.length - 1];
+        appendNameAndLabels(bucketName, labels, "+Inf");
+        appendValue(total);
+        sample(name + "_sum", histogram.sumNanos.sum()/1e9, labels);
+        sample(name + "_count", total, labels);
+        return this;
+    }
+
+    void appendNameAndLabels(String name, String[] labels, String le) {
+        sb.append(name);
+        if (labels.length > 0 || le != null) {
+            sb.append('{');
+            boolean isFirst = true;
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (!isFirst) {
+                    sb.append(',');
+                }
+                isFirst = false;
+                appendLabel(labels[i], labels[i + 1]);
+            }
+            if (le != null) {
+                if (!isFirst) {
+                    sb.append(',');
+                }
+                appendLabel("le", le);
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+    }
+
+    void appendLabel(String labelName, String labelValue) {
+        sb.append(labelName).append("=\"");
+        String v = (labelValue != null) ? labelValue : "";
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    void appendValue(double value) {
+        if (value == (long)value) {
+            sb.append((long)value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    static String fmtSeconds(double millis) {
+        // Bucket bounds are exact in milliseconds, avoid printing floating point noise for them.
+        return BigDecimal.valueOf(millis).movePointLeft(3).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
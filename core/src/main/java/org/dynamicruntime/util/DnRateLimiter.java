@@ -0,0 +1,149 @@
+package org.dynamicruntime.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.dynamicruntime.util.DnCollectionUtil.*;
+
+/**
+ * Token bucket rate limiter keyed by an arbitrary string, such as an IP address or a userId. Each key gets a
+ * bucket of *burst* tokens which refills at *ratePerSecond*. A request takes a token, and a request
+ * that finds the bucket empty is turned away.
+ *
+ * A bucket is not stored as a count of tokens. It is stored as a single *AtomicLong* that holds the time (from
+ * *System.nanoTime*) at which the bucket would be full again, and a request advances that time by one token's
+ * worth of refill. This is the *generic cell rate algorithm*. It has the same behavior as a token bucket, but the
+ * check is a single compare-and-set with no locking and no background refill. A bucket whose full time
+ * has passed is the same as no bucket at all, so those are the first to be dropped when the number
+ * of keys grows past *maxKeys*.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DnRateLimiter {
+    public final String name;
+    public final double ratePerSecond;
+    public final int burst;
+    public final int maxKeys;
+    /** Nanoseconds it takes to refill one token. */
+    public final long intervalNanos;
+    /** Nanoseconds it takes to refill an empty bucket. */
+    public final long burstNanos;
+    final ConcurrentHashMap<String,AtomicLong> buckets;
+    final ReentrantLock evictLock = new ReentrantLock();
+
+    // Statistics.
+    public final LongAdder allowed = new LongAdder();
+    public final LongAdder rejected = new LongAdder();
+    public final LongAdder evictions = new LongAdder();
+
+    public DnRateLimiter(String name, double ratePerSecond, int burst, int maxKeys) {
+        this.name = name;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.max(burst, 1);
+        this.maxKeys = maxKeys;
+        this.intervalNanos = Math.max((long)(1000000000L/ratePerSecond), 1);
+        this.burstNanos = intervalNanos * this.burst;
+        this.buckets = new ConcurrentHashMap<>(Math.min(maxKeys, 1024));
+    }
+
+    /** Takes a token for the key, returning false if the key has used up its tokens. A null key is always
+     * allowed. */
+    public boolean tryAcquire(String key) {
+        return acquireOrGetWait(key, System.nanoTime()) == 0;
+    }
+
+    public boolean tryAcquire(String key, long nowNanos) {
+        return acquireOrGetWait(key, nowNanos) == 0;
+    }
+
+    /** Takes a token for the key and returns zero, or, if the key has used up its tokens, returns the
+     * nanoseconds until its next token is available. This is the time a rejected caller should be told to
+     * wait before retrying. */
+    public long acquireOrGetWait(String key, long nowNanos) {
+        if (key == null) {
+            return 0;
+        }
+        AtomicLong bucket = buckets.get(key);
+        boolean added = false;
+        if (bucket == null) {
+            bucket = new AtomicLong(nowNanos);
+            AtomicLong existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            } else {
+                added = true;
+            }
+        }
+        while (true) {
+            long fullAt = bucket.get();
+            // Comparisons are done on differences, *nanoTime* values can wrap.
+            long start = (fullAt - nowNanos > 0) ? fullAt : nowNanos;
+            long newFullAt = start + intervalNanos;
+            long wait = newFullAt - nowNanos - burstNanos;
+            if (wait > 0) {
+                rejected.increment();
+                return wait;
+            }
+            if (bucket.compareAndSet(fullAt, newFullAt)) {
+                allowed.increment();
+                // Evict after taking the token, so the new bucket is not itself a full one that gets dropped.
+                if (added && buckets.size() > maxKeys) {
+                    evict(nowNanos);
+                }
+                return 0;
+            }
+        }
+    }
+
+    /** Drops buckets that have refilled. If that is not enough, drops the buckets closest to being full
+     * until the number of keys is down to about 90% of the maximum. Only one thread evicts at a time, other
+     * threads do not wait for it. */
+    void evict(long nowNanos) {
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            for (var e : buckets.entrySet()) {
+                if (e.getValue().get() - nowNanos <= 0 && buckets.remove(e.getKey(), e.getValue())) {
+                    evictions.increment();
+                }
+            }
+            int target = Math.max(maxKeys - maxKeys/10, 1);
+            if (buckets.size() <= target) {
+                return;
+            }
+            // Snapshot the full times, they keep changing while we sort.
+            var list = new ArrayList<Map.Entry<String,Long>>(buckets.size());
+            for (var e : buckets.entrySet()) {
+                list.add(Map.entry(e.getKey(), e.getValue().get() - nowNanos));
+            }
+            list.sort(Comparator.comparingLong(Map.Entry::getValue));
+            int toRemove = list.size() - target;
+            for (int i = 0; i < toRemove; i++) {
+                if (buckets.remove(list.get(i).getKey()) != null) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    public void clear() {
+        buckets.clear();
+    }
+
+    public Map<String,Object> getStats() {
+        return mMap("name", name, "ratePerSecond", ratePerSecond, "burst", burst, "keys", buckets.size(),
+                "maxKeys", maxKeys, "allowed", allowed.sum(), "rejected", rejected.sum(),
+                "evictions", evictions.sum());
+    }
+}
@@ -26,10 +26,10 @@ public class EncodeUtil {
     public static final String ENCRYPTION_SIG = "AGN";
     public static final String KEY_SIG = "UU";
 
-    public static final ThreadLocal<SecretKeyFactory> threadSecretKeyFactories =
-            ThreadLocal.withInitial(EncodeUtil::mkSecretKeyFactory);
-    public static final ThreadLocal<Cipher> threadCiphers =
-            ThreadLocal.withInitial(EncodeUtil::mkCipher);
+    /** Pooled rather than per thread, see {@link DnObjectPool}. */
+    public static final DnObjectPool<SecretKeyFactory> secretKeyFactories =
+            new DnObjectPool<>(EncodeUtil::mkSecretKeyFactory);
+    public static final DnObjectPool<Cipher> ciphers = new DnObjectPool<>(EncodeUtil::mkCipher);
 
 
     public static String base64Encode(byte[] bytes) {
@@ -139,7 +139,7 @@ public class EncodeUtil {
      * The choice of *NUM_HASH_ITERATIONS* is designed to make the code take about
      * (very approximately since different CPUs can make a huge difference) 100 milliseconds to execute. */
     public static String hashPassword(byte[] salt, String password) {
-        SecretKeyFactory keyFactory = threadSecretKeyFactories.get();
+        SecretKeyFactory keyFactory = secretKeyFactories.take();
         char[] passwdChars = password.toCharArray();
         PBEKeySpec spec = new PBEKeySpec(passwdChars, salt, NUM_HASH_ITERATORS, NUM_HASH_BITS);
         try {
@@ -151,6 +151,8 @@ public class EncodeUtil {
             return PASSWORD_ENCODE_ALG + "|" + saltStr + "|" + hashStr;
         } catch (InvalidKeySpecException e) {
             throw new RuntimeException("Could not generate hash", e);
+        } finally {
+            secretKeyFactories.give(keyFactory);
         }
     }
 
@@ -188,8 +190,9 @@ public class EncodeUtil {
         }
     }
 
+    /** Gets a cipher from the pool initialized for the key. Give it back to {@link #ciphers} when done. */
     public static Cipher getCipher(int mode, SecretKey secretKey, AlgorithmParameterSpec parameterSpec) {
-        Cipher cipher = threadCiphers.get();
+        Cipher cipher = ciphers.take();
         try {
             cipher.init(mode, secretKey, parameterSpec);
         } catch (InvalidKeyException e) {
@@ -216,11 +219,15 @@ public class EncodeUtil {
      * Following example laid out in
      * https://proandroiddev.com/security-best-practices-symmetric-encryption-with-aes-in-java-7616beaaade9 */
     public static String encrypt(String key, String plainText) throws DnException {
+        return encrypt(mkSecretKey(key), plainText);
+    }
+
+    /** Encrypts using a key already created by {@link #mkSecretKey}, so callers that hold on to the key do not
+     * decode it on every call. */
+    public static String encrypt(SecretKey secretKey, String plainText) throws DnException {
         SecureRandom sr = RandomUtil.getSecureRandom();
         byte[] iv = new byte[NUM_RANDOM_ENCRYPT_BYTES];
         sr.nextBytes(iv);
-        byte[] keyBytes = getKeyBytes(key);
-        SecretKey secretKey = new SecretKeySpec(keyBytes, "AES");
         GCMParameterSpec parameterSpec = new GCMParameterSpec(128, iv);
         byte[] textBytes = plainText.getBytes(StandardCharsets.UTF_8);
 
@@ -237,6 +244,8 @@ public class EncodeUtil {
             throw DnException.mkConv("Could not encrypt bytes because of block size issue.", e);
         } catch (BadPaddingException e) {
             throw DnException.mkConv("Could not encrypt bytes because of padding issue.", e);
+        } finally {
+            ciphers.give(cipher);
         }
     }
 
@@ -254,11 +263,20 @@ public class EncodeUtil {
         return keyBytes;
     }
 
+    /** Creates the AES key for an encryption key manufactured by encodeKey. The result is immutable and can
+     * be shared between threads. */
+    public static SecretKey mkSecretKey(String key) throws DnException {
+        return new SecretKeySpec(getKeyBytes(key), "AES");
+    }
+
     public static String decrypt(String key, String encryptedText) throws DnException {
+        return decrypt(mkSecretKey(key), encryptedText);
+    }
+
+    public static String decrypt(SecretKey secretKey, String encryptedText) throws DnException {
         if (!encryptedText.startsWith(ENCRYPTION_SIG)) {
             throw DnException.mkConv("Encrypted text does not start with proper signature.");
         }
-        byte[] keyBytes = getKeyBytes(key);
         byte[] encryptedBytes = base64Decode(encryptedText.substring(ENCRYPTION_SIG.length()));
         ByteBuffer byteBuffer = ByteBuffer.wrap(encryptedBytes);
         byte[] iv = new byte[NUM_RANDOM_ENCRYPT_BYTES];
@@ -266,7 +284,7 @@ public class EncodeUtil {
         byte[] cipherText = new byte[byteBuffer.remaining()];
         byteBuffer.get(cipherText);
 
-        Cipher cipher = getCipher(Cipher.DECRYPT_MODE, new SecretKeySpec(keyBytes, "AES"),
+        Cipher cipher = getCipher(Cipher.DECRYPT_MODE, secretKey,
                 new GCMParameterSpec(128, iv));
         try {
             byte[] plainTextBytes = cipher.doFinal(cipherText);
@@ -275,6 +293,8 @@ public class EncodeUtil {
             throw DnException.mkConv("Could not decrypt bytes because of block size issue.", e);
         } catch (BadPaddingException e) {
             throw DnException.mkConv("Could not decrypt bytes because of padding issue.", e);
+        } finally {
+            ciphers.give(cipher);
         }
     }
 }
@@ -6,6 +6,10 @@ import org.apache.http.message.BasicNameValuePair;
 
 import static org.dynamicruntime.util.DnCollectionUtil.*;
 
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -24,4 +28,85 @@ public class HttpUtil {
     public static String fmtArg(Object obj) {
         return (obj instanceof CharSequence) ? obj.toString() : ParsingUtil.toJsonString(obj, true);
     }
+
+    /** Formats a date the way HTTP headers such as *Last-Modified* want it. */
+    public static String formatHttpDate(Date date) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(date.toInstant().atZone(ZoneOffset.UTC));
+    }
+
+    /** Returns null if the date cannot be parsed. */
+    public static Date parseHttpDate(String str) {
+        try {
+            return Date.from(ZonedDateTime.parse(str.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Whether an *If-None-Match* header matches the entity tag. Uses weak comparison, as the header asks for. */
+    public static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        String target = stripWeak(etag);
+        for (String tag : ifNoneMatch.split(",")) {
+            if (stripWeak(tag.trim()).equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /** Whether the *Accept-Encoding* header allows the encoding. */
+    public static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String item : acceptEncoding.split(",")) {
+            int index = item.indexOf(';');
+            String name = ((index >= 0) ? item.substring(0, index) : item).trim();
+            if (name.equalsIgnoreCase(encoding) || name.equals("*")) {
+                String params = (index >= 0) ? item.substring(index + 1).replace(" ", "") : "";
+                return !params.startsWith("q=0") || params.matches("q=0\\.0*[1-9].*");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a *Range* header for content of the given length. Returns the first and last byte positions, an
+     * empty array if the range cannot be satisfied, or null if the header should be ignored and the whole
+     * content sent. Requests for more than one range are ignored.
+     */
+    public static long[] parseByteRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int index = spec.indexOf('-');
+        if (index < 0) {
+            return null;
+        }
+        try {
+            String startStr = spec.substring(0, index).trim();
+            String endStr = spec.substring(index + 1).trim();
+            if (startStr.isEmpty()) {
+                // Suffix range, the last *n* bytes.
+                long n = Long.parseLong(endStr);
+                return (n > 0 && length > 0) ? new long[]{Math.max(length - n, 0), length - 1} : new long[0];
+            }
+            long start = Long.parseLong(startStr);
+            long end = endStr.isEmpty() ? length - 1 : Math.min(Long.parseLong(endStr), length - 1);
+            if (start >= length) {
+                return new long[0];
+            }
+            return (end >= start) ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
@@ -5,6 +5,7 @@ import org.dynamicruntime.exception.DnException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 
@@ -42,4 +43,19 @@ public class IoUtil {
         }
         return null;
     }
+
+    /** Reads the stream into the supplied buffer and returns the number of bytes read. Returns -1 if the
+     * stream has more data than the buffer can hold. Stops reading as soon as the buffer overflows, so a
+     * hostile caller cannot make us consume an unbounded amount of data. */
+    public static int readIntoBuffer(InputStream in, byte[] buf) throws IOException {
+        int len = 0;
+        while (len < buf.length) {
+            int n = in.read(buf, len, buf.length - len);
+            if (n < 0) {
+                return len;
+            }
+            len += n;
+        }
+        return (in.read() < 0) ? len : -1;
+    }
 }
@@ -0,0 +1,353 @@
+package org.dynamicruntime.util;
+
+import org.dynamicruntime.exception.DnException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses JSON directly from UTF-8 bytes. This avoids converting request bodies into a string before parsing them
+ * and avoids the per-character overhead of a general purpose tokenizer. Objects become *LinkedHashMap* instances
+ * that keep the order of their fields, arrays become *ArrayList* instances, integers become *Long* and all other
+ * numbers become *Double*, which matches what the previous (json-simple based) implementation produced.
+ *
+ * Two small tricks reduce the garbage created for typical request bodies. Short ASCII keys are looked up
+ * in a shared table so that repeated keys such as *username* or *formAuthToken* share the same *String*
+ * instance across requests, and small non-negative integers come from a table of preallocated *Long* values.
+ *
+ * Instances are not thread safe and are meant to be used for a single parse.
+ */
+@SuppressWarnings("WeakerAccess")
+public class JsonByteParser {
+    public static final int MAX_NEST_LEVEL = 64;
+    public static final int MAX_INTERNED_KEY_LENGTH = 32;
+    static final int KEY_CACHE_SIZE = 1024; // Must be a power of two.
+    /** Entries can be replaced by other threads at any time. Since strings are immutable, the worst outcome
+     * of a race is a missed lookup. */
+    static final String[] keyCache = new String[KEY_CACHE_SIZE];
+    static final int LONG_CACHE_SIZE = 1024;
+    static final Long[] longCache = new Long[LONG_CACHE_SIZE];
+
+    static {
+        for (int i = 0; i < LONG_CACHE_SIZE; i++) {
+            longCache[i] = (long)i;
+        }
+    }
+
+    public final byte[] data;
+    public final int end;
+    public int pos;
+    // Only allocated if a string has escapes or non-ASCII characters.
+    private StringBuilder scratch;
+
+    public JsonByteParser(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /** Parses a single JSON value that spans the entire range of bytes. */
+    public static Object parse(byte[] data, int offset, int length) throws DnException {
+        var parser = new JsonByteParser(data, offset, length);
+        Object result = parser.parseValue(0);
+        parser.skipWhitespace();
+        if (parser.pos < parser.end) {
+            throw parser.mkError("Unexpected content after end of JSON");
+        }
+        return result;
+    }
+
+    public Object parseValue(int nestLevel) throws DnException {
+        skipWhitespace();
+        if (pos >= end) {
+            throw mkError("Unexpected end of JSON");
+        }
+        byte b = data[pos];
+        switch (b) {
+            case '{':
+                return parseObject(nestLevel + 1);
+            case '[':
+                return parseArray(nestLevel + 1);
+            case '"':
+                pos++;
+                return parseString(false);
+            case 't':
+                expectLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectLiteral("null");
+                return null;
+            default:
+                if (b == '-' || (b >= '0' && b <= '9')) {
+                    return parseNumber();
+                }
+                throw mkError("Unexpected character '" + (char)b + "'");
+        }
+    }
+
+    Map<String,Object> parseObject(int nestLevel) throws DnException {
+        if (nestLevel > MAX_NEST_LEVEL) {
+            throw mkError("JSON is nested too deeply");
+        }
+        pos++; // Skip '{'.
+        var map = new LinkedHashMap<String,Object>();
+        skipWhitespace();
+        if (pos < end && data[pos] == '}') {
+            pos++;
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            if (pos >= end || data[pos] != '"') {
+                throw mkError("Expected string key in JSON object");
+            }
+            pos++;
+            String key = parseString(true);
+            skipWhitespace();
+            if (pos >= end || data[pos] != ':') {
+                throw mkError("Expected ':' after key in JSON object");
+            }
+            pos++;
+            map.put(key, parseValue(nestLevel));
+            skipWhitespace();
+            if (pos >= end) {
+                throw mkError("Unexpected end of JSON object");
+            }
+            byte b = data[pos++];
+            if (b == '}') {
+                return map;
+            }
+            if (b != ',') {
+                throw mkError("Expected ',' or '}' in JSON object");
+            }
+        }
+    }
+
+    List<Object> parseArray(int nestLevel) throws DnException {
+        if (nestLevel > MAX_NEST_LEVEL) {
+            throw mkError("JSON is nested too deeply");
+        }
+        pos++; // Skip '['.
+        var list = new ArrayList<>();
+        skipWhitespace();
+        if (pos < end && data[pos] == ']') {
+            pos++;
+            return list;
+        }
+        while (true) {
+            list.add(parseValue(nestLevel));
+            skipWhitespace();
+            if (pos >= end) {
+                throw mkError("Unexpected end of JSON array");
+            }
+            byte b = data[pos++];
+            if (b == ']') {
+                return list;
+            }
+            if (b != ',') {
+                throw mkError("Expected ',' or ']' in JSON array");
+            }
+        }
+    }
+
+    /** Parses a string, assumes the opening quote has already been consumed. */
+    String parseString(boolean isKey) throws DnException {
+        int start = pos;
+        int hash = 0;
+        // Fast path, pure ASCII without escapes.
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                int len = pos - start;
+                pos++;
+                if (isKey && len <= MAX_INTERNED_KEY_LENGTH) {
+                    return internKey(start, len, hash);
+                }
+                return new String(data, start, len, StandardCharsets.ISO_8859_1);
+            }
+            if (b == '\\' || b < 0x20) {
+                // Negative bytes are the start of multi-byte UTF-8 sequences and control characters
+                // are not allowed unescaped.
+                break;
+            }
+            hash = 31 * hash + b;
+            pos++;
+        }
+        return parseComplexString(start);
+    }
+
+    String internKey(int start, int len, int hash) {
+        int index = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+        String cached = keyCache[index];
+        if (cached != null && cached.length() == len) {
+            boolean matches = true;
+            for (int i = 0; i < len; i++) {
+                if (cached.charAt(i) != data[start + i]) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                return cached;
+            }
+        }
+        String key = new String(data, start, len, StandardCharsets.ISO_8859_1);
+        keyCache[index] = key;
+        return key;
+    }
+
+    String parseComplexString(int start) throws DnException {
+        StringBuilder sb = scratch;
+        if (sb == null) {
+            sb = new StringBuilder(Math.max(16, 2 * (pos - start)));
+            scratch = sb;
+        } else {
+            sb.setLength(0);
+        }
+        int runStart = start;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                appendRun(sb, runStart, pos);
+                pos++;
+                return sb.toString();
+            }
+            if (b == '\\') {
+                appendRun(sb, runStart, pos);
+                pos++;
+                if (pos >= end) {
+                    break;
+                }
+                byte e = data[pos++];
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        sb.append(parseHexChar());
+                        break;
+                    default:
+                        throw mkError("Illegal escape character '" + (char)e + "' in JSON string");
+                }
+                runStart = pos;
+            } else if (b >= 0 && b < 0x20) {
+                throw mkError("Unescaped control character in JSON string");
+            } else {
+                pos++;
+            }
+        }
+        throw mkError("Unterminated JSON string");
+    }
+
+    /** Appends a run of bytes that has no escapes (but may have multi-byte UTF-8 sequences). */
+    void appendRun(StringBuilder sb, int from, int to) {
+        if (to > from) {
+            sb.append(new String(data, from, to - from, StandardCharsets.UTF_8));
+        }
+    }
+
+    char parseHexChar() throws DnException {
+        if (pos + 4 > end) {
+            throw mkError("Incomplete unicode escape in JSON string");
+        }
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            int d = Character.digit(data[pos++], 16);
+            if (d < 0) {
+                throw mkError("Illegal unicode escape in JSON string");
+            }
+            v = (v << 4) | d;
+        }
+        return (char)v;
+    }
+
+    Object parseNumber() throws DnException {
+        int start = pos;
+        boolean isNegative = false;
+        if (data[pos] == '-') {
+            isNegative = true;
+            pos++;
+        }
+        long v = 0;
+        int numDigits = 0;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b < '0' || b > '9') {
+                break;
+            }
+            v = 10 * v + (b - '0');
+            numDigits++;
+            pos++;
+        }
+        if (numDigits == 0) {
+            throw mkError("Illegal number in JSON");
+        }
+        boolean isDecimal = false;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-' || (b >= '0' && b <= '9')) {
+                isDecimal = true;
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (!isDecimal && numDigits <= 18) {
+            if (!isNegative && v < LONG_CACHE_SIZE) {
+                return longCache[(int)v];
+            }
+            return isNegative ? -v : v;
+        }
+        String numStr = new String(data, start, pos - start, StandardCharsets.ISO_8859_1);
+        try {
+            if (!isDecimal) {
+                try {
+                    return Long.parseLong(numStr);
+                } catch (NumberFormatException ignore) {
+                    // Too big for a long, fall through to double.
+                }
+            }
+            return Double.parseDouble(numStr);
+        } catch (NumberFormatException e) {
+            throw mkError("Illegal number " + numStr + " in JSON");
+        }
+    }
+
+    void expectLiteral(String literal) throws DnException {
+        int len = literal.length();
+        if (pos + len > end) {
+            throw mkError("Unexpected end of JSON");
+        }
+        for (int i = 0; i < len; i++) {
+            if (data[pos + i] != literal.charAt(i)) {
+                throw mkError("Unexpected token in JSON");
+            }
+        }
+        pos += len;
+    }
+
+    void skipWhitespace() {
+        while (pos < end) {
+            byte b = data[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    DnException mkError(String msg) {
+        return DnException.mkConv(msg + " at position " + pos + ".");
+    }
+}
@@ -0,0 +1,324 @@
+package org.dynamicruntime.util;
+
+import org.dynamicruntime.schemadef.DnField;
+import org.dynamicruntime.schemadef.DnSchemaStore;
+import org.dynamicruntime.schemadef.DnType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+import static org.dynamicruntime.util.ConvertUtil.*;
+
+/**
+ * Writes JSON as UTF-8 bytes directly to an output stream. When not given a type, it produces the same output
+ * as {@link ParsingUtil#toJsonString(Object, boolean, boolean)} but without building the full response as a
+ * string and then converting the string to bytes. The bytes are accumulated in a pooled buffer that is
+ * reused between requests and only pushed to the output stream when the buffer fills up or when {@link #finish}
+ * is called.
+ * If the entire response fits in the buffer, the caller can learn the total length before anything has
+ * been written (which lets it set the *Content-Length* header). Otherwise, the output is streamed and the
+ * servlet container falls back on chunked transfer encoding.
+ *
+ * Map entries are written without copying or sorting the map. If the writer is given the {@link DnType} of the
+ * data, such as the output type of an endpoint, fields are written in the order the type declares them, followed
+ * by any entries the type does not know about. Otherwise, entries are written in the order the map iterates
+ * them, which for maps built by the SQL layer or parsed from JSON is the order they were put in. The writer
+ * can also be asked to sort, which gives output that does not depend on how the maps were built.
+ *
+ * Instances are not thread safe and should be used once for a single response.
+ */
+@SuppressWarnings("WeakerAccess")
+public class JsonStreamWriter {
+    public static final int BUFFER_SIZE = 16 * 1024;
+    public static final DnObjectPool<byte[]> bufferPool = new DnObjectPool<>(() -> new byte[BUFFER_SIZE]);
+    static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+    static final byte[] NULL_BYTES = "null".getBytes();
+
+    public final OutputStream out;
+    public final boolean isCompact;
+    public final boolean isSorted;
+    /** Used to find the types of nested maps, may be null. */
+    private DnSchemaStore schema;
+    /** Set to null when given back to the pool by {@link #finish}. */
+    private byte[] buf;
+    private int pos;
+    /** Number of bytes already pushed to the output stream. */
+    private long flushedBytes;
+
+    public JsonStreamWriter(OutputStream out, boolean isCompact) {
+        this(out, isCompact, false);
+    }
+
+    public JsonStreamWriter(OutputStream out, boolean isCompact, boolean isSorted) {
+        this.out = out;
+        this.isCompact = isCompact;
+        this.isSorted = isSorted;
+        this.buf = bufferPool.take();
+        this.pos = 0;
+    }
+
+    /** Writes the object as JSON. Can only be called once for a particular writer. */
+    public JsonStreamWriter write(Object obj) throws IOException {
+        writeJson(obj, null, 0);
+        return this;
+    }
+
+    /** Writes the object as JSON, putting the fields of maps in the order given by *type*. The *schema* is
+     * used to look up the types of fields that refer to named types, it can be null. */
+    public JsonStreamWriter write(Object obj, DnType type, DnSchemaStore schema) throws IOException {
+        this.schema = schema;
+        writeJson(obj, type, 0);
+        return this;
+    }
+
+    /** Whether some of the output has already been sent to the output stream. If not, then the entire
+     * output is still held in the buffer and {@link #getLength} is the final length of the output. */
+    public boolean hasFlushed() {
+        return flushedBytes > 0;
+    }
+
+    /** Total number of bytes written so far (both flushed and buffered). */
+    public long getLength() {
+        return flushedBytes + pos;
+    }
+
+    /** Sends any buffered bytes to the output stream and gives the buffer back to the pool, after which
+     * nothing more can be written. Does not flush or close the output stream itself. */
+    public void finish() throws IOException {
+        if (buf == null) {
+            return;
+        }
+        drain();
+        bufferPool.give(buf);
+        buf = null;
+    }
+
+    void writeJson(Object obj, DnType type, int nestLevel) throws IOException {
+        if (obj == null) {
+            writeBytes(NULL_BYTES);
+            return;
+        }
+        if (obj instanceof Map) {
+            if (nestLevel > 20) {
+                writeAscii("{}");
+                return;
+            }
+            Map<?,?> m = (Map<?,?>)obj;
+            writeByte('{');
+            if (!isCompact) {
+                writeByte('\n');
+            }
+            boolean isFirst = true;
+            if (isSorted) {
+                for (Map.Entry<?,?> entry : ParsingUtil.getSortedJsonEntries(m)) {
+                    isFirst = writeEntry(entry.getKey(), entry.getValue(), null, nestLevel, isFirst);
+                }
+            } else if (type != null && type.fields != null && !type.fields.isEmpty()) {
+                isFirst = writeTypedEntries(m, type, nestLevel);
+            } else {
+                for (Map.Entry<?,?> entry : m.entrySet()) {
+                    isFirst = writeEntry(entry.getKey(), entry.getValue(), null, nestLevel, isFirst);
+                }
+            }
+            if (!isCompact && !isFirst) {
+                writeByte('\n');
+                writeIndents(nestLevel);
+            }
+            writeByte('}');
+        } else if (obj instanceof Collection) {
+            if (nestLevel > 20) {
+                writeAscii("[]");
+                return;
+            }
+            writeByte('[');
+            boolean isFirst = true;
+            for (Object item : (Collection<?>)obj) {
+                if (!isFirst) {
+                    writeByte(',');
+                }
+                writeJson(item, type, nestLevel + 1);
+                isFirst = false;
+            }
+            writeByte(']');
+        } else if (obj instanceof Integer || obj instanceof Long) {
+            writeLong(((Number)obj).longValue());
+        } else if (obj instanceof Number || obj instanceof Boolean) {
+            writeAscii(fmtObject(obj));
+        } else {
+            writeByte('"');
+            writeEscaped(fmtObject(obj));
+            writeByte('"');
+        }
+    }
+
+    /** Writes the fields the type declares in its order, then any other entries. Returns whether nothing was
+     * written. */
+    boolean writeTypedEntries(Map<?,?> m, DnType type, int nestLevel) throws IOException {
+        boolean isFirst = true;
+        int numFound = 0;
+        for (DnField field : type.fields) {
+            Object v = m.get(field.name);
+            if (v == null) {
+                if (m.containsKey(field.name)) {
+                    numFound++;
+                }
+                continue;
+            }
+            numFound++;
+            isFirst = writeEntry(field.name, v, getFieldType(field, v), nestLevel, isFirst);
+        }
+        if (m.size() > numFound) {
+            for (Map.Entry<?,?> entry : m.entrySet()) {
+                Object k = entry.getKey();
+                if (k != null && !type.fieldsByName.containsKey(k.toString())) {
+                    isFirst = writeEntry(k, entry.getValue(), null, nestLevel, isFirst);
+                }
+            }
+        }
+        return isFirst;
+    }
+
+    /** The type of the maps in the value of the field, or null if there is none. */
+    DnType getFieldType(DnField field, Object v) {
+        if (!(v instanceof Map || v instanceof Collection)) {
+            return null;
+        }
+        if (field.anonType != null) {
+            return field.anonType;
+        }
+        return (schema != null && field.typeRef != null) ? schema.types.get(field.typeRef) : null;
+    }
+
+    /** Skips entries with a null key or value. Returns whether nothing has been written yet. */
+    boolean writeEntry(Object k, Object v, DnType vType, int nestLevel, boolean isFirst) throws IOException {
+        if (k == null || v == null) {
+            return isFirst;
+        }
+        if (!isFirst) {
+            writeByte(',');
+            if (!isCompact) {
+                writeByte('\n');
+            }
+        }
+        if (!isCompact) {
+            writeIndents(nestLevel + 1);
+        }
+        writeByte('"');
+        writeEscaped(k.toString());
+        writeByte('"');
+        writeByte(':');
+        writeJson(v, vType, nestLevel + 1);
+        return false;
+    }
+
+    void writeIndents(int nestLevel) throws IOException {
+        for (int i = 0; i < nestLevel; i++) {
+            writeAscii(ParsingUtil.INDENT_STRING);
+        }
+    }
+
+    void writeLong(long l) throws IOException {
+        if (l >= 0 && l < 10) {
+            writeByte('0' + (int)l);
+        } else {
+            writeAscii(Long.toString(l));
+        }
+    }
+
+    /** Escapes the same characters as {@link StrUtil#escapeLiteralString} and encodes the rest as UTF-8. */
+    void writeEscaped(String str) throws IOException {
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+                case '"':
+                    writeByte('\\');
+                    writeByte('"');
+                    break;
+                case '\\':
+                    writeByte('\\');
+                    writeByte('\\');
+                    break;
+                case '\b':
+                    writeByte('\\');
+                    writeByte('b');
+                    break;
+                case '\f':
+                    writeByte('\\');
+                    writeByte('f');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                case '\r':
+                    writeByte('\\');
+                    writeByte('r');
+                    break;
+                case '\t':
+                    writeByte('\\');
+                    writeByte('t');
+                    break;
+                default:
+                    if ((ch <= 0x1F) || (ch >= 0x7F && ch <= 0x9F) || (ch >= 0x2000 && ch <= 0x20FF)) {
+                        writeByte('\\');
+                        writeByte('u');
+                        writeByte(HEX_DIGITS[(ch >> 12) & 0xF]);
+                        writeByte(HEX_DIGITS[(ch >> 8) & 0xF]);
+                        writeByte(HEX_DIGITS[(ch >> 4) & 0xF]);
+                        writeByte(HEX_DIGITS[ch & 0xF]);
+                    } else if (ch < 0x80) {
+                        writeByte(ch);
+                    } else if (ch < 0x800) {
+                        writeByte(0xC0 | (ch >> 6));
+                        writeByte(0x80 | (ch & 0x3F));
+                    } else if (Character.isHighSurrogate(ch) && i + 1 < len &&
+                            Character.isLowSurrogate(str.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(ch, str.charAt(++i));
+                        writeByte(0xF0 | (cp >> 18));
+                        writeByte(0x80 | ((cp >> 12) & 0x3F));
+                        writeByte(0x80 | ((cp >> 6) & 0x3F));
+                        writeByte(0x80 | (cp & 0x3F));
+                    } else if (Character.isSurrogate(ch)) {
+                        // Unpaired surrogate, same replacement that String.getBytes(UTF_8) uses.
+                        writeByte('?');
+                    } else {
+                        writeByte(0xE0 | (ch >> 12));
+                        writeByte(0x80 | ((ch >> 6) & 0x3F));
+                        writeByte(0x80 | (ch & 0x3F));
+                    }
+            }
+        }
+    }
+
+    /** Only for strings known to be pure ASCII (numbers, indents, and literals). */
+    void writeAscii(String str) throws IOException {
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            writeByte(str.charAt(i));
+        }
+    }
+
+    void writeBytes(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            writeByte(b);
+        }
+    }
+
+    void writeByte(int b) throws IOException {
+        if (pos >= buf.length) {
+            drain();
+        }
+        buf[pos++] = (byte)b;
+    }
+
+    void drain() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            flushedBytes += pos;
+            pos = 0;
+        }
+    }
+}
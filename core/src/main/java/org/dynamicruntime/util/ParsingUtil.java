@@ -4,38 +4,37 @@ import static org.dynamicruntime.util.DnCollectionUtil.*;
 import static org.dynamicruntime.util.ConvertUtil.*;
 import org.dynamicruntime.exception.DnException;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
 
 @SuppressWarnings("WeakerAccess")
 public class ParsingUtil {
     public static String INDENT_STRING = "    ";
 
     /** Parses a JSON map from a string. */
-    @SuppressWarnings("unchecked")
     public static Map<String,Object> toJsonMap(String str) throws DnException {
         if (str == null || str.indexOf('{') < 0) {
             return mMap();
         }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        return toJsonMap(bytes, 0, bytes.length);
+    }
 
-        try {
-            JSONParser parser = new JSONParser();
-            Object o = parser.parse(str);
-            if (o instanceof JSONObject) {
-                var m = (JSONObject)o;
-                return (Map<String,Object>)m;
-            }
-            throw DnException.mkConv("String holding JSON did not convert to a map.");
-        } catch (ParseException pe) {
-            throw DnException.mkConv("Unable to parse JSON map from string.", pe);
+    /** Parses a JSON map directly from UTF-8 bytes. */
+    @SuppressWarnings("unchecked")
+    public static Map<String,Object> toJsonMap(byte[] data, int offset, int length) throws DnException {
+        if (!hasByte(data, offset, length, '{')) {
+            return mMap();
         }
+        Object o = JsonByteParser.parse(data, offset, length);
+        if (o instanceof Map) {
+            return (Map<String,Object>)o;
+        }
+        throw DnException.mkConv("String holding JSON did not convert to a map.");
     }
 
     /** Parsed a JSON list from a string. */
@@ -44,18 +43,21 @@ public class ParsingUtil {
         if (str == null || str.indexOf('[') < 0) {
             return mList();
         }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        Object o = JsonByteParser.parse(bytes, 0, bytes.length);
+        if (o instanceof List) {
+            return (List<Object>)o;
+        }
+        throw DnException.mkConv("String holding JSON did not convert to a list.", null);
+    }
 
-        try {
-            JSONParser parser = new JSONParser();
-            Object o = parser.parse(str);
-            if (o instanceof org.json.simple.JSONArray) {
-                var a = (org.json.simple.JSONArray)o;
-                return (List<Object>)a;
+    static boolean hasByte(byte[] data, int offset, int length, char ch) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == ch) {
+                return true;
             }
-            throw DnException.mkConv("String holding JSON did not convert to a list.", null);
-        } catch (ParseException pe) {
-            throw DnException.mkConv("Unable to parse JSON list from string.", pe);
         }
+        return false;
     }
 
     public static String toJsonString(Object obj) {
@@ -63,12 +65,24 @@ public class ParsingUtil {
     }
 
     public static String toJsonString(Object obj, boolean isCompact) {
+        return toJsonString(obj, isCompact, false);
+    }
+
+    /** Map entries are written in the order the map iterates them, unless *isSorted* is set. Sorting costs a copy
+     * and a sort of every map, so it is only worth doing when the output has to be the same no matter
+     * how a map was built, such as in tests. See {@link #getSortedJsonEntries} for the sort order. */
+    public static String toJsonString(Object obj, boolean isCompact, boolean isSorted) {
         StringBuilder sb = new StringBuilder();
-        appendJson(sb, obj, 0, isCompact);
+        appendJson(sb, obj, 0, isCompact, isSorted);
         return sb.toString();
     }
 
     public static void appendJson(StringBuilder sb, Object obj, int nestLevel, boolean isCompact) {
+        appendJson(sb, obj, nestLevel, isCompact, false);
+    }
+
+    public static void appendJson(StringBuilder sb, Object obj, int nestLevel, boolean isCompact,
+            boolean isSorted) {
         if (obj == null) {
             sb.append("null");
             return;
@@ -81,33 +95,15 @@ public class ParsingUtil {
             Map<?,?> m = (Map<?,?>)obj;
             String mapBegin = isCompact ? "{" : "{\n";
             sb.append(mapBegin);
-            List<Map.Entry<?,?>> copy = mList();
-            for (Map.Entry<?,?> entry : m.entrySet()) {
-                var k = entry.getKey();
-                if (k != null) {
-                    var v = entry.getValue();
-                    if (v != null) {
-                        copy.add(entry);
-                    }
-                }
-            }
-            copy.sort((v1,v2) -> {
-                Object vv1 = v1.getValue();
-                Object vv2 = v2.getValue();
-                boolean b1 = (vv1 instanceof Collection || vv1 instanceof Map);
-                boolean b2 = (vv2 instanceof Collection || vv2 instanceof Map);
-                if (b1 != b2) {
-                    return b1 ? 1 : -11;
-                }
-                String k1 = v1.getKey().toString();
-                String k2 = v2.getKey().toString();
-                return k1.compareTo(k2);
-            });
+            Collection<? extends Map.Entry<?,?>> entries = isSorted ? getSortedJsonEntries(m) : m.entrySet();
 
             boolean isFirst = true;
-            for (Map.Entry<?,?> entry : copy) {
+            for (Map.Entry<?,?> entry : entries) {
                 Object k = entry.getKey();
                 Object v = entry.getValue();
+                if (k == null || v == null) {
+                    continue;
+                }
                 if (!isFirst) {
                     String nextItemStr = isCompact ? "," : ",\n";
                     sb.append(nextItemStr);
@@ -119,7 +115,7 @@ public class ParsingUtil {
                 sb.append("\"");
                 StrUtil.escapeLiteralString(sb, ks);
                 sb.append("\":");
-                appendJson(sb, v, nestLevel + 1, isCompact);
+                appendJson(sb, v, nestLevel + 1, isCompact, isSorted);
                 isFirst = false;
             }
             if (!isCompact && !isFirst) {
@@ -140,7 +136,7 @@ public class ParsingUtil {
                 if (!isFirst) {
                     sb.append(",");
                 }
-                appendJson(sb, item, nestLevel + 1, isCompact);
+                appendJson(sb, item, nestLevel + 1, isCompact, isSorted);
                 isFirst = false;
             }
             sb.append(']');
@@ -154,6 +150,34 @@ public class ParsingUtil {
         }
     }
 
+    /** Gets the entries of a map that have non-null keys and values, sorted so that simple values come before
+     * lists and maps and so that keys are otherwise in alphabetical order. */
+    public static List<Map.Entry<?,?>> getSortedJsonEntries(Map<?,?> m) {
+        List<Map.Entry<?,?>> copy = mList();
+        for (Map.Entry<?,?> entry : m.entrySet()) {
+            var k = entry.getKey();
+            if (k != null) {
+                var v = entry.getValue();
+                if (v != null) {
+                    copy.add(entry);
+                }
+            }
+        }
+        copy.sort((v1,v2) -> {
+            Object vv1 = v1.getValue();
+            Object vv2 = v2.getValue();
+            boolean b1 = (vv1 instanceof Collection || vv1 instanceof Map);
+            boolean b2 = (vv2 instanceof Collection || vv2 instanceof Map);
+            if (b1 != b2) {
+                return b1 ? 1 : -1;
+            }
+            String k1 = v1.getKey().toString();
+            String k2 = v2.getKey().toString();
+            return k1.compareTo(k2);
+        });
+        return copy;
+    }
+
     public static void appendIndents(StringBuilder sb, int nestLevel) {
         for (int i = 0; i < nestLevel; i++) {
             sb.append(INDENT_STRING);
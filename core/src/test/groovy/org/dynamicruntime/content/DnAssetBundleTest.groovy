@@ -0,0 +1,173 @@
+package org.dynamicruntime.content
+
+import org.dynamicruntime.context.DnCxt
+import org.dynamicruntime.exception.DnException
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.zip.GZIPInputStream
+
+class DnAssetBundleTest extends Specification {
+    static File mkSiteDir() {
+        def dir = Files.createTempDirectory("dnBundleTest").toFile()
+        new File(dir, "static/js").mkdirs()
+        new File(dir, "index.html").text = "<html><body>" + ("Hello " * 200) + "</body></html>"
+        new File(dir, "static/js/main.js").text = "console.log('hi');"
+        new File(dir, "static/logo.png").bytes = [1, 2, 3, 4] as byte[]
+        new File(dir, ".hidden").text = "secret"
+        return dir
+    }
+
+    static String str(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()]
+        buf.duplicate().get(bytes)
+        return new String(bytes, StandardCharsets.UTF_8)
+    }
+
+    def "Files written to a bundle should be read back with their type, entity tag, and compressed form"() {
+        def dir = mkSiteDir()
+        def bundleFile = File.createTempFile("site", DnAssetBundle.BUNDLE_EXT)
+
+        when: "Packing a directory and opening the bundle"
+        int count = DnAssetBundle.writeBundle(dir, "build/", bundleFile)
+        def bundle = DnAssetBundle.open(bundleFile, "v1")
+        def index = bundle.getContent("build/index.html")
+        def js = bundle.getContent("build/static/js/main.js")
+        def png = bundle.getContent("build/static/logo.png")
+
+        then: "Every file but hidden ones is there, keyed by the prefix and its relative path"
+        count == 3
+        bundle.version == "v1"
+        bundle.entries.keySet() == ["build/index.html", "build/static/js/main.js", "build/static/logo.png"] as Set
+        bundle.getContent("build/.hidden") == null
+        bundle.getContent("index.html") == null
+        !new File(bundleFile.path + ".tmp").exists()
+
+        and: "The content matches the files"
+        str(index.mappedContent) == new File(dir, "index.html").text
+        index.mimeType.startsWith("text/html")
+        index.etag == DnContentUtil.mkContentEtag(new File(dir, "index.html").bytes)
+        index.timestamp.time == new File(dir, "index.html").lastModified()
+        str(js.mappedContent) == "console.log('hi');"
+        png.isBinary
+        png.mappedContent.remaining() == 4
+        png.mappedGzip == null
+
+        and: "Compressible files carry their gzip form"
+        byte[] gzipBytes = new byte[index.mappedGzip.remaining()]
+        index.mappedGzip.duplicate().get(gzipBytes)
+        new GZIPInputStream(new ByteArrayInputStream(gzipBytes)).text == new File(dir, "index.html").text
+
+        cleanup:
+        bundleFile.delete()
+        dir.deleteDir()
+    }
+
+    def "Bundle names should change whenever the content of the bundle does"() {
+        def dir = mkSiteDir()
+        def bundleFile = File.createTempFile("site", DnAssetBundle.BUNDLE_EXT)
+
+        when: "Naming a bundle, packing it again unchanged, and packing it after a file changes"
+        DnAssetBundle.writeBundle(dir, "build/", bundleFile)
+        def name = DnAssetBundle.mkContentName("site", bundleFile)
+        DnAssetBundle.writeBundle(dir, "build/", bundleFile)
+        def sameName = DnAssetBundle.mkContentName("site", bundleFile)
+        new File(dir, "static/js/main.js").text = "console.log('changed');"
+        DnAssetBundle.writeBundle(dir, "build/", bundleFile)
+        def changedName = DnAssetBundle.mkContentName("site", bundleFile)
+
+        then: "Only the changed content gets a new name, and only such names count as versioned"
+        name ==~ /site-[0-9a-f]{16}\.dnbundle/
+        sameName == name
+        changedName != name
+        DnAssetBundle.isContentNamed("sites/build/" + name)
+        DnAssetBundle.isContentNamed(name)
+        !DnAssetBundle.isContentNamed("sites/build/site.dnbundle")
+        !DnAssetBundle.isContentNamed("sites/build-0123456789abcdef/site.dnbundle")
+
+        cleanup:
+        bundleFile.delete()
+        dir.deleteDir()
+    }
+
+    def "Opening a file that is not a bundle of this format should fail"() {
+        def dir = mkSiteDir()
+        def bundleFile = File.createTempFile("site", DnAssetBundle.BUNDLE_EXT)
+        DnAssetBundle.writeBundle(dir, "", bundleFile)
+        byte[] good = bundleFile.bytes
+
+        when: "The magic number is wrong"
+        byte[] badMagic = good.clone()
+        badMagic[0] = (byte)'X'
+        bundleFile.bytes = badMagic
+        DnAssetBundle.open(bundleFile, "v1")
+
+        then: "It is rejected"
+        def e = thrown(DnException)
+        e.message.contains("not an asset bundle")
+
+        when: "The format version is newer than this code reads"
+        byte[] badVersion = good.clone()
+        ByteBuffer.wrap(badVersion).putInt(4, DnAssetBundle.FORMAT_VERSION + 1)
+        bundleFile.bytes = badVersion
+        DnAssetBundle.open(bundleFile, "v1")
+
+        then: "It is rejected"
+        def e2 = thrown(DnException)
+        e2.message.contains("format version")
+
+        when: "The index points past the end of the file"
+        byte[] badIndex = good.clone()
+        ByteBuffer.wrap(badIndex).putLong(8, good.length)
+        bundleFile.bytes = badIndex
+        DnAssetBundle.open(bundleFile, "v1")
+
+        then: "It is rejected"
+        def e3 = thrown(DnException)
+        e3.message.contains("corrupt header")
+
+        when: "The file is shorter than a header"
+        bundleFile.bytes = [1, 2, 3] as byte[]
+        DnAssetBundle.open(bundleFile, "v1")
+
+        then: "It is rejected"
+        thrown(DnException)
+
+        cleanup:
+        bundleFile.delete()
+        dir.deleteDir()
+    }
+
+    def "Sites sharing a directory should each be served from their own bundle"() {
+        def cs = new DnContentService()
+        def cxt = DnCxt.mkSimpleCxt("bundleSiteTest")
+        cs.onCreate(cxt)
+        def dirA = mkSiteDir()
+        def dirB = mkSiteDir()
+        new File(dirB, "static/js/main.js").text = "console.log('site b');"
+        def bundleA = File.createTempFile("siteA", DnAssetBundle.BUNDLE_EXT)
+        def bundleB = File.createTempFile("siteB", DnAssetBundle.BUNDLE_EXT)
+        DnAssetBundle.writeBundle(dirA, "a/", bundleA)
+        DnAssetBundle.writeBundle(dirB, "b/", bundleB)
+
+        when: "Mounting two sites whose yaml files are in the same directory"
+        cs.mountBundle(cxt, "sites/siteA", bundleA, "a1")
+        cs.mountBundle(cxt, "sites/siteB", bundleB, "b1")
+
+        then: "Both are kept, and site content is found by its path under the portal root"
+        cs.siteBundles.keySet() == ["sites/siteA", "sites/siteB"] as Set
+        str(cs.getSiteContent(cxt, "sites/a/static/js/main.js").mappedContent) == "console.log('hi');"
+        str(cs.getSiteContent(cxt, "sites/b/static/js/main.js").mappedContent) == "console.log('site b');"
+        cs.getSiteContent(cxt, "sites/b/static/js/main.js").immutable
+        cs.getBundleEntryPoint(cs.siteBundles.get("sites/siteB"), "b/index.html", null) != null
+
+        cleanup:
+        cs.fileWatcher?.stop()
+        bundleA.delete()
+        bundleB.delete()
+        dirA.deleteDir()
+        dirB.deleteDir()
+    }
+}
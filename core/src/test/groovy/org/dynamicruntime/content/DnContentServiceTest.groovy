@@ -3,6 +3,8 @@ package org.dynamicruntime.content
 import org.dynamicruntime.context.DnCxt
 import spock.lang.Specification
 
+import java.nio.file.Files
+
 class DnContentServiceTest extends Specification {
     def "Test loading resource"() {
         when: "Loading a known resource"
@@ -14,4 +16,48 @@ class DnContentServiceTest extends Specification {
         then: "Should get content"
         content != null
     }
+
+    def "Cached file content should be reloaded after the file watcher reports a change"() {
+        def cs = new DnContentService()
+        def cxt = DnCxt.mkSimpleCxt("contentWatchTest")
+        cs.onCreate(cxt)
+        def dir = Files.createTempDirectory("dnContentTest").toFile()
+        def file = new File(dir, "site.css")
+        file.text = "body { color: red; }"
+
+        when: "Loading the file twice"
+        def first = cs.getContentForFile(cxt, file)
+        def second = cs.getContentForFile(cxt, file)
+
+        then: "The second load comes from the cache, and the file is being watched"
+        cs.fileWatcher != null
+        first.strContent == "body { color: red; }"
+        second.is(first)
+
+        when: "Changing the file"
+        file.text = "body { color: blue; }"
+        def updated = first
+        long deadline = System.currentTimeMillis() + 30000
+        while (updated.strContent != "body { color: blue; }" && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50)
+            updated = cs.getContentForFile(cxt, file)
+        }
+
+        then: "The watcher invalidates it and the new content is read"
+        updated.strContent == "body { color: blue; }"
+        updated.etag != first.etag
+
+        when: "A load that read the file before a change puts its result in the cache after the change"
+        cs.onFileChanged(file.absoluteFile.toPath())
+        cs.fileContent.put(file.absolutePath, updated)
+        file.text = "body { color: green; }"
+        def afterRace = cs.getContentForFile(cxt, file)
+
+        then: "The stale entry is not used"
+        afterRace.strContent == "body { color: green; }"
+
+        cleanup:
+        cs.fileWatcher?.stop()
+        dir.deleteDir()
+    }
 }
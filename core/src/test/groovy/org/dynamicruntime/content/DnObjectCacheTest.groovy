@@ -0,0 +1,49 @@
+package org.dynamicruntime.content
+
+import org.dynamicruntime.context.DnCxt
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class DnObjectCacheTest extends Specification {
+    def "Object cache should read through memory and disk and revalidate with the store"() {
+        def cxt = DnCxt.mkSimpleCxt("objectCacheTest")
+        def storeDir = Files.createTempDirectory("dnStore").toFile()
+        def cacheDir = Files.createTempDirectory("dnCache").toFile()
+        def store = new DnFileObjectStore(storeDir)
+        def bucketDir = new File(storeDir, "sites")
+        bucketDir.mkdirs()
+        new File(bucketDir, "app.yaml").text = "site.entryPoint: a.html"
+
+        when: "Reading an object for the first time"
+        def cache = new DnObjectCache(store, cacheDir, 0, 10)
+        def first = cache.getContent(cxt, "sites", "app.yaml")
+
+        then: "It comes from the store"
+        first.strContent == "site.entryPoint: a.html"
+        cache.downloads.sum() == 1
+
+        when: "Reading it with a new cache that only has the disk tier"
+        def cache2 = new DnObjectCache(store, cacheDir, 0, 10)
+        def second = cache2.getContent(cxt, "sites", "app.yaml")
+
+        then: "The disk copy is revalidated rather than downloaded"
+        second.strContent == first.strContent
+        cache2.downloads.sum() == 0
+        cache2.diskHits.sum() == 1
+
+        when: "The object changes in the store"
+        new File(bucketDir, "app.yaml").text = "site.entryPoint: b.html"
+        def third = cache2.getContent(cxt, "sites", "app.yaml")
+
+        then: "The new version is downloaded"
+        third.strContent == "site.entryPoint: b.html"
+        cache2.downloads.sum() == 1
+
+        when: "The object is removed from the store"
+        new File(bucketDir, "app.yaml").delete()
+
+        then: "It is no longer found"
+        cache2.getContent(cxt, "sites", "app.yaml") == null
+    }
+}
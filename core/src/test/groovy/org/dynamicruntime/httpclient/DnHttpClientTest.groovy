@@ -0,0 +1,52 @@
+package org.dynamicruntime.httpclient
+
+import com.sun.net.httpserver.HttpServer
+import org.dynamicruntime.context.DnCxt
+import org.dynamicruntime.exception.DnException
+import org.dynamicruntime.schemadef.DnEndpointFunction
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*
+
+class DnHttpClientTest extends Specification {
+    def "Asynchronous requests should fill in the response, and retry once when they cannot connect"() {
+        def cxt = DnCxt.mkSimpleCxt("httpClientAsync")
+        def client = new DnHttpClient(cxt, "asyncTest")
+        def server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/echo", { exchange ->
+            byte[] body = '{"echo":"hello"}'.getBytes(StandardCharsets.UTF_8)
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        })
+        server.start()
+
+        when: "Calling a server that answers"
+        def request = new DnHttpRequest(cxt, EPM_GET, "http://127.0.0.1:${server.address.port}/echo")
+        def result = DnEndpointFunction.waitFor(client.executeAsync(request))
+
+        then: "The same request comes back with its response"
+        result.is(request)
+        request.isSuccess
+        request.respCode == 200
+        request.responseData == [echo: "hello"]
+        request.numAttempts == 1
+
+        when: "Calling a port that nothing listens on"
+        def socket = new ServerSocket(0)
+        int closedPort = socket.localPort
+        socket.close()
+        def failRequest = new DnHttpRequest(cxt, EPM_GET, "http://127.0.0.1:${closedPort}/echo")
+        DnEndpointFunction.waitFor(client.executeAsync(failRequest))
+
+        then: "The request is tried twice before failing"
+        def e = thrown(DnException)
+        e.activity == DnException.CONNECTION
+        failRequest.numAttempts == 2
+
+        cleanup:
+        server.stop(0)
+    }
+}
@@ -42,6 +42,21 @@ class DnSchemaServiceTest extends Specification {
         def validated1 = validator.validateAndCoerce(dnType1b, input)
         // Integers should have been coerced
         validated1 == [field1a: "x1", field1b: 25, fieldComposed1: [field1a: "x2", field1b: 25]]
+
+        when: "Validating using a compiled plan"
+        def plan = DnValidatorPlan.compile(dnType1b, schemaStore.types)
+        def validated2 = validator.validateAndCoerce(plan, input)
+
+        then: "Should get the same result"
+        plan.slots.length == 3
+        plan.slots[2].nestedPlan?.type == dnType1a
+        validated2 == validated1
+
+        when: "Validating data with an extra field using a compiled plan"
+        validator.validateAndCoerce(plan, input + [extraField: "x"])
+
+        then: "Should get an error"
+        thrown(DnException)
     }
 
     def "Test creating endpoint"() {
@@ -67,6 +82,7 @@ class DnSchemaServiceTest extends Specification {
         endpointDef1.outType.fields.size() == 4
         endpointDef1.inType.fieldsByName.limit != null
         endpointDef1.outType.fieldsByName.items?.isList
+        endpointDef1.inTypePlan?.slots?.length == 3
     }
 
     def "Test schema validation"() {
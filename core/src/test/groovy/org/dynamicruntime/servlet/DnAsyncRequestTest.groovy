@@ -0,0 +1,140 @@
+package org.dynamicruntime.servlet
+
+import org.dynamicruntime.context.DnCxt
+import org.dynamicruntime.exception.DnException
+import org.dynamicruntime.function.DnRunnable
+import org.dynamicruntime.node.DnCoreNodeService
+import org.dynamicruntime.request.DnRequestCxt
+import org.dynamicruntime.schemadef.DnAsyncEndpointFunctionInterface
+import org.dynamicruntime.schemadef.DnEndpointFunction
+import org.dynamicruntime.schemadef.DnRawEndpoint
+import org.dynamicruntime.schemadef.DnRawField
+import org.dynamicruntime.schemadef.DnRawSchemaPackage
+import org.dynamicruntime.schemadef.DnRawType
+import org.dynamicruntime.simulation.TestComponent
+import org.dynamicruntime.startup.InstanceRegistry
+import org.dynamicruntime.util.ParsingUtil
+import spock.lang.Specification
+
+import javax.servlet.AsyncContext
+import javax.servlet.AsyncEvent
+import javax.servlet.AsyncListener
+import javax.servlet.http.HttpServletRequest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*
+
+class DnAsyncRequestTest extends Specification {
+    def "In-process requests to asynchronous endpoints should wait for the endpoint to complete"() {
+        def cxt = createCxt("asyncEndpoint")
+        def servletClient = new DnTestServletClient(cxt.instanceConfig)
+
+        when: "The endpoint completes its future on another thread"
+        def reqHandler = servletClient.sendGetRequest("/health/asyncTest", [delayMillis: 50])
+
+        then: "The request thread waits for it and sends the response"
+        reqHandler.rptStatusCode == 200
+        !reqHandler.isAsync()
+        ParsingUtil.toJsonMap(reqHandler.rptResponseData).asyncResult == "done"
+
+        when: "The endpoint fails its future"
+        def failHandler = servletClient.sendGetRequest("/health/asyncTest", [delayMillis: 50, fail: true])
+
+        then: "The failure is reported like one from a synchronous endpoint"
+        failHandler.rptStatusCode == DnException.BAD_INPUT
+        ParsingUtil.toJsonMap(failHandler.rptResponseData).message.contains("Asked to fail")
+    }
+
+    def "Asynchronous requests should be finished once, by completion or by the timeout listener"() {
+        def cxt = DnCxt.mkSimpleCxt("asyncFinish")
+        def asyncStub = new AsyncStub()
+
+        when: "Starting an asynchronous request and completing it"
+        def handler = asyncStub.mkHandler(cxt)
+        boolean started = handler.startAsync(cxt, 500)
+        handler.finishAsync(cxt, { handler.sendJsonResponse([ok: true], DnException.OK) } as DnRunnable, null)
+
+        then: "The response is sent and the servlet request is completed"
+        started
+        handler.isAsync()
+        asyncStub.timeout == 500
+        handler.rptStatusCode == DnException.OK
+        ParsingUtil.toJsonMap(handler.rptResponseData).ok
+        asyncStub.completions == 1
+
+        when: "The container reports an error after the request has finished"
+        asyncStub.listener.onError(new AsyncEvent(asyncStub.asyncContext, new IOException("Client went away.")))
+
+        then: "It is ignored"
+        handler.rptStatusCode == DnException.OK
+        asyncStub.completions == 1
+
+        when: "A request times out before its endpoint completes"
+        def asyncStub2 = new AsyncStub()
+        def handler2 = asyncStub2.mkHandler(cxt)
+        handler2.startAsync(cxt, 100)
+        asyncStub2.listener.onTimeout(new AsyncEvent(asyncStub2.asyncContext))
+        boolean lateSend = false
+        handler2.finishAsync(cxt, { lateSend = true } as DnRunnable, null)
+
+        then: "The timeout is reported as retryable, and the late completion does nothing"
+        handler2.rptStatusCode == DnException.NOT_AVAILABLE
+        !lateSend
+        asyncStub2.completions == 1
+
+        when: "Sending the response fails"
+        def asyncStub3 = new AsyncStub()
+        def handler3 = asyncStub3.mkHandler(cxt)
+        handler3.startAsync(cxt, 100)
+        handler3.finishAsync(cxt, { throw new DnException("Could not build response.") } as DnRunnable, null)
+
+        then: "The failure is reported and the servlet request is still completed"
+        handler3.rptStatusCode == DnException.INTERNAL_ERROR
+        asyncStub3.completions == 1
+    }
+
+    /** Stands in for the servlet container's side of an asynchronous request. */
+    static class AsyncStub {
+        int completions = 0
+        long timeout = 0
+        AsyncListener listener
+        AsyncContext asyncContext = [setTimeout: { long t -> timeout = t },
+                                     addListener: { AsyncListener l -> listener = l },
+                                     complete: { completions++ }] as AsyncContext
+
+        DnRequestHandler mkHandler(DnCxt cxt) {
+            def handler = new DnRequestHandler(cxt.instanceConfig.instanceName, EPM_GET, "/health/asyncTest",
+                    null, null)
+            // Only the request is set, so responses are still captured as they are for in-process requests.
+            handler.request = [isAsyncSupported: { true }, startAsync: { asyncContext },
+                               getContentLengthLong: { -1L }] as HttpServletRequest
+            return handler
+        }
+    }
+
+    static CompletableFuture<?> asyncTest(DnRequestCxt requestCxt) {
+        def data = requestCxt.requestData
+        def delayed = CompletableFuture.delayedExecutor(data.delayMillis as long, TimeUnit.MILLISECONDS)
+        return CompletableFuture.runAsync({
+            if (data.fail) {
+                throw DnException.mkInput("Asked to fail.")
+            }
+            requestCxt.mapResponse.put("asyncResult", "done")
+        }, delayed)
+    }
+
+    static DnCxt createCxt(String cxtName) {
+        def inType = DnRawType.mkType("AsyncTestRequest", [DnRawField.mkReqIntField("delayMillis", "Delay", null),
+                DnRawField.mkBoolField("fail", "Fail", null)])
+        def outType = DnRawType.mkType("AsyncTestResponse", [DnRawField.mkField("asyncResult", "Result", null)])
+        def endpoint = DnRawEndpoint.mkEndpoint(EPM_GET, "/health/asyncTest", "asyncTest",
+                "Completes after a delay on another thread.", inType.name, outType.name)
+        def pkg = DnRawSchemaPackage.mkPackage("AsyncTestSchema", "test", [inType, outType, endpoint])
+        def tc = new TestComponent([pkg], [DnRequestService.class, DnCoreNodeService.class])
+        tc.endpointFunctions.add(DnEndpointFunction.mkAsyncEndpoint("asyncTest",
+                { DnRequestCxt requestCxt -> asyncTest(requestCxt) } as DnAsyncEndpointFunctionInterface))
+        def config = InstanceRegistry.getOrCreateInstanceConfig("testAsyncRequests", [:], [tc])
+        return InstanceRegistry.createCxt(cxtName, config)
+    }
+}
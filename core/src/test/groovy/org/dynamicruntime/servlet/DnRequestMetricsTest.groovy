@@ -0,0 +1,34 @@
+package org.dynamicruntime.servlet
+
+import org.dynamicruntime.util.DnPrometheusWriter
+import spock.lang.Specification
+
+class DnRequestMetricsTest extends Specification {
+    def "Request metrics should be keyed by path, method, and status code and written for Prometheus"() {
+        def metrics = new DnRequestMetrics()
+
+        when: "Recording requests, including ones with an unknown path, method, and status code"
+        metrics.record("/health/info", "GET", 200, 3000000, 0, 120)
+        metrics.record("/health/info", "GET", 200, 30000000, 10, 100)
+        metrics.record("/health/info", "GET", 404, 100000, 0, 50)
+        metrics.record(null, "BREW", 42, 100, 0, 0)
+        def series = metrics.getAllSeries()
+        def writer = new DnPrometheusWriter()
+        metrics.writePrometheus(writer)
+        def text = writer.toString()
+
+        then: "Requests with the same key share a series"
+        series.collect { "${it.path} ${it.method} ${it.statusCode} ${it.latency.getCount()}".toString() } ==
+                ["/health/info GET 200 2", "/health/info GET 404 1", "unmatched OTHER 500 1"]
+        series[0].requestBytes.sum() == 10
+        series[0].responseBytes.sum() == 220
+
+        and: "The exposition has cumulative buckets in seconds"
+        text.contains('dn_http_requests_total{path="/health/info",method="GET",code="200"} 2\n')
+        text.contains('dn_http_request_duration_seconds_bucket{path="/health/info",method="GET",code="200",' +
+                'le="0.005"} 1\n')
+        text.contains('dn_http_request_duration_seconds_bucket{path="/health/info",method="GET",code="200",' +
+                'le="+Inf"} 2\n')
+        text.contains('dn_http_response_bytes_total{path="/health/info",method="GET",code="200"} 220\n')
+    }
+}
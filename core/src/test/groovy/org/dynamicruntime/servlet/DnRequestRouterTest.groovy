@@ -0,0 +1,102 @@
+package org.dynamicruntime.servlet
+
+import org.dynamicruntime.exception.DnException
+import org.dynamicruntime.schemadef.DnEndpoint
+import spock.lang.Specification
+
+class DnRequestRouterTest extends Specification {
+    static DnEndpoint mkEndpoint(String method, String path) {
+        return new DnEndpoint(method, path, null, null, null, null, false, [:])
+    }
+
+    static DnRequestRouter mkRouter(List<DnEndpoint> endpoints) {
+        def router = new DnRequestRouter(null, [new ContextRootRules("api", false, null),
+                new ContextRootRules("content", false, null)])
+        endpoints.each { router.addEndpoint(it) }
+        return router
+    }
+
+    def "Router should prefer literal segments and only match int variables to digits"() {
+        def router = mkRouter([mkEndpoint("GET", "/api/user/self/info"),
+                               mkEndpoint("GET", "/api/user/{userId:int}/info"),
+                               mkEndpoint("GET", "/api/doc/{docName}"),
+                               mkEndpoint("GET", "/api/doc/{docName}/{version:int}")])
+
+        when: "Routing a path that matches both a literal and a variable segment"
+        def self = router.route("GET", "/api/user/self/info")
+        def byId = router.route("GET", "/api/user/42/info")
+
+        then: "The literal wins, and the variable gets the rest"
+        self.endpoint.path == "/api/user/self/info"
+        self.pathParams == null
+        byId.endpoint.path == "/api/user/{userId:int}/info"
+        byId.pathParams == [userId: 42L]
+        byId.pathParams.userId instanceof Long
+
+        when: "Routing values that are not valid ints"
+        def notDigits = router.route("GET", "/api/user/4x2/info")
+        def tooLong = router.route("GET", "/api/user/1234567890123456789/info")
+        def stringVars = router.route("GET", "/api/doc/readme/v2")
+
+        then: "They do not match, and no partial path variables are left behind"
+        notDigits.endpoint == null
+        notDigits.contextRules.contextRoot == "api"
+        tooLong.endpoint == null
+        stringVars.endpoint == null
+        stringVars.pathParams == null
+
+        when: "Routing a string variable followed by an int variable"
+        def twoVars = router.route("GET", "/api/doc/readme/3")
+
+        then: "Both are captured"
+        twoVars.pathParams == [docName: "readme", version: 3L]
+    }
+
+    def "Router should match on method, and fall back to the context root when no endpoint matches"() {
+        def router = mkRouter([mkEndpoint("GET", "/api/item/latest"),
+                               mkEndpoint("POST", "/api/item/{itemName}"),
+                               mkEndpoint("GET", "/api/item/{itemName}")])
+
+        when: "Posting to a path whose literal segment only has a GET endpoint"
+        def post = router.route("POST", "/api/item/latest")
+        def get = router.route("GET", "/api/item/latest")
+        def put = router.route("PUT", "/api/item/latest")
+
+        then: "The variable endpoint for the method is used"
+        post.endpoint.method == "POST"
+        post.endpoint.path == "/api/item/{itemName}"
+        post.pathParams == [itemName: "latest"]
+        get.endpoint.path == "/api/item/latest"
+        put.endpoint == null
+
+        when: "Routing trailing slashes, bare context roots, and unknown roots"
+        def trailing = router.route("GET", "/api/item/latest/")
+        def rootOnly = router.route("GET", "/api")
+        def rootSlash = router.route("GET", "/content/")
+        def unknown = router.route("GET", "/nothing/item/latest")
+
+        then: "Only the context root is resolved, or nothing at all"
+        trailing.endpoint == null
+        trailing.contextRules.contextRoot == "api"
+        rootOnly.endpoint == null
+        rootOnly.contextRules.contextRoot == "api"
+        rootSlash.endpoint == null
+        rootSlash.contextRules.contextRoot == "content"
+        unknown.contextRules == null
+        unknown.endpoint == null
+    }
+
+    def "Router should reject conflicting path variables and duplicate endpoints"() {
+        when: "Two endpoints use different variables at the same position"
+        mkRouter([mkEndpoint("GET", "/api/user/{userId:int}"), mkEndpoint("GET", "/api/user/{userName}")])
+
+        then: "The router cannot be built"
+        thrown(DnException)
+
+        when: "The same method and path is added twice"
+        mkRouter([mkEndpoint("GET", "/api/user/info"), mkEndpoint("GET", "/api/user/info")])
+
+        then: "The router cannot be built"
+        thrown(DnException)
+    }
+}
@@ -133,6 +133,47 @@ class SqlDatabaseTest extends Specification {
 
         then: "Should have inserted data and gotten it back"
         resultsStr == expectedStr
+
+        when: "Querying for compact rows"
+        resultsStmt.compactRows = true
+        sqlDb.withSession(cxt, {
+            results = sqlDb.queryDnStatement(cxt, resultsStmt, [:])
+        })
+        resultsStmt.compactRows = false
+
+        then: "Should get the same data back"
+        results[0] instanceof SqlRow
+        ConvertUtil.fmtObject(results) == expectedStr
+
+        when: "Inserting rows in batches"
+        def batchRows = (2..5).collect {[userId: it, userGroup: "main", total: it * 1.5, enabled: true,
+                                        createdDate: now, modifiedDate: now]}
+        sqlDb.batchSize = 3
+        def counts = null
+        sqlDb.withSession(cxt, {
+            counts = sqlDb.executeDnStatementBatch(cxt, insertStmt, batchRows)
+            results = sqlDb.queryDnStatement(cxt, resultsStmt, [:])
+        })
+
+        then: "Should have inserted all the rows using two batches"
+        counts as List == [1, 1, 1, 1]
+        results.size() == 5
+        sqlDb.metrics.statementsByName["test:" + insertStmt.name].getCount() == 3
+
+        when: "Streaming rows and stopping early"
+        def userIds = []
+        int numRead = 0
+        sqlDb.withSession(cxt, {
+            numRead = sqlDb.queryDnStatementForEach(cxt, resultsStmt, [:], { row ->
+                userIds.add(row.userId)
+                return userIds.size() < 3
+            })
+        })
+
+        then: "Should have read only the rows up to where the handler stopped"
+        numRead == 3
+        userIds.size() == 3
+        userIds.unique().size() == 3
     }
 
     Map<String,String> getFieldsAndTypes(SqlCxt sqlCxt, String tableName) {
@@ -0,0 +1,104 @@
+package org.dynamicruntime.sql
+
+import org.dynamicruntime.context.DnCxt
+import spock.lang.Specification
+
+import java.sql.Connection
+import java.sql.Driver
+
+class SqlPoolMaintainerTest extends Specification {
+    /** Connections handed out by the stub driver, with *isValid* answering from *valid*. */
+    List<Connection> created = []
+    Set<Connection> closed = [] as Set
+    boolean valid = true
+
+    SqlDatabase mkDatabase(int maxConnections) {
+        def driver = [connect: { String url, Properties props ->
+            Connection conn = null
+            conn = [isValid: { int timeout -> valid }, close: { closed.add(conn) }] as Connection
+            created.add(conn)
+            return conn
+        }] as Driver
+        return new SqlDatabase("poolTest", driver, "jdbc:stub:poolTest", new Properties(), [:],
+                new SqlDbOptions(), maxConnections)
+    }
+
+    SqlPoolMaintainer mkMaintainer(SqlDatabase sqlDb) {
+        def maintainer = new SqlPoolMaintainer(DnCxt.mkSimpleCxt("poolTest"), sqlDb, 1000)
+        sqlDb.poolMaintainer = maintainer
+        return maintainer
+    }
+
+    def "Pool maintainer should pre-warm, retire old connections, and trim idle ones down to the minimum"() {
+        def sqlDb = mkDatabase(4)
+        sqlDb.minConnections = 2
+        def maintainer = mkMaintainer(sqlDb)
+
+        when: "Pre-warming the pool"
+        maintainer.prewarm()
+
+        then: "The minimum number of connections are opened"
+        created.size() == 2
+        sqlDb.openConnections.get() == 2
+        sqlDb.getPoolStats().activeSessions == 0
+
+        when: "A connection is older than the maximum age"
+        def old = sqlDb.connections.find { it.conn != null }
+        def oldConn = old.conn
+        old.connCreatedTime -= sqlDb.maxConnectionAgeMillis + 1000
+        maintainer.maintain()
+
+        then: "It is closed and replaced to keep the minimum open"
+        closed.contains(oldConn)
+        sqlDb.connectionsRetired.sum() == 1
+        sqlDb.openConnections.get() == 2
+        created.size() == 3
+
+        when: "Opening extra connections and letting all of them go idle"
+        def cxt = DnCxt.mkSimpleCxt("poolTest")
+        sqlDb.withSession(cxt, {
+            sqlDb.withSession(cxt.mkSubContext("s1"), {
+                sqlDb.withSession(cxt.mkSubContext("s2"), {
+                    assert sqlDb.getPoolStats().activeSessions == 3
+                })
+            })
+        })
+        int openBefore = sqlDb.openConnections.get()
+        sqlDb.connections.each { it.lastAccess -= sqlDb.idleTimeoutMillis + 1000 }
+        maintainer.maintain()
+
+        then: "Idle connections above the minimum are closed"
+        openBefore > 2
+        sqlDb.openConnections.get() == 2
+        sqlDb.getPoolStats().activeSessions == 0
+    }
+
+    def "Connections should be validated on borrow after sitting unused"() {
+        def sqlDb = mkDatabase(1)
+        mkMaintainer(sqlDb)
+        def cxt = DnCxt.mkSimpleCxt("poolTest")
+
+        when: "Using a connection, then letting it go stale while the database drops it"
+        sqlDb.withSession(cxt, {})
+        def session = sqlDb.connections.peek()
+        def firstConn = session.conn
+        session.lastAccess -= sqlDb.validationIntervalMillis + 1000
+        session.lastValidated -= sqlDb.validationIntervalMillis + 1000
+        valid = false
+        Connection usedConn = null
+        sqlDb.withSession(cxt, { usedConn = sqlDb.getMustExist(cxt).conn })
+
+        then: "The stale connection is closed and the request gets a new one"
+        closed.contains(firstConn)
+        usedConn != null
+        usedConn != firstConn
+        sqlDb.connectionsFailedValidation.sum() == 1
+
+        when: "Borrowing again right away"
+        sqlDb.withSession(cxt, {})
+
+        then: "The recently used connection is not checked again"
+        sqlDb.connectionsFailedValidation.sum() == 1
+        created.size() == 2
+    }
+}
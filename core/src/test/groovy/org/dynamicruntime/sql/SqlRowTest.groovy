@@ -0,0 +1,39 @@
+package org.dynamicruntime.sql
+
+import org.dynamicruntime.schemadef.DnField
+import spock.lang.Specification
+
+import static org.dynamicruntime.schemadef.DnSchemaDefConstants.*
+
+class SqlRowTest extends Specification {
+    def "Compact rows should act like linked hash map rows, including for repeated column names"() {
+        def fields = [DnField.mkSimple("userId", DNT_INTEGER), DnField.mkSimple("name", DNT_STRING),
+                      DnField.mkSimple("userId", DNT_INTEGER)]
+        def columns = new SqlRowColumns(fields)
+
+        when: "Filling a compact row and a linked hash map row the same way"
+        def row = new SqlRow(columns)
+        def expected = new LinkedHashMap<String,Object>()
+        [1, "a", 2].eachWithIndex { v, i ->
+            row.setColumn(columns.columnIndexes[i], v)
+            expected.put(fields[i].name, v)
+        }
+
+        then: "A repeated name is one entry with the last value"
+        columns.names as List == ["userId", "name"]
+        row.size() == 2
+        row.entrySet().collect { it.key } == ["userId", "name"]
+        row.userId == 2
+        row == expected
+        row.toString() == expected.toString()
+
+        when: "Putting and removing keys, including ones that are not columns"
+        row.put("extra", true)
+        row.remove("name")
+
+        then: "Columns come first, then extra keys"
+        row.keySet() as List == ["userId", "extra"]
+        row.size() == 2
+        !row.containsKey("name")
+    }
+}
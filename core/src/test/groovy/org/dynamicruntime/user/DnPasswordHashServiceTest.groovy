@@ -0,0 +1,56 @@
+package org.dynamicruntime.user
+
+import org.dynamicruntime.context.DnCxt
+import org.dynamicruntime.exception.DnException
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+
+class DnPasswordHashServiceTest extends Specification {
+    def "Hashing should turn requests away when the queue is full or the wait is too long"() {
+        def cxt = DnCxt.mkSimpleCxt("hashTest")
+        cxt.instanceConfig.put("auth.passwordHash.threads", 1)
+        cxt.instanceConfig.put("auth.passwordHash.maxQueued", 1)
+        cxt.instanceConfig.put("auth.passwordHash.maxWaitMillis", 5000)
+        def service = new DnPasswordHashService()
+        service.onCreate(cxt)
+        cxt.instanceConfig.put(DnPasswordHashService.DN_PASSWORD_HASH_SERVICE, service)
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+
+        when: "Hashing a password with the service"
+        def hash = DnPasswordHashService.hashPassword(cxt, "secret")
+
+        then: "It is done on the pool"
+        DnPasswordHashService.checkPassword(cxt, "secret", hash)
+        service.hashTime.getCount() == 2
+
+        when: "The only thread is busy, and a second hash waits in the queue longer than allowed"
+        service.executor.submit({
+            started.countDown()
+            release.await()
+        } as Runnable)
+        started.await()
+        service.maxWaitMillis = 100
+        service.execute(cxt, { true })
+
+        then: "The waiting request fails with a retryable error"
+        def e = thrown(DnException)
+        e.code == DnException.NOT_AVAILABLE
+        service.timedOut.sum() == 1
+
+        when: "The queue is full"
+        service.executor.queue.clear()
+        service.executor.queue.offer({ } as Runnable)
+        service.execute(cxt, { true })
+
+        then: "The request is turned away without waiting"
+        def e2 = thrown(DnException)
+        e2.code == DnException.NOT_AVAILABLE
+        service.rejected.sum() == 1
+
+        cleanup:
+        release.countDown()
+        service.executor.shutdown()
+    }
+}
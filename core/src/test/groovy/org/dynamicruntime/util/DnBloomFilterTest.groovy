@@ -0,0 +1,18 @@
+package org.dynamicruntime.util
+
+import spock.lang.Specification
+
+class DnBloomFilterTest extends Specification {
+    def "Bloom filter should contain what was added and reject most of what was not"() {
+        def filter = new DnBloomFilter(1000, 0.01)
+
+        when: "Adding the expected number of items"
+        (0..<1000).each { filter.add("token" + it) }
+
+        then: "Every added item is found"
+        (0..<1000).every { filter.mightContain("token" + it) }
+
+        and: "Items never added are rarely found"
+        (0..<10000).count { filter.mightContain("other" + it) } < 300
+    }
+}
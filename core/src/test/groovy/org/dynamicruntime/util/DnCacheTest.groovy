@@ -0,0 +1,130 @@
+package org.dynamicruntime.util
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class DnCacheTest extends Specification {
+    def "Concurrent misses on the same key should share one load"() {
+        def cache = new DnCache<String,String>("test", 100)
+        def loadCount = new AtomicInteger()
+        def pool = Executors.newFixedThreadPool(8)
+
+        when: "Requesting the same key from many threads while the load is slow"
+        def futures = (0..15).collect {
+            pool.submit({
+                cache.getItem("key", 10, true, { existing ->
+                    loadCount.incrementAndGet()
+                    Thread.sleep(100)
+                    return "value"
+                })
+            } as java.util.concurrent.Callable)
+        }
+        def results = futures.collect { it.get() }
+        pool.shutdown()
+
+        then: "Everybody gets the value from a single load"
+        results.every { it == "value" }
+        loadCount.get() == 1
+        cache.getStats().loads == 1
+
+        when: "Forcing a refresh"
+        def refreshed = cache.getItem("key", -1, true, { existing -> existing.item + "2" })
+
+        then: "Should reload using the existing entry"
+        refreshed == "value2"
+        cache.get("key") == "value2"
+    }
+
+    def "Cache should stay bounded"() {
+        def cache = new DnCache<Integer,Integer>("bounded", 50)
+
+        when: "Adding more items than the maximum while repeatedly using one key"
+        (0..199).each { i ->
+            cache.getItem(0, 10, true, { existing -> 0 })
+            cache.getItem(i + 1, 10, true, { existing -> i })
+        }
+
+        then: "Size should be bounded and the frequently used key should survive"
+        cache.size() <= 50
+        cache.get(0) == 0
+        cache.getStats().evictions > 0
+    }
+
+    def "A load that was in progress when its key was removed should not be cached"() {
+        def cache = new DnCache<String,String>("removal", 100)
+        def loadStarted = new CountDownLatch(1)
+        def removed = new CountDownLatch(1)
+        def pool = Executors.newFixedThreadPool(1)
+
+        when: "Removing the key while its load is reading the old data"
+        def future = pool.submit({
+            cache.getItem("key", 10, true, { existing ->
+                loadStarted.countDown()
+                removed.await()
+                return "stale"
+            })
+        } as Callable)
+        loadStarted.await()
+        cache.remove("key")
+        removed.countDown()
+        def result = future.get()
+
+        then: "The caller of the load gets its result but the result is not kept"
+        result == "stale"
+        cache.get("key") == null
+
+        when: "Loading again"
+        def reloaded = cache.getItem("key", 10, true, { existing -> "fresh" })
+        pool.shutdown()
+
+        then: "The new load is cached"
+        reloaded == "fresh"
+        cache.get("key") == "fresh"
+    }
+
+    def "A load that fails with an error should not leave waiting callers stuck"() {
+        def cache = new DnCache<String,String>("errors", 100)
+        def loadStarted = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def pool = Executors.newFixedThreadPool(2)
+
+        when: "A second caller waits on a load that throws an error"
+        def first = pool.submit({
+            cache.getItem("key", 10, true, { existing ->
+                loadStarted.countDown()
+                release.await()
+                throw new AssertionError("load failed")
+            })
+        } as Callable)
+        loadStarted.await()
+        def second = pool.submit({
+            cache.getItem("key", 10, true, { existing -> "other" })
+        } as Callable)
+        Thread.sleep(50)
+        release.countDown()
+        def firstFailure = null
+        try {
+            first.get(5, TimeUnit.SECONDS)
+        } catch (ExecutionException e) {
+            firstFailure = e.cause
+        }
+        def secondResult = null
+        try {
+            secondResult = second.get(5, TimeUnit.SECONDS)
+        } catch (ExecutionException e) {
+            secondResult = e.cause
+        }
+        pool.shutdown()
+
+        then: "Both callers finish and the key can be loaded again"
+        firstFailure instanceof AssertionError
+        secondResult != null
+        cache.getItem("key", 10, true, { existing -> "loaded" }) == "loaded"
+    }
+}
@@ -0,0 +1,46 @@
+package org.dynamicruntime.util
+
+import spock.lang.Specification
+
+class DnRateLimiterTest extends Specification {
+    def "Rate limiter should allow a burst and then refill at its rate"() {
+        def limiter = new DnRateLimiter("test", 10, 5, 100)
+        long now = 1000000000L
+
+        when: "Making more requests than the burst at one instant"
+        def results = (0..9).collect { limiter.tryAcquire("a", now) }
+
+        then: "Only the burst is allowed and other keys are unaffected"
+        results.count { it } == 5
+        limiter.tryAcquire("b", now)
+
+        when: "Waiting long enough for one token to refill"
+        def first = limiter.tryAcquire("a", now + 100000000L)
+        def second = limiter.tryAcquire("a", now + 100000000L)
+
+        then: "Exactly one more request is allowed"
+        first
+        !second
+
+        when: "Asking how long a rejected key has to wait"
+        def wait = limiter.acquireOrGetWait("a", now + 100000000L)
+        def waitLater = limiter.acquireOrGetWait("a", now + 150000000L)
+
+        then: "The wait is the time until the next token refills"
+        wait == 100000000L
+        waitLater == 50000000L
+        limiter.acquireOrGetWait("a", now + 200000000L) == 0
+    }
+
+    def "Rate limiter should stay bounded"() {
+        def limiter = new DnRateLimiter("bounded", 10, 5, 100)
+        long now = 1000000000L
+
+        when: "Tracking many more keys than the maximum"
+        (0..499).each { i -> limiter.tryAcquire("key" + i, now + i) }
+
+        then: "Number of tracked keys stays bounded"
+        limiter.size() <= 100
+        limiter.getStats().evictions > 0
+    }
+}
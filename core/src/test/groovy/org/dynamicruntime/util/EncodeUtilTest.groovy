@@ -16,6 +16,36 @@ class EncodeUtilTest extends Specification {
         inText == plainText
     }
 
+    def "Pooled ciphers should be reusable across threads and after failures"() {
+        String key = EncodeUtil.mkEncryptionKey()
+        String otherKey = EncodeUtil.mkEncryptionKey()
+
+        when: "Decrypting with the wrong key, then encrypting and decrypting on many threads at once"
+        def encrypted = EncodeUtil.encrypt(otherKey, "other")
+        def failure = null
+        try {
+            EncodeUtil.decrypt(key, encrypted)
+        } catch (Exception e) {
+            failure = e
+        }
+        def results = Collections.synchronizedList([])
+        def threads = (1..8).collect { t ->
+            Thread.start {
+                for (int i = 0; i < 50; i++) {
+                    String text = "text${t}-${i}".toString()
+                    results.add(EncodeUtil.decrypt(key, EncodeUtil.encrypt(key, text)) == text)
+                }
+            }
+        }
+        threads*.join()
+
+        then: "The failure does not break the pooled cipher, and every round trip succeeds"
+        failure != null
+        results.size() == 400
+        results.every { it }
+        EncodeUtil.ciphers.idle.size() > 0
+    }
+
     def "Verify hashing algorithm"() {
         String inText = "abc"
         when: "Producing a hash"
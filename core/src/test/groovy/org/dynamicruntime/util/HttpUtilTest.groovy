@@ -10,4 +10,22 @@ class HttpUtilTest extends Specification {
         then: "Should get expected results"
         HttpUtil.encodeHttpArgs(m) == "a=b%3Dc%25d%26e%0Af+g%22&h=%2B%09%3F%3A%2F%0D%5C%2B"
     }
+
+    def "Range and Accept-Encoding headers should be parsed as expected"() {
+        expect: "Single ranges are resolved against the content length, others are ignored or rejected"
+        HttpUtil.parseByteRange("bytes=0-9", 50) == [0L, 9L] as long[]
+        HttpUtil.parseByteRange("bytes=40-", 50) == [40L, 49L] as long[]
+        HttpUtil.parseByteRange("bytes=-5", 50) == [45L, 49L] as long[]
+        HttpUtil.parseByteRange("bytes=60-", 50).length == 0
+        HttpUtil.parseByteRange("bytes=0-1,4-5", 50) == null
+
+        and: "Encodings with a zero quality are not accepted"
+        HttpUtil.acceptsEncoding("gzip, deflate, br", "gzip")
+        !HttpUtil.acceptsEncoding("gzip;q=0", "gzip")
+        !HttpUtil.acceptsEncoding("br", "gzip")
+
+        and: "Entity tags match with weak comparison"
+        HttpUtil.etagMatches("W/\"abc\", \"def\"", "\"abc\"")
+        !HttpUtil.etagMatches("\"def\"", "\"abc\"")
+    }
 }
@@ -1,9 +1,18 @@
 package org.dynamicruntime.util
 
+import org.dynamicruntime.exception.DnException
+import org.dynamicruntime.schemadef.DnField
+import org.dynamicruntime.schemadef.DnSchemaStore
+import org.dynamicruntime.schemadef.DnType
+
 import static ParsingUtil.*;
 
+import org.json.simple.parser.JSONParser
+import spock.lang.Requires
 import spock.lang.Specification
 
+import java.nio.charset.StandardCharsets
+
 class ParsingUtilTest extends Specification {
     def "Test JSON parsing"() {
         when: "Verifying round trip on JSON"
@@ -32,4 +41,113 @@ class ParsingUtilTest extends Specification {
         then: "Should get round trip"
         isJsonEqual(m, m2)
     }
+
+    def "Test streaming JSON writer matches string output"() {
+        when: "Writing JSON both as a string and as a stream of bytes"
+        def items = (0..2000).collect { [name: "item\u00e9 \"${it}\"".toString(), count: it, ratio: it/7.0] }
+        def m = [a: "\u4e2d\n\u2001", b: [c: null, d: 10L], items: items, e: false]
+        String s = toJsonString(m)
+        def out = new ByteArrayOutputStream()
+        def writer = new JsonStreamWriter(out, false).write(m)
+        writer.finish()
+
+        then: "Should get identical bytes"
+        writer.hasFlushed()
+        writer.getLength() == out.size()
+        out.toByteArray() == s.getBytes("UTF-8")
+    }
+
+    def "Test JSON writer orders fields by type or by sorting"() {
+        def inner = new DnType("Inner", null, false, false, false, null, null,
+                [DnField.mkSimple("z", "String"), DnField.mkSimple("y", "String")], [:])
+        def itemsField = new DnField("items", "Items", "Items", "Inner", null, "Map", false, true, false, null,
+                false, false, [:])
+        def outer = new DnType("Outer", null, false, false, false, null, null,
+                [DnField.mkSimple("b", "String"), itemsField, DnField.mkSimple("a", "String")], [:])
+        def schema = new DnSchemaStore([Inner: inner], [:], [:])
+        def m = [extra: 1, a: "x", n: null, items: [[y: "1", z: "2"]], b: "y"]
+
+        when: "Writing with the type, in insertion order, and sorted"
+        def typedOut = new ByteArrayOutputStream()
+        new JsonStreamWriter(typedOut, true).write(m, outer, schema).finish()
+        def sortedOut = new ByteArrayOutputStream()
+        new JsonStreamWriter(sortedOut, true, true).write(m).finish()
+
+        then: "Typed output follows the type, unknown fields last, and other output follows the map"
+        typedOut.toString("UTF-8") == '{"b":"y","items":[{"z":"2","y":"1"}],"a":"x","extra":1}'
+        toJsonString(m, true) == '{"extra":1,"a":"x","items":[{"y":"1","z":"2"}],"b":"y"}'
+        sortedOut.toString("UTF-8") == '{"a":"x","b":"y","extra":1,"items":[{"y":"1","z":"2"}]}'
+        toJsonString(m, true, true) == sortedOut.toString("UTF-8")
+    }
+
+    def "Test parsed JSON and built maps keep their field order"() {
+        when: "Parsing JSON whose fields are not in hash or sorted order, and copying the result"
+        def json = '{"zeta":1,"alpha":{"y":2,"b":3,"m":4},"mid":[{"q":5,"c":6}],"beta":7}'
+        def m = toJsonMap(json)
+        def built = DnCollectionUtil.mMap("zeta", 1, "alpha", 2, "mid", 3, "beta", 4)
+
+        then: "Writing it back out gives the same JSON, and built and copied maps keep their order"
+        toJsonString(m, true) == json
+        toJsonString(DnCollectionUtil.cloneMap(m), true) == json
+        built.keySet() as List == ["zeta", "alpha", "mid", "beta"]
+        DnCollectionUtil.mMapT("zeta", 1, "alpha", 2).keySet() as List == ["zeta", "alpha"]
+    }
+
+    def "Test byte level JSON parsing"() {
+        when: "Parsing JSON with escapes, unicode, and numbers directly from bytes"
+        def s = '{"username": "tester\\u00e9\\n", "uni": "\u4e2d\u00e9", "n": [0, -12, 1234567, 1.5e2, 99999999999999999999], ' +
+                '"b": true, "nl": null, "empty": {}}'
+        def bytes = s.getBytes(StandardCharsets.UTF_8)
+        def m = toJsonMap(bytes, 0, bytes.length)
+        def m2 = toJsonMap('{"username": "other"}')
+
+        then: "Should get expected values with cached keys and longs"
+        m.username == "tester\u00e9\n"
+        m.uni == "\u4e2d\u00e9"
+        m.n == [0L, -12L, 1234567L, 150.0d, 1.0e20d]
+        m.b == true
+        m.containsKey("nl") && m.nl == null
+        m.empty == [:]
+        m.keySet().find { it == "username" }.is(m2.keySet().first())
+        toJsonMap('{"a": 7}').a.is(toJsonMap('{"a": 7}').a)
+
+        when: "Parsing badly formed JSON"
+        toJsonMap('{"a": 1,}')
+
+        then: "Should get a conversion error"
+        thrown(DnException)
+    }
+
+    /** Run with -Ddn.benchmark=true to compare against the previous json-simple based parsing. */
+    @Requires({ sys["dn.benchmark"] })
+    def "Benchmark JSON parsing of login request bodies"() {
+        when: "Parsing login style request bodies using both parsers"
+        def bodies = (0..99).collect {
+            toJsonString([username: "user${it}@example.com".toString(), password: "Secret-${it}!".toString(),
+                    formAuthToken: "AGN" + ("x" * 120) + it, formAuthCode: "${it * 7}".toString(),
+                    verifyCode: "12${it}".toString()], true)
+        }
+        def byteBodies = bodies.collect { it.getBytes(StandardCharsets.UTF_8) }
+        int iterations = 200000
+        // Warm up both paths.
+        (0..20000).each { new JSONParser().parse(new String(byteBodies[it % 100], StandardCharsets.UTF_8)) }
+        (0..20000).each { def b = byteBodies[it % 100]; toJsonMap(b, 0, b.length) }
+
+        long start1 = System.nanoTime()
+        for (int i = 0; i < iterations; i++) {
+            new JSONParser().parse(new String(byteBodies[i % 100], StandardCharsets.UTF_8))
+        }
+        double oldMs = (System.nanoTime() - start1) / 1000000.0
+        long start2 = System.nanoTime()
+        for (int i = 0; i < iterations; i++) {
+            def b = byteBodies[i % 100]
+            toJsonMap(b, 0, b.length)
+        }
+        double newMs = (System.nanoTime() - start2) / 1000000.0
+        println("json-simple: ${ConvertUtil.fmtDouble(oldMs)} ms, JsonByteParser: ${ConvertUtil.fmtDouble(newMs)} ms " +
+                "for ${iterations} login bodies")
+
+        then: "Both parsers should agree"
+        bodies.every { isJsonEqual(new JSONParser().parse(it), toJsonMap(it)) }
+    }
 }
@@ -1,5 +1,6 @@
 package script
 
+import org.dynamicruntime.content.DnAssetBundle
 import org.dynamicruntime.content.DnAwsClient
 import org.dynamicruntime.content.DnContentService
 import org.dynamicruntime.context.DnCxt
@@ -25,13 +26,27 @@ class AwsUploadWebapp {
     def doUpload(String siteId, String uploadDir, String destDir) {
         def cxt = DnCxt.mkSimpleCxt("uploadToS3")
         String s3DestDir = (destDir.endsWith("/")) ? destDir : destDir + "/"
+        // Files in the bundle are keyed relative to the directory of the site's yaml file.
+        String siteDir = DnContentService.getSiteDir(siteId)
+        if (!s3DestDir.startsWith(siteDir)) {
+            println("S3 target dir ${s3DestDir} must be under ${siteDir}, the directory of site ${siteId}.")
+            return
+        }
 
         // Publish the directory.
         awsClient.doUpload(cxt, BUCKET_NAME, uploadDir, s3DestDir, true)
 
+        // Publish the same content as a single bundle, which is what the server reads the site from.
+        def bundleFile = File.createTempFile("site", DnAssetBundle.BUNDLE_EXT)
+        DnAssetBundle.writeBundle(new File(uploadDir), s3DestDir.substring(siteDir.length()), bundleFile)
+        // The name has a hash of the content, servers treat a new name as a new version of the site.
+        def s3BundlePath = s3DestDir + DnAssetBundle.mkContentName("site", bundleFile)
+        awsClient.s3.putObject(BUCKET_NAME, s3BundlePath, bundleFile)
+        bundleFile.delete()
+
         // Set up a yaml file to point to content we just published.
         def s3YamlPath = siteId + ".yaml"
-        def content = "site.entryPoint: ${s3DestDir}index.html"
+        def content = "site.entryPoint: ${s3DestDir}index.html\nsite.bundle: ${s3BundlePath}"
         awsClient.uploadString(cxt, BUCKET_NAME, s3YamlPath, content, true)
 
         println("***\nUploaded site ${siteId} from ${uploadDir} to s3:${BUCKET_NAME}/${s3DestDir}\n***")
@@ -0,0 +1,67 @@
+package script
+
+import org.dynamicruntime.util.DnHistogram
+
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Duration
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Simple load generator for comparing server configurations, such as running with and without
+ * *server.virtualThreads*. Each simulated client runs on its own virtual thread and sends requests back to back
+ * over its own connection for the duration of the test. Reports throughput, errors, and the latency
+ * distribution.
+ */
+class LoadTest {
+    static void main(String[] args) {
+        if (args.length < 1) {
+            println("\n*** LoadTest ***")
+            println("Arguments are: <url> [<numConnections> (default 1000)] [<durationSecs> (default 30)]")
+            return
+        }
+        String url = args[0]
+        int numConnections = (args.length > 1) ? args[1] as int : 1000
+        int durationSecs = (args.length > 2) ? args[2] as int : 30
+
+        def latency = new DnHistogram("latency")
+        def errors = new LongAdder()
+        long endTime = System.currentTimeMillis() + durationSecs * 1000L
+        def request = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30)).GET().build()
+
+        println("Running ${numConnections} connections against ${url} for ${durationSecs} seconds.")
+        long start = System.nanoTime()
+        def executor = Executors.newVirtualThreadPerTaskExecutor()
+        for (int i = 0; i < numConnections; i++) {
+            executor.submit {
+                // A client per worker so that each worker has its own connection, like separate browsers.
+                def client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                        .connectTimeout(Duration.ofSeconds(10)).build()
+                while (System.currentTimeMillis() < endTime) {
+                    long reqStart = System.nanoTime()
+                    try {
+                        def response = client.send(request, HttpResponse.BodyHandlers.discarding())
+                        if (response.statusCode() >= 400) {
+                            errors.increment()
+                        }
+                    } catch (Exception ignore) {
+                        errors.increment()
+                    }
+                    latency.record(System.nanoTime() - reqStart)
+                }
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(durationSecs + 60, TimeUnit.SECONDS)
+        double elapsedSecs = (System.nanoTime() - start) / 1000000000.0
+
+        def stats = latency.toMap()
+        println(String.format("Requests: %d, errors: %d, throughput: %.1f requests/sec",
+                stats.count, errors.sum(), stats.count / elapsedSecs))
+        println(String.format("Latency ms: avg %.2f, p50 %.2f, p90 %.2f, p99 %.2f, max %.2f",
+                stats.avgMillis, stats.p50Millis, stats.p90Millis, stats.p99Millis, stats.maxMillis))
+    }
+}
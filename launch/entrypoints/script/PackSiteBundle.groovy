@@ -0,0 +1,18 @@
+package script
+
+import org.dynamicruntime.content.DnAssetBundle
+
+class PackSiteBundle {
+    static void main(String[] args) {
+        if (!args || args.length < 3) {
+            println("\n*** PackSiteBundle ***")
+            println("Arguments are: <dir-to-pack> <key-prefix> <bundle-file>")
+            return
+        }
+
+        def dir = new File(args[0])
+        def bundleFile = new File(args[2])
+        int count = DnAssetBundle.writeBundle(dir, args[1], bundleFile)
+        println("***\nPacked ${count} files from ${dir} into ${bundleFile}\n***")
+    }
+}
@@ -0,0 +1,9 @@
+#!/usr/bin/env bash
+# Sends load to a running server and reports throughput and latency. Start the server once with
+# *server.virtualThreads* false and once with it true to compare the two modes.
+# Command line is
+# loadTest <url> [<numConnections>] [<durationSecs>]
+SCRIPT=$(readlink -f "$0")
+PATH_TO_DIR=`dirname "$SCRIPT"`
+
+$PATH_TO_DIR/execScript.sh script.LoadTest $@